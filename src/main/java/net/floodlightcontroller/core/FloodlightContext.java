@@ -17,19 +17,140 @@
 
 package net.floodlightcontroller.core;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This is a context object where floodlight listeners can register 
  * and later retrieve context information associated with an
  * event
+ *
+ * Every key is given a slot, an index into an array, the first time it
+ * is used; the stores remember the slots of their keys, so reading and
+ * writing a context costs no hashing. A context belongs to the thread
+ * handling its event and is not synchronized. {@link #reset()} only
+ * touches the slots that were used, so contexts are cheap to reuse.
  * @author readams
  */
 public class FloodlightContext {
-    protected ConcurrentHashMap<String, Object> storage =
-            new ConcurrentHashMap<String, Object>();
+    private static final ConcurrentMap<String, Integer> slotIndex =
+            new ConcurrentHashMap<String, Integer>();
+    private static volatile String[] slotKeys = new String[0];
 
-    public ConcurrentHashMap<String, Object> getStorage() {
+    private static final int INITIAL_SLOTS = 16;
+
+    protected Object[] values;
+    // slots set since the last reset, possibly removed again
+    protected int[] used;
+    protected int nUsed;
+
+    public FloodlightContext() {
+        values = new Object[Math.max(INITIAL_SLOTS, slotKeys.length)];
+        used = new int[INITIAL_SLOTS];
+    }
+
+    /**
+     * Gets the slot of a key, assigning it one if it has none yet
+     * @param key the key
+     * @return the slot of the key
+     */
+    public static int getSlot(String key) {
+        Integer slot = slotIndex.get(key);
+        if (slot != null)
+            return slot;
+        synchronized (slotIndex) {
+            slot = slotIndex.get(key);
+            if (slot == null) {
+                String[] keys = Arrays.copyOf(slotKeys, slotKeys.length + 1);
+                slot = slotKeys.length;
+                keys[slot] = key;
+                slotKeys = keys;
+                slotIndex.put(key, slot);
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * @param slot a slot
+     * @return the value in the slot, null if none
+     */
+    public Object get(int slot) {
+        return (slot < values.length) ? values[slot] : null;
+    }
+
+    /**
+     * Sets the value in a slot
+     * @param slot a slot
+     * @param value the value, null to clear the slot
+     */
+    public void put(int slot, Object value) {
+        if (slot >= values.length) {
+            if (value == null)
+                return;
+            values = Arrays.copyOf(values, Math.max(slot + 1,
+                                                    values.length * 2));
+        }
+        if (values[slot] == null && value != null) {
+            if (nUsed == used.length)
+                compactUsed();
+            used[nUsed++] = slot;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Clears a slot
+     * @param slot a slot
+     */
+    public void remove(int slot) {
+        if (slot < values.length)
+            values[slot] = null;
+    }
+
+    /**
+     * Clears all the slots
+     */
+    public void reset() {
+        for (int i = 0; i < nUsed; i++)
+            values[used[i]] = null;
+        nUsed = 0;
+    }
+
+    private void compactUsed() {
+        // drop the slots removed since they were set, and the duplicates
+        // of slots set again after a remove; grow if still full
+        Object[] saved = new Object[nUsed];
+        int n = 0;
+        for (int i = 0; i < nUsed; i++) {
+            int slot = used[i];
+            if (values[slot] != null) {
+                saved[n] = values[slot];
+                values[slot] = null;
+                used[n++] = slot;
+            }
+        }
+        for (int i = 0; i < n; i++)
+            values[used[i]] = saved[i];
+        nUsed = n;
+        if (nUsed == used.length)
+            used = Arrays.copyOf(used, used.length * 2);
+    }
+
+    /**
+     * @return a copy of the context by key, for debugging
+     */
+    public Map<String, Object> getStorage() {
+        Map<String, Object> storage = new HashMap<String, Object>();
+        String[] keys = slotKeys;
+        for (int i = 0; i < nUsed; i++) {
+            int slot = used[i];
+            if (values[slot] != null && slot < keys.length)
+                storage.put(keys[slot], values[slot]);
+        }
         return storage;
     }
 }
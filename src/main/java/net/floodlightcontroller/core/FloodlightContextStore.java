@@ -18,17 +18,46 @@
 package net.floodlightcontroller.core;
 
 public class FloodlightContextStore<V> {
-    
+    // the last key used and its slot; stores are shared by threads, so
+    // both are swapped together
+    private static class Slot {
+        final String key;
+        final int slot;
+
+        Slot(String key, int slot) {
+            this.key = key;
+            this.slot = slot;
+        }
+    }
+
+    private volatile Slot last;
+
+    /**
+     * @return the context slot of a key; stores are used with constant
+     *         keys, so the slot is looked up again only when the key
+     *         changes
+     */
+    protected int slotOf(String key) {
+        Slot s = last;
+        if (s != null && (s.key == key || s.key.equals(key)))
+            return s.slot;
+        int slot = FloodlightContext.getSlot(key);
+        last = new Slot(key, slot);
+        return slot;
+    }
+
     @SuppressWarnings("unchecked")
     public V get(FloodlightContext bc, String key) {
-        return (V)bc.storage.get(key);
+        return (V)bc.get(slotOf(key));
     }
     
     public void put(FloodlightContext bc, String key, V value) {
-        bc.storage.put(key, value);
+        if (value == null)
+            throw new NullPointerException();
+        bc.put(slotOf(key), value);
     }
     
     public void remove(FloodlightContext bc, String key) {
-        bc.storage.remove(key);
+        bc.remove(slotOf(key));
     }
 }
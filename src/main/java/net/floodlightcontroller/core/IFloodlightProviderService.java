@@ -25,6 +25,7 @@ import java.util.Map;
 
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketView;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
@@ -47,6 +48,15 @@ public interface IFloodlightProviderService extends
     public static final String CONTEXT_PI_PAYLOAD =
             "net.floodlightcontroller.core.IFloodlightProvider.piPayload";
 
+    /**
+     * A value stored in the floodlight context containing a lazily decoded
+     * view of the payload of a packet-in message. Listeners that only need
+     * header fields should read them from the view, which avoids decoding
+     * the full packet.
+     */
+    public static final String CONTEXT_PI_VIEW =
+            "net.floodlightcontroller.core.IFloodlightProvider.piView";
+
     /**
      * The role of the controller as used by the OF 1.2 and OVS failover and
      * load-balancing mechanism.
@@ -83,7 +93,14 @@ public interface IFloodlightProviderService extends
      * packet-in payload
      */
     public static final FloodlightContextStore<Ethernet> bcStore =
-            new FloodlightContextStore<Ethernet>();
+            new PacketInPayloadStore();
+
+    /**
+     * A FloodlightContextStore object that can be used to retrieve the
+     * packet-in view
+     */
+    public static final FloodlightContextStore<PacketView> pvStore =
+            new PacketViewStore();
 
     /**
      * Adds an OpenFlow message listener
@@ -230,6 +230,26 @@ public interface IOFSwitch {
      */
     public void write(List<OFMessage> msglist, FloodlightContext bc) throws IOException;
 
+    /**
+     * Writes the list of messages in the bulk lane, behind the messages
+     * written through write, and only as fast as the switch reads them.
+     * Messages in the bulk lane are never dropped, so producers of many
+     * messages should call awaitWriteCapacity between writes.
+     * @param msglist
+     * @param bc
+     * @throws IOException
+     */
+    public void writeBulk(List<OFMessage> msglist, FloodlightContext bc)
+            throws IOException;
+
+    /**
+     * Waits until the bulk lane of the switch has room for more messages.
+     * Returns right away on the I/O threads.
+     * @param timeoutMs the longest time to wait in milliseconds
+     * @return false if the lane is still full
+     */
+    public boolean awaitWriteCapacity(long timeoutMs);
+
     /**
      *
      * @throws IOException
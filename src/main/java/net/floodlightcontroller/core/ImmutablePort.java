@@ -385,7 +385,7 @@ public class ImmutablePort {
             return PortSpeed.SPEED_NONE;
         PortSpeed maxSpeed = PortSpeed.SPEED_NONE;
         for (OFPortFeatures f: currentFeatures)
-            PortSpeed.max(maxSpeed, f.getSpeed());
+            maxSpeed = PortSpeed.max(maxSpeed, f.getSpeed());
         return maxSpeed;
     }
 
@@ -154,13 +154,7 @@ public abstract class OFSwitchBase implements IOFSwitch {
     private static final String PACKAGE = OFSwitchBase.class.getPackage().getName();
 
 
-    protected final static ThreadLocal<Map<IOFSwitch,List<OFMessage>>> local_msg_buffer =
-            new ThreadLocal<Map<IOFSwitch,List<OFMessage>>>() {
-        @Override
-        protected Map<IOFSwitch,List<OFMessage>> initialValue() {
-            return new HashMap<IOFSwitch,List<OFMessage>>();
-        }
-    };
+    protected final OFWriteQueue writeQueue;
 
     public static final int OFSWITCH_APP_ID = 5;
     static {
@@ -183,6 +177,7 @@ public abstract class OFSwitchBase implements IOFSwitch {
         this.lastMessageTime = System.currentTimeMillis();
 
         this.portManager = new PortManager();
+        this.writeQueue = new OFWriteQueue(this);
 
         // Defaults properties for an ideal switch
         this.setAttribute(PROP_FASTWILDCARDS, OFMatch.OFPFW_ALL);
@@ -770,21 +765,8 @@ public abstract class OFSwitchBase implements IOFSwitch {
         if (channel == null || !isConnected())
             return;
             //throws IOException {
-        Map<IOFSwitch,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        List<OFMessage> msg_buffer = msg_buffer_map.get(this);
-        if (msg_buffer == null) {
-            msg_buffer = new ArrayList<OFMessage>();
-            msg_buffer_map.put(this, msg_buffer);
-        }
-
         this.floodlightProvider.handleOutgoingMessage(this, m, bc);
-        msg_buffer.add(m);
-
-        if ((msg_buffer.size() >= Controller.BATCH_MAX_SIZE) ||
-            ((m.getType() != OFType.PACKET_OUT) && (m.getType() != OFType.FLOW_MOD))) {
-            this.write(msg_buffer);
-            msg_buffer.clear();
-        }
+        writeQueue.write(m);
     }
     @Override
     @LogMessageDoc(level="WARN",
@@ -824,7 +806,21 @@ public abstract class OFSwitchBase implements IOFSwitch {
     protected void write(List<OFMessage> msglist) {
         if (channel == null || !isConnected())
             return;
-        this.channel.write(msglist);
+        writeQueue.writeAll(msglist);
+    }
+
+    @Override
+    public void writeBulk(List<OFMessage> msglist, FloodlightContext bc) {
+        if (channel == null || !isConnected())
+            return;
+        for (OFMessage m : msglist)
+            this.floodlightProvider.handleOutgoingMessage(this, m, bc);
+        writeQueue.writeBulk(msglist);
+    }
+
+    @Override
+    public boolean awaitWriteCapacity(long timeoutMs) {
+        return writeQueue.awaitCapacity(timeoutMs);
     }
 
     @Override
@@ -1136,7 +1132,7 @@ public abstract class OFSwitchBase implements IOFSwitch {
         List<OFMessage> msglist = new ArrayList<OFMessage>(2);
         msglist.add(fm);
         msglist.add(barrierMsg);
-        channel.write(msglist);
+        writeQueue.writeAll(msglist);
     }
 
     @Override
@@ -1171,35 +1167,20 @@ public abstract class OFSwitchBase implements IOFSwitch {
 
     @Override
     public void flush() {
-        Map<IOFSwitch,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        List<OFMessage> msglist = msg_buffer_map.get(this);
-        if ((msglist != null) && (msglist.size() > 0)) {
-            /* ============================ BIG CAVEAT ===============================
-             * This code currently works, but relies on undocumented behavior of
-             * netty.
-             *
-             * The method org.jboss.netty.channel.Channel.write(Object)
-             * (invoked from this.write(List<OFMessage> msg) is currently
-             * documented to be <emph>asynchronous</emph>. If the method /were/ truely
-             * asynchronous, this would break our code (because we are clearing the
-             * msglist right after calling write.
-             *
-             * For now, Netty actually invokes the conversion pipeline before doing
-             * anything asynchronous, so we are safe. But we should probably change
-             * that behavior.
-             */
-            this.write(msglist);
-            msglist.clear();
-        }
+        writeQueue.flush();
     }
 
     public static void flush_all() {
-        Map<IOFSwitch,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        for (IOFSwitch sw : msg_buffer_map.keySet()) {
-            sw.flush();
-        }
+        OFWriteQueue.flushAll();
     }
 
+    /**
+     * @return the batching and lane statistics of the writes to the switch
+     */
+    @JsonIgnore
+    public Map<String, Object> getWriteStats() {
+        return writeQueue.getStats();
+    }
 
     /**
      * Get the IP Address for the switch
@@ -1445,6 +1426,35 @@ public abstract class OFSwitchBase implements IOFSwitch {
                                    "Switch write throttle drop count",
                                    CounterType.ALWAYS_COUNT,
                                    IDebugCounterService.CTR_MDATA_WARN);
+
+        int lanes = OFWriteQueue.LANE_NAMES.length;
+        IDebugCounter[] ctrWritten = new IDebugCounter[lanes];
+        IDebugCounter[] ctrHeld = new IDebugCounter[lanes];
+        IDebugCounter[] ctrDrops = new IDebugCounter[lanes];
+        for (int i = 0; i < lanes; i++) {
+            String lane = OFWriteQueue.LANE_NAMES[i];
+            ctrWritten[i] = debugCounters.registerCounter(
+                                   PACKAGE, stringId + "/write/" + lane,
+                                   "Messages written to this switch in the " +
+                                   lane + " lane",
+                                   CounterType.ALWAYS_COUNT);
+        }
+        for (int i : new int[] { OFWriteQueue.LANE_INTERACTIVE,
+                                 OFWriteQueue.LANE_BULK }) {
+            String lane = OFWriteQueue.LANE_NAMES[i];
+            ctrHeld[i] = debugCounters.registerCounter(
+                                   PACKAGE, stringId + "/write/" + lane + "-held",
+                                   "Messages to this switch held back in the " +
+                                   lane + " lane while its channel was full",
+                                   CounterType.ALWAYS_COUNT);
+        }
+        ctrDrops[OFWriteQueue.LANE_INTERACTIVE] = debugCounters.registerCounter(
+                                   PACKAGE, stringId + "/write/interactive-drops",
+                                   "Messages to this switch dropped as too " +
+                                   "many were held back in the interactive lane",
+                                   CounterType.ALWAYS_COUNT,
+                                   IDebugCounterService.CTR_MDATA_WARN);
+        writeQueue.setCounters(ctrWritten, ctrHeld, ctrDrops);
     }
 
     /**
@@ -0,0 +1,629 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Outbound queue of a switch. Messages are written in one of three lanes:
+ * <ul>
+ * <li>control: hellos, echoes, features, config and stats requests, which
+ * change nothing on the switch and are never held back, so a switch busy
+ * installing flows still gets its echo replies in time;
+ * <li>interactive: everything else written through
+ * {@link IOFSwitch#write}, in order, typically the flow-mods and
+ * packet-outs of packet-in processing;
+ * <li>bulk: mass flow pushes written through {@link IOFSwitch#writeBulk},
+ * sent only while no interactive message waits.
+ * </ul>
+ * Interactive and bulk messages are handed to Netty only while the
+ * channel is writable, that is below its high water mark; otherwise they
+ * are held in their lane until the channel drained below its low water
+ * mark. Held messages are encoded when they are held back, as a
+ * packet-out may refer to the frame of a packet-in that is reused once
+ * the packet-in is released. Interactive messages beyond
+ * INTERACTIVE_LIMIT bytes held are
+ * dropped if they are flow-mods or packet-outs, as those are only worth
+ * sending soon; role requests, barriers and the other interactive
+ * messages are held whatever the limit. Bulk messages are never
+ * dropped: with BULK_HIGH_WATERMARK bytes held the lane is full, and
+ * {@link #awaitCapacity(long)} blocks producers until it drained to
+ * BULK_LOW_WATERMARK.
+ *
+ * Interactive flow-mods and packet-outs are coalesced into batches, each
+ * encoded into a buffer of its own and written to the channel at once. A
+ * batch is written when it reaches maxMessages messages or maxBytes
+ * bytes, or deadline microseconds after its first message was queued,
+ * whichever comes first; when the writing thread flushes explicitly,
+ * which the controller does after every train of messages it dispatched;
+ * or with any other interactive message, which is written right away
+ * after the ones queued before it.
+ *
+ * Batching only pays when messages come in bursts, so the first message
+ * written after the queue was idle for a deadline is not held back.
+ */
+public class OFWriteQueue {
+    protected static final Logger log =
+            LoggerFactory.getLogger(OFWriteQueue.class);
+
+    public static final int DEFAULT_MAX_MESSAGES = 100;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+    public static final int DEFAULT_DEADLINE_US = 200;
+
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_INTERACTIVE = 1;
+    public static final int LANE_BULK = 2;
+    public static final String[] LANE_NAMES =
+        { "control", "interactive", "bulk" };
+
+    protected static final int INTERACTIVE_LIMIT = 1024 * 1024;
+    protected static final int BULK_HIGH_WATERMARK = 256 * 1024;
+    protected static final int BULK_LOW_WATERMARK = 128 * 1024;
+
+    // why a batch was written
+    protected static final int FLUSH_SIZE = 0;
+    protected static final int FLUSH_BYTES = 1;
+    protected static final int FLUSH_DEADLINE = 2;
+    protected static final int FLUSH_EXPLICIT = 3;
+    protected static final int FLUSH_IMMEDIATE = 4;
+    protected static final String[] FLUSH_NAMES =
+        { "size", "bytes", "deadline", "explicit", "immediate" };
+
+    private static volatile int maxMessages = DEFAULT_MAX_MESSAGES;
+    private static volatile int maxBytes = DEFAULT_MAX_BYTES;
+    private static volatile long deadlineNs = DEFAULT_DEADLINE_US * 1000L;
+    // where to allocate the encoded batches, null for heap buffers; the
+    // channel encoder passes them through as they are
+    private static volatile ChannelBufferFactory bufferFactory;
+
+    // queues written by a thread since it last flushed them, only on the
+    // threads that flush, so the others keep no queue
+    private static final ThreadLocal<Set<OFWriteQueue>> written =
+            new ThreadLocal<Set<OFWriteQueue>>();
+    // set on the threads the channels drain on, which must never wait
+    // for capacity
+    private static final ThreadLocal<Boolean> ioThread =
+            new ThreadLocal<Boolean>();
+    // queues with a batch waiting for its deadline, oldest first
+    private static final LinkedBlockingQueue<OFWriteQueue> timed =
+            new LinkedBlockingQueue<OFWriteQueue>();
+    private static Thread flusher;
+
+    protected final OFSwitchBase sw;
+    private final List<OFMessage> pending = new ArrayList<OFMessage>();
+    private int pendingBytes;
+    private long firstQueuedNs;
+    private long lastQueuedNs;
+    private boolean timedScheduled;
+
+    /**
+     * A batch of messages held back, encoded
+     */
+    private static class HeldBatch {
+        final ChannelBuffer buf;
+        final int messages;
+
+        HeldBatch(ChannelBuffer buf, int messages) {
+            this.buf = buf;
+            this.messages = messages;
+        }
+    }
+
+    // batches held back while the channel is not writable
+    private final ArrayDeque<HeldBatch> heldInteractive =
+            new ArrayDeque<HeldBatch>();
+    private final ArrayDeque<HeldBatch> heldBulk =
+            new ArrayDeque<HeldBatch>();
+    private final int[] heldBytes = new int[LANE_NAMES.length];
+    private final int[] heldMessages = new int[LANE_NAMES.length];
+    private boolean bulkFull;
+
+    private long batches;
+    private long messages;
+    private long bytes;
+    private int maxBatch;
+    private long totalDelayNs;
+    private long maxDelayNs;
+    private final long[] flushes = new long[FLUSH_NAMES.length];
+    private final long[] laneWritten = new long[LANE_NAMES.length];
+    private final long[] laneHeld = new long[LANE_NAMES.length];
+    private final long[] laneDrops = new long[LANE_NAMES.length];
+
+    // by lane, with null entries for what a lane never does
+    private IDebugCounter[] ctrWritten;
+    private IDebugCounter[] ctrHeld;
+    private IDebugCounter[] ctrDrops;
+
+    public OFWriteQueue(OFSwitchBase sw) {
+        this.sw = sw;
+    }
+
+    /**
+     * Sets the batching policy of all the queues
+     * @param messages the messages in a batch
+     * @param bytes the bytes in a batch
+     * @param deadlineUs the time a message may wait for its batch
+     */
+    public static void setPolicy(int messages, int bytes, int deadlineUs) {
+        maxMessages = messages;
+        maxBytes = bytes;
+        deadlineNs = deadlineUs * 1000L;
+    }
+
+    /**
+     * Sets where all the queues allocate the buffers they encode batches
+     * into, the same as the channel encoder would
+     * @param factory the buffer factory, null for heap buffers
+     */
+    public static void setBufferFactory(ChannelBufferFactory factory) {
+        bufferFactory = factory;
+    }
+
+    /**
+     * Marks the calling thread as one channels drain on, on which
+     * {@link #awaitCapacity(long)} never waits
+     */
+    public static void markIoThread() {
+        if (ioThread.get() == null)
+            ioThread.set(Boolean.TRUE);
+    }
+
+    /**
+     * Tracks the queues the calling thread writes, for {@link #flushAll()}
+     * to flush them. For the threads that flush after every train of
+     * messages they handle; on other threads the batches are written by
+     * their deadline. A thread is tracked from its first flush on anyway.
+     */
+    public static void trackWrites() {
+        if (written.get() == null)
+            written.set(new HashSet<OFWriteQueue>());
+    }
+
+    /**
+     * Sets the counters of the messages written, held back and dropped,
+     * each indexed by lane
+     */
+    public synchronized void setCounters(IDebugCounter[] written,
+                                         IDebugCounter[] held,
+                                         IDebugCounter[] drops) {
+        this.ctrWritten = written;
+        this.ctrHeld = held;
+        this.ctrDrops = drops;
+    }
+
+    /**
+     * @return the lane of a message written through
+     *         {@link IOFSwitch#write}
+     */
+    protected static int laneOf(OFType type) {
+        switch (type) {
+            case HELLO:
+            case ECHO_REQUEST:
+            case ECHO_REPLY:
+            case FEATURES_REQUEST:
+            case GET_CONFIG_REQUEST:
+            case STATS_REQUEST:
+                return LANE_CONTROL;
+            default:
+                return LANE_INTERACTIVE;
+        }
+    }
+
+    /**
+     * @return whether an interactive message may be dropped when too
+     *         many are held back
+     */
+    protected static boolean isDroppable(OFType type) {
+        return type == OFType.FLOW_MOD || type == OFType.PACKET_OUT;
+    }
+
+    /**
+     * Queues a message
+     * @param m
+     */
+    public void write(OFMessage m) {
+        boolean schedule = false;
+        synchronized (this) {
+            if (laneOf(m.getType()) == LANE_CONTROL) {
+                List<OFMessage> msglist = new ArrayList<OFMessage>(1);
+                msglist.add(m);
+                writeNow(msglist, m.getLengthU(), LANE_CONTROL);
+                return;
+            }
+            long now = System.nanoTime();
+            boolean idle = pending.isEmpty() &&
+                           now - lastQueuedNs > deadlineNs;
+            add(m, now);
+            if (idle || (m.getType() != OFType.FLOW_MOD &&
+                         m.getType() != OFType.PACKET_OUT)) {
+                flush(FLUSH_IMMEDIATE, now);
+                return;
+            }
+            if (pending.size() >= maxMessages) {
+                flush(FLUSH_SIZE, now);
+                return;
+            }
+            if (pendingBytes >= maxBytes) {
+                flush(FLUSH_BYTES, now);
+                return;
+            }
+            if (!timedScheduled) {
+                timedScheduled = true;
+                schedule = true;
+            }
+        }
+        Set<OFWriteQueue> queues = written.get();
+        if (queues != null)
+            queues.add(this);
+        if (schedule)
+            schedule(this);
+    }
+
+    /**
+     * Writes messages right away, after the ones queued before them
+     * unless they are all control messages
+     * @param msglist
+     */
+    public synchronized void writeAll(List<OFMessage> msglist) {
+        boolean control = true;
+        int size = 0;
+        for (OFMessage m : msglist) {
+            control &= (laneOf(m.getType()) == LANE_CONTROL);
+            size += m.getLengthU();
+        }
+        if (control) {
+            writeNow(msglist, size, LANE_CONTROL);
+            return;
+        }
+        long now = System.nanoTime();
+        for (OFMessage m : msglist)
+            add(m, now);
+        flush(FLUSH_IMMEDIATE, now);
+    }
+
+    /**
+     * Writes messages in the bulk lane. They are never dropped, so
+     * producers of many should {@link #awaitCapacity(long)} in between.
+     * @param msglist
+     */
+    public synchronized void writeBulk(List<OFMessage> msglist) {
+        if (!isConnected())
+            return;
+        hold(heldBulk, msglist, LANE_BULK);
+        if (heldBytes[LANE_BULK] >= BULK_HIGH_WATERMARK)
+            bulkFull = true;
+        drain();
+        // the ones not written right away
+        int held = Math.min(msglist.size(), heldMessages[LANE_BULK]);
+        if (held > 0)
+            countHeld(LANE_BULK, held);
+    }
+
+    /**
+     * Waits until the bulk lane has room. Returns right away on the
+     * threads channels drain on.
+     * @param timeoutMs the longest time to wait
+     * @return false if the lane is still full
+     */
+    public synchronized boolean awaitCapacity(long timeoutMs) {
+        if (ioThread.get() != null)
+            return !bulkFull;
+        long end = System.currentTimeMillis() + timeoutMs;
+        while (bulkFull) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0)
+                return false;
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return !bulkFull;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the messages queued, and the ones held back if the channel
+     * became writable
+     */
+    public synchronized void flush() {
+        flush(FLUSH_EXPLICIT, System.nanoTime());
+        drain();
+    }
+
+    /**
+     * Writes the messages queued in the switches written by the calling
+     * thread since it last called this
+     */
+    public static void flushAll() {
+        Set<OFWriteQueue> queues = written.get();
+        if (queues == null) {
+            trackWrites();
+            return;
+        }
+        if (queues.isEmpty())
+            return;
+        for (OFWriteQueue q : queues)
+            q.flush();
+        queues.clear();
+    }
+
+    private boolean isConnected() {
+        return sw.channel != null && sw.isConnected();
+    }
+
+    private void add(OFMessage m, long now) {
+        if (pending.isEmpty())
+            firstQueuedNs = now;
+        pending.add(m);
+        pendingBytes += m.getLengthU();
+        lastQueuedNs = now;
+    }
+
+    /**
+     * Writes the batch queued, or holds it back behind the interactive
+     * messages held before it
+     */
+    private void flush(int reason, long now) {
+        int n = pending.size();
+        if (n == 0)
+            return;
+        try {
+            if (!isConnected()) {
+                // dropped with the connection
+            } else if (heldInteractive.isEmpty() &&
+                       sw.channel.isWritable()) {
+                writeNow(pending, pendingBytes, LANE_INTERACTIVE);
+            } else if (heldBytes[LANE_INTERACTIVE] + pendingBytes >
+                       INTERACTIVE_LIMIT) {
+                // only flow-mods and packet-outs go; role requests,
+                // barriers and the like are held whatever the limit
+                List<OFMessage> kept = new ArrayList<OFMessage>();
+                for (OFMessage m : pending) {
+                    if (!isDroppable(m.getType()))
+                        kept.add(m);
+                }
+                int dropped = n - kept.size();
+                if (dropped > 0) {
+                    laneDrops[LANE_INTERACTIVE] += dropped;
+                    if (ctrDrops != null &&
+                        ctrDrops[LANE_INTERACTIVE] != null)
+                        ctrDrops[LANE_INTERACTIVE]
+                                .updateCounterWithFlush(dropped);
+                }
+                if (!kept.isEmpty()) {
+                    hold(heldInteractive, kept, LANE_INTERACTIVE);
+                    countHeld(LANE_INTERACTIVE, kept.size());
+                }
+            } else {
+                hold(heldInteractive, pending, LANE_INTERACTIVE);
+                countHeld(LANE_INTERACTIVE, n);
+            }
+        } finally {
+            // a batch that failed to encode is dropped, not retried
+            batches++;
+            messages += n;
+            bytes += pendingBytes;
+            if (n > maxBatch)
+                maxBatch = n;
+            long delay = now - firstQueuedNs;
+            totalDelayNs += delay;
+            if (delay > maxDelayNs)
+                maxDelayNs = delay;
+            flushes[reason]++;
+
+            pending.clear();
+            pendingBytes = 0;
+            timedScheduled = false;
+        }
+    }
+
+    /**
+     * Writes the messages held back while the channel is writable,
+     * interactive ones first
+     */
+    private void drain() {
+        if (!isConnected()) {
+            heldInteractive.clear();
+            heldBulk.clear();
+            heldBytes[LANE_INTERACTIVE] = 0;
+            heldBytes[LANE_BULK] = 0;
+            heldMessages[LANE_INTERACTIVE] = 0;
+            heldMessages[LANE_BULK] = 0;
+        } else {
+            while (!heldInteractive.isEmpty() && sw.channel.isWritable())
+                drainBatch(heldInteractive, LANE_INTERACTIVE);
+            while (heldInteractive.isEmpty() && !heldBulk.isEmpty() &&
+                   sw.channel.isWritable())
+                drainBatch(heldBulk, LANE_BULK);
+        }
+        if (bulkFull && heldBytes[LANE_BULK] <= BULK_LOW_WATERMARK) {
+            bulkFull = false;
+            notifyAll();
+        }
+    }
+
+    private void drainBatch(ArrayDeque<HeldBatch> held, int lane) {
+        HeldBatch batch = held.poll();
+        heldBytes[lane] -= batch.buf.readableBytes();
+        heldMessages[lane] -= batch.messages;
+        writeBuffer(batch.buf, batch.messages, lane);
+    }
+
+    /**
+     * Encodes messages into batches of at most maxMessages messages or
+     * about maxBytes bytes, and holds them back
+     */
+    private void hold(ArrayDeque<HeldBatch> held, List<OFMessage> msglist,
+                      int lane) {
+        int i = 0;
+        while (i < msglist.size()) {
+            int n = 0;
+            int size = 0;
+            while (i + n < msglist.size() && n < maxMessages &&
+                   size < maxBytes) {
+                size += msglist.get(i + n).getLengthU();
+                n++;
+            }
+            ChannelBuffer buf = allocate(size);
+            for (int end = i + n; i < end; i++)
+                msglist.get(i).writeTo(buf);
+            held.add(new HeldBatch(buf, n));
+            heldBytes[lane] += buf.readableBytes();
+            heldMessages[lane] += n;
+        }
+    }
+
+    private void writeNow(List<OFMessage> msglist, int size, int lane) {
+        if (!isConnected())
+            return;
+        // encoded now, so the messages may change or go once written
+        ChannelBuffer buf = allocate(size);
+        for (OFMessage m : msglist)
+            m.writeTo(buf);
+        writeBuffer(buf, msglist.size(), lane);
+    }
+
+    private static ChannelBuffer allocate(int size) {
+        ChannelBufferFactory factory = bufferFactory;
+        return (factory != null) ? factory.getBuffer(size)
+                                 : ChannelBuffers.buffer(size);
+    }
+
+    private void writeBuffer(ChannelBuffer buf, int messages, int lane) {
+        if (!isConnected())
+            return;
+        sw.channel.write(buf);
+        laneWritten[lane] += messages;
+        if (ctrWritten != null && ctrWritten[lane] != null)
+            ctrWritten[lane].updateCounterWithFlush(messages);
+    }
+
+    private void countHeld(int lane, int n) {
+        laneHeld[lane] += n;
+        if (ctrHeld != null && ctrHeld[lane] != null)
+            ctrHeld[lane].updateCounterWithFlush(n);
+    }
+
+    /**
+     * Writes the batch if its deadline passed
+     * @return false if it is not due yet
+     */
+    private synchronized boolean flushIfDue() {
+        if (pending.isEmpty())
+            return true;
+        long now = System.nanoTime();
+        if (now - firstQueuedNs < deadlineNs)
+            return false;
+        flush(FLUSH_DEADLINE, now);
+        drain();
+        return true;
+    }
+
+    private synchronized long getDeadline() {
+        return pending.isEmpty() ? 0 : firstQueuedNs + deadlineNs;
+    }
+
+    private static synchronized void schedule(OFWriteQueue q) {
+        timed.add(q);
+        if (flusher == null) {
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushTimed();
+                }
+            }, "OF Write Flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    private static void flushTimed() {
+        while (true) {
+            OFWriteQueue q;
+            try {
+                q = timed.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                long deadline = q.getDeadline();
+                if (deadline == 0)
+                    continue;
+                long wait = deadline - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(wait);
+                if (!q.flushIfDue())
+                    timed.add(q);
+            } catch (Exception e) {
+                log.error("Exception writing to switch " +
+                          q.sw.getStringId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the numbers of batches and messages written, the average
+     *         and largest batch, the average and longest time the first
+     *         message of a batch waited in microseconds, why batches
+     *         were written, and by lane the messages written, held back
+     *         and dropped, and the bytes still held
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("queued", pending.size());
+        stats.put("batches", batches);
+        stats.put("messages", messages);
+        stats.put("bytes", bytes);
+        stats.put("avg-batch", (batches == 0) ? 0 : messages / batches);
+        stats.put("max-batch", maxBatch);
+        stats.put("avg-delay-us",
+                  (batches == 0) ? 0 : totalDelayNs / batches / 1000);
+        stats.put("max-delay-us", maxDelayNs / 1000);
+        for (int i = 0; i < FLUSH_NAMES.length; i++)
+            stats.put("flush-" + FLUSH_NAMES[i], flushes[i]);
+        for (int i = 0; i < LANE_NAMES.length; i++) {
+            Map<String, Object> lane = new HashMap<String, Object>();
+            lane.put("written", laneWritten[i]);
+            lane.put("held", laneHeld[i]);
+            lane.put("drops", laneDrops[i]);
+            lane.put("held-bytes", heldBytes[i]);
+            stats.put(LANE_NAMES[i], lane);
+        }
+        stats.put("bulk-full", bulkFull);
+        return stats;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketView;
+
+/**
+ * Store of the decoded packet-in payload. The controller only puts a
+ * {@link PacketView} of the packet-in in the context; the payload is
+ * deserialized from it the first time a listener asks for it.
+ */
+public class PacketInPayloadStore extends FloodlightContextStore<Ethernet> {
+    private static final int VIEW_SLOT = FloodlightContext.getSlot(
+            IFloodlightProviderService.CONTEXT_PI_VIEW);
+
+    @Override
+    public Ethernet get(FloodlightContext bc, String key) {
+        Ethernet eth = super.get(bc, key);
+        if (eth == null &&
+            IFloodlightProviderService.CONTEXT_PI_PAYLOAD.equals(key)) {
+            Object view = bc.get(VIEW_SLOT);
+            if (view instanceof PacketView) {
+                eth = ((PacketView) view).getEthernet();
+                bc.put(slotOf(key), eth);
+            }
+        }
+        return eth;
+    }
+}
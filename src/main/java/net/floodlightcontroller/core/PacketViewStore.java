@@ -0,0 +1,44 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketView;
+
+/**
+ * Store of the packet-in view. When a payload was put in the context
+ * without a view of it, as listeners and tests may do, the view is made
+ * from that payload so both always describe the same packet.
+ */
+public class PacketViewStore extends FloodlightContextStore<PacketView> {
+    private static final int PAYLOAD_SLOT = FloodlightContext.getSlot(
+            IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+
+    @Override
+    public PacketView get(FloodlightContext bc, String key) {
+        PacketView view = super.get(bc, key);
+        if (!IFloodlightProviderService.CONTEXT_PI_VIEW.equals(key))
+            return view;
+        Object eth = bc.get(PAYLOAD_SLOT);
+        if (eth instanceof Ethernet &&
+            (view == null || !view.isDecoded() || view.getEthernet() != eth)) {
+            view = new PacketView((Ethernet) eth);
+            bc.put(slotOf(key), view);
+        }
+        return view;
+    }
+}
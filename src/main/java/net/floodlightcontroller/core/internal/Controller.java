@@ -45,6 +45,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.HAListenerTypeMarker;
@@ -54,13 +55,14 @@ import net.floodlightcontroller.core.IInfoProvider;
 import net.floodlightcontroller.core.IListener.Command;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.OFSwitchBase;
+import net.floodlightcontroller.core.OFWriteQueue;
 import net.floodlightcontroller.core.IOFSwitch.PortChangeEvent;
 import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
 import net.floodlightcontroller.core.IOFSwitchDriver;
 import net.floodlightcontroller.core.IOFSwitchListener;
 import net.floodlightcontroller.core.IReadyForReconcileListener;
 import net.floodlightcontroller.core.ImmutablePort;
-import net.floodlightcontroller.core.OFSwitchBase;
 import net.floodlightcontroller.core.RoleInfo;
 import net.floodlightcontroller.core.SwitchSyncRepresentation;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
@@ -82,7 +84,7 @@ import net.floodlightcontroller.debugevent.IDebugEventService.EventType;
 import net.floodlightcontroller.debugevent.IDebugEventService.MaxEventsRegistered;
 import net.floodlightcontroller.notification.INotificationManager;
 import net.floodlightcontroller.notification.NotificationManagerFactory;
-import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketView;
 import net.floodlightcontroller.perfmon.IPktInProcessingTimeService;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.storage.IResultSet;
@@ -93,6 +95,7 @@ import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.util.LoadMonitor;
 import net.floodlightcontroller.util.TimedCache;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.group.ChannelGroup;
@@ -182,6 +185,10 @@ public class Controller implements IFloodlightProviderService,
     private RoleManager roleManager;
     private SwitchManager switchManager;
 
+    // locks serializing the life cycle of switches, a power of two
+    private static final int SWITCH_LOCK_STRIPES = 64;
+    // most updates dispatched by the main loop at once
+    private static final int UPDATE_BATCH_SIZE = 256;
     private static final int DEFAULT_CONSOLIDATE_STORE_TIME_DELAY_MS =
             15*1000; // 15s
     private int consolidateStoreTimeDelayMs =
@@ -227,7 +234,12 @@ public class Controller implements IFloodlightProviderService,
     // Perf. related configuration
     protected static final int SEND_BUFFER_SIZE = 128 * 1024;
     public static final int BATCH_MAX_SIZE = 100;
-    protected static final boolean ALWAYS_DECODE_ETH = true;
+    // packet-ins refer to the frame they were read from, see OFPacketIn
+    private boolean zeroCopy = false;
+    // send independent handshake requests together, see OFChannelHandler
+    private boolean pipelinedHandshake = true;
+    // dispatches messages to the listeners off the I/O threads, if set
+    private ShardedDispatcher dispatcher;
 
     // Set of port name prefixes that will be classified as uplink ports,
     // hence will not be autoportfast.
@@ -900,18 +912,31 @@ public class Controller implements IFloodlightProviderService,
      * This is a utility class to encapsulate code that deals with switch
      * life cycles. It interacts with the sync store to read/write switches
      * to/from the store and it maintains the switch maps.
+     *
+     * The life cycle of a switch (activation, port changes, disconnect and
+     * store notifications) is serialized by a lock striped by DPID, so
+     * events of different switches don't wait for each other. They hold
+     * the read lock of the role lock, which role transitions take
+     * exclusively. The switch updates are queued under the switch lock, so
+     * listeners see the updates of a switch in order.
      * @author gregor
      *
      */
     private class SwitchManager implements IStoreListener<Long> {
-        private Role role;
+        private volatile Role role;
         private final ConcurrentHashMap<Long,IOFSwitch> activeSwitches;
         private final ConcurrentHashMap<Long,IOFSwitch> syncedSwitches;
+        private final ReentrantReadWriteLock roleLock;
+        private final Object[] switchLocks;
 
         public SwitchManager(Role role) {
             this.role = role;
             this.activeSwitches = new ConcurrentHashMap<Long, IOFSwitch>();
             this.syncedSwitches = new ConcurrentHashMap<Long, IOFSwitch>();
+            this.roleLock = new ReentrantReadWriteLock();
+            this.switchLocks = new Object[SWITCH_LOCK_STRIPES];
+            for (int i = 0; i < switchLocks.length; i++)
+                switchLocks[i] = new Object();
        }
 
         @Override
@@ -959,8 +984,13 @@ public class Controller implements IFloodlightProviderService,
         }
 
 
-        public synchronized void setRole(Role role) {
-            this.role = role;
+        public void setRole(Role role) {
+            roleLock.writeLock().lock();
+            try {
+                this.role = role;
+            } finally {
+                roleLock.writeLock().unlock();
+            }
             Runnable consolidateStoreTask = new Runnable() {
                 @Override
                 public void run() {
@@ -1002,10 +1032,26 @@ public class Controller implements IFloodlightProviderService,
          * role relative to this controller.
          * @param sw
          */
-        public synchronized void switchActivated(IOFSwitch sw) {
+        public void switchActivated(IOFSwitch sw) {
+            long dpid = sw.getId();
+            roleLock.readLock().lock();
+            try {
+                synchronized (getSwitchLock(dpid)) {
+                    if (activateSwitch(sw))
+                        syncSwitchToStore(dpid);
+                }
+            } finally {
+                roleLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return true if the switch needs to be written to the store
+         */
+        private boolean activateSwitch(IOFSwitch sw) {
             if (role != Role.MASTER) {
                 counters.invalidSwitchActivatedWhileSlave.updateCounterWithFlush();
-                return; // only react to switch connections when master
+                return false; // only react to switch connections when master
                 // FIXME: should we disconnect the switch? When can this happen?
             }
             Long dpid = sw.getId();
@@ -1021,8 +1067,7 @@ public class Controller implements IFloodlightProviderService,
                 // really never happen.
                 counters.errorSameSwitchReactivated.updateCounterWithFlush();
                 log.error("Switch {} activated but was already active", sw);
-                addSwitchToStore(sw);
-                return;
+                return true;
             }
 
             if (oldSw != null) {
@@ -1050,11 +1095,18 @@ public class Controller implements IFloodlightProviderService,
                                                   SwitchUpdateType.ADDED));
                 addUpdateToQueue(new SwitchUpdate(dpid,
                                                   SwitchUpdateType.ACTIVATED));
-                addSwitchToStore(sw);
-                return;
+                return true;
             }
 
-            IOFSwitch storedSwitch = this.syncedSwitches.remove(sw.getId());
+            IOFSwitch storedSwitch;
+            boolean lastSyncedSwitch;
+            // other switches are activated concurrently, only one of them
+            // is the last synced switch
+            synchronized (this.syncedSwitches) {
+                storedSwitch = this.syncedSwitches.remove(sw.getId());
+                lastSyncedSwitch = (storedSwitch != null) &&
+                        this.syncedSwitches.isEmpty();
+            }
             if (storedSwitch == null) {
                 // The switch isn't known to the controller cluster. We
                 // need to send a switchAdded notification and clear all
@@ -1086,7 +1138,7 @@ public class Controller implements IFloodlightProviderService,
                                                   SwitchUpdateType.ACTIVATED));
                 sendNotificationsIfSwitchDiffers(storedSwitch, sw);
                 counters.syncedSwitchActivated.updateCounterWithFlush();
-                if (this.syncedSwitches.isEmpty()) {
+                if (lastSyncedSwitch) {
                     // we have just activated the last synced switch. I.e.,
                     // all previously known switch are now active. Send
                     // notification
@@ -1094,7 +1146,7 @@ public class Controller implements IFloodlightProviderService,
                     addUpdateToQueue(new ReadyForReconcileUpdate());
                 }
             }
-            addSwitchToStore(sw);
+            return true;
         }
 
         /**
@@ -1103,25 +1155,43 @@ public class Controller implements IFloodlightProviderService,
          * to listeners
          * @param sw
          */
-        public synchronized void switchPortsChanged(IOFSwitch sw,
-                                                    ImmutablePort port,
-                                                    PortChangeType type) {
+        public void switchPortsChanged(IOFSwitch sw,
+                                       ImmutablePort port,
+                                       PortChangeType type) {
+            long dpid = sw.getId();
+            roleLock.readLock().lock();
+            try {
+                synchronized (getSwitchLock(dpid)) {
+                    if (queuePortsChanged(sw, port, type))
+                        syncSwitchToStore(dpid);
+                }
+            } finally {
+                roleLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return true if the switch needs to be written to the store
+         */
+        private boolean queuePortsChanged(IOFSwitch sw,
+                                                       ImmutablePort port,
+                                                       PortChangeType type) {
             if (role != Role.MASTER) {
                 counters.invalidPortsChanged.updateCounterWithFlush();
-                return;
+                return false;
             }
             if (!this.activeSwitches.containsKey(sw.getId())) {
                 counters.invalidPortsChanged.updateCounterWithFlush();
-                return;
+                return false;
             }
-            // update switch in store
-            addSwitchToStore(sw);
             // no need to count here. SwitchUpdate.dispatch will count
             // the portchanged
             SwitchUpdate update = new SwitchUpdate(sw.getId(),
                                                    SwitchUpdateType.PORTCHANGED,
                                                    port, type);
             addUpdateToQueue(update);
+            // update switch in store
+            return true;
         }
 
         /**
@@ -1129,7 +1199,18 @@ public class Controller implements IFloodlightProviderService,
          * switch.
          * @param sw
          */
-        private synchronized void switchAddedToStore(IOFSwitch sw) {
+        private void switchAddedToStore(IOFSwitch sw) {
+            roleLock.readLock().lock();
+            try {
+                synchronized (getSwitchLock(sw.getId())) {
+                    addSyncedSwitch(sw);
+                }
+            } finally {
+                roleLock.readLock().unlock();
+            }
+        }
+
+        private void addSyncedSwitch(IOFSwitch sw) {
             if (role != Role.SLAVE) {
                 counters.invalidStoreEventWhileMaster.updateCounterWithFlush();
                 return; // only read from store if slave
@@ -1153,7 +1234,18 @@ public class Controller implements IFloodlightProviderService,
          * has been removed from the sync store
          * @param dpid
          */
-        private synchronized void switchRemovedFromStore(long dpid) {
+        private void switchRemovedFromStore(long dpid) {
+            roleLock.readLock().lock();
+            try {
+                synchronized (getSwitchLock(dpid)) {
+                    removeSyncedSwitch(dpid);
+                }
+            } finally {
+                roleLock.readLock().unlock();
+            }
+        }
+
+        private void removeSyncedSwitch(long dpid) {
             if (role != Role.SLAVE) {
                 counters.invalidStoreEventWhileMaster.updateCounterWithFlush();
                 return; // only read from store if slave
@@ -1171,7 +1263,7 @@ public class Controller implements IFloodlightProviderService,
             }
         }
 
-        public synchronized void switchDeactivated(IOFSwitch sw) {
+        public void switchDeactivated(IOFSwitch sw) {
             // ignore. we don't handle MASTER -> SLAVE transitions. We
             // expect a restart
         }
@@ -1180,10 +1272,26 @@ public class Controller implements IFloodlightProviderService,
          * Called when a switch disconnects
          * @param sw
          */
-        public synchronized void switchDisconnected(IOFSwitch sw) {
+        public void switchDisconnected(IOFSwitch sw) {
+            long dpid = sw.getId();
+            roleLock.readLock().lock();
+            try {
+                synchronized (getSwitchLock(dpid)) {
+                    if (deactivateSwitch(sw))
+                        syncSwitchToStore(dpid);
+                }
+            } finally {
+                roleLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return true if the switch needs to be removed from the store
+         */
+        private boolean deactivateSwitch(IOFSwitch sw) {
             if (role == Role.SLAVE) {
                 counters.switchDisconnectedWhileSlave.updateCounterWithFlush();
-                return; // only react to switch connections when master
+                return false; // only react to switch connections when master
             }
             long dpid = sw.getId();
             // Update event history
@@ -1200,12 +1308,11 @@ public class Controller implements IFloodlightProviderService,
                 // Either way we shouldn't notify or do anything else
                 log.debug("removeSwitch called for switch {} but have {} in"
                           + " activeSwitches map. Ignoring", sw, oldSw);
-                return;
+                return false;
             }
             log.debug("removeSwitch {}", sw);
             swConnectCache.update(sw.getId());
             this.activeSwitches.remove(sw.getId());
-            removeSwitchFromStore(sw.getId());
             // We cancel all outstanding statistics replies if the switch transition
             // from active. In the future we might allow statistics requests
             // from slave controllers. Then we need to move this cancelation
@@ -1213,13 +1320,33 @@ public class Controller implements IFloodlightProviderService,
             sw.cancelAllStatisticsReplies();
             addUpdateToQueue(new SwitchUpdate(sw.getId(),
                                               SwitchUpdateType.REMOVED));
+            return true;
+        }
+
+        private Object getSwitchLock(long dpid) {
+            return switchLocks[(int) (dpid ^ (dpid >>> 32)) &
+                               (switchLocks.length - 1)];
+        }
+
+        /**
+         * Writes the current state of the given switch to the sync store:
+         * the active switch with its DPID, or its removal if there is
+         * none. Must be called with the switch lock held.
+         * @param dpid
+         */
+        private void syncSwitchToStore(long dpid) {
+            IOFSwitch sw = activeSwitches.get(dpid);
+            if (sw != null)
+                addSwitchToStore(sw);
+            else
+                removeSwitchFromStore(dpid);
         }
 
         /**
          * Write the given switch to the sync store.
          * @param sw
          */
-        private synchronized void addSwitchToStore(IOFSwitch sw) {
+        private void addSwitchToStore(IOFSwitch sw) {
             // Add to store
             // FIXME: do we need to use a put that takes a versioned here?
             // need to verify
@@ -1243,7 +1370,7 @@ public class Controller implements IFloodlightProviderService,
          * @param sw
          * @return true if the switch was absent, false otherwise
          */
-        private synchronized boolean addSwitchToStoreIfAbsent(IOFSwitch sw) {
+        private boolean addSwitchToStoreIfAbsent(IOFSwitch sw) {
             try {
                 Versioned<SwitchSyncRepresentation> versionedSSr =
                         storeClient.get(sw.getId());
@@ -1271,7 +1398,7 @@ public class Controller implements IFloodlightProviderService,
          * Remove the given switch from the sync store.
          * @param dpid
          */
-        private synchronized void removeSwitchFromStore(long dpid) {
+        private void removeSwitchFromStore(long dpid) {
             try {
                 storeClient.delete(dpid);
             } catch (SyncException e) {
@@ -1290,8 +1417,7 @@ public class Controller implements IFloodlightProviderService,
          * @param oldSw
          * @param newSw
          */
-        private synchronized void
-                sendNotificationsIfSwitchDiffers(IOFSwitch oldSw,
+        private void sendNotificationsIfSwitchDiffers(IOFSwitch oldSw,
                                                  IOFSwitch newSw) {
             Collection<PortChangeEvent> portDiffs =
                     oldSw.comparePorts(newSw.getPorts());
@@ -1305,12 +1431,19 @@ public class Controller implements IFloodlightProviderService,
         }
         /**
          * Remove all entries from the store that don't correspond to an
-         * active switch.
-         * TODO: is it a problem that this is fully synchronized
+         * active switch. Each entry is consolidated under its switch lock.
          */
-        private synchronized void consolidateStore() {
-            if (role == Role.SLAVE)
-                return;
+        private void consolidateStore() {
+            roleLock.readLock().lock();
+            try {
+                if (role != Role.SLAVE)
+                    consolidateStoreLocked();
+            } finally {
+                roleLock.readLock().unlock();
+            }
+        }
+
+        private void consolidateStoreLocked() {
             boolean shouldNotifyReadyForReconcile = false;
             counters.consolidateStoreRunCount.updateCounterWithFlush();
             log.info("Consolidating synced switches after MASTER transition");
@@ -1327,29 +1460,8 @@ public class Controller implements IFloodlightProviderService,
                 while(iter.hasNext()) {
                     Entry<Long, Versioned<SwitchSyncRepresentation>> entry =
                             iter.next();
-                    if (!this.activeSwitches.containsKey(entry.getKey())) {
-                        removeSwitchFromStore(entry.getKey());
-                        if (this.syncedSwitches.remove(entry.getKey()) != null) {
-                            // a switch that's in the store and in synced
-                            // switches but that is not active. I.e., a
-                            // switch known to the old master that hasn't
-                            // reconnected to this controller.
-                            counters.switchesNotReconnectingToNewMaster
-                                    .updateCounterWithFlush();
-                            shouldNotifyReadyForReconcile = true;
-                            addUpdateToQueue(new SwitchUpdate(entry.getKey(),
-                                                     SwitchUpdateType.REMOVED));
-                        } else {
-                            // A switch was in the store but it's neither in
-                            // activeSwitches nor syncedSwitches. This could
-                            // happen if the old Master has added this entry
-                            // to the store after this controller has
-                            // stopped reacting to store notifications (due
-                            // to MASTER transition)
-                            counters.consolidateStoreInconsistencies
-                                    .updateCounterWithFlush();
-                        }
-                    }
+                    if (consolidateSwitch(entry.getKey()))
+                        shouldNotifyReadyForReconcile = true;
                 }
             } finally {
                 if (iter != null)
@@ -1360,15 +1472,16 @@ public class Controller implements IFloodlightProviderService,
             // after this controller has stopped reacting to store
             // notification (because it's now MASTER). We need to remove
             // these switches.
-            Iterator<Long> it = this.syncedSwitches.keySet().iterator();
-            while (it.hasNext()) {
-                counters.switchesNotReconnectingToNewMaster.updateCounterWithFlush();
-                counters.consolidateStoreInconsistencies.updateCounterWithFlush();
-                Long dpid = it.next();
-                shouldNotifyReadyForReconcile = true;
-                addUpdateToQueue(new SwitchUpdate(dpid,
-                                                  SwitchUpdateType.REMOVED));
-                it.remove();
+            for (Long dpid: this.syncedSwitches.keySet()) {
+                synchronized (getSwitchLock(dpid)) {
+                    if (this.syncedSwitches.remove(dpid) == null)
+                        continue; // activated meanwhile
+                    counters.switchesNotReconnectingToNewMaster.updateCounterWithFlush();
+                    counters.consolidateStoreInconsistencies.updateCounterWithFlush();
+                    shouldNotifyReadyForReconcile = true;
+                    addUpdateToQueue(new SwitchUpdate(dpid,
+                                                      SwitchUpdateType.REMOVED));
+                }
             }
             if (shouldNotifyReadyForReconcile) {
                 // at least one previously known switch has been removed.
@@ -1381,8 +1494,44 @@ public class Controller implements IFloodlightProviderService,
             // happen if another controller has removed them (because we know
             // that we have written them to the store).
             for (IOFSwitch sw: this.activeSwitches.values()) {
-                if (addSwitchToStoreIfAbsent(sw))
-                    counters.consolidateStoreInconsistencies.updateCounterWithFlush();
+                synchronized (getSwitchLock(sw.getId())) {
+                    if (this.activeSwitches.get(sw.getId()) == sw &&
+                            addSwitchToStoreIfAbsent(sw))
+                        counters.consolidateStoreInconsistencies.updateCounterWithFlush();
+                }
+            }
+        }
+
+        /**
+         * Consolidates the store entry of the given switch
+         * @param dpid
+         * @return true if a switch known to the old master was removed
+         */
+        private boolean consolidateSwitch(long dpid) {
+            synchronized (getSwitchLock(dpid)) {
+                if (this.activeSwitches.containsKey(dpid))
+                    return false;
+                removeSwitchFromStore(dpid);
+                if (this.syncedSwitches.remove(dpid) != null) {
+                    // a switch that's in the store and in synced
+                    // switches but that is not active. I.e., a
+                    // switch known to the old master that hasn't
+                    // reconnected to this controller.
+                    counters.switchesNotReconnectingToNewMaster
+                            .updateCounterWithFlush();
+                    addUpdateToQueue(new SwitchUpdate(dpid,
+                                                      SwitchUpdateType.REMOVED));
+                    return true;
+                }
+                // A switch was in the store but it's neither in
+                // activeSwitches nor syncedSwitches. This could
+                // happen if the old Master has added this entry
+                // to the store after this controller has
+                // stopped reacting to store notifications (due
+                // to MASTER transition)
+                counters.consolidateStoreInconsistencies
+                        .updateCounterWithFlush();
+                return false;
             }
         }
 
@@ -1507,33 +1656,103 @@ public class Controller implements IFloodlightProviderService,
             }
             if (switchListeners != null) {
                 for (IOFSwitchListener listener : switchListeners) {
-                    switch(switchUpdateType) {
-                        case ADDED:
-                            // don't count here. We have more specific
-                            // counters before the update is created
-                            listener.switchAdded(swId);
-                            break;
-                        case REMOVED:
-                            // don't count here. We have more specific
-                            // counters before the update is created
-                            listener.switchRemoved(swId);
-                            break;
-                        case PORTCHANGED:
-                            counters.switchPortChanged.updateCounterWithFlush();
-                            listener.switchPortChanged(swId, port, changeType);
-                            break;
-                        case ACTIVATED:
-                            // don't count here. We have more specific
-                            // counters before the update is created
-                            listener.switchActivated(swId);
-                            break;
-                        case DEACTIVATED:
-                            // ignore
-                            break;
-                        case OTHERCHANGE:
-                            counters.switchOtherChange.updateCounterWithFlush();
-                            listener.switchChanged(swId);
-                            break;
+                    dispatch(listener);
+                }
+            }
+        }
+
+        /**
+         * Calls the given listener only
+         * @param listener
+         */
+        public void dispatch(IOFSwitchListener listener) {
+            switch(switchUpdateType) {
+                case ADDED:
+                    // don't count here. We have more specific
+                    // counters before the update is created
+                    listener.switchAdded(swId);
+                    break;
+                case REMOVED:
+                    // don't count here. We have more specific
+                    // counters before the update is created
+                    listener.switchRemoved(swId);
+                    break;
+                case PORTCHANGED:
+                    counters.switchPortChanged.updateCounterWithFlush();
+                    listener.switchPortChanged(swId, port, changeType);
+                    break;
+                case ACTIVATED:
+                    // don't count here. We have more specific
+                    // counters before the update is created
+                    listener.switchActivated(swId);
+                    break;
+                case DEACTIVATED:
+                    // ignore
+                    break;
+                case OTHERCHANGE:
+                    counters.switchOtherChange.updateCounterWithFlush();
+                    listener.switchChanged(swId);
+                    break;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return HexString.toHexString(swId) + " " + switchUpdateType;
+        }
+    }
+
+    /**
+     * @param batch
+     * @param from
+     * @return the end of the run of switch updates starting at from, or
+     * from + 1 if that's another update
+     */
+    private static int updateRunEnd(List<IUpdate> batch, int from) {
+        int to = from + 1;
+        if (batch.get(from) instanceof SwitchUpdate) {
+            while (to < batch.size() && batch.get(to) instanceof SwitchUpdate)
+                to++;
+        }
+        return to;
+    }
+
+    /**
+     * Dispatches a run of updates as returned by updateRunEnd. Switch
+     * updates are delivered as one batch: each switch listener gets all
+     * of them before the next listener is called, from one snapshot of
+     * the listeners. A listener failing on an update does not keep the
+     * others, or the rest of the updates, from being delivered.
+     * @param batch
+     * @param from
+     * @param to
+     */
+    @LogMessageDoc(level="ERROR",
+            message="Exception in switch listener {listener} handling " +
+                    "switch update {update}",
+            explanation="A switch listener failed to handle a switch " +
+                    "update, which is still delivered to the others",
+            recommendation=LogMessageDoc.GENERIC_ACTION)
+    private void dispatchUpdates(List<IUpdate> batch, int from, int to) {
+        if (to - from == 1) {
+            batch.get(from).dispatch();
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Dispatching {} switch updates", to - from);
+        }
+        if (switchListeners != null) {
+            for (IOFSwitchListener listener : switchListeners) {
+                for (int i = from; i < to; i++) {
+                    SwitchUpdate update = (SwitchUpdate) batch.get(i);
+                    try {
+                        update.dispatch(listener);
+                    } catch (StorageException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        log.error("Exception in switch listener " +
+                                  listener + " handling switch update " +
+                                  update, e);
                     }
                 }
             }
@@ -1733,7 +1952,7 @@ public class Controller implements IFloodlightProviderService,
      * @param flcontext
      */
     protected void flcontext_free(FloodlightContext flcontext) {
-        flcontext.getStorage().clear();
+        flcontext.reset();
         flcontext_cache.get().push(flcontext);
     }
 
@@ -1768,7 +1987,7 @@ public class Controller implements IFloodlightProviderService,
     protected void handleMessage(IOFSwitch sw, OFMessage m,
                                  FloodlightContext bContext)
             throws IOException {
-        Ethernet eth = null;
+        PacketView view = null;
 
         if (this.notifiedRole == Role.SLAVE) {
             counters.dispatchMessageWhileSlave.updateCounterNoFlush();
@@ -1781,18 +2000,23 @@ public class Controller implements IFloodlightProviderService,
             case PACKET_IN:
                 OFPacketIn pi = (OFPacketIn)m;
 
-                if (pi.getPacketData().length <= 0) {
+                ChannelBuffer data = pi.getPacketDataBuffer();
+                if (data.readableBytes() <= 0) {
                     log.error("Ignoring PacketIn (Xid = " + pi.getXid() +
                               ") because the data field is empty.");
                     return;
                 }
 
-                if (Controller.ALWAYS_DECODE_ETH) {
-                    eth = new Ethernet();
-                    eth.deserialize(pi.getPacketData(), 0,
-                            pi.getPacketData().length);
-                    counterStore.updatePacketInCountersLocal(sw, m, eth);
+                // decoded lazily, as far as the listeners look into it,
+                // and in place when the packet-in is a slice of its frame
+                if (data.hasArray()) {
+                    view = new PacketView(data.array(),
+                                          data.arrayOffset() + data.readerIndex(),
+                                          data.readableBytes());
+                } else {
+                    view = new PacketView(pi.getPacketData());
                 }
+                counterStore.updatePacketInCountersLocal(sw, m, view);
                 // fall through to default case...
 
             default:
@@ -1813,10 +2037,14 @@ public class Controller implements IFloodlightProviderService,
                     } else {
                         bc = bContext;
                     }
-                    if (eth != null) {
-                        IFloodlightProviderService.bcStore.put(bc,
-                                IFloodlightProviderService.CONTEXT_PI_PAYLOAD,
-                                eth);
+                    if (view != null) {
+                        IFloodlightProviderService.pvStore.put(bc,
+                                IFloodlightProviderService.CONTEXT_PI_VIEW,
+                                view);
+                        // the payload of an earlier packet must not shadow
+                        // the view of this one
+                        IFloodlightProviderService.bcStore.remove(bc,
+                                IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
                     }
 
                     // Get the starting time (overall and per-component) of
@@ -1854,6 +2082,8 @@ public class Controller implements IFloodlightProviderService,
     }
 
     void switchDisconnected(IOFSwitch sw) {
+        if (dispatcher != null)
+            dispatcher.removeSwitch(sw);
         this.switchManager.switchDisconnected(sw);
     }
 
@@ -2014,10 +2244,20 @@ public class Controller implements IFloodlightProviderService,
     @LogMessageDoc(message="Calling System.exit",
                    explanation="The controller is terminating")
     public synchronized void terminate() {
+        shutdown();
         log.info("Calling System.exit");
         System.exit(1);
     }
 
+    /**
+     * Stops the dispatch workers, once the controller is done with the
+     * switches
+     */
+    void shutdown() {
+        if (dispatcher != null)
+            dispatcher.shutdown();
+    }
+
     @Override
     public boolean injectOfMessage(IOFSwitch sw, OFMessage msg) {
         // call the overloaded version with floodlight context set to null
@@ -2178,20 +2418,29 @@ public class Controller implements IFloodlightProviderService,
         }
 
         // main loop
+        List<IUpdate> batch = new ArrayList<IUpdate>(UPDATE_BATCH_SIZE);
         while (true) {
             try {
-                IUpdate update = updates.take();
-                update.dispatch();
+                batch.clear();
+                batch.add(updates.take());
+                updates.drainTo(batch, UPDATE_BATCH_SIZE - 1);
             } catch (InterruptedException e) {
                 log.error("Received interrupted exception in updates loop;" +
                           "terminating process");
                 terminate();
-            } catch (StorageException e) {
-                log.error("Storage exception in controller " +
-                          "updates loop; terminating process", e);
-                terminate();
-            } catch (Exception e) {
-                log.error("Exception in controller updates loop", e);
+            }
+            for (int i = 0; i < batch.size(); ) {
+                int end = updateRunEnd(batch, i);
+                try {
+                    dispatchUpdates(batch, i, end);
+                } catch (StorageException e) {
+                    log.error("Storage exception in controller " +
+                              "updates loop; terminating process", e);
+                    terminate();
+                } catch (Exception e) {
+                    log.error("Exception in controller updates loop", e);
+                }
+                i = end;
             }
         }
     }
@@ -2270,6 +2519,45 @@ public class Controller implements IFloodlightProviderService,
             log.info("Flush switches on reconnect -- Disabled");
         }
 
+        option = configParams.get("zerocopy");
+        this.zeroCopy = (option != null && option.equalsIgnoreCase("true"));
+        log.info("Zero-copy packet-ins -- {}",
+                 zeroCopy ? "Enabled" : "Disabled");
+
+        option = configParams.get("pipelinehandshake");
+        this.pipelinedHandshake =
+                (option == null || !option.equalsIgnoreCase("false"));
+        log.info("Pipelined switch handshake -- {}",
+                 pipelinedHandshake ? "Enabled" : "Disabled");
+
+        int batchMessages = OFWriteQueue.DEFAULT_MAX_MESSAGES;
+        int batchBytes = OFWriteQueue.DEFAULT_MAX_BYTES;
+        int batchDeadline = OFWriteQueue.DEFAULT_DEADLINE_US;
+        option = configParams.get("writebatchmessages");
+        if (option != null)
+            batchMessages = Integer.parseInt(option);
+        option = configParams.get("writebatchbytes");
+        if (option != null)
+            batchBytes = Integer.parseInt(option);
+        option = configParams.get("writebatchdeadlineus");
+        if (option != null)
+            batchDeadline = Integer.parseInt(option);
+        OFWriteQueue.setPolicy(batchMessages, batchBytes, batchDeadline);
+        log.info("Writing to switches in batches of up to {} messages, " +
+                 "{} bytes or {} us", new Object[] { batchMessages,
+                 batchBytes, batchDeadline });
+
+        option = configParams.get("dispatchshards");
+        int shards = (option != null) ? Integer.parseInt(option) : 0;
+        if (shards > 0) {
+            option = configParams.get("dispatchqueue");
+            int capacity = (option != null) ? Integer.parseInt(option) :
+                    ShardedDispatcher.DEFAULT_QUEUE_CAPACITY;
+            this.dispatcher = new ShardedDispatcher(this, shards, capacity);
+            log.info("Dispatching to listeners on {} shards of {} messages",
+                     shards, capacity);
+        }
+
         uplinkPortPrefixSet = new HashSet<String>();
         uplinkPortPrefixSet.add("eth");
         uplinkPortPrefixSet.add("bond");
@@ -2345,6 +2633,17 @@ public class Controller implements IFloodlightProviderService,
         }
 
         addInfoProvider("summary", this);
+        addInfoProvider("write", this);
+
+        if (dispatcher != null) {
+            try {
+                dispatcher.registerCounters(debugCounters);
+            } catch (CounterException e) {
+                throw new FloodlightModuleException(e.getMessage());
+            }
+            addInfoProvider("dispatch", dispatcher);
+            dispatcher.start();
+        }
 
         registerControllerDebugEvents();
     }
@@ -2632,6 +2931,18 @@ public class Controller implements IFloodlightProviderService,
         }
     }
 
+    boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    boolean isPipelinedHandshake() {
+        return pipelinedHandshake;
+    }
+
+    ShardedDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     void flushAll() {
         // Flush all flow-mods/packet-out/stats generated from this "train"
         OFSwitchBase.flush_all();
@@ -2653,10 +2964,15 @@ public class Controller implements IFloodlightProviderService,
      * Dispatch all updates in the update queue until queue is empty
      */
     void processUpdateQueueForTesting() {
+        List<IUpdate> batch = new ArrayList<IUpdate>();
         while(!updates.isEmpty()) {
-            IUpdate update = updates.poll();
-            if (update != null)
-                update.dispatch();
+            batch.clear();
+            updates.drainTo(batch);
+            for (int i = 0; i < batch.size(); ) {
+                int end = updateRunEnd(batch, i);
+                dispatchUpdates(batch, i, end);
+                i = end;
+            }
         }
     }
 
@@ -2686,6 +3002,15 @@ public class Controller implements IFloodlightProviderService,
 
     @Override
     public Map<String, Object> getInfo(String type) {
+        if ("write".equals(type)) {
+            Map<String, Object> info = new HashMap<String, Object>();
+            for (IOFSwitch sw : getAllSwitchMap().values()) {
+                if (sw instanceof OFSwitchBase)
+                    info.put(sw.getStringId(),
+                             ((OFSwitchBase) sw).getWriteStats());
+            }
+            return info;
+        }
         if (!"summary".equals(type)) return null;
 
         Map<String, Object> info = new HashMap<String, Object>();
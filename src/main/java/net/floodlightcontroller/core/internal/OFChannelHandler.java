@@ -13,6 +13,7 @@ import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IFloodlightProviderService.Role;
 import net.floodlightcontroller.core.IOFSwitch.PortChangeEvent;
+import net.floodlightcontroller.core.OFWriteQueue;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.core.annotations.LogMessageDocs;
 import net.floodlightcontroller.core.internal.Controller.Counters;
@@ -90,6 +91,8 @@ class OFChannelHandler
 
     private final Controller controller;
     private final Counters counters;
+    // dispatches to the listeners off the I/O thread, if not null
+    private final ShardedDispatcher dispatcher;
     private IOFSwitch sw;
     private Channel channel;
     // State needs to be volatile because the HandshakeTimeoutHandler
@@ -97,6 +100,11 @@ class OFChannelHandler
     private volatile ChannelState state;
     private RoleChanger roleChanger;
     private OFFeaturesReply featuresReply;
+    // send the handshake requests that do not depend on each other's
+    // replies together
+    private boolean pipelinedHandshake = true;
+    // a description reply received before the config reply
+    private OFStatisticsReply pendingDescriptionReply;
 
     private final ArrayList<OFPortStatus> pendingPortStatusMsg;
 
@@ -440,15 +448,16 @@ class OFChannelHandler
 
         /**
          * We send a HELLO to the switch and wait for a reply.
-         * Once we receive the reply we send an OFFeaturesRequest and
-         * a request to clear all FlowMods.
+         * Once we receive the reply we send an OFFeaturesRequest, unless
+         * the handshake is pipelined and we sent it with the HELLO.
          * Next state is WAIT_FEATURES_REPLY
          */
         WAIT_HELLO(false) {
             @Override
             void processOFHello(OFChannelHandler h, OFHello m)
                     throws IOException {
-                h.sendHandShakeMessage(OFType.FEATURES_REQUEST);
+                if (!h.pipelinedHandshake)
+                    h.sendHandShakeMessage(OFType.FEATURES_REQUEST);
                 h.setState(WAIT_FEATURES_REPLY);
             }
             @Override
@@ -476,7 +485,8 @@ class OFChannelHandler
 
         /**
          * We are waiting for a features reply message. Once we receive it
-         * we send a SetConfig request, barrier, and GetConfig request.
+         * we send a SetConfig request, barrier, and GetConfig request, and
+         * the DescriptionStatsRequest too if the handshake is pipelined.
          * Next stats is WAIT_CONFIG_REPLY or WAIT_SET_L2_TABLE_REPLY
          */
         WAIT_FEATURES_REPLY(false) {
@@ -557,7 +567,10 @@ class OFChannelHandler
 
         /**
          * We are waiting for a config reply message. Once we receive it
-         * we send a DescriptionStatsRequest to the switch.
+         * we send a DescriptionStatsRequest to the switch, unless the
+         * handshake is pipelined and we sent it already. A description
+         * reply to a pipelined request that overtook the config reply is
+         * kept until then.
          * Next state: WAIT_DESCRIPTION_STAT_REPLY
          */
         WAIT_CONFIG_REPLY(false) {
@@ -587,8 +600,14 @@ class OFChannelHandler
                             h.getSwitchInfoString(),
                             m.getMissSendLength());
                 }
-                h.sendHandshakeDescriptionStatsRequest();
+                if (!h.pipelinedHandshake)
+                    h.sendHandshakeDescriptionStatsRequest();
                 h.setState(WAIT_DESCRIPTION_STAT_REPLY);
+                OFStatisticsReply description = h.pendingDescriptionReply;
+                if (description != null) {
+                    h.pendingDescriptionReply = null;
+                    h.state.processOFStatisticsReply(h, description);
+                }
             }
 
             @Override
@@ -606,7 +625,12 @@ class OFChannelHandler
             void processOFStatisticsReply(OFChannelHandler h,
                                           OFStatisticsReply  m)
                     throws IOException {
-                illegalMessageReceived(h, m);
+                if (h.pipelinedHandshake &&
+                        m.getStatisticType() == OFStatisticsType.DESC &&
+                        h.pendingDescriptionReply == null)
+                    h.pendingDescriptionReply = m;
+                else
+                    illegalMessageReceived(h, m);
             }
 
             @Override
@@ -1305,13 +1329,30 @@ class OFChannelHandler
      * @param controller
      */
     OFChannelHandler(Controller controller) {
+        this(controller, null);
+    }
+
+    OFChannelHandler(Controller controller, ShardedDispatcher dispatcher) {
         this.controller = controller;
+        this.dispatcher = dispatcher;
         this.counters = controller.getCounters();
         this.roleChanger = new RoleChanger(DEFAULT_ROLE_TIMEOUT_MS);
         this.state = ChannelState.INIT;
         this.pendingPortStatusMsg = new ArrayList<OFPortStatus>();
     }
 
+    /**
+     * Sets whether the handshake requests that do not depend on each
+     * other's replies are sent together: HELLO with the features request,
+     * and the set/get config requests with the description request. This
+     * saves two round trips per switch. Must be called before the channel
+     * is connected.
+     * @param pipelined
+     */
+    void setPipelinedHandshake(boolean pipelined) {
+        this.pipelinedHandshake = pipelined;
+    }
+
     /**
      * Is this a state in which the handshake has completed?
      * @return true if the handshake is complete
@@ -1359,7 +1400,16 @@ class OFChannelHandler
         channel = e.getChannel();
         log.info("New switch connection from {}",
                  channel.getRemoteAddress());
-        sendHandShakeMessage(OFType.HELLO);
+        if (pipelinedHandshake) {
+            // OpenFlow 1.0 is the only version we speak, so there is no
+            // version to negotiate before asking for the features
+            List<OFMessage> msglist = new ArrayList<OFMessage>(2);
+            msglist.add(getHandShakeMessage(OFType.HELLO));
+            msglist.add(getHandShakeMessage(OFType.FEATURES_REQUEST));
+            channel.write(msglist);
+        } else {
+            sendHandShakeMessage(OFType.HELLO);
+        }
         setState(ChannelState.WAIT_HELLO);
     }
 
@@ -1375,6 +1425,8 @@ class OFChannelHandler
             // here as well.
             controller.switchDisconnected(this.sw);
             this.sw.setConnected(false);
+            // drops the messages held back and wakes up bulk producers
+            this.sw.flush();
         }
 
         log.info("Disconnected switch {}", getSwitchInfoString());
@@ -1485,9 +1537,20 @@ class OFChannelHandler
         e.getChannel().write(Collections.singletonList(m));
     }
 
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx,
+                                       ChannelStateEvent e) throws Exception {
+        // the channel drained below its low water mark, resume the
+        // writes held back
+        if (sw != null && ctx.getChannel().isWritable())
+            sw.flush();
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
             throws Exception {
+        OFWriteQueue.markIoThread();
+        OFWriteQueue.trackWrites();
         if (e.getMessage() instanceof List) {
             @SuppressWarnings("unchecked")
             List<OFMessage> msglist = (List<OFMessage>)e.getMessage();
@@ -1574,6 +1637,11 @@ class OFChannelHandler
             // Flush all thread local queues etc. generated by this train
             // of messages.
             this.controller.flushAll();
+            // The decoder reuses the frame the packet-ins may refer to
+            for (OFMessage ofm : msglist) {
+                if (ofm.getType() == OFType.PACKET_IN)
+                    ((OFPacketIn) ofm).release();
+            }
         }
         else {
             Channels.fireExceptionCaught(ctx.getChannel(),
@@ -1627,6 +1695,11 @@ class OFChannelHandler
     }
 
     private void dispatchMessage(OFMessage m) throws IOException {
+        if (this.dispatcher != null) {
+            // handled, and counted, on the shard of the switch
+            this.dispatcher.dispatch(this.sw, this.channel, m);
+            return;
+        }
         // handleMessage will count
         this.controller.handleMessage(this.sw, m, null);
     }
@@ -1669,9 +1742,16 @@ class OFChannelHandler
      */
     private void sendHandShakeMessage(OFType type) throws IOException {
         // Send initial Features Request
+        channel.write(Collections.singletonList(getHandShakeMessage(type)));
+    }
+
+    /**
+     * @return a message with the next handshake transaction id
+     */
+    private OFMessage getHandShakeMessage(OFType type) {
         OFMessage m = BasicFactory.getInstance().getMessage(type);
         m.setXid(handshakeTransactionIds--);
-        channel.write(Collections.singletonList(m));
+        return m;
     }
 
     /**
@@ -1729,6 +1809,11 @@ class OFChannelHandler
                 BasicFactory.getInstance().getMessage(OFType.GET_CONFIG_REQUEST);
         configReq.setXid(handshakeTransactionIds--);
         msglist.add(configReq);
+
+        // The description is read after the config reply, but does not
+        // depend on it
+        if (pipelinedHandshake)
+            msglist.add(getHandshakeDescriptionStatsRequest());
         channel.write(msglist);
     }
 
@@ -1737,12 +1822,16 @@ class OFChannelHandler
      * @throws IOException
      */
     private void sendHandshakeDescriptionStatsRequest() throws IOException {
+        channel.write(Collections.singletonList(
+                getHandshakeDescriptionStatsRequest()));
+    }
+
+    private OFMessage getHandshakeDescriptionStatsRequest() {
         // Get Description to set switch-specific flags
         OFStatisticsRequest req = new OFStatisticsRequest();
         req.setStatisticType(OFStatisticsType.DESC);
         req.setXid(handshakeTransactionIds--);
-
-        channel.write(Collections.singletonList(req));
+        return req;
     }
 
 
@@ -35,6 +35,16 @@ import org.openflow.protocol.factory.OFMessageFactory;
 public class OFMessageDecoder extends FrameDecoder {
 
     OFMessageFactory factory = BasicFactory.getInstance();
+    // leave the packet data of packet-ins in the frame
+    protected final boolean zeroCopy;
+
+    public OFMessageDecoder() {
+        this(false);
+    }
+
+    public OFMessageDecoder(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
     
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel,
@@ -45,7 +55,7 @@ public class OFMessageDecoder extends FrameDecoder {
             return null;
         }
 
-        List<OFMessage> message = factory.parseMessage(buffer);
+        List<OFMessage> message = factory.parseMessage(buffer, zeroCopy);
         return message;
     }
 
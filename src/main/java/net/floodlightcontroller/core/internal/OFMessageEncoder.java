@@ -20,6 +20,7 @@ package net.floodlightcontroller.core.internal;
 import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -33,6 +34,17 @@ import org.openflow.protocol.OFMessage;
  */
 public class OFMessageEncoder extends OneToOneEncoder {
 
+    // where to allocate the outgoing buffers, null for a new heap buffer
+    protected final ChannelBufferFactory bufferFactory;
+
+    public OFMessageEncoder() {
+        this(null);
+    }
+
+    public OFMessageEncoder(ChannelBufferFactory bufferFactory) {
+        this.bufferFactory = bufferFactory;
+    }
+
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel,
                             Object msg) throws Exception {
@@ -46,7 +58,8 @@ public class OFMessageEncoder extends OneToOneEncoder {
                 size += ofm.getLengthU();
         }
 
-        ChannelBuffer buf = ChannelBuffers.buffer(size);;
+        ChannelBuffer buf = (bufferFactory != null) ?
+                bufferFactory.getBuffer(size) : ChannelBuffers.buffer(size);
         for (OFMessage ofm :  msglist) {
             ofm.writeTo(buf);
         }
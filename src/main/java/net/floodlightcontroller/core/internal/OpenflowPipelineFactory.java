@@ -19,6 +19,9 @@ package net.floodlightcontroller.core.internal;
 
 import java.util.concurrent.ThreadPoolExecutor;
 
+import net.floodlightcontroller.core.OFWriteQueue;
+
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
@@ -50,15 +53,37 @@ public class OpenflowPipelineFactory
         this.timer = new HashedWheelTimer();
         this.idleHandler = new IdleStateHandler(timer, 20, 25, 0);
         this.readTimeoutHandler = new ReadTimeoutHandler(timer, 30);
+        // the switch write queues encode most messages themselves, the
+        // encoder only passes their buffers on
+        OFWriteQueue.setBufferFactory(isZeroCopy() ?
+                DirectChannelBufferFactory.getInstance() : null);
+    }
+
+    private boolean isZeroCopy() {
+        return controller.isZeroCopy() && pipelineExecutor == null &&
+               controller.getDispatcher() == null;
     }
  
     @Override
     public ChannelPipeline getPipeline() throws Exception {
-        OFChannelHandler handler = new OFChannelHandler(controller);
+        ShardedDispatcher dispatcher = controller.getDispatcher();
+        OFChannelHandler handler = new OFChannelHandler(controller, dispatcher);
+        handler.setPipelinedHandshake(controller.isPipelinedHandshake());
         
         ChannelPipeline pipeline = Channels.pipeline();
-        pipeline.addLast("ofmessagedecoder", new OFMessageDecoder());
-        pipeline.addLast("ofmessageencoder", new OFMessageEncoder());
+        // Packet-ins may only refer to the frame they were read from as
+        // long as they are handled before the decoder reads the next one,
+        // which is not the case behind an execution handler or a
+        // dispatcher. Encoding to direct buffers spares the copy to one on
+        // the socket write.
+        if (isZeroCopy()) {
+            pipeline.addLast("ofmessagedecoder", new OFMessageDecoder(true));
+            pipeline.addLast("ofmessageencoder", new OFMessageEncoder(
+                    DirectChannelBufferFactory.getInstance()));
+        } else {
+            pipeline.addLast("ofmessagedecoder", new OFMessageDecoder());
+            pipeline.addLast("ofmessageencoder", new OFMessageEncoder());
+        }
         pipeline.addLast("idle", idleHandler);
         pipeline.addLast("timeout", readTimeoutHandler);
         pipeline.addLast("handshaketimeout",
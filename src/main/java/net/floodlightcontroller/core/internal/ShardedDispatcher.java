@@ -0,0 +1,366 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import net.floodlightcontroller.core.IInfoProvider;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.OFWriteQueue;
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterException;
+import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterType;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches the messages of switches to the listeners on a fixed set of
+ * worker threads instead of the I/O threads. Each switch is hashed to a
+ * shard by DPID, and a shard has a single worker, so the messages of a
+ * switch are handled in the order they arrived, each to completion.
+ *
+ * Within a shard every switch has its own queue, served round robin a few
+ * messages at a time so a busy switch cannot starve the others. The
+ * queues of a shard share a bound; as a shard fills up, packet-ins are
+ * shed by value: discovery packets first, then broadcast and multicast,
+ * then unicast, which only reach the controller when the switch has no
+ * flow for the destination. Other messages are never shed. A switch
+ * whose own queue grows past its share of the shard stops being read
+ * until its queue drained, pushing back on it through TCP. The messages
+ * still queued for a switch that disconnected are dropped.
+ */
+public class ShardedDispatcher implements IInfoProvider {
+    protected static final Logger log =
+            LoggerFactory.getLogger(ShardedDispatcher.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+    // messages of a switch handled before moving to the next switch
+    protected static final int QUANTUM = 16;
+
+    // packet-in classes, in the order they are shed
+    protected static final int CLASS_DISCOVERY = 0;
+    protected static final int CLASS_BROADCAST = 1;
+    protected static final int CLASS_UNICAST = 2;
+    protected static final int CLASS_OTHER = 3;
+    protected static final String[] CLASS_NAMES =
+        { "discovery", "broadcast", "unicast" };
+
+    protected static final String PACKAGE =
+            ShardedDispatcher.class.getPackage().getName();
+
+    protected class SwitchQueue {
+        final IOFSwitch sw;
+        final Channel channel;
+        final LinkedList<OFMessage> messages = new LinkedList<OFMessage>();
+        boolean scheduled;
+        boolean suspended;
+
+        SwitchQueue(IOFSwitch sw, Channel channel) {
+            this.sw = sw;
+            this.channel = channel;
+        }
+    }
+
+    protected class Shard implements Runnable {
+        final int index;
+        final Map<Long, SwitchQueue> queues = new HashMap<Long, SwitchQueue>();
+        // switches with messages, in the order they are served
+        final LinkedList<SwitchQueue> ready = new LinkedList<SwitchQueue>();
+        int depth;
+        int maxDepth;
+        final long[] shed = new long[CLASS_NAMES.length];
+        long dispatched;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        synchronized boolean offer(IOFSwitch sw, Channel channel,
+                                   OFMessage m, int cls) {
+            if (cls < CLASS_OTHER && depth >= shedThreshold(cls)) {
+                shed[cls]++;
+                return false;
+            }
+            SwitchQueue q = queues.get(sw.getId());
+            if (q == null || q.sw != sw) {
+                // first message of the switch, or of a new connection
+                q = new SwitchQueue(sw, channel);
+                queues.put(sw.getId(), q);
+            }
+            q.messages.addLast(m);
+            depth++;
+            if (depth > maxDepth)
+                maxDepth = depth;
+            if (!q.scheduled) {
+                q.scheduled = true;
+                ready.addLast(q);
+                notify();
+            }
+            if (!q.suspended && q.channel != null &&
+                q.messages.size() >= switchLimit) {
+                q.suspended = true;
+                q.channel.setReadable(false);
+            }
+            return true;
+        }
+
+        synchronized int remove(IOFSwitch sw) {
+            SwitchQueue q = queues.get(sw.getId());
+            if (q == null || q.sw != sw)
+                return 0;
+            queues.remove(sw.getId());
+            ready.remove(q);
+            int n = q.messages.size();
+            depth -= n;
+            q.messages.clear();
+            q.scheduled = false;
+            return n;
+        }
+
+        @Override
+        public void run() {
+            OFWriteQueue.trackWrites();
+            LinkedList<OFMessage> batch = new LinkedList<OFMessage>();
+            while (true) {
+                SwitchQueue q;
+                synchronized (this) {
+                    while (ready.isEmpty()) {
+                        if (!running)
+                            return;
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    q = ready.removeFirst();
+                    for (int i = 0; i < QUANTUM && !q.messages.isEmpty(); i++)
+                        batch.add(q.messages.removeFirst());
+                    depth -= batch.size();
+                    if (q.messages.isEmpty()) {
+                        q.scheduled = false;
+                        if (queues.get(q.sw.getId()) == q)
+                            queues.remove(q.sw.getId());
+                    } else {
+                        ready.addLast(q);
+                    }
+                    if (q.suspended && q.messages.size() <= switchLimit / 2) {
+                        q.suspended = false;
+                        q.channel.setReadable(true);
+                    }
+                }
+
+                for (OFMessage m : batch) {
+                    try {
+                        controller.handleMessage(q.sw, m, null);
+                    } catch (Exception e) {
+                        log.error("Exception dispatching " + m.getType() +
+                                  " from switch " + q.sw.getStringId(), e);
+                    }
+                }
+                synchronized (this) {
+                    dispatched += batch.size();
+                }
+                batch.clear();
+                // flush what the listeners wrote on this thread
+                controller.flushAll();
+            }
+        }
+    }
+
+    protected final Controller controller;
+    protected final Shard[] shards;
+    protected final int capacity;
+    protected final int switchLimit;
+    protected volatile boolean running;
+    // null until registered
+    protected IDebugCounter[] ctrShed;
+
+    /**
+     * @param controller the controller to dispatch to
+     * @param nShards the number of shards, each with a worker thread
+     * @param capacity the number of messages a shard holds before
+     *        shedding all packet-ins
+     */
+    public ShardedDispatcher(Controller controller, int nShards,
+                             int capacity) {
+        this.controller = controller;
+        this.capacity = capacity;
+        this.switchLimit = Math.max(QUANTUM, capacity / 4);
+        this.shards = new Shard[nShards];
+        for (int i = 0; i < nShards; i++)
+            shards[i] = new Shard(i);
+    }
+
+    /**
+     * Registers the counters of the packet-ins shed
+     * @param debugCounters
+     * @throws CounterException
+     */
+    public void registerCounters(IDebugCounterService debugCounters)
+            throws CounterException {
+        IDebugCounter[] counters = new IDebugCounter[CLASS_NAMES.length];
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            counters[i] = debugCounters.registerCounter(PACKAGE,
+                    "dispatch-shed-" + CLASS_NAMES[i],
+                    "Number of " + CLASS_NAMES[i] + " packet-ins dropped " +
+                    "because their dispatch shard was overloaded",
+                    CounterType.ALWAYS_COUNT,
+                    IDebugCounterService.CTR_MDATA_WARN);
+        }
+        ctrShed = counters;
+    }
+
+    /**
+     * Starts the workers of the shards
+     */
+    public void start() {
+        running = true;
+        for (Shard shard : shards) {
+            Thread t = new Thread(shard, "OF Dispatch " + shard.index);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops the workers once their queues are empty
+     */
+    public void shutdown() {
+        running = false;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Drops the messages queued for a switch that disconnected
+     * @param sw the switch, of the connection that closed
+     */
+    public void removeSwitch(IOFSwitch sw) {
+        int n = shards[shardIndex(sw.getId())].remove(sw);
+        if (n > 0 && log.isDebugEnabled()) {
+            log.debug("Dropped {} messages queued for disconnected switch {}",
+                      n, sw.getStringId());
+        }
+    }
+
+    /**
+     * Queues a message for the listeners
+     * @param sw the switch the message is from
+     * @param channel the channel of the switch, read or not for
+     *        backpressure; may be null
+     * @param m the message
+     * @return false if the message was shed
+     */
+    public boolean dispatch(IOFSwitch sw, Channel channel, OFMessage m) {
+        Shard shard = shards[shardIndex(sw.getId())];
+        int cls = classify(m);
+        if (!shard.offer(sw, channel, m, cls)) {
+            if (ctrShed != null)
+                ctrShed[cls].updateCounterNoFlush();
+            return false;
+        }
+        return true;
+    }
+
+    protected int shardIndex(long dpid) {
+        int h = (int) (dpid ^ (dpid >>> 32));
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    /**
+     * @return the depth at which packet-ins of a class are shed
+     */
+    protected int shedThreshold(int cls) {
+        switch (cls) {
+            case CLASS_DISCOVERY:
+                return capacity / 2;
+            case CLASS_BROADCAST:
+                return capacity * 3 / 4;
+            default:
+                return capacity;
+        }
+    }
+
+    /**
+     * Classifies a message by the value of handling it under load
+     * @param m
+     * @return
+     */
+    protected static int classify(OFMessage m) {
+        if (m.getType() != OFType.PACKET_IN)
+            return CLASS_OTHER;
+        ChannelBuffer data = ((OFPacketIn) m).getPacketDataBuffer();
+        if (data.readableBytes() < 14)
+            return CLASS_UNICAST;
+        int start = data.readerIndex();
+        short etherType = data.getShort(start + 12);
+        if (etherType == Ethernet.TYPE_LLDP || etherType == Ethernet.TYPE_BSN)
+            return CLASS_DISCOVERY;
+        if ((data.getByte(start) & 0x01) != 0)
+            return CLASS_BROADCAST;
+        return CLASS_UNICAST;
+    }
+
+    /**
+     * @return the number of messages queued in a shard
+     */
+    public int getQueueDepth(int shard) {
+        synchronized (shards[shard]) {
+            return shards[shard].depth;
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public Map<String, Object> getInfo(String type) {
+        if (!"dispatch".equals(type)) return null;
+
+        Map<String, Object> info = new HashMap<String, Object>();
+        for (Shard shard : shards) {
+            Map<String, Object> s = new HashMap<String, Object>();
+            synchronized (shard) {
+                s.put("depth", shard.depth);
+                s.put("max-depth", shard.maxDepth);
+                s.put("switches", shard.queues.size());
+                s.put("dispatched", shard.dispatched);
+                for (int i = 0; i < CLASS_NAMES.length; i++)
+                    s.put("shed-" + CLASS_NAMES[i], shard.shed[i]);
+            }
+            info.put("shard-" + shard.index, s);
+        }
+        info.put("capacity", capacity);
+        return info;
+    }
+}
@@ -50,6 +50,8 @@ public class CoreWebRoutable implements RestletRoutable {
         router.attach("/packettrace/json", PacketTraceResource.class);
         router.attach("/storage/tables/json", StorageSourceTablesResource.class);
         router.attach("/controller/summary/json", ControllerSummaryResource.class);
+        router.attach("/controller/dispatch/json", ControllerDispatchResource.class);
+        router.attach("/controller/write/json", ControllerWriteResource.class);
         router.attach("/role/json", ControllerRoleResource.class);
         router.attach("/health/json", HealthCheckResource.class);
         router.attach("/system/uptime/json", SystemUptimeResource.class);
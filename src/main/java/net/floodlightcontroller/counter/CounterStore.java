@@ -32,6 +32,7 @@ import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.counter.CounterValue.CounterType;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.PacketView;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
@@ -171,6 +172,29 @@ public class CounterStore implements IFloodlightModule, ICounterStoreService {
         return;
     }
 
+    @Override
+    public void updatePacketInCountersLocal(IOFSwitch sw, OFMessage m, PacketView view) {
+        if (((OFPacketIn)m).getPacketData().length <= 0) {
+            return;
+        }
+        short l3type = view.getEtherType();
+        byte l4type = view.isIPv4() ? view.getNetworkProtocol() : 0;
+        CounterKeyTuple countersKey = new CounterKeyTuple(
+                m.getType().getTypeValue(), sw.getId(), l3type, l4type);
+        Map<CounterKeyTuple, MutableInt> pktin_buffer = this.pktin_local_buffer.get();
+        MutableInt currval = pktin_buffer.get(countersKey);
+
+        if (currval == null) {
+            // only the first packet of each kind needs the decoded packet
+            if (!this.pktinCounters.containsKey(countersKey))
+                this.createPacketInCounters(sw, m, view.getEthernet());
+            currval = new MutableInt();
+            pktin_buffer.put(countersKey, currval);
+        }
+        currval.increment();
+        return;
+    }
+
     @Override
     public void updatePktOutFMCounterStoreLocal(IOFSwitch sw, OFMessage m) {
         CounterKeyTuple countersKey = this.getCountersKey(sw, m, null);
@@ -25,6 +25,7 @@ import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.counter.CounterStore.NetworkLayer;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketView;
 
 public interface ICounterStoreService extends IFloodlightService {
 
@@ -48,6 +49,16 @@ public interface ICounterStoreService extends IFloodlightService {
      */
     public void updatePacketInCountersLocal(IOFSwitch sw, OFMessage m, Ethernet eth);
 
+    /**
+     * Update packetIn counters from a view of the packet, without
+     * decoding it
+     *
+     * @param sw
+     * @param m
+     * @param view
+     */
+    public void updatePacketInCountersLocal(IOFSwitch sw, OFMessage m, PacketView view);
+
     /**
      * This method can only be used to update packetOut and flowmod counters
      *
@@ -80,11 +80,11 @@ import net.floodlightcontroller.flowcache.IFlowReconcileListener;
 import net.floodlightcontroller.flowcache.IFlowReconcileService;
 import net.floodlightcontroller.flowcache.OFMatchReconcile;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
-import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.DHCP;
 import net.floodlightcontroller.packet.DHCPOption;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.PacketView;
 import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.packet.DHCP.DHCPOptionCode;
 import net.floodlightcontroller.restserver.IRestApiService;
@@ -217,6 +217,11 @@ IFlowReconcileListener, IInfoProvider {
      */
     protected static final int ENTITY_CLEANUP_INTERVAL = 60*60;
 
+    /**
+     * Group bit of a MAC address, set for broadcast and multicast
+     */
+    protected static final long MULTICAST_BIT = 0x010000000000L;
+
     /**
      * This is the master device map that maps device IDs to {@link Device}
      * objects.
@@ -888,6 +893,9 @@ IFlowReconcileListener, IInfoProvider {
         this.perClassIndices =
                 new HashSet<EnumSet<DeviceField>>();
         addIndex(true, EnumSet.of(DeviceField.IPV4));
+        // created here rather than in startUp so that indices added by
+        // other modules during their startUp are not discarded
+        secondaryIndexMap = new HashMap<EnumSet<DeviceField>, DeviceIndex>();
 
         this.deviceListeners = new ListenerDispatcher<String, IDeviceListener>();
         this.suppressAPs = Collections.newSetFromMap(
@@ -933,7 +941,11 @@ IFlowReconcileListener, IInfoProvider {
             throws FloodlightModuleException {
         isMaster = (floodlightProvider.getRole() == Role.MASTER);
         primaryIndex = new DeviceUniqueIndex(entityClassifier.getKeyFields());
-        secondaryIndexMap = new HashMap<EnumSet<DeviceField>, DeviceIndex>();
+        // start from empty secondary indices but keep the registered ones
+        for (EnumSet<DeviceField> keyFields :
+                new ArrayList<EnumSet<DeviceField>>(secondaryIndexMap.keySet())) {
+            secondaryIndexMap.put(keyFields, new DeviceMultiIndex(keyFields));
+        }
 
         deviceMap = new ConcurrentHashMap<Long, Device>();
         classStateMap =
@@ -1181,13 +1193,13 @@ IFlowReconcileListener, IInfoProvider {
 
     protected Command processPacketInMessage(IOFSwitch sw, OFPacketIn pi,
                                              FloodlightContext cntx) {
-        Ethernet eth =
-                IFloodlightProviderService.bcStore.
-                get(cntx,IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+        PacketView view =
+                IFloodlightProviderService.pvStore.
+                get(cntx,IFloodlightProviderService.CONTEXT_PI_VIEW);
 
         // Extract source entity information
         Entity srcEntity =
-                getSourceEntityFromPacket(eth, sw.getId(), pi.getInPort());
+                getSourceEntityFromPacket(view, sw.getId(), pi.getInPort());
         if (srcEntity == null) {
             cntInvalidSource.updateCounterNoFlush();
             return Command.STOP;
@@ -1199,7 +1211,7 @@ IFlowReconcileListener, IInfoProvider {
         // the IP to MAC mapping of the VRRP IP address.  The source
         // entity will not have that information.  Hence, a separate call
         // to learn devices in such cases.
-        learnDeviceFromArpResponseData(eth, sw.getId(), pi.getInPort());
+        learnDeviceFromArpResponseData(view, sw.getId(), pi.getInPort());
 
         // Learn/lookup device information
         Device srcDevice = learnDeviceByEntity(srcEntity);
@@ -1213,11 +1225,11 @@ IFlowReconcileListener, IInfoProvider {
 
         // Find the device matching the destination from the entity
         // classes of the source.
-        if (eth.getDestinationMAC().toLong() == 0) {
+        if (view.getDestinationMAC() == 0) {
             cntInvalidDest.updateCounterNoFlush();
             return Command.STOP;
         }
-        Entity dstEntity = getDestEntityFromPacket(eth);
+        Entity dstEntity = getDestEntityFromPacket(view);
         Device dstDevice = null;
         if (dstEntity != null) {
             dstDevice =
@@ -1233,15 +1245,35 @@ IFlowReconcileListener, IInfoProvider {
        if (logger.isTraceEnabled()) {
            logger.trace("Received PI: {} on switch {}, port {} *** eth={}" +
                         " *** srcDev={} *** dstDev={} *** ",
-                        new Object[] { pi, sw.getStringId(), pi.getInPort(), eth,
-                        srcDevice, dstDevice });
+                        new Object[] { pi, sw.getStringId(), pi.getInPort(),
+                        view.getEthernet(), srcDevice, dstDevice });
        }
 
-        snoopDHCPClientName(eth, srcDevice);
+        if (isDHCP(view)) {
+            Ethernet eth =
+                    IFloodlightProviderService.bcStore.
+                    get(cntx,IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+            snoopDHCPClientName(eth, srcDevice);
+        }
 
         return Command.CONTINUE;
     }
 
+    /**
+     * Whether a packet is UDP to or from the DHCP ports, the only packets
+     * worth decoding for {@link #snoopDHCPClientName(Ethernet, Device)}
+     * @param view
+     * @return
+     */
+    private boolean isDHCP(PacketView view) {
+        if (view.getNetworkProtocol() != IPv4.PROTOCOL_UDP)
+            return false;
+        short src = view.getTransportSource();
+        short dst = view.getTransportDestination();
+        return src == UDP.DHCP_SERVER_PORT || src == UDP.DHCP_CLIENT_PORT ||
+               dst == UDP.DHCP_SERVER_PORT || dst == UDP.DHCP_CLIENT_PORT;
+    }
+
     /**
      * Snoop and record client-provided host name from DHCP requests
      * @param eth
@@ -1291,43 +1323,37 @@ IFlowReconcileListener, IInfoProvider {
      * Get sender IP address from packet if the packet is an ARP
      * packet and if the source MAC address matches the ARP packets
      * sender MAC address.
-     * @param eth
+     * @param view
      * @param dlAddr
      * @return
      */
-    private int getSrcNwAddr(Ethernet eth, long dlAddr) {
-        if (eth.getPayload() instanceof ARP) {
-            ARP arp = (ARP) eth.getPayload();
-            if ((arp.getProtocolType() == ARP.PROTO_TYPE_IP) &&
-                    (Ethernet.toLong(arp.getSenderHardwareAddress()) == dlAddr)) {
-                return IPv4.toIPv4Address(arp.getSenderProtocolAddress());
-            }
-        }
+    private int getSrcNwAddr(PacketView view, long dlAddr) {
+        if (view.getArpSenderHardwareAddress() == dlAddr)
+            return view.getArpSenderProtocolAddress();
         return 0;
     }
 
     /**
-     * Parse an entity from an {@link Ethernet} packet.
-     * @param eth the packet to parse
+     * Parse an entity from a packet.
+     * @param view the packet to parse
      * @param sw the switch on which the packet arrived
      * @param pi the original packetin
      * @return the entity from the packet
      */
-    protected Entity getSourceEntityFromPacket(Ethernet eth,
+    protected Entity getSourceEntityFromPacket(PacketView view,
                                              long swdpid,
                                              int port) {
-        byte[] dlAddrArr = eth.getSourceMACAddress();
-        long dlAddr = Ethernet.toLong(dlAddrArr);
+        long dlAddr = view.getSourceMAC();
 
         // Ignore broadcast/multicast source
-        if ((dlAddrArr[0] & 0x1) != 0)
+        if ((dlAddr & MULTICAST_BIT) != 0)
             return null;
         // Ignore 0 source mac
         if (dlAddr == 0)
             return null;
 
-        short vlan = eth.getVlanID();
-        int nwSrc = getSrcNwAddr(eth, dlAddr);
+        short vlan = view.getVlanID();
+        int nwSrc = getSrcNwAddr(view, dlAddr);
         return new Entity(dlAddr,
                           ((vlan >= 0) ? vlan : null),
                           ((nwSrc != 0) ? nwSrc : null),
@@ -1341,30 +1367,26 @@ IFlowReconcileListener, IInfoProvider {
      * Ethernet source MAC is different from the sender hardware
      * address in ARP data.
      */
-    protected void learnDeviceFromArpResponseData(Ethernet eth,
+    protected void learnDeviceFromArpResponseData(PacketView view,
                                             long swdpid,
                                             int port) {
 
-        if (!(eth.getPayload() instanceof ARP)) return;
-        ARP arp = (ARP) eth.getPayload();
+        if (!view.isARP()) return;
 
-        byte[] dlAddrArr = eth.getSourceMACAddress();
-        long dlAddr = Ethernet.toLong(dlAddrArr);
-
-        byte[] senderHardwareAddr = arp.getSenderHardwareAddress();
-        long senderAddr = Ethernet.toLong(senderHardwareAddr);
+        long dlAddr = view.getSourceMAC();
+        long senderAddr = view.getArpSenderHardwareAddress();
 
         if (dlAddr == senderAddr) return;
 
         // Ignore broadcast/multicast source
-        if ((senderHardwareAddr[0] & 0x1) != 0)
+        if ((senderAddr & MULTICAST_BIT) != 0)
             return;
         // Ignore zero sender mac
         if (senderAddr == 0)
             return;
 
-        short vlan = eth.getVlanID();
-        int nwSrc = IPv4.toIPv4Address(arp.getSenderProtocolAddress());
+        short vlan = view.getVlanID();
+        int nwSrc = view.getArpSenderProtocolAddress();
 
         Entity e =  new Entity(senderAddr,
                 ((vlan >= 0) ? vlan : null),
@@ -1378,26 +1400,21 @@ IFlowReconcileListener, IInfoProvider {
 
     /**
      * Get a (partial) entity for the destination from the packet.
-     * @param eth
+     * @param view
      * @return
      */
-    protected Entity getDestEntityFromPacket(Ethernet eth) {
-        byte[] dlAddrArr = eth.getDestinationMACAddress();
-        long dlAddr = Ethernet.toLong(dlAddrArr);
-        short vlan = eth.getVlanID();
-        int nwDst = 0;
+    protected Entity getDestEntityFromPacket(PacketView view) {
+        long dlAddr = view.getDestinationMAC();
+        short vlan = view.getVlanID();
 
         // Ignore broadcast/multicast destination
-        if ((dlAddrArr[0] & 0x1) != 0)
+        if ((dlAddr & MULTICAST_BIT) != 0)
             return null;
         // Ignore zero dest mac
         if (dlAddr == 0)
             return null;
 
-        if (eth.getPayload() instanceof IPv4) {
-            IPv4 ipv4 = (IPv4) eth.getPayload();
-            nwDst = ipv4.getDestinationAddress();
-        }
+        int nwDst = view.getNetworkDestination();
 
         return new Entity(dlAddr,
                           ((vlan >= 0) ? vlan : null),
@@ -343,13 +343,7 @@ public class PortDownReconciliation implements IFloodlightModule,
                                                                                    .setCommand(OFFlowMod.OFPFC_DELETE)
                                                                                    .setOutPort(outPort)
                                                                                    .setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
-        try {
-            List<OFMessage> msglist = new ArrayList<OFMessage>(1);
-            msglist.add(fm);
-            sw.write(msglist, cntx);
-        } catch (Exception e) {
-            log.error("Failed to clear flows on switch {} - {}", this, e);
-        }
+        writeFlowMod(sw, fm);
     }
 
     /**
@@ -371,10 +365,23 @@ public class PortDownReconciliation implements IFloodlightModule,
                                                                                    .setCommand(OFFlowMod.OFPFC_DELETE)
                                                                                    .setOutPort(outPort)
                                                                                    .setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
+        writeFlowMod(sw, fm);
+    }
+
+    /**
+     * Writes a flow-mod in the bulk lane of the switch, so a port going
+     * down on a switch with many flows does not hold back its packet-in
+     * processing. Does not wait for the lane to have room, as this runs
+     * on the topology update thread: the lane holds what the switch is
+     * not reading yet.
+     * @param sw
+     * @param fm
+     */
+    private void writeFlowMod(IOFSwitch sw, OFMessage fm) {
         try {
             List<OFMessage> msglist = new ArrayList<OFMessage>(1);
             msglist.add(fm);
-            sw.write(msglist, cntx);
+            sw.writeBulk(msglist, cntx);
         } catch (Exception e) {
             log.error("Failed to clear flows on switch {} - {}", this, e);
         }
@@ -40,6 +40,8 @@ import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.util.AppCookie;
 import net.floodlightcontroller.counter.ICounterStoreService;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketView;
+import net.floodlightcontroller.routing.FlowHash;
 import net.floodlightcontroller.routing.ForwardingBase;
 import net.floodlightcontroller.routing.IRoutingDecision;
 import net.floodlightcontroller.routing.IRoutingService;
@@ -61,6 +63,9 @@ import org.slf4j.LoggerFactory;
 public class Forwarding extends ForwardingBase implements IFloodlightModule {
     protected static Logger log = LoggerFactory.getLogger(Forwarding.class);
 
+    // spread flows over equal cost routes, by the hash of their hosts
+    protected boolean multipath = false;
+
     @Override
     @LogMessageDoc(level="ERROR",
                    message="Unexpected decision made for this packet-in={}",
@@ -69,8 +74,8 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
                    recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
     public Command processPacketInMessage(IOFSwitch sw, OFPacketIn pi, IRoutingDecision decision,
                                           FloodlightContext cntx) {
-        Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
-                                   IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+        PacketView view = IFloodlightProviderService.pvStore.get(cntx,
+                                   IFloodlightProviderService.CONTEXT_PI_VIEW);
 
         // If a decision has been made we obey it
         // otherwise we just forward
@@ -107,7 +112,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
                         pi);
             }
 
-            if (eth.isBroadcast() || eth.isMulticast()) {
+            if (view.isBroadcast() || view.isMulticast()) {
                 // For now we treat multicast as broadcast
                 doFlood(sw, pi, cntx);
             } else {
@@ -245,11 +250,14 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
                 int srcVsDest = srcCluster.compareTo(dstCluster);
                 if (srcVsDest == 0) {
                     if (!srcDap.equals(dstDap)) {
+                        // cookie = 0, i.e., default route, unless multipath
+                        long routeCookie = multipath ? flowHash(match) : 0;
                         Route route =
                                 routingEngine.getRoute(srcDap.getSwitchDPID(),
                                                        (short)srcDap.getPort(),
                                                        dstDap.getSwitchDPID(),
-                                                       (short)dstDap.getPort(), 0); //cookie = 0, i.e., default route
+                                                       (short)dstDap.getPort(),
+                                                       routeCookie);
                         if (route != null) {
                             if (log.isTraceEnabled()) {
                                 log.trace("pushRoute match={} route={} " +
@@ -303,6 +311,19 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
         }
     }
 
+    /**
+     * @return the hash of the hosts of a flow, the fields the flows are
+     * matched on by default, so all packets between two hosts take the
+     * same route
+     */
+    protected static long flowHash(OFMatch match) {
+        return FlowHash.hash(Ethernet.toLong(match.getDataLayerSource()),
+                             Ethernet.toLong(match.getDataLayerDestination()),
+                             match.getDataLayerVirtualLan(),
+                             match.getNetworkSource(),
+                             match.getNetworkDestination());
+    }
+
     /**
      * Creates a OFPacketOut with the OFPacketIn data that is flooded on all ports unless
      * the port is blocked, in which case the packet will be dropped.
@@ -346,9 +367,8 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
         short poLength = (short)(po.getActionsLength() + OFPacketOut.MINIMUM_LENGTH);
         po.setBufferId(OFPacketOut.BUFFER_ID_NONE);
         po.setInPort(pi.getInPort());
-        byte[] packetData = pi.getPacketData();
-        poLength += packetData.length;
-        po.setPacketData(packetData);
+        po.setPacketDataFrom(pi);
+        poLength += po.getPacketDataLength();
         po.setLength(poLength);
 
         try {
@@ -407,7 +427,10 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
                 explanation="The properties file contains an invalid " +
                             "flow hard timeout",
                 recommendation="Correct the hard timeout in the " +
-                                "properties file.")
+                                "properties file."),
+        @LogMessageDoc(level="INFO",
+                message="Forwarding flows over multiple paths",
+                explanation="Flows are spread over equal cost routes")
     })
     public void init(FloodlightModuleContext context) throws FloodlightModuleException {
         super.init();
@@ -416,6 +439,11 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
         this.routingEngine = context.getServiceImpl(IRoutingService.class);
         this.topology = context.getServiceImpl(ITopologyService.class);
         this.counterStore = context.getServiceImpl(ICounterStoreService.class);
+
+        Map<String, String> configOptions = context.getConfigParams(this);
+        multipath = Boolean.parseBoolean(configOptions.get("multipath"));
+        if (multipath)
+            log.info("Forwarding flows over multiple paths");
     }
 
     @Override
@@ -79,10 +79,9 @@ public class Hub implements IFloodlightModule, IOFMessageListener {
 
         // set data if is is included in the packetin
         if (pi.getBufferId() == OFPacketOut.BUFFER_ID_NONE) {
-            byte[] packetData = pi.getPacketData();
+            po.setPacketDataFrom(pi);
             po.setLength(U16.t(OFPacketOut.MINIMUM_LENGTH
-                    + po.getActionsLength() + packetData.length));
-            po.setPacketData(packetData);
+                    + po.getActionsLength() + po.getPacketDataLength()));
         } else {
             po.setLength(U16.t(OFPacketOut.MINIMUM_LENGTH
                     + po.getActionsLength()));
@@ -321,9 +321,8 @@ public class LearningSwitch
         // If the buffer id is none or the switch doesn's support buffering
         // we send the data with the packet out
         if (pi.getBufferId() == OFPacketOut.BUFFER_ID_NONE) {
-            byte[] packetData = pi.getPacketData();
-            poLength += packetData.length;
-            po.setPacketData(packetData);
+            po.setPacketDataFrom(pi);
+            poLength += po.getPacketDataLength();
         }
 
         po.setLength(poLength);
@@ -370,9 +369,8 @@ public class LearningSwitch
 
         // set data - only if buffer_id == -1
         if (packetInMessage.getBufferId() == OFPacketOut.BUFFER_ID_NONE) {
-            byte[] packetData = packetInMessage.getPacketData();
-            packetOutMessage.setPacketData(packetData);
-            packetOutLength += (short)packetData.length;
+            packetOutMessage.setPacketDataFrom(packetInMessage);
+            packetOutLength += (short)packetOutMessage.getPacketDataLength();
         }
 
         // finally, set the total length
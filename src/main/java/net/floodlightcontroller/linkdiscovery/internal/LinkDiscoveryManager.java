@@ -85,6 +85,7 @@ import net.floodlightcontroller.packet.BSN;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.LLDP;
 import net.floodlightcontroller.packet.LLDPTLV;
+import net.floodlightcontroller.packet.PacketView;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.storage.IResultSet;
@@ -563,22 +564,28 @@ public class LinkDiscoveryManager implements IOFMessageListener,
 
     protected Command handlePacketIn(long sw, OFPacketIn pi,
                                      FloodlightContext cntx) {
-        Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
-                           IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
-
-        if (eth.getPayload() instanceof BSN) {
-            BSN bsn = (BSN) eth.getPayload();
-            if (bsn == null) return Command.STOP;
-            if (bsn.getPayload() == null) return Command.STOP;
-            // It could be a packet other than BSN LLDP, therefore
-            // continue with the regular processing.
-            if (bsn.getPayload() instanceof LLDP == false)
-                return Command.CONTINUE;
-            return handleLldp((LLDP) bsn.getPayload(), sw, pi.getInPort(), false, cntx);
-        } else if (eth.getPayload() instanceof LLDP) {
-            return handleLldp((LLDP) eth.getPayload(), sw, pi.getInPort(), true, cntx);
-        } else if (eth.getEtherType() < 1500) {
-            long destMac = eth.getDestinationMAC().toLong();
+        PacketView view = IFloodlightProviderService.pvStore.get(cntx,
+                              IFloodlightProviderService.CONTEXT_PI_VIEW);
+        short etherType = view.getEtherType();
+
+        // only discovery packets are decoded
+        if (etherType == Ethernet.TYPE_BSN || etherType == Ethernet.TYPE_LLDP) {
+            Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
+                               IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+            if (eth.getPayload() instanceof BSN) {
+                BSN bsn = (BSN) eth.getPayload();
+                if (bsn == null) return Command.STOP;
+                if (bsn.getPayload() == null) return Command.STOP;
+                // It could be a packet other than BSN LLDP, therefore
+                // continue with the regular processing.
+                if (bsn.getPayload() instanceof LLDP == false)
+                    return Command.CONTINUE;
+                return handleLldp((LLDP) bsn.getPayload(), sw, pi.getInPort(), false, cntx);
+            } else if (eth.getPayload() instanceof LLDP) {
+                return handleLldp((LLDP) eth.getPayload(), sw, pi.getInPort(), true, cntx);
+            }
+        } else if (etherType < 1500) {
+            long destMac = view.getDestinationMAC();
             if ((destMac & LINK_LOCAL_MASK) == LINK_LOCAL_VALUE) {
                 ctrLinkLocalDrops.updateCounterNoFlush();
                 if (log.isTraceEnabled()) {
@@ -589,7 +596,7 @@ public class LinkDiscoveryManager implements IOFMessageListener,
             }
         }
 
-        if (ignorePacketInFromSource(eth.getSourceMAC().toLong())) {
+        if (ignorePacketInFromSource(view.getSourceMAC())) {
             ctrIgnoreSrcMacDrops.updateCounterNoFlush();
             return Command.STOP;
         }
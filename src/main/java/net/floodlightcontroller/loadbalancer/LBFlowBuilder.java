@@ -0,0 +1,213 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.List;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionDataLayerDestination;
+import org.openflow.protocol.action.OFActionDataLayerSource;
+import org.openflow.protocol.action.OFActionNetworkLayerDestination;
+import org.openflow.protocol.action.OFActionNetworkLayerSource;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.OFMessageFactory;
+import org.openflow.util.U16;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Builds the matches, actions and flow mods of load balanced flows
+ * directly from the client and member fields.
+ */
+public class LBFlowBuilder {
+    // fields matched by flows from a client towards a vip
+    protected static final int INBOUND_WILDCARDS = OFMatch.OFPFW_ALL &
+            ~(OFMatch.OFPFW_IN_PORT | OFMatch.OFPFW_DL_TYPE |
+              OFMatch.OFPFW_NW_SRC_MASK | OFMatch.OFPFW_NW_DST_MASK |
+              OFMatch.OFPFW_NW_PROTO | OFMatch.OFPFW_TP_SRC);
+    // fields matched by flows from a member back to a client
+    protected static final int OUTBOUND_WILDCARDS = OFMatch.OFPFW_ALL &
+            ~(OFMatch.OFPFW_IN_PORT | OFMatch.OFPFW_DL_TYPE |
+              OFMatch.OFPFW_NW_DST_MASK | OFMatch.OFPFW_NW_PROTO |
+              OFMatch.OFPFW_TP_DST);
+
+    /**
+     * Match for traffic from a client to a vip entering a switch
+     * @param client the client
+     * @param vipAddress the vip address
+     * @param inPort the switch port the traffic enters on
+     * @return the match
+     */
+    public static OFMatch inboundMatch(IPClient client, int vipAddress,
+                                       short inPort) {
+        OFMatch match = new OFMatch();
+        match.setInputPort(inPort)
+             .setDataLayerType(Ethernet.TYPE_IPv4)
+             .setNetworkSource(client.ipAddress)
+             .setNetworkDestination(vipAddress)
+             .setNetworkProtocol(client.nw_proto)
+             .setTransportSource(client.srcPort)
+             .setWildcards(INBOUND_WILDCARDS);
+        return match;
+    }
+
+    /**
+     * Match for traffic from a member back to a client entering a switch.
+     * ICMP replies are matched without transport fields.
+     * @param client the client
+     * @param inPort the switch port the traffic enters on
+     * @return the match
+     */
+    public static OFMatch outboundMatch(IPClient client, short inPort) {
+        OFMatch match = new OFMatch();
+        match.setInputPort(inPort)
+             .setDataLayerType(Ethernet.TYPE_IPv4)
+             .setNetworkDestination(client.ipAddress)
+             .setNetworkProtocol(client.nw_proto);
+        if (client.nw_proto == IPv4.PROTOCOL_ICMP) {
+            match.setWildcards(OUTBOUND_WILDCARDS | OFMatch.OFPFW_TP_DST);
+        } else {
+            match.setTransportDestination(client.srcPort)
+                 .setWildcards(OUTBOUND_WILDCARDS);
+        }
+        return match;
+    }
+
+    /**
+     * Match for traffic between address prefixes entering a switch, as
+     * used by the bucket flows of proactive pools
+     * @param inPort the switch port the traffic enters on
+     * @param nwSrc the source prefix
+     * @param nwSrcLen the source prefix length, 0 for any source
+     * @param nwDst the destination prefix
+     * @param nwDstLen the destination prefix length, 0 for any destination
+     * @param nwProto the IP protocol, 0 for any protocol
+     * @param tpSrc the TCP or UDP source port, 0 for any port
+     * @param tpDst the TCP or UDP destination port, 0 for any port
+     * @return the match
+     */
+    public static OFMatch prefixMatch(short inPort, int nwSrc, int nwSrcLen,
+                                      int nwDst, int nwDstLen, byte nwProto,
+                                      short tpSrc, short tpDst) {
+        int wildcards = OFMatch.OFPFW_ALL &
+                ~(OFMatch.OFPFW_IN_PORT | OFMatch.OFPFW_DL_TYPE |
+                  OFMatch.OFPFW_NW_SRC_MASK | OFMatch.OFPFW_NW_DST_MASK);
+        wildcards |= (32 - nwSrcLen) << OFMatch.OFPFW_NW_SRC_SHIFT;
+        wildcards |= (32 - nwDstLen) << OFMatch.OFPFW_NW_DST_SHIFT;
+        if (nwProto != 0)
+            wildcards &= ~OFMatch.OFPFW_NW_PROTO;
+        // transport ports only mean something to TCP and UDP
+        boolean ports = (nwProto == IPv4.PROTOCOL_TCP ||
+                         nwProto == IPv4.PROTOCOL_UDP);
+        if (ports && tpSrc != 0)
+            wildcards &= ~OFMatch.OFPFW_TP_SRC;
+        if (ports && tpDst != 0)
+            wildcards &= ~OFMatch.OFPFW_TP_DST;
+
+        OFMatch match = new OFMatch();
+        match.setInputPort(inPort)
+             .setDataLayerType(Ethernet.TYPE_IPv4)
+             .setNetworkSource(nwSrc)
+             .setNetworkDestination(nwDst)
+             .setNetworkProtocol(nwProto)
+             .setTransportSource(ports ? tpSrc : 0)
+             .setTransportDestination(ports ? tpDst : 0)
+             .setWildcards(wildcards);
+        return match;
+    }
+
+    public static OFAction output(short port) {
+        return new OFActionOutput(port, Short.MAX_VALUE);
+    }
+
+    public static OFAction setNetworkSource(int address) {
+        OFActionNetworkLayerSource action = new OFActionNetworkLayerSource();
+        action.setNetworkAddress(address);
+        return action;
+    }
+
+    public static OFAction setNetworkDestination(int address) {
+        OFActionNetworkLayerDestination action =
+                new OFActionNetworkLayerDestination();
+        action.setNetworkAddress(address);
+        return action;
+    }
+
+    public static OFAction setDataLayerSource(byte[] mac) {
+        return new OFActionDataLayerSource(mac);
+    }
+
+    public static OFAction setDataLayerDestination(byte[] mac) {
+        return new OFActionDataLayerDestination(mac);
+    }
+
+    /**
+     * Creates a flow mod adding a load balanced flow
+     * @param factory the message factory
+     * @param match the match of the flow
+     * @param actions the actions of the flow
+     * @param priority the priority of the flow
+     * @return the flow mod
+     */
+    public static OFFlowMod flowMod(OFMessageFactory factory, OFMatch match,
+                                    List<OFAction> actions, int priority) {
+        int actionsLength = 0;
+        for (OFAction action : actions)
+            actionsLength += action.getLengthU();
+
+        OFFlowMod fm = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        fm.setIdleTimeout((short) 0)   // infinite
+          .setHardTimeout((short) 0)   // infinite
+          .setBufferId(OFPacketOut.BUFFER_ID_NONE)
+          .setCommand(OFFlowMod.OFPFC_ADD)
+          .setFlags((short) 0)
+          .setOutPort(OFPort.OFPP_NONE.getValue())
+          .setCookie(0L)
+          .setPriority(U16.t(priority))
+          .setMatch(match)
+          .setActions(actions)
+          .setLengthU(OFFlowMod.MINIMUM_LENGTH + actionsLength);
+        return fm;
+    }
+
+    /**
+     * Creates a flow mod strictly deleting a flow added by
+     * {@link #flowMod(OFMessageFactory, OFMatch, List, int)}
+     * @param factory the message factory
+     * @param match the match of the flow
+     * @param priority the priority of the flow
+     * @return the flow mod
+     */
+    public static OFFlowMod deleteFlowMod(OFMessageFactory factory,
+                                          OFMatch match, int priority) {
+        OFFlowMod fm = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        fm.setBufferId(OFPacketOut.BUFFER_ID_NONE)
+          .setCommand(OFFlowMod.OFPFC_DELETE_STRICT)
+          .setOutPort(OFPort.OFPP_NONE.getValue())
+          .setPriority(U16.t(priority))
+          .setMatch(match)
+          .setLengthU(OFFlowMod.MINIMUM_LENGTH);
+        return fm;
+    }
+}
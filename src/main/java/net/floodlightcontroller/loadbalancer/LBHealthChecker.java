@@ -0,0 +1,164 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.packet.IPv4;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Health checks of the members of all pools. The checks sit on a hashed
+ * timer wheel that a single task on the shared scheduled executor advances
+ * every {@link #TICK_MILLIS}, so the cost does not depend on the number of
+ * members. A member is checked every delay seconds of its pool's monitor;
+ * a check fails when the member did not report within the monitor's
+ * timeout, and after attemptsBeforeDeactivation failed checks in a row
+ * the member is taken out of service until it reports again.
+ */
+public class LBHealthChecker {
+    protected static Logger log = LoggerFactory.getLogger(LBHealthChecker.class);
+
+    public static final long TICK_MILLIS = 1000;
+    public static final int WHEEL_SIZE = 256;
+
+    protected static class Check {
+        final LBMember member;
+        // slot of the wheel and full turns of the wheel left before due
+        int slot;
+        long rounds;
+
+        Check(LBMember member) {
+            this.member = member;
+        }
+    }
+
+    protected final LoadBalancer lb;
+    protected final List<List<Check>> wheel;
+    protected final Map<String, Check> checks;
+    // slot of the last tick
+    protected int cursor;
+    protected SingletonTask task;
+
+    public LBHealthChecker(LoadBalancer lb) {
+        this.lb = lb;
+        wheel = new ArrayList<List<Check>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(new ArrayList<Check>());
+        checks = new HashMap<String, Check>();
+        cursor = 0;
+    }
+
+    /**
+     * Starts advancing the wheel
+     * @param ses the executor to run the checks on
+     */
+    public void start(ScheduledExecutorService ses) {
+        task = new SingletonTask(ses, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick(System.currentTimeMillis());
+                } catch (Exception e) {
+                    log.error("Exception in LB health check", e);
+                } finally {
+                    task.reschedule(TICK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        });
+        task.reschedule(TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts checking a member, replacing the checks of any member with
+     * the same id
+     * @param member the member
+     */
+    public synchronized void addMember(LBMember member) {
+        removeMember(member.id);
+        Check check = new Check(member);
+        checks.put(member.id, check);
+        schedule(check, lb.getMonitor(member).delay);
+    }
+
+    /**
+     * Stops checking a member
+     * @param memberId the member id
+     */
+    public synchronized void removeMember(String memberId) {
+        Check check = checks.remove(memberId);
+        if (check != null)
+            wheel.get(check.slot).remove(check);
+    }
+
+    private void schedule(Check check, short delay) {
+        long ticks = Math.max(1, delay * 1000L / TICK_MILLIS);
+        check.slot = (int) ((cursor + ticks) % WHEEL_SIZE);
+        check.rounds = (ticks - 1) / WHEEL_SIZE;
+        wheel.get(check.slot).add(check);
+    }
+
+    /**
+     * Advances the wheel by one slot and checks the members due
+     * @param now the current time in milliseconds
+     */
+    protected void tick(long now) {
+        List<Check> due = new ArrayList<Check>();
+        synchronized (this) {
+            cursor = (cursor + 1) % WHEEL_SIZE;
+            Iterator<Check> it = wheel.get(cursor).iterator();
+            while (it.hasNext()) {
+                Check check = it.next();
+                if (check.rounds > 0) {
+                    check.rounds--;
+                    continue;
+                }
+                it.remove();
+                due.add(check);
+            }
+        }
+
+        for (Check check : due) {
+            LBMember member = check.member;
+            LBMonitor monitor = lb.getMonitor(member);
+            if (now - member.lastReport > monitor.timeout * 1000L) {
+                member.unreportedCount++;
+                if (log.isDebugEnabled()) {
+                    log.debug("Member {} unreported for {} checks",
+                              IPv4.fromIPv4Address(member.address),
+                              member.unreportedCount);
+                }
+                if (member.unreportedCount >= monitor.attemptsBeforeDeactivation)
+                    lb.setMemberInService(member, false);
+            }
+            synchronized (this) {
+                // unless removed or replaced meanwhile
+                if (checks.get(member.id) == check)
+                    schedule(check, monitor.delay);
+            }
+        }
+    }
+}
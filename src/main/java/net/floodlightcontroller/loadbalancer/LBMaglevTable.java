@@ -0,0 +1,181 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+/**
+ * Maglev consistent hashing lookup table of a pool. Every member fills
+ * the slots of the table following its own permutation, taking turns in
+ * proportion to its weight, and a client is served by the member owning
+ * the slot its 5-tuple hashes to. A membership change only moves the
+ * clients of the slots that change owner, and since the table depends on
+ * nothing but the member addresses, ports and weights, every controller
+ * builds the same table for the same pool.
+ */
+public class LBMaglevTable {
+    // prime, so that every skip gives a full permutation of the slots
+    public static final int TABLE_SIZE = 65537;
+
+    private static final int OFFSET_SEED = 0x2545f491;
+    private static final int SKIP_SEED = 0x61c88647;
+
+    private static final Comparator<LBMember> MEMBER_ORDER =
+            new Comparator<LBMember>() {
+                @Override
+                public int compare(LBMember a, LBMember b) {
+                    if (a.address != b.address)
+                        return (a.address < b.address) ? -1 : 1;
+                    return a.port - b.port;
+                }
+            };
+
+    // members sorted by address and port, with their weights at build time
+    protected final LBMember[] members;
+    protected final double[] weights;
+    // index into members of the owner of each slot
+    protected final int[] entries;
+
+    protected LBMaglevTable(LBMember[] members, double[] weights,
+                            int[] entries) {
+        this.members = members;
+        this.weights = weights;
+        this.entries = entries;
+    }
+
+    /**
+     * Builds the table for a set of members. The previous table of the
+     * pool is returned as is when its members and weights did not change;
+     * any other change fills the whole table again, which takes a few
+     * milliseconds and only happens on configuration changes.
+     * @param poolMembers the members of the pool
+     * @param previous the current table of the pool, may be null
+     * @return the table
+     */
+    public static LBMaglevTable build(LBMember[] poolMembers,
+                                      LBMaglevTable previous) {
+        LBMember[] members = poolMembers.clone();
+        Arrays.sort(members, MEMBER_ORDER);
+        double[] weights = new double[members.length];
+        boolean weighted = false;
+        for (int i = 0; i < members.length; i++) {
+            weights[i] = members[i].weight;
+            if (weights[i] > 0)
+                weighted = true;
+        }
+        // without any usable weight all members share the table equally
+        if (!weighted)
+            Arrays.fill(weights, 1);
+
+        if (previous != null &&
+            Arrays.equals(previous.members, members) &&
+            Arrays.equals(previous.weights, weights))
+            return previous;
+
+        return new LBMaglevTable(members, weights, populate(members, weights));
+    }
+
+    private static int[] populate(LBMember[] members, double[] weights) {
+        if (members.length == 0)
+            return new int[0];
+        int[] entries = new int[TABLE_SIZE];
+        Arrays.fill(entries, -1);
+
+        double maxWeight = 0;
+        for (double weight : weights)
+            maxWeight = Math.max(maxWeight, weight);
+
+        int n = members.length;
+        int[] next = new int[n];
+        int[] skip = new int[n];
+        double[] credit = new double[n];
+        for (int i = 0; i < n; i++) {
+            int key = members[i].address * 31 + members[i].port;
+            next[i] = (mix(key ^ OFFSET_SEED) & Integer.MAX_VALUE) % TABLE_SIZE;
+            skip[i] = (mix(key ^ SKIP_SEED) & Integer.MAX_VALUE) %
+                      (TABLE_SIZE - 1) + 1;
+        }
+
+        // the heaviest member claims a slot every round, the others
+        // whenever their accumulated share of its weight reaches one
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < n; i++) {
+                if (weights[i] <= 0)
+                    continue;
+                credit[i] += weights[i] / maxWeight;
+                if (credit[i] < 1)
+                    continue;
+                credit[i] -= 1;
+
+                int slot = next[i];
+                while (entries[slot] >= 0)
+                    slot = (slot + skip[i]) % TABLE_SIZE;
+                entries[slot] = i;
+                next[i] = (slot + skip[i]) % TABLE_SIZE;
+                if (++filled == TABLE_SIZE)
+                    return entries;
+            }
+        }
+    }
+
+    /**
+     * Looks up the member serving a client. When the owner of the client's
+     * slot is out of service or overloaded, the following slots are tried.
+     * @param client the client
+     * @return the member, null if no member is eligible
+     */
+    public LBMember lookup(IPClient client) {
+        if (entries.length == 0 || !hasEligibleMember())
+            return null;
+        int h = mix(client.ipAddress);
+        h = mix(h ^ client.nw_proto);
+        h = mix(h ^ ((client.srcPort << 16) | (client.targetPort & 0xffff)));
+        int slot = (h & Integer.MAX_VALUE) % entries.length;
+        for (int i = 0; i < entries.length; i++) {
+            LBMember member = members[entries[slot]];
+            if (!member.isOutOfService && !member.isOverloaded)
+                return member;
+            if (++slot == entries.length)
+                slot = 0;
+        }
+        return null;
+    }
+
+    // checked before probing, which would otherwise walk the whole table
+    private boolean hasEligibleMember() {
+        for (int i = 0; i < members.length; i++) {
+            if (weights[i] > 0 && !members[i].isOutOfService &&
+                !members[i].isOverloaded)
+                return true;
+        }
+        return false;
+    }
+
+    // murmur3 finalizer; fixed, so all controllers hash alike
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
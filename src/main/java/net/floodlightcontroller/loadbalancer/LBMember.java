@@ -16,7 +16,7 @@
 
 package net.floodlightcontroller.loadbalancer;
 
-import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.MACAddress;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
@@ -28,11 +28,11 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
  */
 
 @JsonSerialize(using=LBMemberSerializer.class)
-public class LBMember implements Runnable{
+public class LBMember {
     protected String id;
     protected int address;
     protected short port;
-    protected String macString;
+    protected MACAddress mac;
     
     protected double responseTime;
     protected int nConnections;
@@ -45,8 +45,15 @@ public class LBMember implements Runnable{
     protected double weight;
     protected boolean isOverloaded;
     protected boolean isOutOfService;
+    // failed health checks in a row, see LBHealthChecker
     protected int unreportedCount;
+    // time of the last report of the member, in milliseconds
+    protected volatile long lastReport;
     protected double processCapacity;
+    // connections counted by the controller from the member's flows,
+    // used instead of the reported nConnections when localConnections
+    protected LBStats stats;
+    protected boolean localConnections;
     
     protected int connectionLimit;
     protected short adminState;
@@ -58,7 +65,7 @@ public class LBMember implements Runnable{
     public LBMember() {
         id = String.valueOf((int) (Math.random()*10000));
         address = 0;
-        macString = null;
+        mac = null;
         port = 0;
         
         responseTime = 0;
@@ -71,40 +78,24 @@ public class LBMember implements Runnable{
         isOverloaded = false;
         isOutOfService = false;
         unreportedCount = 0;
+        lastReport = System.currentTimeMillis();
         weight = 1;
         processCapacity = 1.0;
+        stats = new LBStats();
+        localConnections = false;
         
         connectionLimit = 0;
         adminState = 0;
         status = 0;
         poolId = null;
         vipId = null;
-      //state monitor for related dynamic feedback algorithm
-        
-        Thread t = new Thread(this);
-        t.start();
     }
-  //compute how long or how many times controller haven't receive this server's report
-    public void run(){
-    	while(true){
-    		 try {
- 				Thread.sleep(5000);
- 			}catch (InterruptedException e) {
- 				// TODO Auto-generated catch block
- 				e.printStackTrace();
- 			}
-    		if(unreportedCount >= 10 ){
-    			if(isOutOfService == false){
-    				System.out.println("Server" + IPv4.fromIPv4Address(this.address) + "break down");
-    			isOutOfService = true;
-    			}
-    			continue;
-    		}
-    		else{
-    		unreportedCount++;
-    		System.out.println("Server" + IPv4.fromIPv4Address(this.address) 
-    				+ "unreported count is" + unreportedCount);}
-           
-    	}
+
+    /**
+     * @return the active connections of the member, as counted by the
+     *         controller if it does, else as last reported by the member
+     */
+    public int getConnections() {
+        return localConnections ? stats.getActiveConnections() : nConnections;
     }
 }
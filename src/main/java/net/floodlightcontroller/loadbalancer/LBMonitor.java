@@ -35,6 +35,8 @@ public class LBMonitor {
     protected int address;
     protected byte protocol;
     protected short port;
+    // pool whose members the monitor checks
+    protected String poolId;
 
     //protected path??
     
@@ -52,6 +54,7 @@ public class LBMonitor {
         address = 0;
         protocol = 0;
         port = 0;
+        poolId = null;
         adminState = 0;
         status = 0;
         
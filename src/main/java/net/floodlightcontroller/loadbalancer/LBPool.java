@@ -17,13 +17,21 @@
 package net.floodlightcontroller.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
-import net.floodlightcontroller.loadbalancer.*;
 import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
 import net.floodlightcontroller.packet.IPv4;
 
@@ -37,6 +45,8 @@ import net.floodlightcontroller.packet.IPv4;
 
 @JsonSerialize(using=LBPoolSerializer.class)
 public class LBPool {
+    protected static Logger log = LoggerFactory.getLogger(LBPool.class);
+
     protected String id;
     protected String name;
     protected String tenantId;
@@ -44,12 +54,29 @@ public class LBPool {
     protected short lbMethod;
     protected short lbMode;
     protected byte protocol;
+    // member ids, guarded by the pool's lock once the pool is in use
     protected ArrayList<String> members;
     protected ArrayList<String> monitors;
     protected short adminState;
     protected short status;
     protected String vipId;
-    protected int previousMemberIndex;
+    protected final AtomicInteger roundRobinIndex;
+    protected volatile MemberView memberView;
+
+    // share of the pool among the pools of its VIP, see LBVip#pickPool
+    protected double weight;
+    // clients sent to the pool by its VIP
+    protected final AtomicLong picks;
+    protected volatile PoolLoad load;
+
+    // proactive mode: the client prefix bucketPrefix/bucketPrefixLen is
+    // split into 2^bucketBits buckets, each one served by a single member
+    // through wildcard flows. 0 bucket bits keeps the pool reactive.
+    protected int bucketBits;
+    protected int bucketPrefix;
+    protected int bucketPrefixLen;
+    // id of the member serving each bucket
+    protected String[] bucketMembers;
     
     protected static int RANDOM = 0;
     protected static int ROUND_ROBIN = 1;
@@ -59,8 +86,87 @@ public class LBPool {
     protected static int INTEGRATION = 5;
     protected static int WINTEGRATION = 6;
     protected static int WLC = 7;
+    protected static int MAGLEV = 8;
+
+    public static final int MAX_BUCKET_BITS = 8;
+
+    // how long the aggregated load of a pool is reused, in ms
+    protected static long LOAD_REFRESH_INTERVAL = 100;
+
+    // one generator per packet-in thread, so random picks never contend
+    private static final ThreadLocal<Random> random =
+            new ThreadLocal<Random>() {
+                @Override
+                protected Random initialValue() {
+                    return new Random();
+                }
+            };
     
+    /**
+     * Immutable snapshot of the members in service of a pool, in the
+     * order of {@link LBPool#members}. The packet-in path selects from this view,
+     * so it must only be replaced as a whole, never modified in place.
+     */
+    protected static final class MemberView {
+        protected static final MemberView EMPTY =
+                new MemberView(new LBMember[0],
+                               Collections.<String, Integer>emptyMap(), null);
+
+        protected final LBMember[] members;
+        protected final Map<String, Integer> index;
+        // only built for MAGLEV pools
+        protected final LBMaglevTable maglev;
+
+        protected MemberView(LBMember[] members, Map<String, Integer> index,
+                             LBMaglevTable maglev) {
+            this.members = members;
+            this.index = index;
+            this.maglev = maglev;
+        }
+
+        public int size() {
+            return members.length;
+        }
+
+        public LBMember get(String memberId) {
+            Integer i = index.get(memberId);
+            return (i == null) ? null : members[i];
+        }
+    }
     
+    /**
+     * Load of a pool, aggregated from the metrics of its members in
+     * service when its VIP compares it with the other pools.
+     */
+    protected static final class PoolLoad {
+        // members in service, and those of them not overloaded
+        protected final int members;
+        protected final int available;
+        protected final int connections;
+        // means over the members in service
+        protected final double responseTime;
+        protected final double cpuUsage;
+        protected final long timestamp;
+
+        protected PoolLoad(int members, int available, int connections,
+                           double responseTime, double cpuUsage,
+                           long timestamp) {
+            this.members = members;
+            this.available = available;
+            this.connections = connections;
+            this.responseTime = responseTime;
+            this.cpuUsage = cpuUsage;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return true if no member can take new clients
+         */
+        public boolean isSaturated() {
+            return available == 0;
+        }
+    }
+
     public LBPool() {
         id = String.valueOf((int) (Math.random()*10000));
         name = null;
@@ -73,7 +179,15 @@ public class LBPool {
         monitors = new ArrayList<String>();
         adminState = 0;
         status = 0;
-        previousMemberIndex = -1;  
+        roundRobinIndex = new AtomicInteger(0);
+        memberView = MemberView.EMPTY;
+        weight = 1;
+        picks = new AtomicLong();
+        load = null;
+        bucketBits = 0;
+        bucketPrefix = 0;
+        bucketPrefixLen = 0;
+        bucketMembers = null;
     }
     
     
@@ -84,84 +198,383 @@ public class LBPool {
     protected void setlbMethod(short method){
     	this.lbMethod = method;
     }
-    public LBMember pickMember(IPClient client, HashMap<String, LBMember> LBmembers) {
-        if (members.size() > 0) {
+
+    /**
+     * Rebuilds the member view of this pool from its member id list,
+     * leaving out the members out of service. Must be called whenever the
+     * member list of the pool, one of its member objects or the service
+     * state of a member changes.
+     * @param allMembers all known members keyed by member id
+     */
+    protected synchronized void rebuildMemberView(Map<String, LBMember> allMembers) {
+        ArrayList<LBMember> view = new ArrayList<LBMember>(members.size());
+        ArrayList<LBMember> all = new ArrayList<LBMember>(members.size());
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        Set<String> seen = new HashSet<String>();
+        for (String memberId : members) {
+            LBMember member = allMembers.get(memberId);
+            if (member == null || !seen.add(memberId))
+                continue;
+            all.add(member);
+            if (member.isOutOfService)
+                continue;
+            index.put(memberId, view.size());
+            view.add(member);
+        }
+        LBMember[] viewMembers = view.toArray(new LBMember[view.size()]);
+        LBMaglevTable maglev = null;
+        // the table holds the members out of service too, which lookups
+        // skip, so that health changes keep it as it is
+        if (lbMethod == MAGLEV)
+            maglev = LBMaglevTable.build(all.toArray(new LBMember[all.size()]),
+                                         memberView.maglev);
+        memberView = new MemberView(viewMembers,
+                                    Collections.unmodifiableMap(index),
+                                    maglev);
+        load = null;
+    }
+
+    /**
+     * Adds a member to this pool and rebuilds the member view
+     * @param memberId the member id
+     * @param allMembers all known members keyed by member id
+     */
+    protected synchronized void addMember(String memberId,
+                                          Map<String, LBMember> allMembers) {
+        if (!members.contains(memberId))
+            members.add(memberId);
+        rebuildMemberView(allMembers);
+    }
+
+    /**
+     * Removes a member from this pool and rebuilds the member view
+     * @param memberId the member id
+     * @param allMembers all known members keyed by member id
+     */
+    protected synchronized void removeMember(String memberId,
+                                             Map<String, LBMember> allMembers) {
+        members.remove(memberId);
+        rebuildMemberView(allMembers);
+    }
+
+    /**
+     * @return a copy of the member ids of this pool
+     */
+    protected synchronized List<String> getMemberIds() {
+        return new ArrayList<String>(members);
+    }
+
+    /**
+     * Aggregates the load of the members in service. The result is
+     * reused for {@link #LOAD_REFRESH_INTERVAL}, the members only report
+     * their metrics every second or so.
+     * @return the load of the pool
+     */
+    public PoolLoad getLoad() {
+        PoolLoad current = load;
+        long now = System.currentTimeMillis();
+        if (current != null && now - current.timestamp < LOAD_REFRESH_INTERVAL)
+            return current;
+
+        int n = 0;
+        int available = 0;
+        int connections = 0;
+        double responseTime = 0;
+        double cpuUsage = 0;
+        for (LBMember m : memberView.members) {
+            if (m.isOutOfService)
+                continue;
+            n++;
+            if (!m.isOverloaded)
+                available++;
+            connections += m.getConnections();
+            responseTime += m.responseTime;
+            cpuUsage += m.cpuUsage;
+        }
+        if (n > 0) {
+            responseTime /= n;
+            cpuUsage /= n;
+        }
+        current = new PoolLoad(n, available, connections, responseTime,
+                               cpuUsage, now);
+        load = current;
+        return current;
+    }
+
+    public MemberView getMemberView() {
+        return memberView;
+    }
+
+    /**
+     * Picks the member serving a new client. Called concurrently by the
+     * packet-in threads without locking: round robin only shares an atomic
+     * counter, and the other methods scan the member view without
+     * allocating. The member metrics read and bumped by the load based
+     * methods are not synchronized, so those picks are best effort.
+     * @param client the client
+     * @return the member, null if the pool has no eligible member
+     */
+    public LBMember pickMember(IPClient client) {
+        MemberView current = memberView;
+        LBMember[] view = current.members;
+        if (view.length > 0) {
         	if(lbMethod == RANDOM){
-        		Random r = new Random();
-        		previousMemberIndex = r.nextInt(members.size());
-                return LBmembers.get(members.get(previousMemberIndex));		
+                return view[random.get().nextInt(view.length)];
         	}
         	if(lbMethod == ROUND_ROBIN){
-        		previousMemberIndex = (previousMemberIndex + 1) % members.size();
-                return LBmembers.get(members.get(previousMemberIndex));
+                return view[nextRoundRobinIndex(view.length)];
         	}
         	if(lbMethod == LEAST_CONNECTION){
-        		return leastConnections(LBmembers);  
+        		return leastConnections(view);  
         	}
         	if(lbMethod == LEAST_RESPONSE_TIME){
-        		return responseTime(LBmembers);
+        		return responseTime(view);
         	}
             if(lbMethod == CPU_USAGE){
-            	return cpuUsage(LBmembers);
+            	return cpuUsage(view);
             }
             if(lbMethod == INTEGRATION){
-            	return integration(LBmembers);
+            	return integration(view);
             }
             if(lbMethod == WINTEGRATION){
-            	return wIntegration(LBmembers);
+            	return wIntegration(view);
             }
             if(lbMethod == WLC){
-            	return WLC(LBmembers);
+            	return WLC(view);
+            }
+            if(lbMethod == MAGLEV){
+            	return maglev(current, client);
             }
-            previousMemberIndex = (previousMemberIndex + 1) % members.size();
-            return LBmembers.get(members.get(previousMemberIndex));
+            return view[nextRoundRobinIndex(view.length)];
         } else {
             return null;
         }
     }
+
+    /**
+     * Consistent hashing selection, see {@link LBMaglevTable}
+     * @param current the member view the pick is made from
+     * @param client the client
+     * @return the member, null if no member is eligible
+     */
+    protected LBMember maglev(MemberView current, IPClient client) {
+        LBMaglevTable table = current.maglev;
+        if (table == null) {
+            // the method was switched without a member change; build the
+            // table now and publish it unless the view changed meanwhile
+            table = LBMaglevTable.build(current.members, null);
+            MemberView withTable =
+                    new MemberView(current.members, current.index, table);
+            if (memberView == current)
+                memberView = withTable;
+        }
+        return table.lookup(client);
+    }
+
+    public boolean isProactive() {
+        return getBucketBits() > 0;
+    }
+
+    /**
+     * @return the number of bits splitting the client prefix into buckets
+     */
+    public int getBucketBits() {
+        return Math.max(0, Math.min(bucketBits,
+                Math.min(MAX_BUCKET_BITS, 32 - bucketPrefixLen)));
+    }
+
+    /**
+     * @return the prefix length of the buckets
+     */
+    public int getBucketLength() {
+        return bucketPrefixLen + getBucketBits();
+    }
+
+    /**
+     * @param bucket a bucket index
+     * @return the network address of the bucket
+     */
+    public int getBucketAddress(int bucket) {
+        return (bucketPrefix & prefixMask(bucketPrefixLen)) |
+               (bucket << (32 - getBucketLength()));
+    }
+
+    /**
+     * @param address a client address
+     * @return the bucket of the address, -1 if it is not in the client
+     *         prefix of a proactive pool
+     */
+    public int getBucket(int address) {
+        int bits = getBucketBits();
+        if (bits == 0 ||
+            ((address ^ bucketPrefix) & prefixMask(bucketPrefixLen)) != 0)
+            return -1;
+        return (address >>> (32 - bucketPrefixLen - bits)) & ((1 << bits) - 1);
+    }
+
+    private static int prefixMask(int len) {
+        return (len == 0) ? 0 : (-1 << (32 - len));
+    }
+
+    /**
+     * Assigns the buckets of a proactive pool to the members in service,
+     * in proportion to their weights. A bucket only moves when its member
+     * left the pool, went out of service or got more buckets than its
+     * share. Overloaded members drain: they keep the buckets they serve,
+     * as moving them would break the connections in progress, but get no
+     * new ones.
+     * @return the buckets whose member changed
+     */
+    protected synchronized List<Integer> rebalanceBuckets() {
+        List<Integer> changed = new ArrayList<Integer>();
+        int n = 1 << getBucketBits();
+        if (bucketMembers == null || bucketMembers.length != n)
+            bucketMembers = new String[n];
+
+        LBMember[] view = memberView.members;
+        List<LBMember> eligible = new ArrayList<LBMember>(view.length);
+        Set<String> draining = new HashSet<String>();
+        double total = 0;
+        for (LBMember m : view) {
+            if (m.isOutOfService)
+                continue;
+            if (m.isOverloaded) {
+                draining.add(m.id);
+                continue;
+            }
+            eligible.add(m);
+            total += Math.max(m.weight, 0);
+        }
+        boolean[] keep = new boolean[n];
+        int free = n;
+        for (int b = 0; b < n; b++) {
+            if (bucketMembers[b] != null &&
+                draining.contains(bucketMembers[b])) {
+                keep[b] = true;
+                free--;
+            }
+        }
+        if (eligible.isEmpty()) {
+            // keep buckets on members that are still in the pool, as
+            // nobody else could take them
+            for (int b = 0; b < n; b++) {
+                if (!keep[b] && bucketMembers[b] != null &&
+                    memberView.get(bucketMembers[b]) == null) {
+                    bucketMembers[b] = null;
+                    changed.add(b);
+                }
+            }
+            return changed;
+        }
+
+        // largest remainder shares of the buckets not draining
+        int[] quota = new int[eligible.size()];
+        double[] remainder = new double[eligible.size()];
+        Map<String, Integer> position = new HashMap<String, Integer>();
+        int assigned = 0;
+        for (int i = 0; i < quota.length; i++) {
+            LBMember m = eligible.get(i);
+            double share = (total > 0) ? free * Math.max(m.weight, 0) / total
+                                       : (double) free / quota.length;
+            quota[i] = (int) share;
+            remainder[i] = share - quota[i];
+            assigned += quota[i];
+            position.put(m.id, i);
+        }
+        while (assigned < free) {
+            int best = 0;
+            for (int i = 1; i < quota.length; i++) {
+                if (remainder[i] > remainder[best])
+                    best = i;
+            }
+            quota[best]++;
+            remainder[best] = -1;
+            assigned++;
+        }
+
+        // keep what still fits, then hand out the rest
+        for (int b = 0; b < n; b++) {
+            if (keep[b])
+                continue;
+            Integer i = (bucketMembers[b] == null) ? null
+                                                   : position.get(bucketMembers[b]);
+            if (i != null && quota[i] > 0) {
+                quota[i]--;
+                keep[b] = true;
+            }
+        }
+        int next = 0;
+        for (int b = 0; b < n; b++) {
+            if (keep[b])
+                continue;
+            while (quota[next] == 0)
+                next++;
+            quota[next]--;
+            String memberId = eligible.get(next).id;
+            if (!memberId.equals(bucketMembers[b])) {
+                bucketMembers[b] = memberId;
+                changed.add(b);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param bucket a bucket index
+     * @return the id of the member serving the bucket, null if none
+     */
+    public synchronized String getBucketMember(int bucket) {
+        if (bucketMembers == null || bucket < 0 ||
+            bucket >= bucketMembers.length)
+            return null;
+        return bucketMembers[bucket];
+    }
+
+    /**
+     * Next round robin position; stays non-negative when the counter wraps
+     * @param size number of members
+     * @return index in [0, size)
+     */
+    protected int nextRoundRobinIndex(int size) {
+        return (roundRobinIndex.getAndIncrement() & Integer.MAX_VALUE) % size;
+    }
+
 	/**
 	 * An algorithm that selects the server base on the Response Time of the servers
 	 * (not in use)
 	 * @param members List of servers
 	 * @return the server with the smallest response time
 	 */
-	public LBMember responseTime(HashMap<String, LBMember> members){
+	public LBMember responseTime(LBMember[] members){
 
-		Double bestRT = Double.MAX_VALUE;
+		double bestRT = Double.MAX_VALUE;
 		LBMember target = null;
-		String bestId = null;
-		
-		LinkedList<String> bestTargets = new LinkedList<String>();
-
-		for(String id : members.keySet()){
-			if(members.get(id).isOverloaded)continue;
-			//if(members.get(id).isOutOfService)continue;
-			if( (members.get(id).responseTime + members.get(id).new_request_rt_impact) < bestRT){	
-				bestTargets.removeAll(bestTargets);
-				bestTargets.add(id);
-				bestRT = members.get(id).responseTime + members.get(id).new_request_rt_impact;
-				bestId = id;
-			}else if( (members.get(id).responseTime + members.get(id).new_request_rt_impact) == bestRT)
-				bestTargets.add(id);
-			
-			
+		int ties = 0;
+
+		for(LBMember m : members){
+			if(m.isOverloaded)continue;
+			//if(m.isOutOfService)continue;
+			double rt = m.responseTime + m.new_request_rt_impact;
+			if(rt < bestRT){
+				bestRT = rt;
+				target = m;
+				ties = 1;
+			}else if(rt == bestRT)
+				ties++;
 		}
-		
-		if(bestTargets.size() > 1){
-			
-			HashMap<String, LBMember> aux = new HashMap<String, LBMember>();
-			
-			for(String id : bestTargets)
-				aux.put(id, members.get(id));
-			
-			target = this.cpuUsage(aux);
-			
-			
-		}else
-			target = members.get(bestId);
-		System.out.print("Algorithm responseTime work!. Server " + IPv4.fromIPv4Address(members.get(target.id).address) 
-				+ " 's RT is " + String.format(".2f", members.get(target.id).responseTime) + "\n");
-			members.get(target.id).responseTime += members.get(target.id).new_request_rt_impact;
+
+		// break ties on the cpu usage of the servers with the best RT
+		if(ties > 1){
+			target = leastCpuUsage(members, true, bestRT);
+			if(target != null)
+				target.cpuUsage += target.new_request_cpu_impact;
+		}
+		if(target == null)
+			return null;
+		if(log.isDebugEnabled())
+			log.debug("Algorithm responseTime picked server {} with RT {}",
+			          IPv4.fromIPv4Address(target.address), target.responseTime);
+		target.responseTime += target.new_request_rt_impact;
         
 		return target;
 	}
@@ -172,25 +585,30 @@ public class LBPool {
 	 * @param members List of servers
 	 * @return the server with the least number of connections
 	 */
-	public LBMember leastConnections(HashMap<String, LBMember> members){
+	public LBMember leastConnections(LBMember[] members){
 
 		LBMember target = null;
 
 		int best = Integer.MAX_VALUE;
-		String bestId = null;
-		for(String id : members.keySet()){
-			if(members.get(id).isOverloaded)continue;
-			if(members.get(id).isOutOfService)continue;
-			if(members.get(id).nConnections < best){
-				best = members.get(id).nConnections;
-				target = members.get(id);
-				bestId = id;
+		for(LBMember m : members){
+			if(m.isOverloaded)continue;
+			if(m.isOutOfService)continue;
+			int connections = m.getConnections();
+			if(connections < best){
+				best = connections;
+				target = m;
 			}
 
 		}
 
-		members.get(bestId).nConnections++;
-		System.out.print("Algorithm leastConnections work!");
+		if(target == null)
+			return null;
+		// until the next report, unless the connections are counted locally
+		if(!target.localConnections)
+			target.nConnections++;
+		if(log.isDebugEnabled())
+			log.debug("Algorithm leastConnections picked server {}",
+			          IPv4.fromIPv4Address(target.address));
 		return target;
 	}
 
@@ -199,107 +617,128 @@ public class LBPool {
 	 * @param members List of servers
 	 * @return the server with the lowest CPU usage
 	 */
-	public LBMember cpuUsage(HashMap<String, LBMember> members){
+	public LBMember cpuUsage(LBMember[] members){
+
+		LBMember target = leastCpuUsage(members, false, 0);
+		
+		if(target == null)
+			return null;
+		target.cpuUsage += target.new_request_cpu_impact;
+
+		if(log.isDebugEnabled())
+			log.debug("Algorithm cpuUsage picked server {}",
+			          IPv4.fromIPv4Address(target.address));
+		return target;
+	}
+
+	/**
+	 * Scans for the server with the lowest CPU usage
+	 * @param members List of servers
+	 * @param onlyRT only consider the servers whose response time plus
+	 *        impact equals rt
+	 * @param rt the response time to consider when onlyRT is set
+	 * @return the server with the lowest CPU usage, null if none is eligible
+	 */
+	private LBMember leastCpuUsage(LBMember[] members, boolean onlyRT, double rt){
 
 		LBMember target = null;
 
 		double best = Double.MAX_VALUE;
-		String bestId = null;
-
-		for(String id : members.keySet()){
-			if(members.get(id).isOverloaded)continue;
-			if(members.get(id).isOutOfService)continue;
-			if((members.get(id).cpuUsage + members.get(id).new_request_cpu_impact) < best){
-				best = members.get(id).cpuUsage + members.get(id).new_request_cpu_impact;
-				target = members.get(id);
-				bestId = id;
+
+		for(LBMember m : members){
+			if(m.isOverloaded)continue;
+			if(m.isOutOfService)continue;
+			if(onlyRT && (m.responseTime + m.new_request_rt_impact) != rt)continue;
+			if((m.cpuUsage + m.new_request_cpu_impact) < best){
+				best = m.cpuUsage + m.new_request_cpu_impact;
+				target = m;
 			}
 
 		}
-		
-		members.get(bestId).cpuUsage += members.get(bestId).new_request_cpu_impact;
-
-		System.out.print("Algorithm cpuUsage work!\n");
 		return target;
 	}
 
-	public LBMember integration(HashMap<String, LBMember> members){
+	public LBMember integration(LBMember[] members){
 
 		LBMember target = null;
 
 		double best = Double.MAX_VALUE;
-		String bestId = null;
 
-		for(String id : members.keySet()){
-			if(members.get(id).isOverloaded)continue;
-			if(members.get(id).isOutOfService)continue;
+		for(LBMember m : members){
+			if(m.isOverloaded)continue;
+			if(m.isOutOfService)continue;
 			//compute load = (CPU+impact)*0.6+(Memory+impact)*0.4
-			double load = (members.get(id).cpuUsage + members.get(id).new_request_cpu_impact)* 0.6 
-					+ (members.get(id).memUsage + members.get(id).new_request_memory_impact) * 0.4;
+			double load = (m.cpuUsage + m.new_request_cpu_impact)* 0.6 
+					+ (m.memUsage + m.new_request_memory_impact) * 0.4;
 			if(load < best){
 				best = load;
-				target = members.get(id);
-				bestId = id;
+				target = m;
 			}
 		}
-		members.get(bestId).cpuUsage += members.get(bestId).new_request_cpu_impact;
-		members.get(bestId).memUsage += members.get(bestId).new_request_memory_impact;
+		if(target == null)
+			return null;
+		target.cpuUsage += target.new_request_cpu_impact;
+		target.memUsage += target.new_request_memory_impact;
 		
-		System.out.print("Algorithm Integration work!\n");
+		if(log.isDebugEnabled())
+			log.debug("Algorithm integration picked server {}",
+			          IPv4.fromIPv4Address(target.address));
 		return target;
 	} 
 	
     //weighted integration algorithm
-	public LBMember wIntegration(HashMap<String, LBMember> members){
+	public LBMember wIntegration(LBMember[] members){
 		
 		LBMember target = null;
-;
 		double bestLWQ = Double.MAX_VALUE;//LWQ = load/weight
-		String bestId = null;
 
-		for(String id : members.keySet()){
-			if(members.get(id).isOverloaded)continue;
-			//if(members.get(id).isOutOfService)continue;
+		for(LBMember m : members){
+			if(m.isOverloaded)continue;
+			//if(m.isOutOfService)continue;
 			//compute load = (CPU+impact)*0.6+(Memory+impact)*0.4
-			double load = (members.get(id).cpuUsage + members.get(id).new_request_cpu_impact)* 0.6 
-					+ (members.get(id).memUsage + members.get(id).new_request_memory_impact) * 0.4;
-			double weight = members.get(id).weight;
+			double load = (m.cpuUsage + m.new_request_cpu_impact)* 0.6 
+					+ (m.memUsage + m.new_request_memory_impact) * 0.4;
+			double weight = m.weight;
 			if(load/weight < bestLWQ){
 				bestLWQ = load/weight;
-				target = members.get(id);
-				bestId = id;
+				target = m;
 			}
 		}
 		
-		members.get(bestId).cpuUsage += members.get(bestId).new_request_cpu_impact;
-		members.get(bestId).memUsage += members.get(bestId).new_request_memory_impact;
-		System.out.println("Algorithm wIntegration work! Server" + 
-		IPv4.fromIPv4Address(members.get(target.id).address) + " has bestLWQ which is " + bestLWQ );
+		if(target == null)
+			return null;
+		target.cpuUsage += target.new_request_cpu_impact;
+		target.memUsage += target.new_request_memory_impact;
+		if(log.isDebugEnabled())
+			log.debug("Algorithm wIntegration picked server {} with LWQ {}",
+			          IPv4.fromIPv4Address(target.address), bestLWQ);
 		return target; 
 	}
 	
-public LBMember WLC(HashMap<String, LBMember> members){
+public LBMember WLC(LBMember[] members){
 		
 		LBMember target = null;
-		double bestLCQ = 0.0;//LCQ = connections/weight
-		String bestId = null;
-
-		for(String id : members.keySet()){
-			if(members.get(id).isOverloaded)continue;
-			if(members.get(id).isOutOfService)continue;
-
-			double weight = members.get(id).weight;
-			if(members.get(id).nConnections/weight < bestLCQ){
-				bestLCQ = members.get(id).nConnections/weight;
-				target = members.get(id);
-				bestId = id;
+		double bestLCQ = Double.MAX_VALUE;//LCQ = connections/weight
+
+		for(LBMember m : members){
+			if(m.isOverloaded)continue;
+			if(m.isOutOfService)continue;
+
+			double weight = m.weight;
+			if(m.getConnections()/weight < bestLCQ){
+				bestLCQ = m.getConnections()/weight;
+				target = m;
 			}
 		}
 		
-		members.get(bestId).cpuUsage += members.get(bestId).new_request_cpu_impact;
-		members.get(bestId).memUsage += members.get(bestId).new_request_memory_impact;
+		if(target == null)
+			return null;
+		target.cpuUsage += target.new_request_cpu_impact;
+		target.memUsage += target.new_request_memory_impact;
 		
-		System.out.print("Algorithm WLC work! \n");
+		if(log.isDebugEnabled())
+			log.debug("Algorithm WLC picked server {}",
+			          IPv4.fromIPv4Address(target.address));
 		return target; 
 	}
 	
@@ -34,9 +34,20 @@ public class LBPoolSerializer extends JsonSerializer<LBPool>{
         jGen.writeStringField("name", pool.name);
         jGen.writeStringField("id", pool.id);
         jGen.writeStringField("vipId", pool.vipId);
-
-        for (int i=0; i<pool.members.size(); i++)
-            jGen.writeStringField("pool", pool.members.get(i));
+        jGen.writeStringField("weight", String.valueOf(pool.weight));
+
+        // selection state, as seen by the VIP picking among its pools
+        LBPool.PoolLoad load = pool.getLoad();
+        jGen.writeNumberField("picks", pool.picks.get());
+        jGen.writeBooleanField("saturated", load.isSaturated());
+        jGen.writeNumberField("membersInService", load.members);
+        jGen.writeNumberField("membersAvailable", load.available);
+        jGen.writeNumberField("connections", load.connections);
+        jGen.writeNumberField("responseTime", load.responseTime);
+        jGen.writeNumberField("cpuUsage", load.cpuUsage);
+
+        for (String memberId : pool.getMemberIds())
+            jGen.writeStringField("pool", memberId);
 
         jGen.writeEndObject();
     }
@@ -0,0 +1,134 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Load report of a member, sent in a UDP datagram to the status address
+ * of the load balancer. The report is a fixed layout in network byte
+ * order:
+ * <pre>
+ *  0  u16  magic, "LB"
+ *  2  u8   version, 1
+ *  3  u8   header length, 4 for version 1
+ *  +0 f32  response time
+ *  +4 u32  active connections
+ *  +8 f32  CPU usage, in percent
+ * +12 f32  memory usage, in percent
+ * </pre>
+ * where the body offsets are relative to the header length, so that the
+ * header can grow without breaking older decoders. Reports that do not
+ * start with the magic are taken as the legacy text format, the same four
+ * values separated by spaces.
+ */
+public class LBServerReport {
+    public static final int MAGIC = 0x4c42;
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 4;
+    public static final int BODY_LENGTH = 16;
+
+    protected final int address;
+    protected final double responseTime;
+    protected final int nConnections;
+    protected final double cpuUsage;
+    protected final double memUsage;
+
+    public LBServerReport(int address, double responseTime, int nConnections,
+                          double cpuUsage, double memUsage) {
+        this.address = address;
+        this.responseTime = responseTime;
+        this.nConnections = nConnections;
+        this.cpuUsage = cpuUsage;
+        this.memUsage = memUsage;
+    }
+
+    /**
+     * Decodes a report
+     * @param address the address of the member that sent the report
+     * @param data the UDP payload
+     * @return the report, null if it is malformed or of an unknown version
+     */
+    public static LBServerReport decode(int address, byte[] data) {
+        if (data == null || data.length < 2)
+            return null;
+        if (getShort(data, 0) != MAGIC)
+            return decodeText(address, data);
+
+        if (data.length < HEADER_LENGTH || data[2] != VERSION)
+            return null;
+        int body = data[3] & 0xff;
+        if (body < HEADER_LENGTH || data.length < body + BODY_LENGTH)
+            return null;
+        return new LBServerReport(address,
+                Float.intBitsToFloat(getInt(data, body)),
+                getInt(data, body + 4),
+                Float.intBitsToFloat(getInt(data, body + 8)),
+                Float.intBitsToFloat(getInt(data, body + 12)));
+    }
+
+    private static LBServerReport decodeText(int address, byte[] data) {
+        try {
+            String[] stats = new String(data, "UTF-8").trim().split(" ");
+            if (stats.length < 4)
+                return null;
+            return new LBServerReport(address,
+                                      Double.parseDouble(stats[0]),
+                                      Integer.parseInt(stats[1]),
+                                      Double.parseDouble(stats[2]),
+                                      Double.parseDouble(stats[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the report in the binary format
+     */
+    public byte[] toBytes() {
+        byte[] data = new byte[HEADER_LENGTH + BODY_LENGTH];
+        data[0] = (byte) (MAGIC >>> 8);
+        data[1] = (byte) MAGIC;
+        data[2] = VERSION;
+        data[3] = HEADER_LENGTH;
+        putInt(data, 4, Float.floatToIntBits((float) responseTime));
+        putInt(data, 8, nConnections);
+        putInt(data, 12, Float.floatToIntBits((float) cpuUsage));
+        putInt(data, 16, Float.floatToIntBits((float) memUsage));
+        return data;
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) |
+               ((data[offset + 1] & 0xff) << 16) |
+               ((data[offset + 2] & 0xff) << 8) |
+               (data[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -16,6 +16,9 @@
 
 package net.floodlightcontroller.loadbalancer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Data structure for Load Balancer based on
  * Quantum proposal http://wiki.openstack.org/LBaaS/CoreResourceModel/proposal 
@@ -24,15 +27,68 @@ package net.floodlightcontroller.loadbalancer;
  */
 
 public class LBStats {
-    protected int bytesIn;
-    protected int bytesOut;
-    protected int activeConnections;
-    protected int totalConnections;
-    
+    // read on every selection of a member, so never locked
+    protected final AtomicLong bytesIn = new AtomicLong();
+    protected final AtomicLong bytesOut = new AtomicLong();
+    protected final AtomicLong packetsIn = new AtomicLong();
+    protected final AtomicLong packetsOut = new AtomicLong();
+    protected final AtomicInteger activeConnections = new AtomicInteger();
+    protected final AtomicInteger totalConnections = new AtomicInteger();
+
     public LBStats() {
-        bytesIn = 0;
-        bytesOut = 0;
-        activeConnections = 0;
-        totalConnections = 0;
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        while (true) {
+            int active = activeConnections.get();
+            if (active <= 0 ||
+                    activeConnections.compareAndSet(active, active - 1))
+                return;
+        }
+    }
+
+    /**
+     * Adds the counters of an expired flow
+     * @param inBound true for client to server traffic
+     * @param bytes the bytes matched by the flow
+     * @param packets the packets matched by the flow
+     */
+    public void addTraffic(boolean inBound, long bytes, long packets) {
+        if (inBound) {
+            bytesIn.addAndGet(bytes);
+            packetsIn.addAndGet(packets);
+        } else {
+            bytesOut.addAndGet(bytes);
+            packetsOut.addAndGet(packets);
+        }
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getPacketsIn() {
+        return packetsIn.get();
+    }
+
+    public long getPacketsOut() {
+        return packetsOut.get();
     }
 }
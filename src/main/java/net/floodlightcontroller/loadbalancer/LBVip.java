@@ -17,6 +17,8 @@
 package net.floodlightcontroller.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
@@ -47,8 +49,22 @@ public class LBVip {
     protected short status;
     
     protected MACAddress proxyMac;
+    protected LBStats stats;
     
     public static String LB_PROXY_MAC= "12:34:56:78:90:12";
+
+    // pool selection methods, see pickPool
+    protected static int FIRST_POOL = 0;
+    protected static int WEIGHTED_POOL = 1;
+    protected static int LEAST_LOADED_POOL = 2;
+
+    private static final ThreadLocal<Random> random =
+            new ThreadLocal<Random>() {
+                @Override
+                protected Random initialValue() {
+                    return new Random();
+                }
+            };
     
     public LBVip() {
         this.id = String.valueOf((int) (Math.random()*10000));
@@ -66,16 +82,106 @@ public class LBVip {
         this.status = 0;
         
         this.proxyMac = MACAddress.valueOf(LB_PROXY_MAC);
+        this.stats = new LBStats();
     }
     
-    public String pickPool(IPClient client) {
-        // for now, return the first pool; consider different pool choice policy later
-        if (pools.size() > 0){
-            //System.out.print("pickpool\n");
+    /**
+     * Picks the pool serving a new client, following lbMethod:
+     * <ul>
+     * <li>FIRST_POOL: the first pool, the others only take the clients it
+     *     has no capacity for</li>
+     * <li>WEIGHTED_POOL: a random pool, in proportion to the pool weights</li>
+     * <li>LEAST_LOADED_POOL: the pool with the fewest connections per
+     *     available member and unit of weight, scaled by the mean response
+     *     time of its members</li>
+     * </ul>
+     * Saturated pools, whose members are all overloaded or out of service,
+     * are passed over as long as another pool is not.
+     * @param client the client
+     * @param allPools all known pools keyed by pool id
+     * @return the id of the pool, null if the VIP has no pool
+     */
+    public String pickPool(IPClient client, Map<String, LBPool> allPools) {
+        int n = pools.size();
+        if (n == 0)
+            return null;
+        LBPool picked = null;
+        if (n == 1) {
+            picked = allPools.get(pools.get(0));
+        } else if (lbMethod == WEIGHTED_POOL) {
+            picked = weightedPool(allPools);
+        } else if (lbMethod == LEAST_LOADED_POOL) {
+            picked = leastLoadedPool(allPools);
+        } else {
+            picked = firstPool(allPools);
+        }
+        if (picked == null)
             return pools.get(0);
+        picked.picks.incrementAndGet();
+        return picked.id;
+    }
+
+    protected LBPool firstPool(Map<String, LBPool> allPools) {
+        LBPool first = null;
+        for (int i = 0; i < pools.size(); i++) {
+            LBPool pool = allPools.get(pools.get(i));
+            if (pool == null)
+                continue;
+            if (!pool.getLoad().isSaturated())
+                return pool;
+            if (first == null)
+                first = pool;
+        }
+        return first;
+    }
+
+    protected LBPool weightedPool(Map<String, LBPool> allPools) {
+        double total = 0;
+        for (int i = 0; i < pools.size(); i++) {
+            LBPool pool = allPools.get(pools.get(i));
+            if (pool != null && pool.weight > 0 &&
+                !pool.getLoad().isSaturated())
+                total += pool.weight;
+        }
+        if (total <= 0)
+            return firstPool(allPools);
+
+        double r = random.get().nextDouble() * total;
+        LBPool last = null;
+        for (int i = 0; i < pools.size(); i++) {
+            LBPool pool = allPools.get(pools.get(i));
+            if (pool == null || pool.weight <= 0 ||
+                pool.getLoad().isSaturated())
+                continue;
+            last = pool;
+            r -= pool.weight;
+            if (r < 0)
+                break;
+        }
+        return last;
+    }
+
+    protected LBPool leastLoadedPool(Map<String, LBPool> allPools) {
+        LBPool best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < pools.size(); i++) {
+            LBPool pool = allPools.get(pools.get(i));
+            if (pool == null || pool.weight <= 0)
+                continue;
+            LBPool.PoolLoad load = pool.getLoad();
+            if (load.isSaturated())
+                continue;
+            // expected wait of a new client: the queue per member times
+            // the time each one takes
+            double score = (load.connections + 1.0) /
+                           (load.available * pool.weight) *
+                           Math.max(load.responseTime, 1.0);
+            if (score < bestScore) {
+                bestScore = score;
+                best = pool;
             }
-        else
-            return null;
+        }
+        return (best == null) ? firstPool(allPools) : best;
     }
 
 }
@@ -35,6 +35,11 @@ public class LBVipSerializer extends JsonSerializer<LBVip>{
         jGen.writeStringField("address", String.valueOf(vip.address));
         jGen.writeStringField("protocol", Byte.toString(vip.protocol));
         jGen.writeStringField("port", Short.toString(vip.port));
+        jGen.writeStringField("lb_method", Short.toString(vip.lbMethod));
+        jGen.writeArrayFieldStart("pools");
+        for (int i=0; i<vip.pools.size(); i++)
+            jGen.writeString(vip.pools.get(i));
+        jGen.writeEndArray();
 
         jGen.writeEndObject();
     }
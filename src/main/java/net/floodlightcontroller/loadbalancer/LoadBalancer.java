@@ -3,22 +3,26 @@
 package net.floodlightcontroller.loadbalancer;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
@@ -26,18 +30,7 @@ import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
-import org.openflow.protocol.action.OFActionDataLayerDestination;
-import org.openflow.protocol.action.OFActionDataLayerSource;
-import org.openflow.protocol.action.OFActionEnqueue;
-import org.openflow.protocol.action.OFActionNetworkLayerDestination;
-import org.openflow.protocol.action.OFActionNetworkLayerSource;
-import org.openflow.protocol.action.OFActionNetworkTypeOfService;
 import org.openflow.protocol.action.OFActionOutput;
-import org.openflow.protocol.action.OFActionStripVirtualLan;
-import org.openflow.protocol.action.OFActionTransportLayerDestination;
-import org.openflow.protocol.action.OFActionTransportLayerSource;
-import org.openflow.protocol.action.OFActionVirtualLanIdentifier;
-import org.openflow.protocol.action.OFActionVirtualLanPriorityCodePoint;
 import org.openflow.util.HexString;
 import org.openflow.util.U16;
 import org.slf4j.Logger;
@@ -52,9 +45,13 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.counter.ICounterStoreService;
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
 import net.floodlightcontroller.devicemanager.SwitchPort;
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Data;
@@ -62,13 +59,16 @@ import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.ICMP;
 import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.PacketView;
 import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.routing.FlowHash;
 import net.floodlightcontroller.routing.IRoutingDecision;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.Route;
 import net.floodlightcontroller.staticflowentry.IStaticFlowEntryPusherService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.util.MACAddress;
@@ -83,7 +83,7 @@ import net.floodlightcontroller.util.OFMessageDamper;
  * Limitations:
  * - client records and static flows not purged after use, will exhaust switch flow tables over time
  * - round robin policy among servers based on connections, not traffic volume
- * - health monitoring feature not implemented yet
+ * - health monitoring only tracks the reports of the members, see LBHealthChecker
  *  
  * @author kcwang
  */
@@ -103,19 +103,72 @@ public class LoadBalancer implements IFloodlightModule,
     protected ITopologyService topology;
     protected IStaticFlowEntryPusherService sfp;
     
-    protected HashMap<String, LBVip> vips;
-    protected HashMap<String, LBPool> pools;
-    protected HashMap<String, LBMember> members;
-    protected HashMap<Integer, String> vipIpToId;
-    protected HashMap<Integer, MACAddress> vipIpToMac;
-    protected HashMap<Integer, String> memberIpToId;
+    // concurrent: the REST API changes them while the health check, report
+    // and bucket tasks and the packet-in processing read them
+    protected ConcurrentHashMap<String, LBVip> vips;
+    protected ConcurrentHashMap<String, LBPool> pools;
+    protected ConcurrentHashMap<String, LBMember> members;
+    protected ConcurrentHashMap<String, LBMonitor> monitors;
+    protected ConcurrentHashMap<Integer, String> vipIpToId;
+    protected ConcurrentHashMap<Integer, MACAddress> vipIpToMac;
+    protected ConcurrentHashMap<Integer, String> memberIpToId;
     protected HashMap<IPClient, LBMember> clientToMember;
+    protected ConcurrentHashMap<Integer, IDevice> memberIpToDevice;
+    protected ConcurrentHashMap<String, Set<InstalledFlow>> memberFlows;
+    protected ConcurrentHashMap<String, PoolBuckets> poolBuckets;
+    protected IThreadPoolService threadPool;
+    protected SingletonTask bucketTask;
+    protected LBHealthChecker healthChecker;
+    // latest unapplied load report of each member address
+    protected ConcurrentHashMap<Integer, LBServerReport> pendingReports;
+    protected AtomicBoolean reportsQueued;
+    protected SingletonTask reportTask;
+    // open connections by id, and by the flows accounting for them
+    protected ConcurrentHashMap<Integer, Connection> connections;
+    protected ConcurrentHashMap<InstalledFlow, Connection> connectionFlows;
+    protected AtomicInteger connectionIds;
+    
+    // idle timeout of the per-client flows, see the "idletimeout" option
+    protected short flowIdleTimeout = FLOW_IDLE_TIMEOUT;
+    // count connections from FLOW_REMOVED, possible once flows expire
+    protected boolean connectionAccounting = true;
+    
+    // install flows through the static flow pusher instead of writing
+    // them to the switches directly, see the "flowinstall" option
+    protected boolean useStaticFlows = false;
+
+    // spread client flows over equal cost routes, see the "multipath"
+    // option
+    protected boolean multipath = false;
     
     //Copied from Forwarding with message damper routine for pushing proxy Arp 
     protected static int OFMESSAGE_DAMPER_CAPACITY = 10000; // ms. 
     protected static int OFMESSAGE_DAMPER_TIMEOUT = 250; // ms 
     protected static String LB_ETHER_TYPE = "0x800";
     protected static int LB_PRIORITY = 32768;
+    // below the per-client flows, which take precedence over the buckets
+    protected static int LB_BUCKET_PRIORITY = LB_PRIORITY - 1;
+    protected static int BUCKET_REBALANCE_INTERVAL = 5; // s
+    protected static short FLOW_IDLE_TIMEOUT = 5; // s
+    protected static int REPORT_BATCH_DELAY = 100; // ms
+
+    // health checks of pools without a monitor of their own
+    protected static short MONITOR_DELAY = 5; // s
+    protected static short MONITOR_TIMEOUT = 5; // s
+    protected static short MONITOR_ATTEMPTS = 10;
+    protected static final LBMonitor DEFAULT_MONITOR = new LBMonitor();
+    static {
+        DEFAULT_MONITOR.delay = MONITOR_DELAY;
+        DEFAULT_MONITOR.timeout = MONITOR_TIMEOUT;
+        DEFAULT_MONITOR.attemptsBeforeDeactivation = MONITOR_ATTEMPTS;
+    }
+
+    public static final int LB_APP_ID = 11;
+    static {
+        AppCookie.registerApp(LB_APP_ID, "loadbalancer");
+    }
+    // cookie of the LB flows that do not account for a connection
+    protected static final long LB_COOKIE = AppCookie.makeCookie(LB_APP_ID, 0);
 
     protected static short RANDOM = 0;
     protected static short ROUND_ROBIN = 1;
@@ -158,6 +211,75 @@ public class LoadBalancer implements IFloodlightModule,
         }
     }
     
+    // a flow installed for a member, kept so that it can be removed again
+    protected static class InstalledFlow {
+        final long dpid;
+        final OFMatch match;
+        final int priority;
+        // name of the static flow entry, null if written to the switch directly
+        final String entryName;
+
+        public InstalledFlow(long dpid, OFMatch match, int priority,
+                             String entryName) {
+            this.dpid = dpid;
+            this.match = match;
+            this.priority = priority;
+            this.entryName = entryName;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (int) (dpid ^ (dpid >>> 32)) + match.hashCode())
+                   + priority;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof InstalledFlow)) return false;
+            InstalledFlow other = (InstalledFlow) obj;
+            return dpid == other.dpid && priority == other.priority &&
+                   match.equals(other.match);
+        }
+    }
+
+    // bucket flows of a proactive pool, guarded by the object's lock
+    protected static class PoolBuckets {
+        // switch ports the clients of the pool enter the network on
+        final Set<NodePortTuple> ingress = new HashSet<NodePortTuple>();
+        // flows installed for each bucket, and the member they lead to
+        final Map<Integer, List<InstalledFlow>> flows =
+                new HashMap<Integer, List<InstalledFlow>>();
+        final Map<Integer, String> owners = new HashMap<Integer, String>();
+    }
+
+    /**
+     * A client connection to a member. It is open while the flows that
+     * rewrite its traffic at the pinned switch are installed; the switch
+     * reports their removal and counters as they expire.
+     */
+    protected static class Connection {
+        final int id;
+        final LBMember member;
+        final LBVip vip;
+        // all flows installed for the connection
+        final List<InstalledFlow> flows = new ArrayList<InstalledFlow>();
+        // flows sending FLOW_REMOVED that are still installed
+        int accounted;
+        boolean open;
+
+        public Connection(int id, LBMember member, LBVip vip) {
+            this.id = id;
+            this.member = member;
+            this.vip = vip;
+        }
+
+        // cookie of the accounted flows, telling the directions apart
+        long cookie(boolean inBound) {
+            return AppCookie.makeCookie(LB_APP_ID, (id << 1) | (inBound ? 0 : 1));
+        }
+    }
+    
     @Override
     public String getName() {
         return "loadbalancer";
@@ -192,6 +314,8 @@ public class LoadBalancer implements IFloodlightModule,
                    else return processPacketIn(sw, (OFPacketIn)msg, cntx);
                 }
                 else return processPacketIn(sw, (OFPacketIn)msg, cntx);
+            case FLOW_REMOVED:
+                return processFlowRemoved(sw, (OFFlowRemoved)msg);
             default:
                 break;
         }
@@ -203,6 +327,19 @@ public class LoadBalancer implements IFloodlightModule,
             processPacketIn(IOFSwitch sw, OFPacketIn pi,
                             FloodlightContext cntx) {
         
+        // leave traffic that cannot be for a VIP without decoding it
+        PacketView view = IFloodlightProviderService.pvStore.get(cntx,
+                                                                 IFloodlightProviderService.CONTEXT_PI_VIEW);
+        if (view.isBroadcast() || view.isMulticast()) {
+            if (!view.isARP())
+                return Command.CONTINUE;
+        } else {
+            int destIpAddress = view.getNetworkDestination();
+            if (!view.isIPv4() || (!vipIpToId.containsKey(destIpAddress) &&
+                                   destIpAddress != STATUS_IP))
+                return Command.CONTINUE;
+        }
+
         Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
                                                               IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
         IPacket pkt = eth.getPayload();
@@ -253,25 +390,34 @@ public class LoadBalancer implements IFloodlightModule,
                         client.targetPort = 0; 
                     }
                     
-                    LBVip vip = vips.get(vipIpToId.get(destIpAddress));
-                    LBPool pool = pools.get(vip.pickPool(client));
+                    String vipId = vipIpToId.get(destIpAddress);
+                    LBVip vip = (vipId == null) ? null : vips.get(vipId);
+                    String poolId = (vip == null) ? null
+                                                  : vip.pickPool(client, pools);
+                    LBPool pool = (poolId == null) ? null : pools.get(poolId);
+                    if (pool == null)
+                        return Command.CONTINUE;
                     
-                  //create a set of member included in the chosen pool
-                    HashMap<String, LBMember> thePoolMembers = 
-                    		new HashMap<String, LBMember>();
-                    for(String mid: members.keySet()){
-                    	for(String pmid: pool.members){
-                    		if(pmid == mid)thePoolMembers.put(pmid, members.get(pmid));	
-                    	}
+                    int bucket = pool.getBucket(client.ipAddress);
+                    if (bucket >= 0) {
+                        // proactive pool: cover all clients entering here
+                        // with bucket flows, this one included
+                        LBMember member = pushProactiveBuckets(sw.getId(),
+                                pi.getInPort(), pool, bucket);
+                        if (member == null)
+                            return Command.CONTINUE;
+                    } else {
+                        LBMember member = pool.pickMember(client);//choose the Algorithm
+                        if (member == null)
+                            return Command.CONTINUE;
+
+                        Connection conn = connectionAccounting ?
+                                newConnection(member) : null;
+                        // for chosen member, check device manager and find and push routes, in both directions
+                        if(pool.lbMode == NAT)pushBidirectionalVipRoutes(sw, pi, cntx, client, member, conn);
+                        if(pool.lbMode == DR)pushBidirectionalDirectRoutes(sw, pi, cntx, client, member, conn);
+                        openConnection(conn);
                     }
-                    
-                    LBMember member = pool.pickMember(client, thePoolMembers);//choose the Algorithm
-                    
-                    // for chosen member, check device manager and find and push routes, in both directions   
-                    
-                    
-                    if(pool.lbMode == NAT)pushBidirectionalVipRoutes(sw, pi, cntx, client, member);
-                    if(pool.lbMode == DR)pushBidirectionalDirectRoutes(sw, pi, cntx, client, member);
                    
                     // packet out based on table rule
                     pushPacket(pkt, sw, pi.getBufferId(), pi.getInPort(), OFPort.OFPP_TABLE.getValue(),
@@ -281,9 +427,10 @@ public class LoadBalancer implements IFloodlightModule,
                 }else if(destIpAddress == STATUS_IP){
 
 					int srcIpAddress = ip_pkt.getSourceAddress();
-					UDP udpPacket = (UDP) ip_pkt.getPayload();
-					Data dataPkt = (Data) udpPacket.getPayload();
-					handleServerInfo(dataPkt, srcIpAddress);
+					if (ip_pkt.getPayload() instanceof UDP &&
+					    ip_pkt.getPayload().getPayload() instanceof Data)
+					    handleServerInfo((Data) ip_pkt.getPayload().getPayload(),
+					                     srcIpAddress);
 
 					return Command.STOP;
                 }
@@ -303,79 +450,149 @@ public class LoadBalancer implements IFloodlightModule,
      * @param String vipId
      */
     
-        /**
-    	 * Updates the info about the CPU usage on the servers
-    	 * @param dataPkt, data in the UDP packet that have the info 
-    	 * about the CPU usage on the servers 
-    	 * @param srcIP The IP of the server that has sent the packet
-    	 */
-    	 	private void handleServerInfo(Data dataPkt, int srcIP) {
-    		// TODO Auto-generated method stub
-    		String info = null;
-    		int CAF = 2;//connection adjustment factor
-    		
-
-
-    		try {
-    			info = new String(dataPkt.getData(),"UTF-8");
-    		} catch (UnsupportedEncodingException e) {
-    			// TODO Auto-generated catch block
-    			e.printStackTrace();
-    		}
-
-    		String [] serverStats = info.split(" ");
-
-    		double rt = Double.parseDouble(serverStats[0]);
-    		int nConnections = Integer.parseInt(serverStats[1]);
-    		double cpuUsage = Double.parseDouble(serverStats[2]);
-    		double memUsage = Double.parseDouble(serverStats[3]);
-
-    		double responseTime = rt;
-    		Double load = cpuUsage * 0.6 + memUsage * 0.4;//compute server load
-
-    		for(String id: members.keySet()){
-    			if(members.get(id).address == srcIP){	
-                    double lastLoad = members.get(id).cpuUsage * 0.6 + members.get(id).memUsage * 0.4;
-    				double rtImpact = members.get(id).new_request_rt_impact;
-    				double cpuImpact = members.get(id).new_request_cpu_impact;
-    				double memImpact = members.get(id).new_request_memory_impact;
-
-    				if(nConnections != 0 && responseTime != 0)
-    					rtImpact = (responseTime / (nConnections + CAF ));
-
-    				if(nConnections != 0 && cpuUsage > 1.0)
-    					cpuImpact = (cpuUsage / (nConnections + CAF ));
-    				
-    				if(nConnections != 0 && memUsage > 1.0)
-    					memImpact = (memUsage / (nConnections + CAF ));
-    				
-    				members.get(id).responseTime = responseTime;
-    				members.get(id).nConnections = nConnections;
-    				members.get(id).cpuUsage = cpuUsage;
-    				members.get(id).memUsage = memUsage;
-    				members.get(id).new_request_rt_impact = rtImpact;
-    				members.get(id).new_request_cpu_impact = cpuImpact;
-    				members.get(id).new_request_memory_impact = memImpact;	
-    				members.get(id).isOutOfService = false;//refresh "Keepalived"
-    				members.get(id).unreportedCount = 0;//refresh "Keepalived"
-    				if(load < 90)members.get(id).isOverloaded = false;//decide overload
-                    else members.get(id).isOverloaded = true;
-    	            
-    				LBPool thisPool = pools.get(members.get(id).poolId); 
-    				//Compute new weight for related dynamic feedback algorithm
-    				if(thisPool.lbMethod > 5)thisPool.adjustWeight(thisPool, members.get(id), lastLoad);
-                    
-    				
-    				System.out.println("get Server" + IPv4.fromIPv4Address(srcIP)
-    						+ " info, which responseTime is " + responseTime + ", "
-    						+ "Connection amount is " + nConnections + " cpuUsage is " 
-    						+ cpuUsage + " memUsage is " + memUsage);
-    				return;				
-    			}			
-    		}
-
-    	}
-    	 	
+    /**
+     * Queues the load report of a member for the next batch. Only the
+     * latest report of each member is kept, so a burst of reports costs
+     * the packet-in thread no more than decoding them.
+     * @param dataPkt the UDP payload of the report
+     * @param srcIP the address of the member that sent the report
+     */
+    protected void handleServerInfo(Data dataPkt, int srcIP) {
+        LBServerReport report = LBServerReport.decode(srcIP, dataPkt.getData());
+        if (report == null) {
+            if (log.isDebugEnabled())
+                log.debug("Dropping malformed report from {}",
+                          IPv4.fromIPv4Address(srcIP));
+            return;
+        }
+        pendingReports.put(srcIP, report);
+        if (reportTask != null && reportsQueued.compareAndSet(false, true))
+            reportTask.reschedule(REPORT_BATCH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the queued load reports to their members
+     */
+    protected void applyServerReports() {
+        reportsQueued.set(false);
+        for (Map.Entry<Integer, LBServerReport> entry : pendingReports.entrySet()) {
+            LBServerReport report = entry.getValue();
+            // a newer report that came in meanwhile waits for the next run
+            if (!pendingReports.remove(entry.getKey(), report))
+                continue;
+            String memberId = memberIpToId.get(report.address);
+            LBMember member = (memberId == null) ? null : members.get(memberId);
+            if (member == null)
+                continue;
+            applyServerReport(member, report);
+        }
+    }
+
+    /**
+     * Updates the load metrics of a member from its report
+     * @param member the member
+     * @param report the report of the member
+     */
+    protected void applyServerReport(LBMember member, LBServerReport report) {
+        int CAF = 2;//connection adjustment factor
+        double responseTime = report.responseTime;
+        int nConnections = report.nConnections;
+        double cpuUsage = report.cpuUsage;
+        double memUsage = report.memUsage;
+        double load = cpuUsage * 0.6 + memUsage * 0.4;//compute server load
+
+        double lastLoad = member.cpuUsage * 0.6 + member.memUsage * 0.4;
+        double rtImpact = member.new_request_rt_impact;
+        double cpuImpact = member.new_request_cpu_impact;
+        double memImpact = member.new_request_memory_impact;
+
+        if(nConnections != 0 && responseTime != 0)
+            rtImpact = (responseTime / (nConnections + CAF ));
+
+        if(nConnections != 0 && cpuUsage > 1.0)
+            cpuImpact = (cpuUsage / (nConnections + CAF ));
+
+        if(nConnections != 0 && memUsage > 1.0)
+            memImpact = (memUsage / (nConnections + CAF ));
+
+        member.responseTime = responseTime;
+        member.nConnections = nConnections;
+        member.cpuUsage = cpuUsage;
+        member.memUsage = memUsage;
+        member.new_request_rt_impact = rtImpact;
+        member.new_request_cpu_impact = cpuImpact;
+        member.new_request_memory_impact = memImpact;
+        member.isOverloaded = (load >= 90);//decide overload
+        memberReported(member);//refresh "Keepalived"
+
+        LBPool thisPool = (member.poolId == null) ? null
+                                                  : pools.get(member.poolId);
+        //Compute new weight for related dynamic feedback algorithm
+        if(thisPool != null && thisPool.lbMethod > 5)
+            thisPool.adjustWeight(thisPool, member, lastLoad);
+
+        if (log.isTraceEnabled()) {
+            log.trace("Server {} reported response time {}, {} connections, " +
+                      "cpu {}, mem {}",
+                      new Object[] { IPv4.fromIPv4Address(member.address),
+                                     responseTime, nConnections,
+                                     cpuUsage, memUsage });
+        }
+    }
+
+    /**
+     * Records a report of a member, bringing it back in service
+     * @param member the member
+     */
+    protected void memberReported(LBMember member) {
+        member.lastReport = System.currentTimeMillis();
+        member.unreportedCount = 0;
+        setMemberInService(member, true);
+    }
+
+    /**
+     * Takes a member in or out of service. Members out of service are left
+     * out of the member view of their pool, so they are not picked at all.
+     * @param member the member
+     * @param inService whether the member is in service
+     */
+    protected void setMemberInService(LBMember member, boolean inService) {
+        if (member.isOutOfService != inService)
+            return;
+        member.isOutOfService = !inService;
+        if (inService)
+            log.info("Member {} back in service",
+                     IPv4.fromIPv4Address(member.address));
+        else
+            log.warn("Member {} out of service after {} unreported checks",
+                     IPv4.fromIPv4Address(member.address),
+                     member.unreportedCount);
+        LBPool pool = (member.poolId == null) ? null
+                                              : pools.get(member.poolId);
+        if (pool != null && members.get(member.id) == member) {
+            pool.rebuildMemberView(members);
+            triggerBucketRebalance();
+        }
+    }
+
+    /**
+     * @param member a member
+     * @return the monitor of the member's pool, the default monitor if
+     *         the pool has none
+     */
+    protected LBMonitor getMonitor(LBMember member) {
+        LBPool pool = (member.poolId == null) ? null
+                                              : pools.get(member.poolId);
+        if (pool != null) {
+            for (String monitorId : pool.monitors) {
+                LBMonitor monitor = monitors.get(monitorId);
+                if (monitor != null)
+                    return monitor;
+            }
+        }
+        return DEFAULT_MONITOR;
+    }
+
     protected void vipProxyArpReply(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, String vipId) {
         log.debug("vipProxyArpReply");
             
@@ -529,6 +746,97 @@ public class LoadBalancer implements IFloodlightModule,
         }
     }
 
+    /**
+     * Finds the device owning an IPv4 address using the device manager's
+     * IPv4 index registered in startUp.
+     * @param ipAddress the IPv4 address
+     * @return the device, or null if no device is known with that address
+     */
+    protected IDevice findDeviceByIp(int ipAddress) {
+        Iterator<? extends IDevice> devices =
+                deviceManager.queryDevices(null, null, ipAddress, null, null);
+        if (devices.hasNext())
+            return devices.next();
+        return null;
+    }
+
+    /**
+     * Finds the device of a pool member, caching the binding until a
+     * device event invalidates it.
+     * @param member the pool member
+     * @return the member's device, or null if it has not been learned
+     */
+    protected IDevice findMemberDevice(LBMember member) {
+        IDevice device = memberIpToDevice.get(member.address);
+        if (device == null) {
+            device = findDeviceByIp(member.address);
+            if (device != null)
+                memberIpToDevice.put(member.address, device);
+        }
+        return device;
+    }
+
+    /**
+     * Drops cached member device bindings that refer to the given device,
+     * either by device key or by one of its current IPv4 addresses.
+     * @param device the device that changed
+     */
+    protected void invalidateMemberDevice(IDevice device) {
+        Iterator<IDevice> it = memberIpToDevice.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getDeviceKey().equals(device.getDeviceKey()))
+                it.remove();
+        }
+        Integer[] ipv4Addresses = device.getIPv4Addresses();
+        if (ipv4Addresses != null) {
+            for (Integer ip : ipv4Addresses)
+                memberIpToDevice.remove(ip);
+        }
+    }
+
+    // IDeviceListener
+    class DeviceListenerImpl implements IDeviceListener {
+        @Override
+        public void deviceAdded(IDevice device) {
+            invalidateMemberDevice(device);
+        }
+
+        @Override
+        public void deviceRemoved(IDevice device) {
+            invalidateMemberDevice(device);
+        }
+
+        @Override
+        public void deviceMoved(IDevice device) {
+            invalidateMemberDevice(device);
+        }
+
+        @Override
+        public void deviceIPV4AddrChanged(IDevice device) {
+            invalidateMemberDevice(device);
+        }
+
+        @Override
+        public void deviceVlanChanged(IDevice device) {
+            invalidateMemberDevice(device);
+        }
+
+        @Override
+        public String getName() {
+            return LoadBalancer.this.getName();
+        }
+
+        @Override
+        public boolean isCallbackOrderingPrereq(String type, String name) {
+            return false;
+        }
+
+        @Override
+        public boolean isCallbackOrderingPostreq(String type, String name) {
+            return false;
+        }
+    }
+
     /**
      * used to find and push in-bound and out-bound routes using StaticFlowEntryPusher
      * @param IOFSwitch sw
@@ -537,34 +845,20 @@ public class LoadBalancer implements IFloodlightModule,
      * @param IPClient client
      * @param LBMember member
      */
-    protected void pushBidirectionalVipRoutes(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, IPClient client, LBMember member) {
+    protected void pushBidirectionalVipRoutes(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, IPClient client, LBMember member, Connection conn) {
         
-        // borrowed code from Forwarding to retrieve src and dst device entities
-        // Check if we have the location of the destination
-        IDevice srcDevice = null;
-        IDevice dstDevice = null;
-        
-        // retrieve all known devices
-        Collection<? extends IDevice> allDevices = deviceManager
-                .getAllDevices();
-        
-        for (IDevice d : allDevices) {
-            for (int j = 0; j < d.getIPv4Addresses().length; j++) {
-                    if (srcDevice == null && client.ipAddress == d.getIPv4Addresses()[j])
-                        srcDevice = d;
-                    if (dstDevice == null && member.address == d.getIPv4Addresses()[j]) {
-                        dstDevice = d;
-                        member.macString = dstDevice.getMACAddressString();
-                    }
-                    if (srcDevice != null && dstDevice != null)
-                        break;
-            }
-        }  
+        // retrieve src and dst device entities through the IPv4 index
+        IDevice srcDevice = findDeviceByIp(client.ipAddress);
+        IDevice dstDevice = findMemberDevice(member);
         
         // srcDevice and/or dstDevice is null, no route can be pushed
-        if (srcDevice == null || dstDevice == null) {System.out.println("can't find the device");
-        	return;
-        	}
+        if (srcDevice == null || dstDevice == null) {
+            log.debug("No device found for client {} or member {}",
+                      IPv4.fromIPv4Address(client.ipAddress),
+                      IPv4.fromIPv4Address(member.address));
+            return;
+        }
+        member.mac = MACAddress.valueOf(dstDevice.getMACAddress());
         //System.out.println("have gone into the pudhdirectroute and have found the device");
         Long srcIsland = topology.getL2DomainId(sw.getId());
 
@@ -638,12 +932,14 @@ public class LoadBalancer implements IFloodlightModule,
                             routingEngine.getRoute(srcDap.getSwitchDPID(),
                                                    (short)srcDap.getPort(),
                                                    dstDap.getSwitchDPID(),
-                                                   (short)dstDap.getPort(), 0);
+                                                   (short)dstDap.getPort(),
+                                                   routeCookie(client, member));
                     Route routeOut = 
                             routingEngine.getRoute(dstDap.getSwitchDPID(),
                                                    (short)dstDap.getPort(),
                                                    srcDap.getSwitchDPID(),
-                                                   (short)srcDap.getPort(), 0);
+                                                   (short)srcDap.getPort(),
+                                                   routeCookie(client, member));
 
                     // use static flow entry pusher to push flow mod along in and out path
                     // in: match src client (ip, port), rewrite dest from vip ip/port to member ip/port, forward
@@ -651,11 +947,11 @@ public class LoadBalancer implements IFloodlightModule,
                     
                     if (routeIn != null) {
                     	//System.out.println("have gone into routeIn");
-                        pushStaticVipRoute(true, routeIn, client, member, sw.getId());
+                        pushStaticVipRoute(true, routeIn, client, member, sw.getId(), conn);
                     }
                     
                     if (routeOut != null) {
-                        pushStaticVipRoute(false, routeOut, client, member, sw.getId());
+                        pushStaticVipRoute(false, routeOut, client, member, sw.getId(), conn);
                     }
 
                 }
@@ -670,34 +966,33 @@ public class LoadBalancer implements IFloodlightModule,
         return;
     }
     
-    protected void pushBidirectionalDirectRoutes(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, IPClient client, LBMember member) {
-        
-        // borrowed code from Forwarding to retrieve src and dst device entities
-        // Check if we have the location of the destination
-        IDevice srcDevice = null;
-        IDevice dstDevice = null;
-        
-        // retrieve all known devices
-        Collection<? extends IDevice> allDevices = deviceManager
-                .getAllDevices();
+    /**
+     * @return the cookie of the routes of a client's flows: 0 for the
+     * default route, or the hash of the connection to spread them over
+     * equal cost routes
+     */
+    protected long routeCookie(IPClient client, LBMember member) {
+        if (!multipath)
+            return 0;
+        return FlowHash.hash(client.ipAddress, member.address,
+                             client.nw_proto, client.srcPort,
+                             client.targetPort);
+    }
+
+    protected void pushBidirectionalDirectRoutes(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, IPClient client, LBMember member, Connection conn) {
         
-        for (IDevice d : allDevices) {
-            for (int j = 0; j < d.getIPv4Addresses().length; j++) {
-                    if (srcDevice == null && client.ipAddress == d.getIPv4Addresses()[j])
-                        srcDevice = d;
-                    if (dstDevice == null && member.address == d.getIPv4Addresses()[j]) {
-                        dstDevice = d;
-                        member.macString = dstDevice.getMACAddressString();
-                    }
-                    if (srcDevice != null && dstDevice != null)
-                        break;
-            }
-        }  
+        // retrieve src and dst device entities through the IPv4 index
+        IDevice srcDevice = findDeviceByIp(client.ipAddress);
+        IDevice dstDevice = findMemberDevice(member);
         
         // srcDevice and/or dstDevice is null, no route can be pushed
-        if (srcDevice == null || dstDevice == null) {System.out.println("can't find the device");
-        	return;
-        	}
+        if (srcDevice == null || dstDevice == null) {
+            log.debug("No device found for client {} or member {}",
+                      IPv4.fromIPv4Address(client.ipAddress),
+                      IPv4.fromIPv4Address(member.address));
+            return;
+        }
+        member.mac = MACAddress.valueOf(dstDevice.getMACAddress());
         
         Long srcIsland = topology.getL2DomainId(sw.getId());
 
@@ -771,12 +1066,14 @@ public class LoadBalancer implements IFloodlightModule,
                             routingEngine.getRoute(srcDap.getSwitchDPID(),
                                                    (short)srcDap.getPort(),
                                                    dstDap.getSwitchDPID(),
-                                                   (short)dstDap.getPort(), 0);
+                                                   (short)dstDap.getPort(),
+                                                   routeCookie(client, member));
                     Route routeOut = 
                             routingEngine.getRoute(dstDap.getSwitchDPID(),
                                                    (short)dstDap.getPort(),
                                                    srcDap.getSwitchDPID(),
-                                                   (short)srcDap.getPort(), 0);
+                                                   (short)srcDap.getPort(),
+                                                   routeCookie(client, member));
 
                     // use static flow entry pusher to push flow mod along in and out path
                     // in: match src client (ip, port), rewrite dest from vip ip/port to member ip/port, forward
@@ -784,13 +1081,13 @@ public class LoadBalancer implements IFloodlightModule,
                     
                     if (routeIn != null) {
                     	
-                        pushDirectRoute(true, routeIn, client, member, sw.getId());
+                        pushDirectRoute(true, routeIn, client, member, sw.getId(), conn);
                         
                     }
                     
                     if (routeOut != null) {
                     	
-                        pushDirectRoute(false, routeOut, client, member, sw.getId());
+                        pushDirectRoute(false, routeOut, client, member, sw.getId(), conn);
                     }
 
                 }
@@ -807,184 +1104,484 @@ public class LoadBalancer implements IFloodlightModule,
     
     
     /**
-     * used to push given route using static flow entry pusher
+     * used to push given route for NAT mode, rewriting the vip address
+     * to the member address and back at the pinned switch
+     * @param boolean inBound
+     * @param Route route
+     * @param IPClient client
+     * @param LBMember member
+     * @param long pinSwitch
+     * @param Connection conn the connection to account the flows to, may be null
+     */
+    public void pushStaticVipRoute(boolean inBound, Route route, IPClient client, LBMember member, long pinSwitch, Connection conn) {
+        pushRoute(inBound, true, route, client, member, pinSwitch, conn);
+    }
+
+    /**
+     * used to push given route for DR mode, only rewriting the MAC
+     * addresses at the pinned switch
      * @param boolean inBound
      * @param Route route
      * @param IPClient client
      * @param LBMember member
      * @param long pinSwitch
+     * @param Connection conn the connection to account the flows to, may be null
      */
-    public void pushStaticVipRoute(boolean inBound, Route route, IPClient client, LBMember member, long pinSwitch) {
+    public void pushDirectRoute(boolean inBound, Route route, IPClient client, LBMember member, long pinSwitch, Connection conn) {
+        pushRoute(inBound, false, route, client, member, pinSwitch, conn);
+    }
+
+    protected void pushRoute(boolean inBound, boolean rewriteIp, Route route,
+                             IPClient client, LBMember member, long pinSwitch,
+                             Connection conn) {
+        LBVip vip = (member.vipId == null) ? null : vips.get(member.vipId);
+        if (vip == null)
+            return;
+
         List<NodePortTuple> path = route.getPath();
-        if (path.size()>0) {
-           for (int i = 0; i < path.size(); i+=2) {
-               
-               long sw = path.get(i).getNodeId();
-               String swString = HexString.toHexString(path.get(i).getNodeId());
-               String entryName;
-               String matchString = null;
-               String actionString = null;
-               
-               OFFlowMod fm = (OFFlowMod) floodlightProvider.getOFMessageFactory()
-                       .getMessage(OFType.FLOW_MOD);
-
-               fm.setIdleTimeout((short) 0);   // infinite
-               fm.setHardTimeout((short) 0);   // infinite
-               fm.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-               fm.setCommand((short) 0);
-               fm.setFlags((short) 0);
-               fm.setOutPort(OFPort.OFPP_NONE.getValue());
-               fm.setCookie((long) 0);  
-               fm.setPriority(Short.MAX_VALUE);
-               
-               
-               if (inBound) {
-                   entryName = "inbound-vip-"+ member.vipId+"-client-"+client.ipAddress+"-port-"+client.targetPort
-                           +"-srcswitch-"+path.get(0).getNodeId()+"-sw-"+sw;
-                   matchString = "nw_src="+IPv4.fromIPv4Address(client.ipAddress)+","
-                		       + "nw_dst="+IPv4.fromIPv4Address(vips.get(member.vipId).address)+","
-                               + "nw_proto="+String.valueOf(client.nw_proto)+","
-                               + "tp_src="+String.valueOf(client.srcPort & 0xffff)+","
-                               + "dl_type="+LB_ETHER_TYPE+","
-                               + "in_port="+String.valueOf(path.get(i).getPortId());
-
-                   if (sw == pinSwitch) {
-                       actionString = "set-dst-ip="+IPv4.fromIPv4Address(member.address)+"," 
-                                + "set-dst-mac="+member.macString+","
-                                + "output="+path.get(i+1).getPortId();
-                   } else {
-                       actionString =
-                               "output="+path.get(i+1).getPortId();
-                   }
-               } else {
-                   entryName = "outbound-vip-"+ member.vipId+"-client-"+client.ipAddress+"-port-"+client.targetPort
-                           +"-srcswitch-"+path.get(0).getNodeId()+"-sw-"+sw;
-                   if(client.nw_proto == 0x1){//if ICMP
-                   matchString = "nw_dst="+IPv4.fromIPv4Address(client.ipAddress)+","
-                               + "nw_proto="+String.valueOf(client.nw_proto)+","
-                               + "dl_type="+LB_ETHER_TYPE+","
-                               + "in_port="+String.valueOf(path.get(i).getPortId());
-                   }
-                   else{
-                	   matchString = "nw_dst="+IPv4.fromIPv4Address(client.ipAddress)+"," 			   
-                               + "nw_proto="+String.valueOf(client.nw_proto)+","
-                               + "tp_dst="+String.valueOf(client.srcPort & 0xffff)+","
-                               + "dl_type="+LB_ETHER_TYPE+","
-                               + "in_port="+String.valueOf(path.get(i).getPortId());
-                   }
-                   if (sw == pinSwitch) {
-                       actionString = "set-src-ip="+IPv4.fromIPv4Address(vips.get(member.vipId).address)+","
-                               + "set-src-mac="+vips.get(member.vipId).proxyMac.toString()+","
-                               + "output="+path.get(i+1).getPortId();
-                   } else {
-                       actionString = "output="+path.get(i+1).getPortId();
-                   }
-                   
-               }
-               
-               parseActionString(fm, actionString, log);
-
-               fm.setPriority(U16.t(LB_PRIORITY));
-
-               OFMatch ofMatch = new OFMatch();
-               try {
-                   ofMatch.fromString(matchString);
-               } catch (IllegalArgumentException e) {
-                   log.debug("ignoring flow entry {} on switch {} with illegal OFMatch() key: "
-                                     + matchString, entryName, swString);
-               }
-        
-               fm.setMatch(ofMatch);
-               sfp.addFlow(entryName, fm, swString);
+        for (int i = 0; i < path.size() - 1; i += 2) {
+            long sw = path.get(i).getNodeId();
+            short inPort = path.get(i).getPortId();
+            short outPort = path.get(i+1).getPortId();
+
+            OFMatch match;
+            List<OFAction> actions = new ArrayList<OFAction>(3);
+            if (inBound) {
+                match = LBFlowBuilder.inboundMatch(client, vip.address, inPort);
+                if (sw == pinSwitch) {
+                    if (rewriteIp)
+                        actions.add(LBFlowBuilder.setNetworkDestination(member.address));
+                    actions.add(LBFlowBuilder.setDataLayerDestination(member.mac.toBytes()));
+                }
+            } else {
+                match = LBFlowBuilder.outboundMatch(client, inPort);
+                if (sw == pinSwitch) {
+                    if (rewriteIp)
+                        actions.add(LBFlowBuilder.setNetworkSource(vip.address));
+                    actions.add(LBFlowBuilder.setDataLayerSource(vip.proxyMac.toBytes()));
+                }
+            }
+            actions.add(LBFlowBuilder.output(outPort));
+
+            String entryName = (inBound ? "inbound" : "outbound")
+                    + "-vip-" + member.vipId + "-client-" + client.ipAddress
+                    + "-port-" + client.targetPort
+                    + "-srcswitch-" + path.get(0).getNodeId() + "-sw-" + sw;
+            OFFlowMod fm = LBFlowBuilder.flowMod(floodlightProvider.getOFMessageFactory(),
+                                                 match, actions, LB_PRIORITY);
+            if (!useStaticFlows)
+                fm.setIdleTimeout(flowIdleTimeout)
+                  .setCookie(LB_COOKIE);
+            // the rewriting flow reports the connection's traffic
+            boolean accounted = (conn != null && sw == pinSwitch);
+            if (accounted)
+                fm.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM)
+                  .setCookie(conn.cookie(inBound));
+
+            InstalledFlow flow = installFlow(member, sw, fm, entryName);
+            if (flow != null && conn != null)
+                addConnectionFlow(conn, flow, accounted);
+        }
+    }
+
+    /**
+     * Installs a flow for a member, through the static flow pusher or
+     * directly depending on the "flowinstall" option, and tracks it
+     * @param member the member the flow leads to or from
+     * @param sw the switch DPID
+     * @param match the match of the flow
+     * @param actions the actions of the flow
+     * @param priority the priority of the flow
+     * @param entryName the static flow entry name
+     * @return the installed flow, null if it could not be installed
+     */
+    protected InstalledFlow installFlow(LBMember member, long sw,
+                                        OFMatch match, List<OFAction> actions,
+                                        int priority, String entryName) {
+        OFFlowMod fm = LBFlowBuilder.flowMod(floodlightProvider.getOFMessageFactory(),
+                                             match, actions, priority);
+        if (!useStaticFlows)
+            fm.setCookie(LB_COOKIE);
+        return installFlow(member, sw, fm, entryName);
+    }
+
+    protected InstalledFlow installFlow(LBMember member, long sw,
+                                        OFFlowMod fm, String entryName) {
+        OFMatch match = fm.getMatch();
+        int priority = U16.f(fm.getPriority());
+        InstalledFlow flow;
+        if (useStaticFlows) {
+            sfp.addFlow(entryName, fm, HexString.toHexString(sw));
+            flow = new InstalledFlow(sw, match, priority, entryName);
+        } else if (writeFlowMod(sw, fm)) {
+            flow = new InstalledFlow(sw, match, priority, null);
+        } else {
+            return null;
+        }
+        trackFlow(member, flow);
+        return flow;
+    }
 
-           }
+    /**
+     * Writes a flow mod straight to a switch, bypassing storage
+     * @param dpid the switch DPID
+     * @param fm the flow mod
+     * @return true if the flow mod was written
+     */
+    protected boolean writeFlowMod(long dpid, OFFlowMod fm) {
+        IOFSwitch sw = floodlightProvider.getSwitch(dpid);
+        if (sw == null) {
+            log.warn("Unable to push LB flow, switch {} not available",
+                     HexString.toHexString(dpid));
+            return false;
         }
-        return;
+        try {
+            counterStore.updatePktOutFMCounterStoreLocal(sw, fm);
+            // a delete must not be dampened away, as the same flow may have
+            // been deleted and installed again within the damper timeout
+            if (fm.getCommand() == OFFlowMod.OFPFC_ADD)
+                messageDamper.write(sw, fm, null);
+            else
+                sw.write(fm, null);
+            sw.flush();
+            return true;
+        } catch (IOException e) {
+            log.error("Failure writing LB flow mod", e);
+            return false;
+        }
+    }
+
+    protected void trackFlow(LBMember member, InstalledFlow flow) {
+        Set<InstalledFlow> flows = memberFlows.get(member.id);
+        if (flows == null) {
+            flows = Collections.newSetFromMap(
+                    new ConcurrentHashMap<InstalledFlow, Boolean>());
+            Set<InstalledFlow> existing =
+                    memberFlows.putIfAbsent(member.id, flows);
+            if (existing != null)
+                flows = existing;
+        }
+        flows.add(flow);
+    }
+
+    /**
+     * Removes all flows installed towards and from a member
+     * @param memberId the member id
+     */
+    protected void removeMemberFlows(String memberId) {
+        Set<InstalledFlow> flows = memberFlows.remove(memberId);
+        if (flows == null)
+            return;
+        for (InstalledFlow flow : flows)
+            removeFlow(flow);
+    }
+
+    protected void removeFlow(InstalledFlow flow) {
+        if (flow.entryName != null) {
+            sfp.deleteFlow(flow.entryName);
+        } else {
+            writeFlowMod(flow.dpid,
+                         LBFlowBuilder.deleteFlowMod(
+                                 floodlightProvider.getOFMessageFactory(),
+                                 flow.match, flow.priority));
+        }
+    }
+
+    protected Connection newConnection(LBMember member) {
+        LBVip vip = (member.vipId == null) ? null : vips.get(member.vipId);
+        if (vip == null)
+            return null;
+        // ids must stay within the 31 bits left in the cookie, and not be
+        // 0 once they wrapped: the cookie of the inbound flow would then be
+        // LB_COOKIE
+        int id;
+        do {
+            id = connectionIds.incrementAndGet() & Integer.MAX_VALUE;
+        } while (id == 0);
+        return new Connection(id, member, vip);
+    }
+
+    protected void addConnectionFlow(Connection conn, InstalledFlow flow,
+                                     boolean accounted) {
+        synchronized (conn) {
+            conn.flows.add(flow);
+            if (accounted)
+                conn.accounted++;
+        }
+        if (!accounted)
+            return;
+        // adding a flow with the same match replaced the flow of an
+        // earlier connection without notice, so that one is done
+        Connection replaced = connectionFlows.put(flow, conn);
+        if (replaced != null && replaced != conn)
+            flowRemoved(replaced, false, 0, 0);
+    }
+
+    /**
+     * Counts a connection as open once its flows are installed
+     * @param conn the connection, may be null
+     */
+    protected void openConnection(Connection conn) {
+        if (conn == null)
+            return;
+        synchronized (conn) {
+            if (conn.accounted == 0)
+                return;
+            conn.open = true;
+        }
+        connections.put(conn.id, conn);
+        conn.member.stats.connectionOpened();
+        conn.vip.stats.connectionOpened();
+    }
+
+    /**
+     * Accounts for an expired or deleted flow of a connection and closes
+     * the connection when its last accounted flow is gone
+     */
+    protected void flowRemoved(Connection conn, boolean inBound, long bytes,
+                               long packets) {
+        conn.member.stats.addTraffic(inBound, bytes, packets);
+        conn.vip.stats.addTraffic(inBound, bytes, packets);
+        synchronized (conn) {
+            if (--conn.accounted > 0 || !conn.open)
+                return;
+            conn.open = false;
+        }
+        connections.remove(conn.id);
+        // the other hops expire alongside, stop tracking them all
+        Set<InstalledFlow> tracked = memberFlows.get(conn.member.id);
+        for (InstalledFlow flow : conn.flows) {
+            connectionFlows.remove(flow, conn);
+            if (tracked != null)
+                tracked.remove(flow);
+        }
+        conn.member.stats.connectionClosed();
+        conn.vip.stats.connectionClosed();
     }
 
-    public void pushDirectRoute(boolean inBound, Route route, IPClient client, LBMember member, long pinSwitch) {
+    protected Command processFlowRemoved(IOFSwitch sw, OFFlowRemoved msg) {
+        long cookie = msg.getCookie();
+        if (AppCookie.extractApp(cookie) != LB_APP_ID)
+            return Command.CONTINUE;
+        int user = AppCookie.extractUser(cookie);
+        if (user == 0)
+            return Command.STOP;
+
+        Connection conn = connections.get(user >>> 1);
+        if (conn == null) {
+            log.debug("FLOW_REMOVED for unknown LB connection {} from {}",
+                      user >>> 1, sw.getStringId());
+            return Command.STOP;
+        }
+        flowRemoved(conn, (user & 1) == 0, msg.getByteCount(),
+                    msg.getPacketCount());
+        return Command.STOP;
+    }
+
+    /**
+     * Makes sure the bucket flows of a proactive pool are installed for
+     * the clients entering the network on a switch port
+     * @param dpid the switch DPID
+     * @param inPort the switch port
+     * @param pool the pool
+     * @param bucket the bucket of the client that triggered the packet-in
+     * @return the member serving that bucket, null if none
+     */
+    protected LBMember pushProactiveBuckets(long dpid, short inPort,
+                                            LBPool pool, int bucket) {
+        PoolBuckets buckets = poolBuckets.get(pool.id);
+        if (buckets == null) {
+            buckets = new PoolBuckets();
+            PoolBuckets existing = poolBuckets.putIfAbsent(pool.id, buckets);
+            if (existing != null)
+                buckets = existing;
+        }
+
+        synchronized (buckets) {
+            if (pool.getBucketMember(bucket) == null)
+                pool.rebalanceBuckets();
+            NodePortTuple ingress = new NodePortTuple(dpid, inPort);
+            if (buckets.ingress.add(ingress)) {
+                int n = 1 << pool.getBucketBits();
+                for (int b = 0; b < n; b++)
+                    pushBucket(pool, b, ingress, buckets);
+            }
+        }
+
+        String memberId = pool.getBucketMember(bucket);
+        return (memberId == null) ? null : members.get(memberId);
+    }
+
+    /**
+     * Installs the flows of one bucket of a proactive pool from an ingress
+     * switch port to the bucket's member and back. The addresses are
+     * rewritten at the ingress switch, as for the per-client flows.
+     */
+    protected void pushBucket(LBPool pool, int bucket, NodePortTuple ingress,
+                              PoolBuckets buckets) {
+        String memberId = pool.getBucketMember(bucket);
+        LBMember member = (memberId == null) ? null : members.get(memberId);
+        LBVip vip = (pool.vipId == null) ? null : vips.get(pool.vipId);
+        if (member == null || vip == null)
+            return;
+        IDevice dstDevice = findMemberDevice(member);
+        if (dstDevice == null) {
+            log.debug("No device found for member {}",
+                      IPv4.fromIPv4Address(member.address));
+            return;
+        }
+        member.mac = MACAddress.valueOf(dstDevice.getMACAddress());
+
+        Long srcIsland = topology.getL2DomainId(ingress.getNodeId());
+        if (srcIsland == null)
+            return;
+        for (SwitchPort dstDap : dstDevice.getAttachmentPoints()) {
+            Long dstIsland = topology.getL2DomainId(dstDap.getSwitchDPID());
+            if (!srcIsland.equals(dstIsland))
+                continue;
+            if (ingress.getNodeId() == dstDap.getSwitchDPID() &&
+                ingress.getPortId() == dstDap.getPort())
+                return;
+
+            // buckets spread over the routes like clients
+            long cookie = multipath ?
+                    FlowHash.hash(pool.getBucketAddress(bucket),
+                                  pool.getBucketLength(), member.address) : 0;
+            Route routeIn = routingEngine.getRoute(ingress.getNodeId(),
+                                                   ingress.getPortId(),
+                                                   dstDap.getSwitchDPID(),
+                                                   (short)dstDap.getPort(),
+                                                   cookie);
+            Route routeOut = routingEngine.getRoute(dstDap.getSwitchDPID(),
+                                                    (short)dstDap.getPort(),
+                                                    ingress.getNodeId(),
+                                                    ingress.getPortId(),
+                                                    cookie);
+            List<InstalledFlow> flows = buckets.flows.get(bucket);
+            if (flows == null) {
+                flows = new ArrayList<InstalledFlow>();
+                buckets.flows.put(bucket, flows);
+            }
+            buckets.owners.put(bucket, member.id);
+            boolean rewriteIp = (pool.lbMode != DR);
+            if (routeIn != null)
+                pushBucketRoute(true, rewriteIp, routeIn, pool, vip, bucket,
+                                member, flows);
+            if (routeOut != null)
+                pushBucketRoute(false, rewriteIp, routeOut, pool, vip, bucket,
+                                member, flows);
+            return;
+        }
+    }
+
+    protected void pushBucketRoute(boolean inBound, boolean rewriteIp,
+                                   Route route, LBPool pool, LBVip vip,
+                                   int bucket, LBMember member,
+                                   List<InstalledFlow> flows) {
+        int prefix = pool.getBucketAddress(bucket);
+        int prefixLen = pool.getBucketLength();
+        // the member side address, after the rewrite in NAT mode
+        int serverAddress = rewriteIp ? member.address : vip.address;
+        // only the service of the vip, ports are not rewritten
+        byte protocol = (pool.protocol != 0) ? pool.protocol : vip.protocol;
+
         List<NodePortTuple> path = route.getPath();
-        if (path.size()>0) {
-           for (int i = 0; i < path.size(); i+=2) {
-               
-               long sw = path.get(i).getNodeId();
-               String swString = HexString.toHexString(path.get(i).getNodeId());
-               String entryName;
-               String matchString = null;
-               String actionString = null;
-               
-               OFFlowMod fm = (OFFlowMod) floodlightProvider.getOFMessageFactory()
-                       .getMessage(OFType.FLOW_MOD);
-
-               fm.setIdleTimeout((short) 0);   // infinite
-               fm.setHardTimeout((short) 0);   // infinite
-               fm.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-               fm.setCommand((short) 0);
-               fm.setFlags((short) 0);
-               fm.setOutPort(OFPort.OFPP_NONE.getValue());
-               fm.setCookie((long) 0);  
-               fm.setPriority(Short.MAX_VALUE);
-               
-               if (inBound) {
-                   entryName = "inbound-vip-"+ member.vipId+"-client-"+client.ipAddress+"-port-"+client.targetPort
-                           +"-srcswitch-"+path.get(0).getNodeId()+"-sw-"+sw;
-                   matchString = "nw_src="+IPv4.fromIPv4Address(client.ipAddress)+","
-                		       + "nw_dst="+member.vipId+","
-                               + "nw_proto="+String.valueOf(client.nw_proto)+","
-                               + "tp_src="+String.valueOf(client.srcPort & 0xffff)+","
-                               + "dl_type="+LB_ETHER_TYPE+","
-                               + "in_port="+String.valueOf(path.get(i).getPortId());
-
-                   if (sw == pinSwitch) {
-                       actionString = "set-dst-mac="+member.macString+","
-                                + "output="+path.get(i+1).getPortId();
-                   } else {
-                       actionString =
-                               "output="+path.get(i+1).getPortId();
-                   }
-               } else {
-                   entryName = "outbound-vip-"+ member.vipId+"-client-"+client.ipAddress+"-port-"+client.targetPort
-                           +"-srcswitch-"+path.get(0).getNodeId()+"-sw-"+sw;
-                   if(client.nw_proto == 0x1){//if ICMP
-                	   matchString = "nw_dst="+IPv4.fromIPv4Address(client.ipAddress)+","
-                               + "nw_proto="+String.valueOf(client.nw_proto)+","
-                               + "dl_type="+LB_ETHER_TYPE+","
-                               + "in_port="+String.valueOf(path.get(i).getPortId());
-                   }
-                   else{
-                	   matchString = "nw_dst="+IPv4.fromIPv4Address(client.ipAddress)+","
-                               + "nw_proto="+String.valueOf(client.nw_proto)+","
-                               + "tp_dst="+String.valueOf(client.srcPort & 0xffff)+","
-                               + "dl_type="+LB_ETHER_TYPE+","
-                               + "in_port="+String.valueOf(path.get(i).getPortId());
-                   }
-                   if (sw == pinSwitch) {
-                       actionString = "set-src-mac="+vips.get(member.vipId).proxyMac.toString()+","
-                               + "output="+path.get(i+1).getPortId();
-                   } else {
-                       actionString = "output="+path.get(i+1).getPortId();
-                   }
-                   
-               }
-               
-               parseActionString(fm, actionString, log);
-
-               fm.setPriority(U16.t(LB_PRIORITY));
-
-               OFMatch ofMatch = new OFMatch();
-               try {
-                   ofMatch.fromString(matchString);
-               } catch (IllegalArgumentException e) {
-                   log.debug("ignoring flow entry {} on switch {} with illegal OFMatch() key: "
-                                     + matchString, entryName, swString);
-               }
-        
-               fm.setMatch(ofMatch);
-               sfp.addFlow(entryName, fm, swString);
+        for (int i = 0; i < path.size() - 1; i += 2) {
+            long sw = path.get(i).getNodeId();
+            short inPort = path.get(i).getPortId();
+            short outPort = path.get(i+1).getPortId();
+
+            OFMatch match;
+            List<OFAction> actions = new ArrayList<OFAction>(3);
+            if (inBound) {
+                // the ingress switch is the first hop
+                boolean first = (i == 0);
+                match = LBFlowBuilder.prefixMatch(inPort, prefix, prefixLen,
+                        first ? vip.address : serverAddress, 32,
+                        protocol, (short)0, vip.port);
+                if (first) {
+                    if (rewriteIp)
+                        actions.add(LBFlowBuilder.setNetworkDestination(member.address));
+                    actions.add(LBFlowBuilder.setDataLayerDestination(member.mac.toBytes()));
+                }
+            } else {
+                // and the last hop on the way back
+                boolean last = (i == path.size() - 2);
+                match = LBFlowBuilder.prefixMatch(inPort, serverAddress, 32,
+                        prefix, prefixLen, protocol, vip.port, (short)0);
+                if (last) {
+                    if (rewriteIp)
+                        actions.add(LBFlowBuilder.setNetworkSource(vip.address));
+                    actions.add(LBFlowBuilder.setDataLayerSource(vip.proxyMac.toBytes()));
+                }
+            }
+            actions.add(LBFlowBuilder.output(outPort));
+
+            String entryName = (inBound ? "inbound" : "outbound")
+                    + "-pool-" + pool.id + "-bucket-" + bucket
+                    + "-sw-" + sw + "-port-" + inPort;
+            InstalledFlow flow = installFlow(member, sw, match, actions,
+                                             LB_BUCKET_PRIORITY, entryName);
+            if (flow != null)
+                flows.add(flow);
+        }
+    }
 
-           }
+    /**
+     * Moves the buckets of the proactive pools whose member changed
+     * weight, health or left the pool, replacing their flows
+     */
+    protected void rebalanceBuckets() {
+        for (Map.Entry<String, PoolBuckets> entry : poolBuckets.entrySet()) {
+            LBPool pool = pools.get(entry.getKey());
+            PoolBuckets buckets = entry.getValue();
+            if (pool == null || !pool.isProactive()) {
+                clearPoolBuckets(entry.getKey());
+                continue;
+            }
+            synchronized (buckets) {
+                for (int bucket : pool.rebalanceBuckets()) {
+                    removeBucketFlows(buckets, bucket);
+                    for (NodePortTuple ingress : buckets.ingress)
+                        pushBucket(pool, bucket, ingress, buckets);
+                }
+            }
         }
-        return;
+    }
+
+    private void removeBucketFlows(PoolBuckets buckets, int bucket) {
+        List<InstalledFlow> flows = buckets.flows.remove(bucket);
+        String owner = buckets.owners.remove(bucket);
+        if (flows == null)
+            return;
+        Set<InstalledFlow> tracked =
+                (owner == null) ? null : memberFlows.get(owner);
+        for (InstalledFlow flow : flows) {
+            if (tracked != null)
+                tracked.remove(flow);
+            removeFlow(flow);
+        }
+    }
+
+    /**
+     * Removes the bucket flows of a pool and forgets its ingress ports
+     * @param poolId the pool id
+     */
+    protected void clearPoolBuckets(String poolId) {
+        PoolBuckets buckets = poolBuckets.remove(poolId);
+        if (buckets == null)
+            return;
+        synchronized (buckets) {
+            for (Integer bucket : new ArrayList<Integer>(buckets.flows.keySet()))
+                removeBucketFlows(buckets, bucket);
+            buckets.ingress.clear();
+        }
+    }
+
+    // rebalance right away rather than at the next interval
+    protected void triggerBucketRebalance() {
+        if (bucketTask != null && !poolBuckets.isEmpty())
+            bucketTask.reschedule(0, TimeUnit.MILLISECONDS);
     }
 
     
@@ -1027,6 +1624,10 @@ public class LoadBalancer implements IFloodlightModule,
     
     @Override
     public LBVip updateVip(LBVip vip) {
+        // the counters live on, whatever the update
+        LBVip oldVip = vips.get(vip.id);
+        if (oldVip != null)
+            vip.stats = oldVip.stats;
         vips.put(vip.id, vip);
         return vip;
     }
@@ -1034,6 +1635,10 @@ public class LoadBalancer implements IFloodlightModule,
     @Override
     public int removeVip(String vipId) {
         if(vips.containsKey(vipId)){
+            for (LBMember member : members.values()) {
+                if (vipId.equals(member.vipId))
+                    removeMemberFlows(member.id);
+            }
             vips.remove(vipId);
             return 0;
         } else {
@@ -1071,7 +1676,14 @@ public class LoadBalancer implements IFloodlightModule,
 
     @Override
     public LBPool updatePool(LBPool pool) {
+        // an update from REST carries no member ids; keep the existing ones
+        LBPool oldPool = pools.get(pool.id);
+        if (oldPool != null && pool.members.isEmpty())
+            pool.members.addAll(oldPool.getMemberIds());
+        pool.rebuildMemberView(members);
         pools.put(pool.id, pool);
+        // the bucket setup may have changed, start over
+        clearPoolBuckets(pool.id);
         return null;
     }
 
@@ -1080,8 +1692,12 @@ public class LoadBalancer implements IFloodlightModule,
         LBPool pool;
         if(pools!=null){
             pool = pools.get(poolId);
-            if (pool.vipId != null)
-                vips.get(pool.vipId).pools.remove(poolId);
+            clearPoolBuckets(poolId);
+            for (String memberId : pool.getMemberIds())
+                removeMemberFlows(memberId);
+            LBVip vip = (pool.vipId == null) ? null : vips.get(pool.vipId);
+            if (vip != null)
+                vip.pools.remove(poolId);
             pools.remove(poolId);
             return 0;
         } else {
@@ -1106,9 +1722,8 @@ public class LoadBalancer implements IFloodlightModule,
         Collection<LBMember> result = new HashSet<LBMember>();
         
         if(pools.containsKey(poolId)) {
-            ArrayList<String> memberIds = pools.get(poolId).members;
-            for (int i=0; i<memberIds.size(); i++)
-                result.add(members.get(memberIds.get(i)));
+            for (String memberId : pools.get(poolId).getMemberIds())
+                result.add(members.get(memberId));
         }
         return result;
     }
@@ -1118,13 +1733,17 @@ public class LoadBalancer implements IFloodlightModule,
         if (member == null)
             member = new LBMember();
 
+        member.localConnections = connectionAccounting;
         members.put(member.id, member);
         memberIpToId.put(member.address, member.id);
-
-        if (member.poolId != null && pools.get(member.poolId) != null) {
-            member.vipId = pools.get(member.poolId).vipId;
-            if (!pools.get(member.poolId).members.contains(member.id))
-                pools.get(member.poolId).members.add(member.id);
+        healthChecker.addMember(member);
+
+        LBPool pool = (member.poolId == null) ? null
+                                              : pools.get(member.poolId);
+        if (pool != null) {
+            member.vipId = pool.vipId;
+            pool.addMember(member.id, members);
+            triggerBucketRebalance();
         } else
             log.error("member must be specified with non-null pool_id");
         
@@ -1133,7 +1752,23 @@ public class LoadBalancer implements IFloodlightModule,
 
     @Override
     public LBMember updateMember(LBMember member) {
+        // the counters live on, whatever the update
+        LBMember oldMember = members.get(member.id);
+        if (oldMember != null) {
+            member.stats = oldMember.stats;
+            member.lastReport = oldMember.lastReport;
+            member.unreportedCount = oldMember.unreportedCount;
+            member.isOutOfService = oldMember.isOutOfService;
+            memberIpToId.remove(oldMember.address, oldMember.id);
+        }
+        member.localConnections = connectionAccounting;
         members.put(member.id, member);
+        memberIpToId.put(member.address, member.id);
+        healthChecker.addMember(member);
+        if (member.poolId != null && pools.get(member.poolId) != null) {
+            pools.get(member.poolId).rebuildMemberView(members);
+            triggerBucketRebalance();
+        }
         return member;
     }
 
@@ -1143,9 +1778,17 @@ public class LoadBalancer implements IFloodlightModule,
         member = members.get(memberId);
         
         if(member != null){
-            if (member.poolId != null)
-                pools.get(member.poolId).members.remove(memberId);
             members.remove(memberId);
+            memberIpToDevice.remove(member.address);
+            memberIpToId.remove(member.address, memberId);
+            healthChecker.removeMember(memberId);
+            removeMemberFlows(memberId);
+            LBPool pool = (member.poolId == null) ? null
+                                                  : pools.get(member.poolId);
+            if (pool != null) {
+                pool.removeMember(memberId, members);
+                triggerBucketRebalance();
+            }
             return 0;
         } else {
             return -1;
@@ -1154,31 +1797,54 @@ public class LoadBalancer implements IFloodlightModule,
 
     @Override
     public Collection<LBMonitor> listMonitors() {
-        // TODO Auto-generated method stub
-        return null;
+        return monitors.values();
     }
 
     @Override
     public Collection<LBMonitor> listMonitor(String monitorId) {
-        // TODO Auto-generated method stub
-        return null;
+        Collection<LBMonitor> result = new HashSet<LBMonitor>();
+        result.add(monitors.get(monitorId));
+        return result;
     }
 
     @Override
     public LBMonitor createMonitor(LBMonitor monitor) {
-        // TODO Auto-generated method stub
-        return null;
+        if (monitor == null)
+            monitor = new LBMonitor();
+        if (monitor.id == null)
+            monitor.id = String.valueOf((int) (Math.random()*10000));
+        // unset parameters fall back to the default checks
+        if (monitor.delay <= 0)
+            monitor.delay = MONITOR_DELAY;
+        if (monitor.timeout <= 0)
+            monitor.timeout = MONITOR_TIMEOUT;
+        if (monitor.attemptsBeforeDeactivation <= 0)
+            monitor.attemptsBeforeDeactivation = MONITOR_ATTEMPTS;
+
+        LBMonitor oldMonitor = monitors.put(monitor.id, monitor);
+        if (oldMonitor != null && oldMonitor.poolId != null &&
+            pools.get(oldMonitor.poolId) != null)
+            pools.get(oldMonitor.poolId).monitors.remove(monitor.id);
+        if (monitor.poolId != null && pools.get(monitor.poolId) != null) {
+            if (!pools.get(monitor.poolId).monitors.contains(monitor.id))
+                pools.get(monitor.poolId).monitors.add(monitor.id);
+        }
+        return monitor;
     }
 
     @Override
     public LBMonitor updateMonitor(LBMonitor monitor) {
-        // TODO Auto-generated method stub
-        return null;
+        // the new parameters apply from the next check of each member
+        return createMonitor(monitor);
     }
 
     @Override
     public int removeMonitor(String monitorId) {
-        // TODO Auto-generated method stub
+        LBMonitor monitor = monitors.remove(monitorId);
+        if (monitor == null)
+            return -1;
+        if (monitor.poolId != null && pools.get(monitor.poolId) != null)
+            pools.get(monitor.poolId).monitors.remove(monitorId);
         return 0;
     }
 
@@ -1213,6 +1879,7 @@ public class LoadBalancer implements IFloodlightModule,
         l.add(ITopologyService.class);
         l.add(IRoutingService.class);
         l.add(IStaticFlowEntryPusherService.class);
+        l.add(IThreadPoolService.class);
 
         return l;
     }
@@ -1227,510 +1894,97 @@ public class LoadBalancer implements IFloodlightModule,
         routingEngine = context.getServiceImpl(IRoutingService.class);
         topology = context.getServiceImpl(ITopologyService.class);
         sfp = context.getServiceImpl(IStaticFlowEntryPusherService.class);
+        threadPool = context.getServiceImpl(IThreadPoolService.class);
         
         messageDamper = new OFMessageDamper(OFMESSAGE_DAMPER_CAPACITY, 
                                             EnumSet.of(OFType.FLOW_MOD),
                                             OFMESSAGE_DAMPER_TIMEOUT);
         
-        vips = new HashMap<String, LBVip>();
-        pools = new HashMap<String, LBPool>();
-        members = new HashMap<String, LBMember>();
-        vipIpToId = new HashMap<Integer, String>();
-        vipIpToMac = new HashMap<Integer, MACAddress>();
-        memberIpToId = new HashMap<Integer, String>();
+        vips = new ConcurrentHashMap<String, LBVip>();
+        pools = new ConcurrentHashMap<String, LBPool>();
+        members = new ConcurrentHashMap<String, LBMember>();
+        monitors = new ConcurrentHashMap<String, LBMonitor>();
+        vipIpToId = new ConcurrentHashMap<Integer, String>();
+        vipIpToMac = new ConcurrentHashMap<Integer, MACAddress>();
+        memberIpToId = new ConcurrentHashMap<Integer, String>();
+        memberIpToDevice = new ConcurrentHashMap<Integer, IDevice>();
+        memberFlows = new ConcurrentHashMap<String, Set<InstalledFlow>>();
+        poolBuckets = new ConcurrentHashMap<String, PoolBuckets>();
+        connections = new ConcurrentHashMap<Integer, Connection>();
+        connectionFlows = new ConcurrentHashMap<InstalledFlow, Connection>();
+        connectionIds = new AtomicInteger();
+        healthChecker = new LBHealthChecker(this);
+        pendingReports = new ConcurrentHashMap<Integer, LBServerReport>();
+        reportsQueued = new AtomicBoolean();
     }
 
     @Override
     public void startUp(FloodlightModuleContext context) {
         floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
+        floodlightProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
         restApi.addRestletRoutable(new LoadBalancerWebRoutable());
-    }
-
-    // Utilities borrowed from StaticFlowEntries
-    
-    private static class SubActionStruct {
-        OFAction action;
-        int      len;
-    }
-    
-    /**
-     * Parses OFFlowMod actions from strings.
-     * @param flowMod The OFFlowMod to set the actions for
-     * @param actionstr The string containing all the actions
-     * @param log A logger to log for errors.
-     */
-    public static void parseActionString(OFFlowMod flowMod, String actionstr, Logger log) {
-        List<OFAction> actions = new LinkedList<OFAction>();
-        int actionsLength = 0;
-        if (actionstr != null) {
-            actionstr = actionstr.toLowerCase();
-            for (String subaction : actionstr.split(",")) {
-                String action = subaction.split("[=:]")[0];
-                SubActionStruct subaction_struct = null;
-                
-                if (action.equals("output")) {
-                    subaction_struct = decode_output(subaction, log);
-                }
-                else if (action.equals("enqueue")) {
-                    subaction_struct = decode_enqueue(subaction, log);
-                }
-                else if (action.equals("strip-vlan")) {
-                    subaction_struct = decode_strip_vlan(subaction, log);
-                }
-                else if (action.equals("set-vlan-id")) {
-                    subaction_struct = decode_set_vlan_id(subaction, log);
-                }
-                else if (action.equals("set-vlan-priority")) {
-                    subaction_struct = decode_set_vlan_priority(subaction, log);
-                }
-                else if (action.equals("set-src-mac")) {
-                    subaction_struct = decode_set_src_mac(subaction, log);
-                }
-                else if (action.equals("set-dst-mac")) {
-                    subaction_struct = decode_set_dst_mac(subaction, log);
-                }
-                else if (action.equals("set-tos-bits")) {
-                    subaction_struct = decode_set_tos_bits(subaction, log);
-                }
-                else if (action.equals("set-src-ip")) {
-                    subaction_struct = decode_set_src_ip(subaction, log);
-                }
-                else if (action.equals("set-dst-ip")) {
-                    subaction_struct = decode_set_dst_ip(subaction, log);
-                }
-                else if (action.equals("set-src-port")) {
-                    subaction_struct = decode_set_src_port(subaction, log);
-                }
-                else if (action.equals("set-dst-port")) {
-                    subaction_struct = decode_set_dst_port(subaction, log);
-                }
-                else {
-                    log.error("Unexpected action '{}', '{}'", action, subaction);
-                }
-                
-                if (subaction_struct != null) {
-                    actions.add(subaction_struct.action);
-                    actionsLength += subaction_struct.len;
-                }
-            }
-        }
-        log.debug("action {}", actions);
-        
-        flowMod.setActions(actions);
-        flowMod.setLengthU(OFFlowMod.MINIMUM_LENGTH + actionsLength);
-    } 
-    
-    private static SubActionStruct decode_output(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n;
-        
-        n = Pattern.compile("output=(?:((?:0x)?\\d+)|(all)|(controller)|(local)|(ingress-port)|(normal)|(flood))").matcher(subaction);
-        if (n.matches()) {
-            OFActionOutput action = new OFActionOutput();
-            action.setMaxLength(Short.MAX_VALUE);
-            short port = OFPort.OFPP_NONE.getValue();
-            if (n.group(1) != null) {
-                try {
-                    port = get_short(n.group(1));
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid port in: '{}' (error ignored)", subaction);
-                    return null;
-                }
-            }
-            else if (n.group(2) != null)
-                port = OFPort.OFPP_ALL.getValue();
-            else if (n.group(3) != null)
-                port = OFPort.OFPP_CONTROLLER.getValue();
-            else if (n.group(4) != null)
-                port = OFPort.OFPP_LOCAL.getValue();
-            else if (n.group(5) != null)
-                port = OFPort.OFPP_IN_PORT.getValue();
-            else if (n.group(6) != null)
-                port = OFPort.OFPP_NORMAL.getValue();
-            else if (n.group(7) != null)
-                port = OFPort.OFPP_FLOOD.getValue();
-            action.setPort(port);
-            log.debug("action {}", action);
-            
-            sa = new SubActionStruct();
-            sa.action = action;
-            sa.len = OFActionOutput.MINIMUM_LENGTH;
-        }
-        else {
-            log.error("Invalid subaction: '{}'", subaction);
-            return null;
-        }
-        
-        return sa;
-    }
-    
-    private static SubActionStruct decode_enqueue(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n;
-        
-        n = Pattern.compile("enqueue=(?:((?:0x)?\\d+)\\:((?:0x)?\\d+))").matcher(subaction);
-        if (n.matches()) {
-            short portnum = 0;
-            if (n.group(1) != null) {
-                try {
-                    portnum = get_short(n.group(1));
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid port-num in: '{}' (error ignored)", subaction);
-                    return null;
-                }
-            }
-
-            int queueid = 0;
-            if (n.group(2) != null) {
-                try {
-                    queueid = get_int(n.group(2));
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid queue-id in: '{}' (error ignored)", subaction);
-                    return null;
-               }
-            }
-            
-            OFActionEnqueue action = new OFActionEnqueue();
-            action.setPort(portnum);
-            action.setQueueId(queueid);
-            log.debug("action {}", action);
-            
-            sa = new SubActionStruct();
-            sa.action = action;
-            sa.len = OFActionEnqueue.MINIMUM_LENGTH;
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-        
-        return sa;
-    }
-    
-    private static SubActionStruct decode_strip_vlan(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("strip-vlan").matcher(subaction);
-        
-        if (n.matches()) {
-            OFActionStripVirtualLan action = new OFActionStripVirtualLan();
-            log.debug("action {}", action);
-            
-            sa = new SubActionStruct();
-            sa.action = action;
-            sa.len = OFActionStripVirtualLan.MINIMUM_LENGTH;
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-    
-    private static SubActionStruct decode_set_vlan_id(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-vlan-id=((?:0x)?\\d+)").matcher(subaction);
-        
-        if (n.matches()) {            
-            if (n.group(1) != null) {
-                try {
-                    short vlanid = get_short(n.group(1));
-                    OFActionVirtualLanIdentifier action = new OFActionVirtualLanIdentifier();
-                    action.setVirtualLanIdentifier(vlanid);
-                    log.debug("  action {}", action);
-
-                    sa = new SubActionStruct();
-                    sa.action = action;
-                    sa.len = OFActionVirtualLanIdentifier.MINIMUM_LENGTH;
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid VLAN in: {} (error ignored)", subaction);
-                    return null;
-                }
-            }          
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-    
-    private static SubActionStruct decode_set_vlan_priority(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-vlan-priority=((?:0x)?\\d+)").matcher(subaction); 
-        
-        if (n.matches()) {
-            if (n.group(1) != null) {
-                try {
-                    byte prior = get_byte(n.group(1));
-                    OFActionVirtualLanPriorityCodePoint action = new OFActionVirtualLanPriorityCodePoint();
-                    action.setVirtualLanPriorityCodePoint(prior);
-                    log.debug("  action {}", action);
-                    
-                    sa = new SubActionStruct();
-                    sa.action = action;
-                    sa.len = OFActionVirtualLanPriorityCodePoint.MINIMUM_LENGTH;
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid VLAN priority in: {} (error ignored)", subaction);
-                    return null;
-                }
-            }
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-    
-    private static SubActionStruct decode_set_src_mac(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-src-mac=(?:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+))").matcher(subaction); 
-
-        if (n.matches()) {
-            byte[] macaddr = get_mac_addr(n, subaction, log);
-            if (macaddr != null) {
-                OFActionDataLayerSource action = new OFActionDataLayerSource();
-                action.setDataLayerAddress(macaddr);
-                log.debug("action {}", action);
-
-                sa = new SubActionStruct();
-                sa.action = action;
-                sa.len = OFActionDataLayerSource.MINIMUM_LENGTH;
-            }
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-
-    private static SubActionStruct decode_set_dst_mac(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-dst-mac=(?:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+)\\:(\\p{XDigit}+))").matcher(subaction);
-        
-        if (n.matches()) {
-            byte[] macaddr = get_mac_addr(n, subaction, log);
-            if (macaddr != null) {
-                OFActionDataLayerDestination action = new OFActionDataLayerDestination();
-                action.setDataLayerAddress(macaddr);
-                log.debug("  action {}", action);
-                
-                sa = new SubActionStruct();
-                sa.action = action;
-                sa.len = OFActionDataLayerDestination.MINIMUM_LENGTH;
-            }
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-    
-    private static SubActionStruct decode_set_tos_bits(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-tos-bits=((?:0x)?\\d+)").matcher(subaction); 
-
-        if (n.matches()) {
-            if (n.group(1) != null) {
-                try {
-                    byte tosbits = get_byte(n.group(1));
-                    OFActionNetworkTypeOfService action = new OFActionNetworkTypeOfService();
-                    action.setNetworkTypeOfService(tosbits);
-                    log.debug("  action {}", action);
-                    
-                    sa = new SubActionStruct();
-                    sa.action = action;
-                    sa.len = OFActionNetworkTypeOfService.MINIMUM_LENGTH;
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid dst-port in: {} (error ignored)", subaction);
-                    return null;
-                }
-            }
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-    
-    private static SubActionStruct decode_set_src_ip(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-src-ip=(?:(\\d+)\\.(\\d+)\\.(\\d+)\\.(\\d+))").matcher(subaction);
-
-        if (n.matches()) {
-            int ipaddr = get_ip_addr(n, subaction, log);
-            OFActionNetworkLayerSource action = new OFActionNetworkLayerSource();
-            action.setNetworkAddress(ipaddr);
-            log.debug("  action {}", action);
-
-            sa = new SubActionStruct();
-            sa.action = action;
-            sa.len = OFActionNetworkLayerSource.MINIMUM_LENGTH;
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-
-    private static SubActionStruct decode_set_dst_ip(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-dst-ip=(?:(\\d+)\\.(\\d+)\\.(\\d+)\\.(\\d+))").matcher(subaction);
-
-        if (n.matches()) {
-            int ipaddr = get_ip_addr(n, subaction, log);
-            OFActionNetworkLayerDestination action = new OFActionNetworkLayerDestination();
-            action.setNetworkAddress(ipaddr);
-            log.debug("action {}", action);
- 
-            sa = new SubActionStruct();
-            sa.action = action;
-            sa.len = OFActionNetworkLayerDestination.MINIMUM_LENGTH;
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-
-    private static SubActionStruct decode_set_src_port(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-src-port=((?:0x)?\\d+)").matcher(subaction); 
-
-        if (n.matches()) {
-            if (n.group(1) != null) {
+        // client and member devices are looked up by IPv4 address
+        deviceManager.addIndex(false, EnumSet.of(DeviceField.IPV4));
+        deviceManager.addListener(new DeviceListenerImpl());
+
+        // move the buckets of proactive pools as members change health
+        // or weight
+        ScheduledExecutorService ses = threadPool.getScheduledExecutor();
+        bucketTask = new SingletonTask(ses, new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    short portnum = get_short(n.group(1));
-                    OFActionTransportLayerSource action = new OFActionTransportLayerSource();
-                    action.setTransportPort(portnum);
-                    log.debug("action {}", action);
-                    
-                    sa = new SubActionStruct();
-                    sa.action = action;
-                    sa.len = OFActionTransportLayerSource.MINIMUM_LENGTH;;
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid src-port in: {} (error ignored)", subaction);
-                    return null;
+                    rebalanceBuckets();
+                } catch (Exception e) {
+                    log.error("Exception in LB bucket rebalancing", e);
+                } finally {
+                    bucketTask.reschedule(BUCKET_REBALANCE_INTERVAL,
+                                          TimeUnit.SECONDS);
                 }
             }
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-
-    private static SubActionStruct decode_set_dst_port(String subaction, Logger log) {
-        SubActionStruct sa = null;
-        Matcher n = Pattern.compile("set-dst-port=((?:0x)?\\d+)").matcher(subaction);
-
-        if (n.matches()) {
-            if (n.group(1) != null) {
+        });
+        bucketTask.reschedule(BUCKET_REBALANCE_INTERVAL, TimeUnit.SECONDS);
+        healthChecker.start(ses);
+        // member reports are applied in batches off the packet-in threads
+        reportTask = new SingletonTask(ses, new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    short portnum = get_short(n.group(1));
-                    OFActionTransportLayerDestination action = new OFActionTransportLayerDestination();
-                    action.setTransportPort(portnum);
-                    log.debug("action {}", action);
-                    
-                    sa = new SubActionStruct();
-                    sa.action = action;
-                    sa.len = OFActionTransportLayerDestination.MINIMUM_LENGTH;;
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid dst-port in: {} (error ignored)", subaction);
-                    return null;
+                    applyServerReports();
+                } catch (Exception e) {
+                    log.error("Exception applying LB member reports", e);
                 }
             }
-        }
-        else {
-            log.debug("Invalid action: '{}'", subaction);
-            return null;
-        }
-
-        return sa;
-    }
-    
-    private static byte[] get_mac_addr(Matcher n, String subaction, Logger log) {
-        byte[] macaddr = new byte[6];
-        
-        for (int i=0; i<6; i++) {
-            if (n.group(i+1) != null) {
-                try {
-                    macaddr[i] = get_byte("0x" + n.group(i+1));
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid src-mac in: '{}' (error ignored)", subaction);
-                    return null;
-                }
-            }
-            else { 
-                log.debug("Invalid src-mac in: '{}' (null, error ignored)", subaction);
-                return null;
+        });
+
+        // read our config options
+        Map<String, String> configOptions = context.getConfigParams(this);
+        String flowInstall = configOptions.get("flowinstall");
+        if (flowInstall != null) {
+            if (flowInstall.equalsIgnoreCase("static")) {
+                useStaticFlows = true;
+            } else if (!flowInstall.equalsIgnoreCase("direct")) {
+                log.warn("Unknown flowinstall option {}, writing LB " +
+                         "flows directly to the switches", flowInstall);
             }
         }
-        
-        return macaddr;
-    }
-    
-    private static int get_ip_addr(Matcher n, String subaction, Logger log) {
-        int ipaddr = 0;
-
-        for (int i=0; i<4; i++) {
-            if (n.group(i+1) != null) {
-                try {
-                    ipaddr = ipaddr<<8;
-                    ipaddr = ipaddr | get_int(n.group(i+1));
-                }
-                catch (NumberFormatException e) {
-                    log.debug("Invalid src-ip in: '{}' (error ignored)", subaction);
-                    return 0;
-                }
-            }
-            else {
-                log.debug("Invalid src-ip in: '{}' (null, error ignored)", subaction);
-                return 0;
+        String idleTimeout = configOptions.get("idletimeout");
+        if (idleTimeout != null) {
+            try {
+                flowIdleTimeout = Short.parseShort(idleTimeout);
+            } catch (NumberFormatException e) {
+                log.warn("Error parsing LB flow idle timeout, " +
+                         "using default of {} seconds", flowIdleTimeout);
             }
         }
-        
-        return ipaddr;
+        multipath = Boolean.parseBoolean(configOptions.get("multipath"));
+        // static flows never expire, nor do flows without idle timeout
+        connectionAccounting = !useStaticFlows && flowIdleTimeout > 0;
+        log.debug("LB flows installed {}",
+                  useStaticFlows ? "as static flows" : "directly");
+        log.debug("LB flow idle timeout {}s, connection accounting {}",
+                  flowIdleTimeout, connectionAccounting);
+        log.debug("LB flows {}", multipath ? "spread over equal cost routes" :
+                                             "on the default routes");
     }
-    
-    // Parse int as decimal, hex (start with 0x or #) or octal (starts with 0)
-    private static int get_int(String str) {
-        return Integer.decode(str);
-    }
-   
-    // Parse short as decimal, hex (start with 0x or #) or octal (starts with 0)
-    private static short get_short(String str) {
-        return (short)(int)Integer.decode(str);
-    }
-   
-    // Parse byte as decimal, hex (start with 0x or #) or octal (starts with 0)
-    private static byte get_byte(String str) {
-        return Integer.decode(str).byteValue();
-    }
-
-    
 }
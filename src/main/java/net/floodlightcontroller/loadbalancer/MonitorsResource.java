@@ -110,6 +110,7 @@ public class MonitorsResource extends ServerResource {
             else if (n.equals("monitor")) {
                 while (jp.nextToken() != JsonToken.END_OBJECT) {
                     String field = jp.getCurrentName();
+                    jp.nextToken();
                     
                     if (field.equals("id")) {
                         monitor.id = jp.getText();
@@ -151,6 +152,10 @@ public class MonitorsResource extends ServerResource {
                         monitor.port = Short.parseShort(jp.getText());
                         continue;
                     }
+                    if (field.equals("pool_id")) {
+                        monitor.poolId = jp.getText();
+                        continue;
+                    }
                     if (field.equals("admin_state")) {
                         monitor.adminState = Short.parseShort(jp.getText());
                         continue;
@@ -59,6 +59,7 @@ public class PoolsResource extends ServerResource {
             pool=jsonToPool(postData);
         } catch (IOException e) {
             log.error("Could not parse JSON {}", e.getMessage());
+            return null;
         }
         
         ILoadBalancerService lbs =
@@ -145,7 +146,32 @@ public class PoolsResource extends ServerResource {
             if (n.equals("vip_id")) {
                 pool.vipId = jp.getText();
                 continue;
-            } 
+            }
+            if (n.equals("weight")) {
+                pool.weight = Double.parseDouble(jp.getText());
+                continue;
+            }
+            if (n.equals("bucket_bits")) {
+                pool.bucketBits = Integer.parseInt(jp.getText());
+                continue;
+            }
+            if (n.equals("bucket_prefix")) {
+                // client prefix split into buckets, e.g. "10.0.0.0/8"
+                String[] prefix = jp.getText().split("/");
+                try {
+                    pool.bucketPrefix = IPv4.toIPv4Address(prefix[0]);
+                    pool.bucketPrefixLen = (prefix.length > 1) ?
+                            Integer.parseInt(prefix[1]) : 32;
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid bucket_prefix " +
+                                          jp.getText());
+                }
+                if (prefix.length > 2 || pool.bucketPrefixLen < 0 ||
+                    pool.bucketPrefixLen > 32)
+                    throw new IOException("Invalid bucket_prefix " +
+                                          jp.getText());
+                continue;
+            }
             
             log.warn("Unrecognized field {} in " +
                     "parsing Pools", 
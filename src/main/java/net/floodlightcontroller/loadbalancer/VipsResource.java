@@ -147,6 +147,10 @@ public class VipsResource extends ServerResource {
                 vip.port = Short.parseShort(jp.getText());
                 continue;
             }
+            if (n.equals("lb_method")) {
+                vip.lbMethod = Short.parseShort(jp.getText());
+                continue;
+            }
             if (n.equals("pool_id")) {
                 vip.pools.add(jp.getText());
                 continue;
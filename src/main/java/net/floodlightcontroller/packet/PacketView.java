@@ -0,0 +1,356 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.packet;
+
+import java.util.Arrays;
+
+/**
+ * Read-only view of an Ethernet frame, decoded lazily in place. The
+ * headers of a layer are located the first time one of its fields is
+ * read, and fields are read straight from the frame without copying, so
+ * a listener that only looks at addresses and ports never allocates.
+ * Code that needs the full {@link IPacket} tree gets it from
+ * {@link #getEthernet()}, deserialized once on first use.
+ *
+ * A view is not thread-safe; like the packet-in it belongs to a single
+ * processing thread.
+ */
+public class PacketView {
+    private static final int ETH_HEADER_LENGTH = 14;
+    private static final int VLAN_TAG_LENGTH = 4;
+
+    protected final byte[] data;
+    protected final int offset;
+    protected final int length;
+
+    // layers parsed so far, and what they told
+    private boolean l2Parsed;
+    private short etherType;
+    private short vlanId;
+    private byte priorityCode;
+    private int l3Offset;
+
+    private boolean l3Parsed;
+    private boolean ipv4;
+    private byte nwProto;
+    private boolean fragment;
+    private int l4Offset;
+
+    private Ethernet ethernet;
+
+    /**
+     * @param data the frame, typically the packet-in data; not copied
+     */
+    public PacketView(byte[] data) {
+        this(data, 0, (data == null) ? 0 : data.length);
+    }
+
+    /**
+     * View of a frame in part of an array, e.g. the backing array of the
+     * buffer a packet-in was read from
+     * @param data the array; not copied
+     * @param offset the offset of the frame in the array
+     * @param length the length of the frame
+     */
+    public PacketView(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * View of a frame already decoded, e.g. one put together by a
+     * listener; {@link #getEthernet()} returns the frame itself
+     * @param eth the frame
+     */
+    public PacketView(Ethernet eth) {
+        this(eth.serialize());
+        this.ethernet = eth;
+    }
+
+    /**
+     * @return the frame the view is over, copied if it is only part of
+     *         the array the view was made with
+     */
+    public byte[] getData() {
+        if (data == null || (offset == 0 && length == data.length))
+            return data;
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    /**
+     * @return the full packet tree, deserialized on first call
+     */
+    public Ethernet getEthernet() {
+        if (ethernet == null) {
+            Ethernet eth = new Ethernet();
+            if (length > 0)
+                eth.deserialize(data, offset, length);
+            ethernet = eth;
+        }
+        return ethernet;
+    }
+
+    /**
+     * @return true if the packet tree was asked for
+     */
+    public boolean isDecoded() {
+        return ethernet != null;
+    }
+
+    // L2
+
+    public long getDestinationMAC() {
+        return getMAC(0);
+    }
+
+    public long getSourceMAC() {
+        return getMAC(6);
+    }
+
+    public boolean isBroadcast() {
+        return getDestinationMAC() == 0xffffffffffffL;
+    }
+
+    public boolean isMulticast() {
+        return length > 0 && !isBroadcast() && (getByte(0) & 0x01) != 0;
+    }
+
+    /**
+     * @return the ethertype, behind the VLAN tag if any
+     */
+    public short getEtherType() {
+        parseL2();
+        return etherType;
+    }
+
+    /**
+     * @return the VLAN id, {@link Ethernet#VLAN_UNTAGGED} if untagged
+     */
+    public short getVlanID() {
+        parseL2();
+        return vlanId;
+    }
+
+    public byte getPriorityCode() {
+        parseL2();
+        return priorityCode;
+    }
+
+    /**
+     * @return the offset of the L3 header in the frame
+     */
+    public int getL3Offset() {
+        parseL2();
+        return l3Offset;
+    }
+
+    private void parseL2() {
+        if (l2Parsed)
+            return;
+        l2Parsed = true;
+        vlanId = Ethernet.VLAN_UNTAGGED;
+        if (length < ETH_HEADER_LENGTH) {
+            l3Offset = length;
+            return;
+        }
+        etherType = getShort(12);
+        l3Offset = ETH_HEADER_LENGTH;
+        if (etherType == (short) 0x8100 &&
+            length >= ETH_HEADER_LENGTH + VLAN_TAG_LENGTH) {
+            short tci = getShort(14);
+            priorityCode = (byte) ((tci >> 13) & 0x07);
+            vlanId = (short) (tci & 0x0fff);
+            etherType = getShort(16);
+            l3Offset += VLAN_TAG_LENGTH;
+        }
+    }
+
+    // L3
+
+    public boolean isIPv4() {
+        parseL3();
+        return ipv4;
+    }
+
+    public boolean isARP() {
+        short type = getEtherType();
+        return (type == Ethernet.TYPE_ARP || type == Ethernet.TYPE_RARP) &&
+               length >= getL3Offset() + 8;
+    }
+
+    /**
+     * @return the IPv4 source address, 0 if not IPv4
+     */
+    public int getNetworkSource() {
+        return isIPv4() ? getInt(l3Offset + 12) : 0;
+    }
+
+    /**
+     * @return the IPv4 destination address, 0 if not IPv4
+     */
+    public int getNetworkDestination() {
+        return isIPv4() ? getInt(l3Offset + 16) : 0;
+    }
+
+    /**
+     * @return the IPv4 protocol, 0 if not IPv4
+     */
+    public byte getNetworkProtocol() {
+        parseL3();
+        return nwProto;
+    }
+
+    /**
+     * @return true if the IPv4 packet is a fragment, whose transport
+     *         header may be elsewhere
+     */
+    public boolean isFragment() {
+        parseL3();
+        return fragment;
+    }
+
+    /**
+     * @return the offset of the L4 header in the frame, -1 if there is no
+     *         transport header to look at
+     */
+    public int getL4Offset() {
+        parseL3();
+        return l4Offset;
+    }
+
+    private void parseL3() {
+        if (l3Parsed)
+            return;
+        l3Parsed = true;
+        l4Offset = -1;
+        int off = getL3Offset();
+        if (getEtherType() != Ethernet.TYPE_IPv4 || length < off + 20)
+            return;
+        int versionIhl = getByte(off) & 0xff;
+        if ((versionIhl >> 4) != 4)
+            return;
+        ipv4 = true;
+        nwProto = getByte(off + 9);
+        short flagsOffset = getShort(off + 6);
+        byte flags = (byte) ((flagsOffset >> IPv4.IPV4_FLAGS_SHIFT) &
+                             IPv4.IPV4_FLAGS_MASK);
+        short fragmentOffset = (short) (flagsOffset & IPv4.IPV4_OFFSET_MASK);
+        fragment = ((flags & IPv4.IPV4_FLAGS_DONTFRAG) == 0) &&
+                   ((flags & IPv4.IPV4_FLAGS_MOREFRAG) != 0 ||
+                    fragmentOffset != 0);
+        int headerLength = (versionIhl & 0x0f) * 4;
+        if (!fragment && headerLength >= 20 && off + headerLength <= length)
+            l4Offset = off + headerLength;
+    }
+
+    // ARP, all 0 unless an Ethernet/IPv4 ARP packet
+
+    public short getArpOpCode() {
+        return isArpIPv4() ? getShort(getL3Offset() + 6) : 0;
+    }
+
+    public long getArpSenderHardwareAddress() {
+        return isArpIPv4() ? getMAC(getL3Offset() + 8) : 0;
+    }
+
+    public int getArpSenderProtocolAddress() {
+        return isArpIPv4() ? getInt(getL3Offset() + 14) : 0;
+    }
+
+    public long getArpTargetHardwareAddress() {
+        return isArpIPv4() ? getMAC(getL3Offset() + 18) : 0;
+    }
+
+    public int getArpTargetProtocolAddress() {
+        return isArpIPv4() ? getInt(getL3Offset() + 24) : 0;
+    }
+
+    private boolean isArpIPv4() {
+        int off = getL3Offset();
+        return isARP() && length >= off + 28 &&
+               getShort(off + 2) == ARP.PROTO_TYPE_IP &&
+               getByte(off + 4) == 6 && getByte(off + 5) == 4;
+    }
+
+    // L4
+
+    /**
+     * @return the TCP or UDP source port, the ICMP type, 0 otherwise
+     */
+    public short getTransportSource() {
+        int off = transportOffset();
+        if (off < 0)
+            return 0;
+        if (nwProto == IPv4.PROTOCOL_ICMP)
+            return (short) (getByte(off) & 0xff);
+        return getShort(off);
+    }
+
+    /**
+     * @return the TCP or UDP destination port, the ICMP code, 0 otherwise
+     */
+    public short getTransportDestination() {
+        int off = transportOffset();
+        if (off < 0)
+            return 0;
+        if (nwProto == IPv4.PROTOCOL_ICMP)
+            return (short) (getByte(off + 1) & 0xff);
+        return getShort(off + 2);
+    }
+
+    private int transportOffset() {
+        int off = getL4Offset();
+        if (off < 0)
+            return -1;
+        switch (nwProto) {
+            case IPv4.PROTOCOL_TCP:
+            case IPv4.PROTOCOL_UDP:
+                return (length >= off + 4) ? off : -1;
+            case IPv4.PROTOCOL_ICMP:
+                return (length >= off + 2) ? off : -1;
+            default:
+                return -1;
+        }
+    }
+
+    // offsets below are relative to the start of the frame
+
+    private long getMAC(int off) {
+        if (length < off + 6)
+            return 0;
+        long mac = 0;
+        for (int i = 0; i < 6; i++)
+            mac = (mac << 8) | (getByte(off + i) & 0xffL);
+        return mac;
+    }
+
+    private byte getByte(int off) {
+        return data[offset + off];
+    }
+
+    private short getShort(int off) {
+        return (short) (((getByte(off) & 0xff) << 8) |
+                        (getByte(off + 1) & 0xff));
+    }
+
+    private int getInt(int off) {
+        return ((getByte(off) & 0xff) << 24) |
+               ((getByte(off + 1) & 0xff) << 16) |
+               ((getByte(off + 2) & 0xff) << 8) | (getByte(off + 3) & 0xff);
+    }
+}
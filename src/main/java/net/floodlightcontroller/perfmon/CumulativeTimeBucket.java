@@ -36,6 +36,8 @@ public class CumulativeTimeBucket {
     private long minTotalProcTimeNs;
     private long avgTotalProcTimeNs;
     private long sigmaTotalProcTimeNs; // std. deviation
+    // latency percentiles by window, set when exported
+    private Map<String, Map<String, Map<String, Long>>> latency;
 
     public long getStartTimeNs() {
         return startTime_ns;
@@ -61,6 +63,14 @@ public class CumulativeTimeBucket {
         return sigmaTotalProcTimeNs;
     }
     
+    public Map<String, Map<String, Map<String, Long>>> getLatency() {
+        return latency;
+    }
+
+    public void setLatency(Map<String, Map<String, Map<String, Long>>> latency) {
+        this.latency = latency;
+    }
+
     public int getNumComps() {
         return compStats.values().size();
     }
@@ -85,7 +95,7 @@ public class CumulativeTimeBucket {
     /**
      * Resets all counters and counters for each component time
      */
-    public void reset() {
+    public synchronized void reset() {
         startTime_ns = System.nanoTime();
         totalPktCnt = 0;
         totalProcTimeNs = 0;
@@ -108,7 +118,7 @@ public class CumulativeTimeBucket {
         sigmaTotalProcTimeNs = (long) Math.sqrt(temp);
     }
     
-    public void computeAverages() {
+    public synchronized void computeAverages() {
         // Must be called last to, needs latest info
         computeSigma();
         
@@ -117,7 +127,7 @@ public class CumulativeTimeBucket {
         }
     }
     
-    public void updatePerPacketCounters(long procTimeNs) {
+    public synchronized void updatePerPacketCounters(long procTimeNs) {
         totalPktCnt++;
         totalProcTimeNs += procTimeNs;
         avgTotalProcTimeNs = totalProcTimeNs / totalPktCnt;
@@ -132,7 +142,7 @@ public class CumulativeTimeBucket {
         }
     }
     
-    public void updateOneComponent(IOFMessageListener l, long procTimeNs) {
+    public synchronized void updateOneComponent(IOFMessageListener l, long procTimeNs) {
         compStats.get(l.hashCode()).updatePerPacketCounters(procTimeNs);
     }
 }
\ No newline at end of file
@@ -50,6 +50,10 @@ public class CumulativeTimeBucketJSONSerializer
            serializer.defaultSerializeValue(oct, jGen);
        }
        jGen.writeEndArray();
+       if (ctb.getLatency() != null) {
+           jGen.writeFieldName("latency");
+           serializer.defaultSerializeValue(ctb.getLatency(), jGen);
+       }
        jGen.writeEndObject();
    }
 
@@ -17,6 +17,7 @@
 package net.floodlightcontroller.perfmon;
 
 import java.util.List;
+import java.util.Map;
 
 import org.openflow.protocol.OFMessage;
 
@@ -50,4 +51,18 @@ public interface IPktInProcessingTimeService extends IFloodlightService {
     public void setEnabled(boolean enabled);
     
     public CumulativeTimeBucket getCtb();
+
+    /**
+     * Latency percentiles of the listeners and of the whole chain over
+     * rolling windows
+     * @return by window ("10s", "1m", "5m"), then by listener name and
+     *         "total", the count, p50, p99, p999 and max latencies in ns;
+     *         null if latencies are not recorded
+     */
+    public Map<String, Map<String, Map<String, Long>>> getLatency();
+
+    /**
+     * Drops the latencies recorded so far
+     */
+    public void resetLatency();
 }
@@ -0,0 +1,124 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds. Every power of two
+ * is split in SUB_BUCKETS linear buckets, so a percentile is off by at
+ * most 1/SUB_BUCKETS of its value whatever its magnitude, in a fixed
+ * few hundred counters. Latencies above MAX_NS are counted in the last
+ * bucket; the exact maximum is kept apart.
+ *
+ * A histogram is not thread-safe.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // highest power of two with its own buckets: 2^40ns, about 18 minutes
+    private static final int MAX_EXPONENT = 40;
+    protected static final int NUM_BUCKETS =
+            (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long count;
+    private long max;
+
+    protected static int bucketOf(long ns) {
+        if (ns < SUB_BUCKETS)
+            return (ns < 0) ? 0 : (int) ns;
+        int exponent = 63 - Long.numberOfLeadingZeros(ns);
+        if (exponent > MAX_EXPONENT)
+            return NUM_BUCKETS - 1;
+        int sub = (int) (ns >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest latency counted in a bucket
+     */
+    protected static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return (SUB_BUCKETS + sub) * width + width - 1;
+    }
+
+    public void record(long ns) {
+        counts[bucketOf(ns)]++;
+        count++;
+        if (ns > max)
+            max = ns;
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     * @param other
+     */
+    public void add(LatencyHistogram other) {
+        if (other.count == 0)
+            return;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        if (other.max > max)
+            max = other.max;
+    }
+
+    public void clear() {
+        if (count == 0)
+            return;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            counts[i] = 0;
+        count = 0;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param fraction the fraction of latencies at or below the result,
+     *        e.g. 0.99
+     * @return the percentile, rounded up to the end of its bucket; 0 if
+     *         nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * count);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // the last bucket is open ended
+                if (i == NUM_BUCKETS - 1)
+                    return max;
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.floodlightcontroller.core.IOFMessageListener;
+
+/**
+ * Latency histograms of the packet-in listeners and of the whole chain
+ * over rolling windows.
+ *
+ * Every processing thread records into a {@link Recorder} of its own,
+ * which holds the histograms of the current interval of INTERVAL_S
+ * seconds. When the interval is over, the recorder is sealed: its
+ * histograms are merged into the interval's slot of a ring of NUM_SLOTS
+ * intervals, from which the windows are summed up. A recorder is sealed
+ * by its thread on the first latency of a new interval, or by the reader
+ * if its thread went idle. Recording only takes the recorder's lock,
+ * which the reader wants once per interval at most, so threads do not
+ * contend with each other.
+ */
+public class LatencyWindows {
+    public static final int INTERVAL_S = 10;
+    protected static final long INTERVAL_NS = INTERVAL_S * 1000000000L;
+    // 5 minutes of intervals
+    protected static final int NUM_SLOTS = 30;
+    protected static final String[] WINDOW_NAMES = { "10s", "1m", "5m" };
+    protected static final int[] WINDOW_SLOTS = { 1, 6, 30 };
+    /** Name of the histogram of the whole listener chain */
+    public static final String TOTAL = "total";
+
+    /**
+     * Records the latencies of one thread
+     */
+    public class Recorder {
+        // start times of the packet and listener being timed
+        long startPktNs;
+        long startCompNs;
+
+        private long interval = -1;
+        private final Map<IOFMessageListener, LatencyHistogram> listeners =
+                new IdentityHashMap<IOFMessageListener, LatencyHistogram>();
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        /**
+         * @param listener the listener, null for the whole chain
+         * @param ns the latency
+         * @param nowNs the time it was measured at
+         */
+        public synchronized void record(IOFMessageListener listener,
+                                        long ns, long nowNs) {
+            long iv = intervalOf(nowNs);
+            if (iv != interval) {
+                seal();
+                interval = iv;
+            }
+            LatencyHistogram h;
+            if (listener == null) {
+                h = total;
+            } else {
+                h = listeners.get(listener);
+                if (h == null) {
+                    h = new LatencyHistogram();
+                    listeners.put(listener, h);
+                }
+            }
+            h.record(ns);
+        }
+
+        /**
+         * Seals the recorder if its interval is over
+         */
+        synchronized void sealBefore(long iv) {
+            if (interval >= 0 && interval < iv)
+                seal();
+        }
+
+        synchronized void clear() {
+            for (LatencyHistogram h : listeners.values())
+                h.clear();
+            total.clear();
+        }
+
+        private void seal() {
+            if (interval < 0)
+                return;
+            synchronized (slots) {
+                Slot slot = slotOf(interval);
+                if (slot != null) {
+                    for (Map.Entry<IOFMessageListener, LatencyHistogram> e :
+                            listeners.entrySet())
+                        slot.get(e.getKey().getName()).add(e.getValue());
+                    slot.get(TOTAL).add(total);
+                }
+            }
+            clear();
+            interval = -1;
+        }
+    }
+
+    protected static class Slot {
+        long interval = -1;
+        final Map<String, LatencyHistogram> histograms =
+                new HashMap<String, LatencyHistogram>();
+
+        LatencyHistogram get(String name) {
+            LatencyHistogram h = histograms.get(name);
+            if (h == null) {
+                h = new LatencyHistogram();
+                histograms.put(name, h);
+            }
+            return h;
+        }
+
+        void reset(long iv) {
+            interval = iv;
+            for (LatencyHistogram h : histograms.values())
+                h.clear();
+        }
+    }
+
+    // System.nanoTime() may be negative, intervals are counted from here
+    private final long originNs = System.nanoTime();
+    private final Slot[] slots = new Slot[NUM_SLOTS];
+    private final List<Recorder> recorders =
+            new CopyOnWriteArrayList<Recorder>();
+
+    public LatencyWindows() {
+        for (int i = 0; i < NUM_SLOTS; i++)
+            slots[i] = new Slot();
+    }
+
+    /**
+     * @return a new recorder, for the calling thread only
+     */
+    public Recorder newRecorder() {
+        Recorder r = new Recorder();
+        recorders.add(r);
+        return r;
+    }
+
+    private long intervalOf(long nowNs) {
+        return Math.max(0, nowNs - originNs) / INTERVAL_NS;
+    }
+
+    /**
+     * @return the slot of an interval, null if the interval is too old;
+     *         called with the slots locked
+     */
+    private Slot slotOf(long iv) {
+        Slot slot = slots[(int) (iv % NUM_SLOTS)];
+        if (slot.interval < iv)
+            slot.reset(iv);
+        else if (slot.interval > iv)
+            return null;
+        return slot;
+    }
+
+    /**
+     * Drops all the latencies recorded so far
+     */
+    public void reset() {
+        for (Recorder r : recorders)
+            r.clear();
+        synchronized (slots) {
+            for (Slot slot : slots)
+                slot.reset(-1);
+        }
+    }
+
+    /**
+     * Sums up the windows of the intervals completed by a time
+     * @param nowNs the time
+     * @return by window, then by listener name and {@link #TOTAL}, the
+     *         count, p50, p99, p999 and max latencies in ns
+     */
+    public Map<String, Map<String, Map<String, Long>>> getSummary(long nowNs) {
+        long current = intervalOf(nowNs);
+        for (Recorder r : recorders)
+            r.sealBefore(current);
+
+        Map<String, Map<String, Map<String, Long>>> summary =
+                new LinkedHashMap<String, Map<String, Map<String, Long>>>();
+        synchronized (slots) {
+            for (int w = 0; w < WINDOW_NAMES.length; w++) {
+                Map<String, LatencyHistogram> sums =
+                        new HashMap<String, LatencyHistogram>();
+                for (long iv = current - WINDOW_SLOTS[w]; iv < current; iv++) {
+                    if (iv < 0)
+                        continue;
+                    Slot slot = slots[(int) (iv % NUM_SLOTS)];
+                    if (slot.interval != iv)
+                        continue;
+                    for (Map.Entry<String, LatencyHistogram> e :
+                            slot.histograms.entrySet()) {
+                        LatencyHistogram sum = sums.get(e.getKey());
+                        if (sum == null) {
+                            sum = new LatencyHistogram();
+                            sums.put(e.getKey(), sum);
+                        }
+                        sum.add(e.getValue());
+                    }
+                }
+                Map<String, Map<String, Long>> window =
+                        new LinkedHashMap<String, Map<String, Long>>();
+                for (Map.Entry<String, LatencyHistogram> e : sums.entrySet()) {
+                    if (e.getValue().getCount() > 0)
+                        window.put(e.getKey(), summarize(e.getValue()));
+                }
+                summary.put(WINDOW_NAMES[w], window);
+            }
+        }
+        return summary;
+    }
+
+    private static Map<String, Long> summarize(LatencyHistogram h) {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        m.put("count", h.getCount());
+        m.put("p50", h.getPercentile(0.5));
+        m.put("p99", h.getPercentile(0.99));
+        m.put("p999", h.getPercentile(0.999));
+        m.put("max", h.getMax());
+        return m;
+    }
+}
@@ -122,4 +122,14 @@ public class NullPktInProcessingTime
     public CumulativeTimeBucket getCtb() {
         return ctb;
     }
+
+    @Override
+    public Map<String, Map<String, Map<String, Long>>> getLatency() {
+        return null;
+    }
+
+    @Override
+    public void resetLatency() {
+
+    }
 }
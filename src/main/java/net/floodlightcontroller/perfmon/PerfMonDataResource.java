@@ -47,6 +47,7 @@ public class PerfMonDataResource extends ServerResource {
         if (pktinProcTime.isEnabled()) {
             CumulativeTimeBucket ctb = pktinProcTime.getCtb();
             ctb.computeAverages();
+            ctb.setLatency(pktinProcTime.getLatency());
             return ctb;
         }
         
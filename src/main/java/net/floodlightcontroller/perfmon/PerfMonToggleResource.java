@@ -35,6 +35,7 @@ public class PerfMonToggleResource extends ServerResource {
         		pktinProcTime.setEnabled(true);
         	}
             pktinProcTime.getCtb().reset();
+            pktinProcTime.resetLatency();
         } else {
             if (param.equals("enable") || param.equals("true")) {
                 pktinProcTime.setEnabled(true);
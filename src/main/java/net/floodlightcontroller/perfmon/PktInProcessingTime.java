@@ -90,6 +90,15 @@ public class PktInProcessingTime
     // Maintains the time when the last packet was processed
     protected long lastPktTime_ns;
     private CumulativeTimeBucket ctb = null;
+    // latency histograms, recorded by every thread into its own recorder
+    protected final LatencyWindows latency = new LatencyWindows();
+    protected final ThreadLocal<LatencyWindows.Recorder> recorder =
+            new ThreadLocal<LatencyWindows.Recorder>() {
+                @Override
+                protected LatencyWindows.Recorder initialValue() {
+                    return latency.newRecorder();
+                }
+            };
 
     
     /***
@@ -124,27 +133,38 @@ public class PktInProcessingTime
         return ctb;
     }
     
-    private long startTimePktNs;
-    private long startTimeCompNs;
+    @Override
+    public Map<String, Map<String, Map<String, Long>>> getLatency() {
+        return latency.getSummary(System.nanoTime());
+    }
+
+    @Override
+    public void resetLatency() {
+        latency.reset();
+    }
+
     @Override
     public void recordStartTimeComp(IOFMessageListener listener) {
         if (isEnabled()) {
-            startTimeCompNs = System.nanoTime();
+            recorder.get().startCompNs = System.nanoTime();
         }
     }
     
     @Override
     public void recordEndTimeComp(IOFMessageListener listener) {
         if (isEnabled()) {
-            long procTime = System.nanoTime() - startTimeCompNs;
+            LatencyWindows.Recorder r = recorder.get();
+            long now = System.nanoTime();
+            long procTime = now - r.startCompNs;
             ctb.updateOneComponent(listener, procTime);
+            r.record(listener, procTime, now);
         }
     }
     
     @Override
     public void recordStartTimePktIn() {
         if (isEnabled()) {
-            startTimePktNs = System.nanoTime();
+            recorder.get().startPktNs = System.nanoTime();
         }
     }
     
@@ -156,8 +176,11 @@ public class PktInProcessingTime
             recommendation=LogMessageDoc.CHECK_CONTROLLER)
     public void recordEndTimePktIn(IOFSwitch sw, OFMessage m, FloodlightContext cntx) {
         if (isEnabled()) {
-            long procTimeNs = System.nanoTime() - startTimePktNs;
+            LatencyWindows.Recorder r = recorder.get();
+            long now = System.nanoTime();
+            long procTimeNs = now - r.startPktNs;
             ctb.updatePerPacketCounters(procTimeNs);
+            r.record(null, procTimeNs, now);
             
             if (ptWarningThresholdInNano > 0 && 
                     procTimeNs > ptWarningThresholdInNano) {
@@ -0,0 +1,79 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.routing;
+
+/**
+ * Hashes of flows, to be passed as the cookie of IRoutingService.getRoute
+ * so the packets of a flow take one of several equal cost paths, and
+ * different flows spread over them. A hash is never 0, the cookie of the
+ * default route.
+ */
+public class FlowHash {
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+
+    /**
+     * @return the hash of an IP flow's 5-tuple
+     */
+    public static long hash(int nwSrc, int nwDst, byte nwProto,
+                            short tpSrc, short tpDst) {
+        long h = mix(SEED, ((long) nwSrc << 32) | (nwDst & 0xffffffffL));
+        h = mix(h, ((long) (nwProto & 0xff) << 32) |
+                   ((tpSrc & 0xffffL) << 16) | (tpDst & 0xffffL));
+        return finish(h);
+    }
+
+    /**
+     * @return the hash of any number of values, e.g., of the addresses
+     * of a host pair
+     */
+    public static long hash(long... values) {
+        long h = SEED;
+        for (long v: values)
+            h = mix(h, v);
+        return finish(h);
+    }
+
+    private static long mix(long h, long v) {
+        v *= 0x87c37b91114253d5L;
+        v = Long.rotateLeft(v, 31);
+        v *= 0x4cf5ad432745937fL;
+        h ^= v;
+        return Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h == 0) ? 1 : h;
+    }
+
+    /**
+     * Picks one of n choices at a switch for the flow of the given hash,
+     * so that the switches of a path choose independently of each other.
+     * @param hash
+     * @param sw the switch choosing
+     * @param n the number of choices
+     * @return the choice, from 0 to n - 1
+     */
+    public static int select(long hash, long sw, int n) {
+        long h = finish(mix(hash, sw));
+        return (int) ((h >>> 1) % n);
+    }
+}
@@ -401,9 +401,8 @@ public abstract class ForwardingBase
         }
 
         if (po.getBufferId() == OFPacketOut.BUFFER_ID_NONE) {
-            byte[] packetData = pi.getPacketData();
-            poLength += packetData.length;
-            po.setPacketData(packetData);
+            po.setPacketDataFrom(pi);
+            poLength += po.getPacketDataLength();
         }
 
         po.setInPort(pi.getInPort());
@@ -31,7 +31,9 @@ public interface IRoutingService extends IFloodlightService {
      * multiple routes.
      * @param src Source switch DPID.
      * @param dst Destination switch DPID.
-     * @param cookie cookie (usage determined by implementation; ignored by topology instance now).
+     * @param cookie cookie (usage determined by implementation; a non-zero
+     *        cookie is taken by topology instance as a FlowHash, choosing
+     *        among equal cost routes).
      */
     public Route getRoute(long src, long dst, long cookie);
 
@@ -40,7 +42,9 @@ public interface IRoutingService extends IFloodlightService {
      *  not allow tunnels in the path.
      * @param src Source switch DPID.
      * @param dst Destination switch DPID.
-     * @param cookie cookie (usage determined by implementation; ignored by topology instance now).
+     * @param cookie cookie (usage determined by implementation; a non-zero
+     *        cookie is taken by topology instance as a FlowHash, choosing
+     *        among equal cost routes).
      * @param tunnelEnabled boolean option.
      */
     public Route getRoute(long src, long dst, long cookie, boolean tunnelEnabled);
@@ -51,7 +55,9 @@ public interface IRoutingService extends IFloodlightService {
      * @param srcPort Source port on source switch.
      * @param dst Destination switch DPID.
      * @param dstPort dstPort on Destination switch.
-     * @param cookie cookie (usage determined by implementation; ignored by topology instance now).
+     * @param cookie cookie (usage determined by implementation; a non-zero
+     *        cookie is taken by topology instance as a FlowHash, choosing
+     *        among equal cost routes).
      */
     public Route getRoute(long srcId, short srcPort,
                              long dstId, short dstPort, long cookie);
@@ -62,7 +68,9 @@ public interface IRoutingService extends IFloodlightService {
      * @param srcPort Source port on source switch.
      * @param dst Destination switch DPID.
      * @param dstPort dstPort on Destination switch.
-     * @param cookie cookie (usage determined by implementation; ignored by topology instance now).
+     * @param cookie cookie (usage determined by implementation; a non-zero
+     *        cookie is taken by topology instance as a FlowHash, choosing
+     *        among equal cost routes).
      * @param tunnelEnabled boolean option.
      */
     public Route getRoute(long srcId, short srcPort,
@@ -72,6 +80,17 @@ public interface IRoutingService extends IFloodlightService {
     /** return all routes, if available */
     public ArrayList<Route> getRoutes(long longSrcDpid, long longDstDpid, boolean tunnelEnabled);
 
+    /**
+     * Provides up to k shortest routes of equal cost between src and dst.
+     * The first one is the route getRoute returns for cookie 0.
+     * @param longSrcDpid Source switch DPID.
+     * @param longDstDpid Destination switch DPID.
+     * @param tunnelEnabled boolean option.
+     * @param k the maximum number of routes.
+     */
+    public ArrayList<Route> getRoutes(long longSrcDpid, long longDstDpid,
+                                      boolean tunnelEnabled, int k);
+
     /** Check if a route exists between src and dst, including tunnel links
      *  in the path.
      */
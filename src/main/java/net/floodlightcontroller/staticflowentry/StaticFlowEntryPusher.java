@@ -188,15 +188,39 @@ public class StaticFlowEntryPusher
             List<String> sortedList = new ArrayList<String>(entries.keySet());
             // weird that Collections.sort() returns void
             Collections.sort( sortedList, new FlowModSorter(stringId));
+            List<OFMessage> messages = new ArrayList<OFMessage>();
             for (String entryName : sortedList) {
                 OFFlowMod flowMod = entries.get(entryName);
                 if (flowMod != null) {
                     if (log.isDebugEnabled()) {
                         log.debug("Pushing static entry {} for {}", stringId, entryName);
                     }
-                    writeFlowModToSwitch(sw, flowMod);
+                    messages.add(flowMod);
                 }
             }
+            writeBulkToSwitch(sw, messages);
+        }
+    }
+
+    /**
+     * Writes the entries of a switch in its bulk lane, so reloading many
+     * entries does not hold back its packet-in processing. Does not wait
+     * for the lane to have room, as this runs on the switch update
+     * thread: the lane holds what the switch is not reading yet.
+     * @param sw The IOFSwitch to write to
+     * @param messages The OFMessages to write, in order
+     */
+    @LogMessageDoc(level="ERROR",
+            message="Tried to write to switch {switch} but got {error}",
+            explanation="An I/O error occured while trying to write a " +
+                    "static flow to a switch",
+            recommendation=LogMessageDoc.CHECK_SWITCH)
+    private void writeBulkToSwitch(IOFSwitch sw, List<OFMessage> messages) {
+        try {
+            sw.writeBulk(messages, null);
+        } catch (IOException e) {
+            log.error("Tried to write to switch {} but got {}",
+                    sw.getStringId(), e.getMessage());
         }
     }
 
@@ -0,0 +1,229 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * The links of a cluster compiled for shortest path computations. The
+ * switches are numbered in the order of the cluster and the links
+ * relaxed from each switch are kept in compressed sparse rows: the edges
+ * of switch i are offsets[i] to offsets[i + 1] of the edge arrays, in
+ * the order of the cluster's link sets. A graph is immutable once built,
+ * so trees may be computed from several threads.
+ */
+public class ClusterGraph {
+    protected final long[] dpids;
+    protected final Map<Long, Integer> indices;
+    protected final int[] offsets;
+    // the switch an edge leads to, its cost and its link
+    protected final int[] neighbors;
+    protected final int[] costs;
+    protected final Link[] links;
+
+    /**
+     * @param c
+     * @param linkCost the cost of links, 1 if not present or null
+     * @param isDstRooted true to compile the graph for trees rooted at
+     * the destination, i.e., to relax the links towards a switch
+     */
+    public ClusterGraph(Cluster c, Map<Link, Integer> linkCost,
+                        boolean isDstRooted) {
+        int n = c.links.size();
+        dpids = new long[n];
+        indices = new HashMap<Long, Integer>(n * 2);
+        int nEdges = 0;
+        int i = 0;
+        for (Map.Entry<Long, Set<Link>> e: c.links.entrySet()) {
+            dpids[i] = e.getKey();
+            indices.put(e.getKey(), i++);
+            nEdges += e.getValue().size();
+        }
+
+        offsets = new int[n + 1];
+        int[] neighbors = new int[nEdges];
+        int[] costs = new int[nEdges];
+        Link[] links = new Link[nEdges];
+        int edge = 0;
+        i = 0;
+        for (Set<Link> nodeLinks: c.links.values()) {
+            offsets[i] = edge;
+            for (Link link: nodeLinks) {
+                long neighbor = isDstRooted ? link.getSrc() : link.getDst();
+                // links directed away from the switch
+                if (neighbor == dpids[i]) continue;
+                Integer index = indices.get(neighbor);
+                if (index == null) continue;
+                Integer w = (linkCost == null) ? null : linkCost.get(link);
+                neighbors[edge] = index;
+                costs[edge] = (w == null) ? 1 : w;
+                links[edge] = link;
+                edge++;
+            }
+            i++;
+        }
+        offsets[n] = edge;
+        this.neighbors = Arrays.copyOf(neighbors, edge);
+        this.costs = Arrays.copyOf(costs, edge);
+        this.links = Arrays.copyOf(links, edge);
+    }
+
+    public int size() {
+        return dpids.length;
+    }
+
+    public long getDpid(int index) {
+        return dpids[index];
+    }
+
+    /**
+     * Computes the shortest path tree from the given switch, like
+     * TopologyInstance.dijkstra: switches of equal distance are visited
+     * in the order of their DPIDs, and a switch keeps the first link
+     * found for its distance.
+     * @param root
+     * @return the tree, or null if root is not in the cluster
+     */
+    public BroadcastTree dijkstra(long root) {
+        Integer rootIndex = indices.get(root);
+        if (rootIndex == null) return null;
+        int n = dpids.length;
+        int[] dist = new int[n];
+        int[] treeEdges = new int[n];
+        Arrays.fill(dist, TopologyInstance.MAX_PATH_WEIGHT);
+        Arrays.fill(treeEdges, -1);
+        boolean[] seen = new boolean[n];
+        Heap heap = new Heap(dist);
+
+        dist[rootIndex] = 0;
+        heap.update(rootIndex);
+        while (!heap.isEmpty()) {
+            int node = heap.poll();
+            int ndist = dist[node];
+            if (ndist >= TopologyInstance.MAX_PATH_WEIGHT) break;
+            seen[node] = true;
+            for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+                int neighbor = neighbors[e];
+                if (seen[neighbor]) continue;
+                int d = ndist + costs[e];
+                if (d < dist[neighbor]) {
+                    dist[neighbor] = d;
+                    treeEdges[neighbor] = e;
+                    heap.update(neighbor);
+                }
+            }
+        }
+
+        HashMap<Long, Link> nexthoplinks = new HashMap<Long, Link>(n * 2);
+        HashMap<Long, Integer> cost = new HashMap<Long, Integer>(n * 2);
+        for (int i = 0; i < n; i++) {
+            nexthoplinks.put(dpids[i],
+                             (treeEdges[i] < 0) ? null : links[treeEdges[i]]);
+            cost.put(dpids[i], dist[i]);
+        }
+        return new BroadcastTree(nexthoplinks, cost);
+    }
+
+    /**
+     * A binary heap of switch indices ordered by distance and then DPID,
+     * with the heap position of every switch so its distance can be
+     * decreased in place.
+     */
+    protected class Heap {
+        final int[] dist;
+        final int[] heap;
+        final int[] positions;
+        int size;
+
+        Heap(int[] dist) {
+            this.dist = dist;
+            heap = new int[dist.length];
+            positions = new int[dist.length];
+            Arrays.fill(positions, -1);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        private boolean less(int a, int b) {
+            if (dist[a] != dist[b])
+                return dist[a] < dist[b];
+            return dpids[a] < dpids[b];
+        }
+
+        /**
+         * Adds the switch, or moves it up after its distance decreased
+         */
+        void update(int node) {
+            int pos = positions[node];
+            if (pos < 0) {
+                pos = size++;
+                heap[pos] = node;
+                positions[node] = pos;
+            }
+            siftUp(pos);
+        }
+
+        int poll() {
+            int top = heap[0];
+            positions[top] = -1;
+            size--;
+            if (size > 0) {
+                heap[0] = heap[size];
+                positions[heap[0]] = 0;
+                siftDown(0);
+            }
+            return top;
+        }
+
+        private void siftUp(int pos) {
+            int node = heap[pos];
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!less(node, heap[parent])) break;
+                heap[pos] = heap[parent];
+                positions[heap[pos]] = pos;
+                pos = parent;
+            }
+            heap[pos] = node;
+            positions[node] = pos;
+        }
+
+        private void siftDown(int pos) {
+            int node = heap[pos];
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size) break;
+                if (child + 1 < size && less(heap[child + 1], heap[child]))
+                    child++;
+                if (!less(heap[child], node)) break;
+                heap[pos] = heap[child];
+                positions[heap[pos]] = pos;
+                pos = child;
+            }
+            heap[pos] = node;
+            positions[node] = pos;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.routing.Link;
+
+import org.openflow.protocol.OFPhysicalPort.PortSpeed;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Costs of links from their speed and utilization, for the shortest path
+ * computation of the topology instances.
+ *
+ * The switches with links are polled for port statistics, the replies
+ * being read at the next poll so the polling thread never waits, and the
+ * utilization of the transmitting port of each link is averaged with an
+ * exponentially weighted moving average. The utilization is classified
+ * into levels by thresholds, with hysteresis: a port climbs a level when
+ * its utilization reaches the threshold, and falls back only once it is
+ * below the threshold by the hysteresis. The cost of a link is the
+ * reference bandwidth divided by its speed, times one plus its level, so
+ * costs change, and routes need to be computed again, only when a level
+ * or a speed changes.
+ */
+public class LinkCostProvider {
+    protected static Logger log =
+            LoggerFactory.getLogger(LinkCostProvider.class);
+
+    // the bandwidth of links of cost 1, also the cost of unknown speeds
+    public static final long REFERENCE_BPS =
+            PortSpeed.SPEED_10GB.getSpeedBps();
+    public static final int[] DEFAULT_THRESHOLDS = { 50, 75, 90 };
+    public static final int DEFAULT_HYSTERESIS = 10;
+    // weight of the newest sample in the average
+    public static final double DEFAULT_ALPHA = 0.5;
+
+    protected final IFloodlightProviderService floodlightProvider;
+    protected final ILinkDiscoveryService linkDiscovery;
+    protected final int[] thresholds;
+    protected final int hysteresis;
+    protected final double alpha;
+
+    protected static class PortLoad {
+        // transmitted bytes and time of the last sample
+        long txBytes;
+        long time;
+        // average utilization in percent, negative until two samples
+        double utilization = -1;
+        int level;
+    }
+
+    // guarded by this
+    protected final Map<NodePortTuple, PortLoad> loads =
+            new HashMap<NodePortTuple, PortLoad>();
+    protected volatile Map<Link, Integer> costs =
+            Collections.emptyMap();
+    protected volatile Map<Link, Integer> utilization =
+            Collections.emptyMap();
+    // replies to the last poll and its time, used by the polling thread
+    // only
+    protected final Map<IOFSwitch, Future<List<OFStatistics>>> pending =
+            new HashMap<IOFSwitch, Future<List<OFStatistics>>>();
+    protected long pendingTime;
+
+    /**
+     * @param floodlightProvider
+     * @param linkDiscovery
+     * @param thresholds the utilization levels, in increasing percents
+     * @param hysteresis in percent
+     * @param alpha the weight of a new sample of utilization, from 0 to 1
+     */
+    public LinkCostProvider(IFloodlightProviderService floodlightProvider,
+                            ILinkDiscoveryService linkDiscovery,
+                            int[] thresholds, int hysteresis, double alpha) {
+        this.floodlightProvider = floodlightProvider;
+        this.linkDiscovery = linkDiscovery;
+        this.thresholds = thresholds.clone();
+        this.hysteresis = hysteresis;
+        this.alpha = alpha;
+    }
+
+    /**
+     * @return the costs of the links, immutable
+     */
+    public Map<Link, Integer> getCosts() {
+        return costs;
+    }
+
+    /**
+     * @return the average utilization of the links in percent, immutable
+     */
+    public Map<Link, Integer> getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * Polls the switches with links for their port statistics, and
+     * computes the costs of the links again. It does not wait for the
+     * replies: those of the previous poll are read, and the switches
+     * that have not replied since are skipped.
+     * @return true if the cost of a link changed
+     */
+    public boolean poll() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<IOFSwitch, Future<List<OFStatistics>>> e:
+                pending.entrySet()) {
+            Future<List<OFStatistics>> f = e.getValue();
+            if (!f.isDone()) {
+                f.cancel(true);
+                log.debug("No port statistics from {} since the last poll",
+                          e.getKey());
+                continue;
+            }
+            try {
+                // the switch sampled its counters about when it was asked
+                update(e.getKey(), f.get(), pendingTime);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception ex) {
+                log.debug("Failed to get port statistics of {}",
+                          e.getKey(), ex);
+            }
+        }
+        pending.clear();
+
+        Set<Link> links = linkDiscovery.getLinks().keySet();
+        Set<Long> switches = new HashSet<Long>();
+        for (Link l: links)
+            switches.add(l.getSrc());
+        for (long dpid: switches) {
+            IOFSwitch sw = floodlightProvider.getSwitch(dpid);
+            if (sw == null || !sw.isConnected())
+                continue;
+            try {
+                pending.put(sw, sw.queryStatistics(portStatisticsRequest()));
+            } catch (IOException e) {
+                log.debug("Failed to query port statistics of {}", sw, e);
+            }
+        }
+        pendingTime = now;
+        return updateCosts(links);
+    }
+
+    protected OFStatisticsRequest portStatisticsRequest() {
+        OFStatisticsRequest req = new OFStatisticsRequest();
+        req.setStatisticType(OFStatisticsType.PORT);
+        OFPortStatisticsRequest specificReq = new OFPortStatisticsRequest();
+        specificReq.setPortNumber(OFPort.OFPP_NONE.getValue());
+        req.setStatistics(Collections.singletonList((OFStatistics)specificReq));
+        req.setLengthU(req.getLengthU() + specificReq.getLength());
+        return req;
+    }
+
+    /**
+     * Updates the utilization of the ports of a switch from their
+     * statistics
+     * @param sw
+     * @param stats the port statistics
+     * @param now the time of the statistics, in milliseconds
+     */
+    protected synchronized void update(IOFSwitch sw, List<OFStatistics> stats,
+                                       long now) {
+        if (stats == null)
+            return;
+        for (OFStatistics s: stats) {
+            if (!(s instanceof OFPortStatisticsReply))
+                continue;
+            OFPortStatisticsReply reply = (OFPortStatisticsReply) s;
+            NodePortTuple npt =
+                    new NodePortTuple(sw.getId(), reply.getPortNumber());
+            PortLoad load = loads.get(npt);
+            if (load == null) {
+                load = new PortLoad();
+                loads.put(npt, load);
+            } else if (now > load.time &&
+                       reply.getTransmitBytes() >= load.txBytes) {
+                long bps = getSpeedBps(sw, reply.getPortNumber());
+                if (bps > 0) {
+                    double u = (reply.getTransmitBytes() - load.txBytes) *
+                               8 * 1000 * 100.0 / ((now - load.time) * bps);
+                    u = Math.min(100, u);
+                    load.utilization = (load.utilization < 0) ? u :
+                            alpha * u + (1 - alpha) * load.utilization;
+                    load.level = level(load.level, load.utilization);
+                }
+            }
+            load.txBytes = reply.getTransmitBytes();
+            load.time = now;
+        }
+    }
+
+    /**
+     * @return the level of a port for the utilization, given its current
+     * level
+     */
+    protected int level(int level, double utilization) {
+        while (level < thresholds.length && utilization >= thresholds[level])
+            level++;
+        while (level > 0 &&
+               utilization < thresholds[level - 1] - hysteresis)
+            level--;
+        return level;
+    }
+
+    /**
+     * @return the speed of a port in bits per second, 0 if unknown
+     */
+    protected static long getSpeedBps(IOFSwitch sw, short portNumber) {
+        ImmutablePort port = sw.getPort(portNumber);
+        return (port == null) ? 0 : port.getCurrentPortSpeed().getSpeedBps();
+    }
+
+    /**
+     * Computes the costs and utilization of the given links
+     * @param links
+     * @return true if the cost of a link changed
+     */
+    protected synchronized boolean updateCosts(Collection<Link> links) {
+        Map<Link, Integer> newCosts = new HashMap<Link, Integer>();
+        Map<Link, Integer> newUtilization = new HashMap<Link, Integer>();
+        boolean changed = false;
+        for (Link l: links) {
+            long bps = 0;
+            IOFSwitch sw = floodlightProvider.getSwitch(l.getSrc());
+            if (sw != null)
+                bps = getSpeedBps(sw, l.getSrcPort());
+            sw = floodlightProvider.getSwitch(l.getDst());
+            if (sw != null) {
+                long dstBps = getSpeedBps(sw, l.getDstPort());
+                if (bps == 0 || (dstBps > 0 && dstBps < bps))
+                    bps = dstBps;
+            }
+            long cost = (bps == 0) ? 1 : Math.max(1, REFERENCE_BPS / bps);
+
+            PortLoad load =
+                    loads.get(new NodePortTuple(l.getSrc(), l.getSrcPort()));
+            if (load != null && load.utilization >= 0) {
+                cost *= 1 + load.level;
+                newUtilization.put(l, (int) Math.round(load.utilization));
+            }
+            int c = (int) Math.min(cost, TopologyInstance.MAX_LINK_WEIGHT);
+            newCosts.put(l, c);
+
+            Integer old = costs.get(l);
+            if (c != ((old == null) ? 1 : old))
+                changed = true;
+        }
+
+        // ports of links that are gone
+        Set<NodePortTuple> ports = new HashSet<NodePortTuple>();
+        for (Link l: links)
+            ports.add(new NodePortTuple(l.getSrc(), l.getSrcPort()));
+        loads.keySet().retainAll(ports);
+
+        costs = Collections.unmodifiableMap(newCosts);
+        utilization = Collections.unmodifiableMap(newUtilization);
+        if (changed && log.isDebugEnabled())
+            log.debug("Link costs changed: {}", costs);
+        return changed;
+    }
+}
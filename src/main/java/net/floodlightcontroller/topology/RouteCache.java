@@ -0,0 +1,230 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * The cache of the default routes, shared by the topology instances that
+ * replace each other so a new topology keeps the routes that did not
+ * change.
+ *
+ * The cache is bounded by an estimate of the heap its routes take. The
+ * routes are built along the destination rooted trees with SuffixPath,
+ * so a route takes about the same memory whatever its length.
+ *
+ * The cached sources of every destination are indexed. When a topology
+ * is computed, the routes to the destinations whose tree was computed
+ * again are checked against their new tree, and only those that no
+ * longer follow it are removed: the routes over a removed or changed
+ * link, or that a new link shortens.
+ *
+ * Routes built from a topology that has been replaced must not be
+ * cached, so every change starts a new generation, and routes are only
+ * added for the current one.
+ */
+public class RouteCache {
+    // estimated heap bytes of a cached route: its cache entry, RouteId,
+    // Route, path cell with two NodePortTuples, and index entry
+    public static final int ROUTE_BYTES = 320;
+    public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    protected final Cache<RouteId, Route> routes;
+    // cached sources by destination
+    protected final ConcurrentMap<Long, Set<Long>> sources;
+    protected volatile int generation;
+
+    // may be null
+    protected final IDebugCounter ctrHit;
+    protected final IDebugCounter ctrMiss;
+    protected final IDebugCounter ctrEviction;
+    protected final IDebugCounter ctrInvalidation;
+
+    public RouteCache(long budgetBytes) {
+        this(budgetBytes, null, null, null, null);
+    }
+
+    /**
+     * @param budgetBytes the heap the routes may take
+     * @param ctrHit counts the routes found
+     * @param ctrMiss counts the routes not found
+     * @param ctrEviction counts the routes evicted for the budget
+     * @param ctrInvalidation counts the routes removed by topology changes
+     */
+    public RouteCache(long budgetBytes, IDebugCounter ctrHit,
+                      IDebugCounter ctrMiss, IDebugCounter ctrEviction,
+                      IDebugCounter ctrInvalidation) {
+        this.ctrHit = ctrHit;
+        this.ctrMiss = ctrMiss;
+        this.ctrEviction = ctrEviction;
+        this.ctrInvalidation = ctrInvalidation;
+        sources = new ConcurrentHashMap<Long, Set<Long>>();
+        routes = CacheBuilder.newBuilder()
+                .concurrencyLevel(4)
+                .maximumSize(Math.max(1, budgetBytes / ROUTE_BYTES))
+                .removalListener(new RemovalListener<RouteId, Route>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<RouteId,
+                                                              Route> n) {
+                        if (n.getCause() == RemovalCause.REPLACED)
+                            return;
+                        unindex(n.getKey());
+                        if (n.wasEvicted())
+                            count(RouteCache.this.ctrEviction);
+                    }
+                })
+                .build();
+    }
+
+    private static void count(IDebugCounter ctr) {
+        if (ctr != null)
+            ctr.updateCounterNoFlush();
+    }
+
+    private void unindex(RouteId id) {
+        Set<Long> srcs = sources.get(id.getDst());
+        if (srcs != null)
+            srcs.remove(id.getSrc());
+    }
+
+    /**
+     * @return the generation routes are cached for
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the cached route, counting a hit or a miss
+     */
+    public Route get(RouteId id) {
+        Route r = routes.getIfPresent(id);
+        count((r == null) ? ctrMiss : ctrHit);
+        return r;
+    }
+
+    /**
+     * @return the cached route, without counting
+     */
+    public Route peek(RouteId id) {
+        return routes.getIfPresent(id);
+    }
+
+    /**
+     * Caches a route if it was built for the current generation
+     * @param route
+     * @param generation the generation of the topology it was built from
+     */
+    public void put(Route route, int generation) {
+        if (generation != this.generation)
+            return;
+        RouteId id = route.getId();
+        Set<Long> srcs = sources.get(id.getDst());
+        if (srcs == null) {
+            srcs = Collections.newSetFromMap(
+                    new ConcurrentHashMap<Long, Boolean>());
+            Set<Long> old = sources.putIfAbsent(id.getDst(), srcs);
+            if (old != null)
+                srcs = old;
+        }
+        srcs.add(id.getSrc());
+        routes.put(id, route);
+        // a new generation may have started, and missed this route
+        if (generation != this.generation)
+            routes.invalidate(id);
+    }
+
+    /**
+     * Removes all routes and starts a new generation
+     */
+    public void clear() {
+        generation++;
+        routes.invalidateAll();
+    }
+
+    /**
+     * Starts a new generation, keeping the routes that follow the given
+     * trees
+     * @param trees the destination rooted trees of the new topology
+     * @param keptTrees the destinations whose trees did not change
+     * @return the number of routes removed
+     */
+    public int revalidate(Map<Long, BroadcastTree> trees,
+                          Set<Long> keptTrees) {
+        generation++;
+        int removed = 0;
+        for (Map.Entry<Long, Set<Long>> e: sources.entrySet()) {
+            long dst = e.getKey();
+            if (keptTrees.contains(dst))
+                continue;
+            BroadcastTree tree = trees.get(dst);
+            Iterator<Long> it = e.getValue().iterator();
+            while (it.hasNext()) {
+                RouteId id = new RouteId(it.next(), dst);
+                Route r = routes.getIfPresent(id);
+                if (r == null) {
+                    it.remove();
+                } else if (tree == null || !follows(r, tree)) {
+                    routes.invalidate(id);
+                    count(ctrInvalidation);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return true if every link of the route is the tree link of its
+     * switch
+     */
+    private static boolean follows(Route r, BroadcastTree tree) {
+        Iterator<NodePortTuple> it = r.getPath().iterator();
+        while (it.hasNext()) {
+            NodePortTuple src = it.next();
+            NodePortTuple dst = it.next();
+            Link l = tree.getTreeLink(src.getNodeId());
+            if (l == null ||
+                    l.getSrcPort() != src.getPortId() ||
+                    l.getDst() != dst.getNodeId() ||
+                    l.getDstPort() != dst.getPortId())
+                return false;
+        }
+        return true;
+    }
+
+    public long size() {
+        return routes.size();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * The switch ports of a route as an immutable list that shares its tail
+ * with the route from the next switch: the first link of the route and
+ * the path of the rest. The routes to a destination are built along its
+ * tree, so each cached route adds only its first link.
+ */
+public class SuffixPath extends AbstractList<NodePortTuple> {
+    protected final NodePortTuple srcPort;
+    protected final NodePortTuple dstPort;
+    protected final SuffixPath next;
+    protected final int size;
+
+    /**
+     * @param link the first link of the path
+     * @param next the path from the destination of the link on, or null
+     * if it is the last link
+     */
+    public SuffixPath(Link link, SuffixPath next) {
+        this.srcPort = new NodePortTuple(link.getSrc(), link.getSrcPort());
+        this.dstPort = new NodePortTuple(link.getDst(), link.getDstPort());
+        this.next = next;
+        this.size = (next == null) ? 2 : next.size + 2;
+    }
+
+    /**
+     * @return the path after the first link, null if there is none
+     */
+    public SuffixPath getNext() {
+        return next;
+    }
+
+    @Override
+    public NodePortTuple get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index +
+                                                ", Size: " + size);
+        SuffixPath p = this;
+        while (index >= 2) {
+            p = p.next;
+            index -= 2;
+        }
+        return (index == 0) ? p.srcPort : p.dstPort;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<NodePortTuple> iterator() {
+        return new Iterator<NodePortTuple>() {
+            SuffixPath p = SuffixPath.this;
+            boolean dst = false;
+
+            @Override
+            public boolean hasNext() {
+                return p != null;
+            }
+
+            @Override
+            public NodePortTuple next() {
+                if (p == null)
+                    throw new NoSuchElementException();
+                if (!dst) {
+                    dst = true;
+                    return p.srcPort;
+                }
+                NodePortTuple npt = p.dstPort;
+                dst = false;
+                p = p.next;
+                return npt;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
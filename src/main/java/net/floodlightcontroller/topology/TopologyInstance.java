@@ -17,26 +17,31 @@
 package net.floodlightcontroller.topology;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-
 import net.floodlightcontroller.util.ClusterDFS;
 import net.floodlightcontroller.core.annotations.LogMessageCategory;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.FlowHash;
 import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.routing.Route;
 import net.floodlightcontroller.routing.RouteId;
@@ -55,7 +60,8 @@ public class TopologyInstance {
 
     public static final int MAX_LINK_WEIGHT = 10000;
     public static final int MAX_PATH_WEIGHT = Integer.MAX_VALUE - MAX_LINK_WEIGHT - 1;
-    public static final int PATH_CACHE_SIZE = 1000;
+    // trees of a cluster computed in parallel from this many on
+    protected static final int PARALLEL_TREES = 64;
 
     protected static Logger log = LoggerFactory.getLogger(TopologyInstance.class);
 
@@ -77,26 +83,22 @@ public class TopologyInstance {
     protected Map<Long, Cluster> switchClusterMap; // switch to OF domain map
 
     // States for routing
+    // costs of links other than 1, e.g., from their speed; may be null
+    protected Map<Link, Integer> linkWeights;
+    protected Map<Link, Integer> linkCost;
     protected Map<Long, BroadcastTree> destinationRootedTrees;
     protected Map<Long, Set<NodePortTuple>> clusterBroadcastNodePorts;
     protected Map<Long, BroadcastTree> clusterBroadcastTrees;
+    // utilization of links in percent, biasing the choice among equal
+    // cost paths; may be null
+    protected volatile Map<Link, Integer> linkUtilization;
 
-    protected class PathCacheLoader extends CacheLoader<RouteId, Route> {
-        TopologyInstance ti;
-        PathCacheLoader(TopologyInstance ti) {
-            this.ti = ti;
-        }
-
-        @Override
-        public Route load(RouteId rid) {
-            return ti.buildroute(rid);
-        }
-    }
-
-    // Path cache loader is defined for loading a path when it not present
-    // in the cache.
-    private final PathCacheLoader pathCacheLoader = new PathCacheLoader(this);
-    protected LoadingCache<RouteId, Route> pathcache;
+    // Cache of the default routes, shared with the instances this one
+    // replaces and is replaced by.  A cache of its own if not set before
+    // compute.
+    protected RouteCache routeCache;
+    // the generation of the cache the routes of this instance are for
+    protected int routeCacheGeneration;
 
     public TopologyInstance() {
         this.switches = new HashSet<Long>();
@@ -152,18 +154,19 @@ public class TopologyInstance {
         destinationRootedTrees = new HashMap<Long, BroadcastTree>();
         clusterBroadcastTrees = new HashMap<Long, BroadcastTree>();
         clusterBroadcastNodePorts = new HashMap<Long, Set<NodePortTuple>>();
-
-        pathcache = CacheBuilder.newBuilder().concurrencyLevel(4)
-                    .maximumSize(1000L)
-                    .build(
-                            new CacheLoader<RouteId, Route>() {
-                                public Route load(RouteId rid) {
-                                    return pathCacheLoader.load(rid);
-                                }
-                            });
     }
 
     public void compute() {
+        compute(null);
+    }
+
+    /**
+     * Computes the topology, reusing the destination rooted trees of the
+     * given previous instance that are still shortest path trees, and the
+     * cached routes along them.
+     * @param previous the instance this one replaces, or null
+     */
+    public void compute(TopologyInstance previous) {
 
         // Step 1: Compute clusters ignoring broadcast domain links
         // Create nodes for clusters in the higher level topology
@@ -177,7 +180,7 @@ public class TopologyInstance {
         // Step 2. Compute shortest path trees in each cluster for
         // unicast routing.  The trees are rooted at the destination.
         // Cost for tunnel links and direct links are the same.
-        calculateShortestPathTreeInClusters();
+        calculateShortestPathTreeInClusters(previous);
 
         // Step 3. Compute broadcast tree in each cluster.
         // Cost for tunnel links are high to discourage use of
@@ -424,125 +427,102 @@ public class TopologyInstance {
         return broadcastDomainPorts.contains(npt);
     }
 
-    protected class NodeDist implements Comparable<NodeDist> {
-        private final Long node;
-        public Long getNode() {
-            return node;
-        }
-
-        private final int dist;
-        public int getDist() {
-            return dist;
-        }
+    protected BroadcastTree dijkstra(Cluster c, Long root,
+                                     Map<Link, Integer> linkCost,
+                                     boolean isDstRooted) {
+        return new ClusterGraph(c, linkCost, isDstRooted).dijkstra(root);
+    }
 
-        public NodeDist(Long node, int dist) {
-            this.node = node;
-            this.dist = dist;
-        }
+    private static ExecutorService treeExecutor;
 
-        @Override
-        public int compareTo(NodeDist o) {
-            if (o.dist == this.dist) {
-                return (int)(this.node - o.node);
-            }
-            return this.dist - o.dist;
+    /**
+     * @return the executor computing trees in parallel, or null if there
+     * is a single processor
+     */
+    protected static synchronized ExecutorService getTreeExecutor() {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        if (treeExecutor == null && nThreads > 1) {
+            ThreadFactory f = new ThreadFactory() {
+                AtomicInteger id = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread t = new Thread(runnable, "Topology-Tree-" +
+                                                    id.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            treeExecutor = Executors.newFixedThreadPool(nThreads, f);
         }
+        return treeExecutor;
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            NodeDist other = (NodeDist) obj;
-            if (!getOuterType().equals(other.getOuterType()))
-                return false;
-            if (node == null) {
-                if (other.node != null)
-                    return false;
-            } else if (!node.equals(other.node))
-                return false;
-            return true;
+    /**
+     * Computes the destination rooted trees of the given switches of a
+     * cluster, in parallel if there are many.
+     * @param c
+     * @param roots
+     * @return the trees, in the order of roots
+     */
+    protected BroadcastTree[] calculateTrees(Cluster c, final List<Long> roots) {
+        final ClusterGraph graph = new ClusterGraph(c, linkCost, true);
+        final BroadcastTree[] trees = new BroadcastTree[roots.size()];
+        ExecutorService executor = (roots.size() >= PARALLEL_TREES) ?
+                getTreeExecutor() : null;
+        if (executor == null) {
+            for (int i = 0; i < trees.length; i++)
+                trees[i] = graph.dijkstra(roots.get(i));
+            return trees;
         }
 
-        @Override
-        public int hashCode() {
-            assert false : "hashCode not designed";
-            return 42;
+        int nSlices = 4 * Runtime.getRuntime().availableProcessors();
+        List<Callable<Object>> slices = new ArrayList<Callable<Object>>();
+        for (int s = 0; s < nSlices; s++) {
+            final int first = s;
+            final int step = nSlices;
+            slices.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    for (int i = first; i < trees.length; i += step)
+                        trees[i] = graph.dijkstra(roots.get(i));
+                    return null;
+                }
+            });
         }
-
-        private TopologyInstance getOuterType() {
-            return TopologyInstance.this;
+        try {
+            for (Future<Object> f: executor.invokeAll(slices))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted computing trees", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to compute trees",
+                                       e.getCause());
         }
+        return trees;
     }
 
-    protected BroadcastTree dijkstra(Cluster c, Long root,
-                                     Map<Link, Integer> linkCost,
-                                     boolean isDstRooted) {
-        HashMap<Long, Link> nexthoplinks = new HashMap<Long, Link>();
-        //HashMap<Long, Long> nexthopnodes = new HashMap<Long, Long>();
-        HashMap<Long, Integer> cost = new HashMap<Long, Integer>();
-        int w;
-
-        for (Long node: c.links.keySet()) {
-            nexthoplinks.put(node, null);
-            //nexthopnodes.put(node, null);
-            cost.put(node, MAX_PATH_WEIGHT);
-        }
-
-        HashMap<Long, Boolean> seen = new HashMap<Long, Boolean>();
-        PriorityQueue<NodeDist> nodeq = new PriorityQueue<NodeDist>();
-        nodeq.add(new NodeDist(root, 0));
-        cost.put(root, 0);
-        while (nodeq.peek() != null) {
-            NodeDist n = nodeq.poll();
-            Long cnode = n.getNode();
-            int cdist = n.getDist();
-            if (cdist >= MAX_PATH_WEIGHT) break;
-            if (seen.containsKey(cnode)) continue;
-            seen.put(cnode, true);
-
-            for (Link link: c.links.get(cnode)) {
-                Long neighbor;
-
-                if (isDstRooted == true) neighbor = link.getSrc();
-                else neighbor = link.getDst();
-
-                // links directed toward cnode will result in this condition
-                if (neighbor.equals(cnode)) continue;
-
-                if (seen.containsKey(neighbor)) continue;
-
-                if (linkCost == null || linkCost.get(link)==null) w = 1;
-                else w = linkCost.get(link);
-
-                int ndist = cdist + w; // the weight of the link, always 1 in current version of floodlight.
-                if (ndist < cost.get(neighbor)) {
-                    cost.put(neighbor, ndist);
-                    nexthoplinks.put(neighbor, link);
-                    //nexthopnodes.put(neighbor, cnode);
-                    NodeDist ndTemp = new NodeDist(neighbor, ndist);
-                    // Remove an object that's already in there.
-                    // Note that the comparison is based on only the node id,
-                    // and not node id and distance.
-                    nodeq.remove(ndTemp);
-                    // add the current object to the queue.
-                    nodeq.add(ndTemp);
-                }
-            }
-        }
-
-        BroadcastTree ret = new BroadcastTree(nexthoplinks, cost);
-        return ret;
+    protected void calculateShortestPathTreeInClusters() {
+        calculateShortestPathTreeInClusters(null);
     }
 
-    protected void calculateShortestPathTreeInClusters() {
-        pathcache.invalidateAll();
+    /**
+     * Computes the destination rooted trees of all clusters. A cluster
+     * with the same nodes in the previous instance keeps the trees that
+     * none of its link changes affect: no removed or re-weighted link is
+     * a tree link, and no added or re-weighted link shortens a path to
+     * the root. Other trees are computed again.
+     * @param previous the instance this one replaces, or null
+     */
+    protected void calculateShortestPathTreeInClusters(TopologyInstance previous) {
         destinationRootedTrees.clear();
+        if (previous != null && previous.destinationRootedTrees == null)
+            previous = null;
 
-        Map<Link, Integer> linkCost = new HashMap<Link, Integer>();
+        linkCost = new HashMap<Link, Integer>();
+        if (linkWeights != null)
+            linkCost.putAll(linkWeights);
         int tunnel_weight = switchPorts.size() + 1;
 
         for(NodePortTuple npt: tunnelPorts) {
@@ -553,14 +533,110 @@ public class TopologyInstance {
             }
         }
 
+        Set<Long> reusedTrees = new HashSet<Long>();
         for(Cluster c: clusters) {
+            List<Link> removed = null;
+            List<Link> added = null;
+            Cluster old = (previous == null) ? null :
+                    previous.switchClusterMap.get(c.id);
+            if (old != null && old.getNodes().equals(c.getNodes())) {
+                removed = new ArrayList<Link>();
+                added = new ArrayList<Link>();
+                diffLinks(previous, old, c, removed, added);
+            }
+            List<Long> roots = new ArrayList<Long>();
             for (Long node : c.links.keySet()) {
-                BroadcastTree tree = dijkstra(c, node, linkCost, true);
-                destinationRootedTrees.put(node, tree);
+                BroadcastTree tree = null;
+                if (removed != null) {
+                    tree = previous.destinationRootedTrees.get(node);
+                    if (tree != null && !isTreeValid(tree, removed, added))
+                        tree = null;
+                }
+                if (tree == null) {
+                    roots.add(node);
+                } else {
+                    reusedTrees.add(node);
+                    destinationRootedTrees.put(node, tree);
+                }
             }
+            if (roots.isEmpty()) continue;
+            BroadcastTree[] trees = calculateTrees(c, roots);
+            for (int i = 0; i < trees.length; i++)
+                destinationRootedTrees.put(roots.get(i), trees[i]);
+        }
+
+        // routes are built from the tree of their destination only, so
+        // the cached routes that still follow it are kept
+        if (routeCache == null) {
+            routeCache = (previous != null && previous.routeCache != null) ?
+                    previous.routeCache :
+                    new RouteCache(RouteCache.DEFAULT_BUDGET);
+        }
+        int invalidated = -1;
+        if (previous != null && previous.routeCache == routeCache) {
+            invalidated = routeCache.revalidate(destinationRootedTrees,
+                                                reusedTrees);
+        } else {
+            routeCache.clear();
+        }
+        routeCacheGeneration = routeCache.getGeneration();
+        if (log.isDebugEnabled()) {
+            log.debug("Reused {} of {} destination rooted trees, " +
+                      "invalidated {} cached routes",
+                      new Object[] { reusedTrees.size(),
+                                     destinationRootedTrees.size(),
+                                     invalidated });
         }
     }
 
+    protected int getLinkCost(Link link) {
+        Integer w = (linkCost == null) ? null : linkCost.get(link);
+        return (w == null) ? 1 : w;
+    }
+
+    /**
+     * Collects the links of a cluster that were removed or added since
+     * the previous instance. Links whose cost changed are both.
+     */
+    private void diffLinks(TopologyInstance previous,
+                           Cluster old, Cluster c,
+                           List<Link> removed, List<Link> added) {
+        Set<Link> oldLinks = new HashSet<Link>();
+        for (Set<Link> links: old.links.values())
+            oldLinks.addAll(links);
+        Set<Link> newLinks = new HashSet<Link>();
+        for (Set<Link> links: c.links.values())
+            newLinks.addAll(links);
+        for (Link l: oldLinks) {
+            if (!newLinks.contains(l) ||
+                    previous.getLinkCost(l) != getLinkCost(l))
+                removed.add(l);
+        }
+        for (Link l: newLinks) {
+            if (!oldLinks.contains(l) ||
+                    previous.getLinkCost(l) != getLinkCost(l))
+                added.add(l);
+        }
+    }
+
+    /**
+     * @return true if the destination rooted tree is still a shortest
+     * path tree after the given link changes
+     */
+    private boolean isTreeValid(BroadcastTree tree,
+                                List<Link> removed, List<Link> added) {
+        for (Link l: removed) {
+            if (l.equals(tree.getTreeLink(l.getSrc())))
+                return false;
+        }
+        for (Link l: added) {
+            if (tree.getCost(l.getDst()) + getLinkCost(l) <
+                    tree.getCost(l.getSrc()))
+                return false;
+        }
+        return true;
+    }
+
     protected void calculateBroadcastTreeInClusters() {
         for(Cluster c: clusters) {
             // c.id is the smallest node that's in the cluster
@@ -619,14 +695,16 @@ public class TopologyInstance {
             // if srcId equals dstId --- and that too is an 'empty' path []
 
         } else if ((nexthoplinks!=null) && (nexthoplinks.get(srcId)!=null)) {
+            if (id.getCookie() == 0)
+                return buildDefaultRoute(id, nexthoplinks);
             while (srcId != dstId) {
-                Link l = nexthoplinks.get(srcId);
+                Link l = selectLink(srcId, dstId, id.getCookie());
 
                 npt = new NodePortTuple(l.getSrc(), l.getSrcPort());
                 switchPorts.addLast(npt);
                 npt = new NodePortTuple(l.getDst(), l.getDstPort());
                 switchPorts.addLast(npt);
-                srcId = nexthoplinks.get(srcId).getDst();
+                srcId = l.getDst();
             }
         }
         // else, no path exists, and path equals null
@@ -640,6 +718,164 @@ public class TopologyInstance {
         return result;
     }
 
+    /**
+     * Builds the route along the destination rooted tree, sharing the
+     * path of the first cached route found on the way, and caches the
+     * routes from every switch before it.
+     */
+    private Route buildDefaultRoute(RouteId id, Map<Long, Link> nexthoplinks) {
+        long dstId = id.getDst();
+        List<Link> hops = new ArrayList<Link>();
+        SuffixPath path = null;
+        boolean current = (routeCacheGeneration == routeCache.getGeneration());
+        long sw = id.getSrc();
+        while (sw != dstId) {
+            if (current && !hops.isEmpty()) {
+                Route r = routeCache.peek(new RouteId(sw, dstId));
+                if (r != null && r.getPath() instanceof SuffixPath) {
+                    path = (SuffixPath) r.getPath();
+                    break;
+                }
+            }
+            Link l = nexthoplinks.get(sw);
+            if (l == null) return null;
+            hops.add(l);
+            sw = l.getDst();
+        }
+
+        Route result = null;
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            path = new SuffixPath(hops.get(i), path);
+            result = new Route(new RouteId(hops.get(i).getSrc(), dstId),
+                               path);
+            routeCache.put(result, routeCacheGeneration);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("buildroute: {}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Orders links by their destination switch and ports
+     */
+    private static final Comparator<Link> LINK_ORDER = new Comparator<Link>() {
+        @Override
+        public int compare(Link a, Link b) {
+            if (a.getDst() != b.getDst())
+                return (a.getDst() < b.getDst()) ? -1 : 1;
+            if (a.getDstPort() != b.getDstPort())
+                return a.getDstPort() - b.getDstPort();
+            return a.getSrcPort() - b.getSrcPort();
+        }
+    };
+
+    /**
+     * Returns the links from a switch that are on a shortest path to the
+     * destination: the links of the shortest path DAG rooted at the
+     * destination, whose costs decrease strictly along every link so it
+     * has no cycles. The tree link of the switch is one of them.
+     * @param sw
+     * @param dstId
+     * @return the links in the order of their destination switches and
+     * ports, empty if there is no path
+     */
+    protected List<Link> getShortestPathLinks(long sw, long dstId) {
+        BroadcastTree tree = destinationRootedTrees.get(dstId);
+        Cluster c = switchClusterMap.get(sw);
+        if (tree == null || c == null || c.links.get(sw) == null)
+            return Collections.emptyList();
+        int cost = tree.getCost(sw);
+        List<Link> result = new ArrayList<Link>(2);
+        for (Link l: c.links.get(sw)) {
+            if (l.getSrc() != sw || l.getDst() == sw) continue;
+            Integer dstCost = tree.getCosts().get(l.getDst());
+            if (dstCost == null || dstCost >= MAX_PATH_WEIGHT) continue;
+            if (dstCost + getLinkCost(l) == cost)
+                result.add(l);
+        }
+        if (result.size() > 1)
+            Collections.sort(result, LINK_ORDER);
+        return result;
+    }
+
+    /**
+     * Picks the next link towards the destination for the flow of the
+     * given hash among the links on shortest paths. Without utilization
+     * the choice is uniform, otherwise it is weighted by the headroom of
+     * the links.
+     */
+    protected Link selectLink(long sw, long dstId, long hash) {
+        List<Link> links = getShortestPathLinks(sw, dstId);
+        if (links.size() == 1)
+            return links.get(0);
+        if (links.isEmpty())
+            return destinationRootedTrees.get(dstId).getTreeLink(sw);
+
+        Map<Link, Integer> utilization = linkUtilization;
+        if (utilization == null || utilization.isEmpty())
+            return links.get(FlowHash.select(hash, sw, links.size()));
+        int[] weights = new int[links.size()];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            Integer u = utilization.get(links.get(i));
+            // every link keeps a share so flows stay spread
+            weights[i] = 100 - ((u == null) ? 0 : Math.max(0, Math.min(99, u)));
+            total += weights[i];
+        }
+        int r = FlowHash.select(hash, sw, total);
+        int i = 0;
+        while (r >= weights[i])
+            r -= weights[i++];
+        return links.get(i);
+    }
+
+    /**
+     * Returns up to k shortest paths between two switches, all of equal
+     * cost. The first one is the route of getRoute with cookie 0.
+     * @param srcId
+     * @param dstId
+     * @param k
+     * @return the routes, empty if there is none
+     */
+    protected List<Route> getRoutes(long srcId, long dstId, int k) {
+        List<Route> routes = new ArrayList<Route>();
+        if (srcId == dstId || k <= 0) return routes;
+        Route first = getRoute(srcId, dstId, 0);
+        if (first == null) return routes;
+        if (k == 1) {
+            routes.add(first);
+            return routes;
+        }
+        collectRoutes(new RouteId(srcId, dstId), srcId,
+                      new LinkedList<NodePortTuple>(), routes, k);
+        return routes;
+    }
+
+    private void collectRoutes(RouteId id, long sw,
+                               LinkedList<NodePortTuple> path,
+                               List<Route> routes, int k) {
+        if (sw == id.getDst()) {
+            routes.add(new Route(id, new ArrayList<NodePortTuple>(path)));
+            return;
+        }
+        List<Link> links = new ArrayList<Link>(
+                getShortestPathLinks(sw, id.getDst()));
+        // the tree link first, so the first route is the default one
+        Link treeLink =
+                destinationRootedTrees.get(id.getDst()).getTreeLink(sw);
+        if (links.remove(treeLink))
+            links.add(0, treeLink);
+        for (Link l: links) {
+            if (routes.size() >= k) return;
+            path.addLast(new NodePortTuple(l.getSrc(), l.getSrcPort()));
+            path.addLast(new NodePortTuple(l.getDst(), l.getDstPort()));
+            collectRoutes(id, l.getDst(), path, routes, k);
+            path.removeLast();
+            path.removeLast();
+        }
+    }
+
     protected int getCost(long srcId, long dstId) {
         BroadcastTree bt = destinationRootedTrees.get(dstId);
         if (bt == null) return -1;
@@ -674,7 +910,7 @@ public class TopologyInstance {
 
         List<NodePortTuple> nptList;
         NodePortTuple npt;
-        Route r = getRoute(srcId, dstId, 0);
+        Route r = getRoute(srcId, dstId, cookie);
         if (r == null && srcId != dstId) return null;
 
         if (r != null) {
@@ -693,22 +929,35 @@ public class TopologyInstance {
     }
 
     // NOTE: Return a null route if srcId equals dstId.  The null route
-    // need not be stored in the cache.  Moreover, the LoadingCache will
-    // throw an exception if null route is returned.
+    // need not be stored in the cache.
+    // The cached routes are those of the latest instance, so an instance
+    // that has been replaced builds its routes.
+    // A cookie other than 0 is the hash of a flow, which selects one of
+    // the equal cost paths.  Such routes are not cached.
     protected Route getRoute(long srcId, long dstId, long cookie) {
         // Return null route if srcId equals dstId
         if (srcId == dstId) return null;
 
 
-        RouteId id = new RouteId(srcId, dstId);
         Route result = null;
-
-        try {
-            result = pathcache.get(id);
-        } catch (Exception e) {
-            log.error("{}", e);
+        if (cookie != 0) {
+            result = buildroute(new RouteId(srcId, dstId, cookie));
+            if (log.isTraceEnabled()) {
+                log.trace("getRoute: {}/{} -> {}",
+                          new Object[] {srcId, dstId, result});
+            }
+            return result;
         }
 
+        // not computed yet
+        if (routeCache == null) return null;
+
+        RouteId id = new RouteId(srcId, dstId);
+        if (routeCacheGeneration == routeCache.getGeneration())
+            result = routeCache.get(id);
+        if (result == null)
+            result = buildroute(id);
+
         if (log.isTraceEnabled()) {
             log.trace("getRoute: {} -> {}", id, result);
         }
@@ -18,6 +18,7 @@ package net.floodlightcontroller.topology;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -63,6 +64,7 @@ import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.packet.BSN;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.LLDP;
+import net.floodlightcontroller.packet.PacketView;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.Link;
@@ -143,6 +145,22 @@ public class TopologyManager implements
     protected TopologyInstance currentInstance;
     protected TopologyInstance currentInstanceWithoutTunnels;
 
+    // The routes returned by getRoutes at most
+    protected static final int MAX_ROUTES = 16;
+    // Utilization of links in percent, shared by the topology instances
+    protected volatile Map<Link, Integer> linkUtilization;
+
+    // Costs of links from port statistics, if the "linkcostinterval"
+    // option is set
+    protected LinkCostProvider linkCostProvider;
+    protected SingletonTask linkCostTask;
+    protected int linkCostIntervalMs;
+    protected volatile boolean linkCostsUpdated;
+
+    // Default routes, kept across topology instances as long as they
+    // follow the shortest path trees, within the "routecachemb" option
+    protected RouteCache routeCache;
+
     protected SingletonTask newInstanceTask;
     private Date lastUpdateTime;
 
@@ -170,6 +188,10 @@ public class TopologyManager implements
      */
     protected static final String PACKAGE = TopologyManager.class.getPackage().getName();
     protected IDebugCounter ctrIncoming;
+    protected IDebugCounter ctrRouteCacheHit;
+    protected IDebugCounter ctrRouteCacheMiss;
+    protected IDebugCounter ctrRouteCacheEviction;
+    protected IDebugCounter ctrRouteCacheInvalidation;
 
     /**
      * Debug Events
@@ -294,9 +316,38 @@ public class TopologyManager implements
         }
     }
 
+    /**
+     * Polls the port statistics for the link costs. Routes are computed
+     * again by the topology task, and only if a cost changed.
+     */
+    protected class LinkCostWorker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                if (floodlightProvider.getRole() != Role.SLAVE) {
+                    if (linkCostProvider.poll())
+                        linkCostsUpdated = true;
+                    setLinkUtilization(linkCostProvider.getUtilization());
+                }
+            } catch (Exception e) {
+                log.error("Error in link cost task thread", e);
+            } finally {
+                linkCostTask.reschedule(linkCostIntervalMs,
+                                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
     // To be used for adding any periodic events that's required by topology.
     protected void handleMiscellaneousPeriodicEvents() {
-        return;
+        if (linkCostsUpdated) {
+            linkCostsUpdated = false;
+            linksUpdated = true;
+            if (createNewInstance("link-cost-updates")) {
+                lastUpdateTime = new Date();
+                informListeners(new ArrayList<LDUpdate>());
+            }
+        }
     }
 
     public boolean updateTopology() {
@@ -714,12 +765,30 @@ public class TopologyManager implements
     @Override
     public ArrayList<Route> getRoutes(long srcDpid, long dstDpid,
                                       boolean tunnelEnabled) {
-        // Floodlight supports single path routing now
+        return getRoutes(srcDpid, dstDpid, tunnelEnabled, MAX_ROUTES);
+    }
 
-        // return single path now
-        ArrayList<Route> result=new ArrayList<Route>();
-        result.add(getRoute(srcDpid, dstDpid, 0, tunnelEnabled));
-        return result;
+    @Override
+    public ArrayList<Route> getRoutes(long srcDpid, long dstDpid,
+                                      boolean tunnelEnabled, int k) {
+        TopologyInstance ti = getCurrentInstance(tunnelEnabled);
+        return new ArrayList<Route>(ti.getRoutes(srcDpid, dstDpid, k));
+    }
+
+    /**
+     * Sets the utilization of links, in percent of their capacity. The
+     * flows hashed onto equal cost paths avoid the busier links in
+     * proportion. Links not in the map count as idle.
+     * @param utilization the utilization, or null to spread flows evenly
+     */
+    public void setLinkUtilization(Map<Link, Integer> utilization) {
+        linkUtilization = utilization;
+        TopologyInstance ti = currentInstance;
+        if (ti != null)
+            ti.linkUtilization = utilization;
+        ti = currentInstanceWithoutTunnels;
+        if (ti != null)
+            ti.linkUtilization = utilization;
     }
 
     // ******************
@@ -858,6 +927,41 @@ public class TopologyManager implements
         haListener = new HAListenerDelegate();
         registerTopologyDebugCounters();
         registerTopologyDebugEvents();
+
+        Map<String, String> configOptions = context.getConfigParams(this);
+        long routeCacheBudget = RouteCache.DEFAULT_BUDGET;
+        String option = configOptions.get("routecachemb");
+        if (option != null)
+            routeCacheBudget = Long.parseLong(option) * 1024 * 1024;
+        routeCache = new RouteCache(routeCacheBudget, ctrRouteCacheHit,
+                                    ctrRouteCacheMiss, ctrRouteCacheEviction,
+                                    ctrRouteCacheInvalidation);
+        log.debug("Route cache of {} routes",
+                  routeCacheBudget / RouteCache.ROUTE_BYTES);
+
+        option = configOptions.get("linkcostinterval");
+        if (option != null)
+            linkCostIntervalMs = Integer.parseInt(option) * 1000;
+        if (linkCostIntervalMs > 0) {
+            int[] thresholds = LinkCostProvider.DEFAULT_THRESHOLDS;
+            option = configOptions.get("linkcostthresholds");
+            if (option != null) {
+                String[] values = option.split(",");
+                thresholds = new int[values.length];
+                for (int i = 0; i < values.length; i++)
+                    thresholds[i] = Integer.parseInt(values[i].trim());
+            }
+            option = configOptions.get("linkcosthysteresis");
+            int hysteresis = (option != null) ? Integer.parseInt(option) :
+                    LinkCostProvider.DEFAULT_HYSTERESIS;
+            linkCostProvider = new LinkCostProvider(floodlightProvider,
+                    linkDiscovery, thresholds, hysteresis,
+                    LinkCostProvider.DEFAULT_ALPHA);
+            log.info("Link costs from port statistics every {} s, " +
+                     "utilization thresholds {}%, hysteresis {}%",
+                     new Object[] { linkCostIntervalMs / 1000,
+                                    Arrays.toString(thresholds), hysteresis });
+        }
     }
 
     protected void registerTopologyDebugEvents() throws FloodlightModuleException {
@@ -887,6 +991,11 @@ public class TopologyManager implements
         if (role != Role.SLAVE)
             newInstanceTask.reschedule(TOPOLOGY_COMPUTE_INTERVAL_MS,
                                    TimeUnit.MILLISECONDS);
+        if (linkCostProvider != null) {
+            linkCostTask = new SingletonTask(ses, new LinkCostWorker());
+            linkCostTask.reschedule(linkCostIntervalMs,
+                                    TimeUnit.MILLISECONDS);
+        }
 
         linkDiscovery.addListener(this);
         floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
@@ -903,6 +1012,22 @@ public class TopologyManager implements
             ctrIncoming = debugCounters.registerCounter(PACKAGE, "incoming",
                 "All incoming packets seen by this module",
                 CounterType.ALWAYS_COUNT);
+            ctrRouteCacheHit = debugCounters.registerCounter(PACKAGE,
+                "routecache-hit",
+                "Routes found in the route cache",
+                CounterType.ALWAYS_COUNT);
+            ctrRouteCacheMiss = debugCounters.registerCounter(PACKAGE,
+                "routecache-miss",
+                "Routes not found in the route cache",
+                CounterType.ALWAYS_COUNT);
+            ctrRouteCacheEviction = debugCounters.registerCounter(PACKAGE,
+                "routecache-eviction",
+                "Routes evicted from the route cache for its size",
+                CounterType.ALWAYS_COUNT);
+            ctrRouteCacheInvalidation = debugCounters.registerCounter(PACKAGE,
+                "routecache-invalidation",
+                "Routes removed from the route cache by topology changes",
+                CounterType.ALWAYS_COUNT);
         } catch (CounterException e) {
             throw new FloodlightModuleException(e.getMessage());
         }
@@ -1092,6 +1217,12 @@ public class TopologyManager implements
     protected Command processPacketInMessage(IOFSwitch sw, OFPacketIn pi,
                                              FloodlightContext cntx) {
 
+        PacketView view =
+                IFloodlightProviderService.pvStore.
+                get(cntx,IFloodlightProviderService.CONTEXT_PI_VIEW);
+        if (view.getEtherType() != Ethernet.TYPE_BSN)
+            return dropFilter(sw.getId(), pi, cntx);
+
         // get the packet-in switch.
         Ethernet eth =
                 IFloodlightProviderService.bcStore.
@@ -1240,7 +1371,11 @@ public class TopologyManager implements
                                                    openflowLinks,
                                                    broadcastDomainPorts,
                                                    tunnelPorts);
-        nt.compute();
+        nt.linkUtilization = linkUtilization;
+        nt.routeCache = routeCache;
+        if (linkCostProvider != null)
+            nt.linkWeights = linkCostProvider.getCosts();
+        nt.compute(currentInstance);
         // We set the instances with and without tunnels to be identical.
         // If needed, we may compute them differently.
         currentInstance = nt;
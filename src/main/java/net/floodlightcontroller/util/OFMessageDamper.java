@@ -23,71 +23,33 @@ import java.util.Set;
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IOFSwitch;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
 
 /**
  * Dampens OFMessages sent to an OF switch. A message is only written to 
- * a switch if the same message (as defined by .equals()) has not been written
- * in the last n milliseconds. Timer granularity is based on TimedCache
+ * a switch if the same message (as defined by its wire format) has not
+ * been written in the last n milliseconds. Timer granularity is based on
+ * TimedFingerprintCache
  * @author gregor
  *
  */
 public class OFMessageDamper {
-    /**
-     * An entry in the TimedCache. A cache entry consists of the sent message
-     * as well as the switch to which the message was sent. 
-     * 
-     * NOTE: We currently use the full OFMessage object. To save space, we 
-     * could use a cryptographic hash (e.g., SHA-1). However, this would 
-     * obviously be more time-consuming.... 
-     * 
-     * We also store a reference to the actual IOFSwitch object and /not/
-     * the switch DPID. This way we are guarnteed to not dampen messages if
-     * a switch disconnects and then reconnects.
-     * 
-     * @author gregor
-     */
-    protected static class DamperEntry {
-        OFMessage msg;
-        IOFSwitch sw;
-        public DamperEntry(OFMessage msg, IOFSwitch sw) {
-            super();
-            this.msg = msg;
-            this.sw = sw;
-        }
-        /* (non-Javadoc)
-         * @see java.lang.Object#hashCode()
-         */
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    // serialized messages to fingerprint
+    private static final ThreadLocal<ChannelBuffer> buffers =
+            new ThreadLocal<ChannelBuffer>() {
         @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((msg == null) ? 0 : msg.hashCode());
-            result = prime * result + ((sw == null) ? 0 : sw.hashCode());
-            return result;
+        protected ChannelBuffer initialValue() {
+            return ChannelBuffers.dynamicBuffer(256);
         }
-        /* (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null) return false;
-            if (getClass() != obj.getClass()) return false;
-            DamperEntry other = (DamperEntry) obj;
-            if (msg == null) {
-                if (other.msg != null) return false;
-            } else if (!msg.equals(other.msg)) return false;
-            if (sw == null) {
-                if (other.sw != null) return false;
-            } else if (!sw.equals(other.sw)) return false;
-            return true;
-        }
-        
-      
-    }
-    TimedCache<DamperEntry> cache;
+    };
+
+    TimedFingerprintCache cache;
     EnumSet<OFType> msgTypesToCache;
     /**
      * 
@@ -102,9 +64,51 @@ public class OFMessageDamper {
     public OFMessageDamper(int capacity, 
                            Set<OFType> typesToDampen,  
                            int timeout) {
-        cache = new TimedCache<DamperEntry>(capacity, timeout);
+        cache = new TimedFingerprintCache(capacity, timeout);
         msgTypesToCache = EnumSet.copyOf(typesToDampen);
     }        
+
+    /**
+     * Computes the 64-bit fingerprint of a message sent to a switch: a
+     * hash of the serialized message and the identity of the switch
+     * object. The identity and /not/ the DPID is used, so we are unlikely
+     * to dampen messages if a switch disconnects and then reconnects.
+     * @param sw
+     * @param msg
+     * @return the fingerprint
+     */
+    static long fingerprint(IOFSwitch sw, OFMessage msg) {
+        ChannelBuffer buf = buffers.get();
+        buf.clear();
+        msg.writeTo(buf);
+        int length = buf.writerIndex();
+        long h = System.identityHashCode(sw) * C1;
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+            h = mix(h, buf.getLong(i));
+        if (i < length) {
+            long tail = 0;
+            for (; i < length; i++)
+                tail = (tail << 8) | (buf.getByte(i) & 0xff);
+            h = mix(h, tail);
+        }
+        h ^= length;
+        // murmur3 finalizer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long mix(long h, long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        k *= C2;
+        h ^= k;
+        return Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+    }
     
     /**
      * write the messag to the switch according to our dampening settings
@@ -141,8 +145,7 @@ public class OFMessageDamper {
             return true;
         }
         
-        DamperEntry entry = new DamperEntry(msg, sw);
-        if (cache.update(entry)) {
+        if (cache.update(fingerprint(sw, msg))) {
             // entry exists in cache. Dampening.
             return false; 
         } else {
@@ -0,0 +1,122 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+/**
+ * A TimedCache of 64-bit fingerprints, kept in open-addressed arrays of
+ * primitives instead of a map of objects.
+ *
+ * Time is counted in buckets of about an eighth of the time to live. An
+ * entry is valid for at least the time to live and at most two buckets
+ * longer.
+ *
+ * A fingerprint is looked for in a window of PROBE slots starting at its
+ * hash. A new fingerprint takes the first free or expired slot of the
+ * window, or else the oldest one, so the cache never grows and there is
+ * nothing to rehash. The table is split into segments with a lock each.
+ */
+public class TimedFingerprintCache {
+    // slots a fingerprint may be found in
+    private static final int PROBE = 16;
+    private static final int SEGMENTS = 16;
+    private static final int BUCKETS_PER_TTL = 8;
+
+    private final long bucketMs;
+    private final int ttlBuckets;
+    private final long startTime;
+    private final Segment[] segments;
+
+    private static class Segment {
+        // 0 marks a free slot
+        final long[] fingerprints;
+        final int[] buckets;
+
+        Segment(int slots) {
+            fingerprints = new long[slots];
+            buckets = new int[slots];
+        }
+    }
+
+    /**
+     *
+     * @param capacity the number of fingerprints the cache should be able
+     * to hold. The table has at least twice as many slots.
+     * @param timeToLive specified in milliseconds
+     */
+    public TimedFingerprintCache(int capacity, int timeToLive) {
+        bucketMs = Math.max(1, timeToLive / BUCKETS_PER_TTL);
+        ttlBuckets = (int) ((timeToLive + bucketMs - 1) / bucketMs);
+        startTime = System.currentTimeMillis();
+        int slots = Integer.highestOneBit(Math.max(PROBE,
+                2 * capacity / SEGMENTS - 1)) << 1;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(slots);
+    }
+
+    /**
+     * @return the capacity of the table, in fingerprints
+     */
+    public int getSlots() {
+        return SEGMENTS * segments[0].fingerprints.length;
+    }
+
+    /**
+     * Always try to update the cache and set the last-seen bucket of the
+     * fingerprint.
+     *
+     * @param fingerprint, where 0 is taken as 1
+     * @return true if a valid entry of the fingerprint was present, like
+     * TimedCache.update
+     */
+    public boolean update(long fingerprint) {
+        if (fingerprint == 0)
+            fingerprint = 1;
+        int bucket = (int) ((System.currentTimeMillis() - startTime) /
+                            bucketMs);
+        int hash = (int) (fingerprint ^ (fingerprint >>> 32));
+        Segment segment = segments[hash & (SEGMENTS - 1)];
+        long[] fingerprints = segment.fingerprints;
+        int[] buckets = segment.buckets;
+        int mask = fingerprints.length - 1;
+        int start = (hash >>> 4) & mask;
+
+        synchronized (segment) {
+            int victim = -1;
+            int victimAge = -1;
+            for (int i = 0; i < PROBE; i++) {
+                int slot = (start + i) & mask;
+                long current = fingerprints[slot];
+                int age = (current == 0) ? Integer.MAX_VALUE :
+                        bucket - buckets[slot];
+                if (current == fingerprint) {
+                    if (age <= ttlBuckets)
+                        return true;
+                    buckets[slot] = bucket;
+                    return false;
+                }
+                if (age > victimAge) {
+                    victim = slot;
+                    victimAge = age;
+                }
+            }
+            fingerprints[victim] = fingerprint;
+            buckets[victim] = bucket;
+            return false;
+        }
+    }
+}
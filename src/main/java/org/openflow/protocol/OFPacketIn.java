@@ -20,6 +20,7 @@ package org.openflow.protocol;
 import java.util.Arrays;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.openflow.util.U16;
 import org.openflow.util.U32;
 import org.openflow.util.U8;
@@ -27,6 +28,14 @@ import org.openflow.util.U8;
 /**
  * Represents an ofp_packet_in
  *
+ * A packet-in read with {@link #readFromSlice(ChannelBuffer)} does not copy
+ * its packet data: it keeps a slice of the buffer it was read from, which
+ * is only valid until the buffer is reused for the next frame. The reader
+ * of the frame holds a reference and calls {@link #release()} when done
+ * with it; anyone keeping the message past that must {@link #retain()} it,
+ * and the data is then copied out on release. Reading the data of a
+ * message released by all its holders throws IllegalStateException.
+ *
  * @author David Erickson (daviderickson@cs.stanford.edu) - Feb 8, 2010
  */
 public class OFPacketIn extends OFMessage {
@@ -41,6 +50,10 @@ public class OFPacketIn extends OFMessage {
     protected short inPort;
     protected OFPacketInReason reason;
     protected byte[] packetData;
+    protected ChannelBuffer packetDataBuffer;
+    protected int refCount;
+    // released by all its holders, the packet data is gone
+    protected boolean released;
 
     public OFPacketIn() {
         super();
@@ -70,15 +83,37 @@ public class OFPacketIn extends OFMessage {
      * @return
      */
     public byte[] getPacketData() {
+        checkNotReleased();
+        if (this.packetData == null && this.packetDataBuffer != null) {
+            this.packetData = new byte[this.packetDataBuffer.readableBytes()];
+            this.packetDataBuffer.getBytes(this.packetDataBuffer.readerIndex(),
+                                           this.packetData);
+        }
         return this.packetData;
     }
 
+    /**
+     * Returns the packet data without copying it
+     * @return a buffer over the packet data, to be read before the
+     *         message is released
+     */
+    public ChannelBuffer getPacketDataBuffer() {
+        checkNotReleased();
+        if (this.packetDataBuffer != null)
+            return this.packetDataBuffer.duplicate();
+        if (this.packetData == null)
+            return ChannelBuffers.EMPTY_BUFFER;
+        return ChannelBuffers.wrappedBuffer(this.packetData);
+    }
+
     /**
      * Sets the packet data, and updates the length of this message
      * @param packetData
      */
     public OFPacketIn setPacketData(byte[] packetData) {
         this.packetData = packetData;
+        this.packetDataBuffer = null;
+        this.released = false;
         this.length = U16.t(OFPacketIn.MINIMUM_LENGTH + packetData.length);
         return this;
     }
@@ -144,6 +179,72 @@ public class OFPacketIn extends OFMessage {
         data.readByte(); // pad
         this.packetData = new byte[getLengthU() - MINIMUM_LENGTH];
         data.readBytes(this.packetData);
+        this.packetDataBuffer = null;
+        this.released = false;
+    }
+
+    /**
+     * Reads the message like {@link #readFrom(ChannelBuffer)}, but keeps a
+     * slice of the packet data instead of copying it. The caller holds the
+     * only reference to the message.
+     * @param data the buffer to read from
+     */
+    public void readFromSlice(ChannelBuffer data) {
+        super.readFrom(data);
+        this.bufferId = data.readInt();
+        this.totalLength = data.readShort();
+        this.inPort = data.readShort();
+        this.reason = OFPacketInReason.values()[U8.f(data.readByte())];
+        data.readByte(); // pad
+        this.packetDataBuffer = data.readSlice(getLengthU() - MINIMUM_LENGTH);
+        this.packetData = null;
+        this.refCount = 1;
+        this.released = false;
+    }
+
+    /**
+     * Takes a reference to a message read with
+     * {@link #readFromSlice(ChannelBuffer)}, to keep it past the release of
+     * the buffer it was read from. No-op for other messages.
+     * @return this message
+     */
+    public synchronized OFPacketIn retain() {
+        if (this.packetDataBuffer != null)
+            this.refCount++;
+        return this;
+    }
+
+    /**
+     * Drops a reference to a message read with
+     * {@link #readFromSlice(ChannelBuffer)}. When the reader of the frame
+     * releases it while other references are left, the packet data is
+     * copied out of the frame; either way the message no longer refers to
+     * the frame afterwards. Once the last reference is dropped, the packet
+     * data can no longer be read, unless it was read before. No-op for
+     * other messages.
+     */
+    public synchronized void release() {
+        if (this.packetDataBuffer == null)
+            return;
+        if (--this.refCount > 0)
+            getPacketData();
+        else if (this.packetData == null)
+            this.released = true;
+        this.packetDataBuffer = null;
+    }
+
+    private void checkNotReleased() {
+        if (this.released)
+            throw new IllegalStateException("Packet data of a packet-in " +
+                    "read after its release; retain() it to keep it");
+    }
+
+    /**
+     * @return true if the packet data still refers to the buffer the
+     *         message was read from
+     */
+    public boolean isSliced() {
+        return this.packetDataBuffer != null;
     }
 
     @Override
@@ -154,7 +255,13 @@ public class OFPacketIn extends OFMessage {
         data.writeShort(inPort);
         data.writeByte((byte) reason.ordinal());
         data.writeByte((byte) 0x0); // pad
-        data.writeBytes(this.packetData);
+        checkNotReleased();
+        if (this.packetDataBuffer != null)
+            data.writeBytes(this.packetDataBuffer,
+                            this.packetDataBuffer.readerIndex(),
+                            this.packetDataBuffer.readableBytes());
+        else
+            data.writeBytes(this.packetData);
     }
 
     @Override
@@ -163,7 +270,7 @@ public class OFPacketIn extends OFMessage {
         int result = super.hashCode();
         result = prime * result + bufferId;
         result = prime * result + inPort;
-        result = prime * result + Arrays.hashCode(packetData);
+        result = prime * result + Arrays.hashCode(getPacketData());
         result = prime * result + ((reason == null) ? 0 : reason.hashCode());
         result = prime * result + totalLength;
         return result;
@@ -187,7 +294,7 @@ public class OFPacketIn extends OFMessage {
         if (inPort != other.inPort) {
             return false;
         }
-        if (!Arrays.equals(packetData, other.packetData)) {
+        if (!Arrays.equals(getPacketData(), other.getPacketData())) {
             return false;
         }
         if (reason == null) {
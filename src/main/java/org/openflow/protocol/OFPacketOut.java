@@ -42,6 +42,7 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
     protected short actionsLength;
     protected List<OFAction> actions;
     protected byte[] packetData;
+    protected ChannelBuffer packetDataBuffer;
 
     public OFPacketOut() {
         super();
@@ -63,7 +64,7 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
      * @param bufferId
      */
     public OFPacketOut setBufferId(int bufferId) {
-        if (packetData != null && packetData.length > 0 && bufferId != BUFFER_ID_NONE) {
+        if (getPacketDataLength() > 0 && bufferId != BUFFER_ID_NONE) {
             throw new IllegalArgumentException(
                     "PacketOut should not have both bufferId and packetData set");
         }
@@ -76,9 +77,24 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
      * @return
      */
     public byte[] getPacketData() {
+        if (this.packetData == null && this.packetDataBuffer != null) {
+            this.packetData = new byte[this.packetDataBuffer.readableBytes()];
+            this.packetDataBuffer.getBytes(this.packetDataBuffer.readerIndex(),
+                                           this.packetData);
+        }
         return this.packetData;
     }
 
+    /**
+     * Returns the length of the packet data
+     * @return
+     */
+    public int getPacketDataLength() {
+        if (this.packetDataBuffer != null)
+            return this.packetDataBuffer.readableBytes();
+        return (this.packetData == null) ? 0 : this.packetData.length;
+    }
+
     /**
      * Sets the packet data
      * @param packetData
@@ -89,6 +105,26 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
                     "PacketOut should not have both bufferId and packetData set");
         }
         this.packetData = packetData;
+        this.packetDataBuffer = null;
+        return this;
+    }
+
+    /**
+     * Sets the packet data to that of a packet-in. When the packet-in
+     * still refers to the frame it was read from, so does the packet-out,
+     * which must then be written before the packet-in is released.
+     * @param packetIn
+     */
+    public OFPacketOut setPacketDataFrom(OFPacketIn packetIn) {
+        if (!packetIn.isSliced())
+            return setPacketData(packetIn.getPacketData());
+        ChannelBuffer buffer = packetIn.getPacketDataBuffer();
+        if (buffer.readable() && bufferId != BUFFER_ID_NONE) {
+            throw new IllegalArgumentException(
+                    "PacketOut should not have both bufferId and packetData set");
+        }
+        this.packetData = null;
+        this.packetDataBuffer = buffer;
         return this;
     }
 
@@ -176,6 +212,7 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
         this.actions = this.actionFactory.parseActions(data, getActionsLengthU());
         this.packetData = new byte[getLengthU() - MINIMUM_LENGTH - getActionsLengthU()];
         data.readBytes(this.packetData);
+        this.packetDataBuffer = null;
         validate();
     }
 
@@ -189,13 +226,17 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
         for (OFAction action : actions) {
             action.writeTo(data);
         }
-        if (this.packetData != null)
+        if (this.packetDataBuffer != null)
+            data.writeBytes(this.packetDataBuffer,
+                            this.packetDataBuffer.readerIndex(),
+                            this.packetDataBuffer.readableBytes());
+        else if (this.packetData != null)
             data.writeBytes(this.packetData);
     }
 
     /** validate the invariants of this OFMessage hold */
     public void validate() {
-        if (!((bufferId != BUFFER_ID_NONE) ^ (packetData != null && packetData.length > 0))) {
+        if (!((bufferId != BUFFER_ID_NONE) ^ (getPacketDataLength() > 0))) {
             throw new IllegalStateException(
                     "OFPacketOut must have exactly one of (bufferId, packetData) set (not one, not both)");
         }
@@ -209,7 +250,7 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
         result = prime * result + actionsLength;
         result = prime * result + bufferId;
         result = prime * result + inPort;
-        result = prime * result + Arrays.hashCode(packetData);
+        result = prime * result + Arrays.hashCode(getPacketData());
         return result;
     }
 
@@ -241,7 +282,7 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
         if (inPort != other.inPort) {
             return false;
         }
-        if (!Arrays.equals(packetData, other.packetData)) {
+        if (!Arrays.equals(getPacketData(), other.getPacketData())) {
             return false;
         }
         return true;
@@ -255,6 +296,6 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
         return "OFPacketOut [actionFactory=" + actionFactory + ", actions="
                 + actions + ", actionsLength=" + actionsLength + ", bufferId=0x"
                 + Integer.toHexString(bufferId) + ", inPort=" + inPort + ", packetData="
-                + HexString.toHexString(packetData) + "]";
+                + HexString.toHexString(getPacketData()) + "]";
     }
 }
@@ -204,7 +204,7 @@ public class OFPhysicalPort {
 
         private long speedInBps;
         private PortSpeed(int speedInMbps) {
-            this.speedInBps = speedInMbps * 1000*1000;
+            this.speedInBps = speedInMbps * 1000L * 1000;
         }
 
         public long getSpeedBps() {
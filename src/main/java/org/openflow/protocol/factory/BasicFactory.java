@@ -22,6 +22,7 @@ import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionType;
@@ -75,12 +76,18 @@ public enum BasicFactory implements OFMessageFactory, OFActionFactory,
 
     @Override
     public List<OFMessage> parseMessage(ChannelBuffer data) throws MessageParseException {
+        return parseMessage(data, false);
+    }
+
+    @Override
+    public List<OFMessage> parseMessage(ChannelBuffer data, boolean zeroCopy)
+            throws MessageParseException {
         List<OFMessage> msglist = new ArrayList<OFMessage>();
         OFMessage msg = null;
 
         while (data.readableBytes() >= OFMessage.MINIMUM_LENGTH) {
             data.markReaderIndex();
-            msg = this.parseMessageOne(data);
+            msg = this.parseMessageOne(data, zeroCopy);
             if (msg == null) {
                 data.resetReaderIndex();
                 break;
@@ -98,6 +105,11 @@ public enum BasicFactory implements OFMessageFactory, OFActionFactory,
     }
 
     public OFMessage parseMessageOne(ChannelBuffer data) throws MessageParseException {
+        return parseMessageOne(data, false);
+    }
+
+    public OFMessage parseMessageOne(ChannelBuffer data, boolean zeroCopy)
+            throws MessageParseException {
         try {
             OFMessage demux = new OFMessage();
             OFMessage ofm = null;
@@ -117,7 +129,10 @@ public enum BasicFactory implements OFMessageFactory, OFActionFactory,
                 return null;
 
             injectFactories(ofm);
-            ofm.readFrom(data);
+            if (zeroCopy && ofm instanceof OFPacketIn)
+                ((OFPacketIn) ofm).readFromSlice(data);
+            else
+                ofm.readFrom(data);
             if (OFMessage.class.equals(ofm.getClass())) {
                 // advance the position for un-implemented messages
                 data.readerIndex(data.readerIndex()+(ofm.getLengthU() -
@@ -47,6 +47,19 @@ public interface OFMessageFactory {
      */
     public List<OFMessage> parseMessage(ChannelBuffer data) throws MessageParseException;
 
+    /**
+     * Parses like {@link #parseMessage(ChannelBuffer)}, optionally leaving
+     * the packet data of packet-ins in the buffer
+     * @param data the ChannelBuffer to parse for an OpenFlow message
+     * @param zeroCopy if true, packet-ins are read with
+     *        {@link org.openflow.protocol.OFPacketIn#readFromSlice(ChannelBuffer)}
+     *        and must be released before the buffer is reused
+     * @return a list of OFMessage instances
+     * @throws MessageParseException
+     */
+    public List<OFMessage> parseMessage(ChannelBuffer data, boolean zeroCopy)
+            throws MessageParseException;
+
     /**
      * Retrieves an OFActionFactory
      * @return an OFActionFactory
@@ -0,0 +1,143 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Benchmark of listener chains using the context the way the packet-in
+ * listeners do: every listener reads what the listeners before it put,
+ * then puts its own decision. Each event gets a pooled context that is
+ * reset afterwards, and the same chains are run over a
+ * ConcurrentHashMap-backed context for comparison. Not a unit test; run
+ * it with the test classpath:
+ * <pre>
+ * java -cp ... net.floodlightcontroller.core.FloodlightContextBenchmark [millis]
+ * </pre>
+ * where millis is the measured time per case (default 1000). Each case is
+ * warmed up for half that time first.
+ */
+public class FloodlightContextBenchmark {
+    private static final int[] LISTENERS = { 2, 4, 8, 16 };
+    // context reads of every listener
+    private static final int READS = 4;
+
+    private static volatile int sink;
+
+    private static abstract class Chain {
+        final String[] keys;
+
+        Chain(int nListeners) {
+            keys = new String[nListeners];
+            for (int i = 0; i < nListeners; i++)
+                keys[i] = "net.floodlightcontroller.benchmark.Listener" + i +
+                          ".decision";
+        }
+
+        /**
+         * Runs one event through the chain
+         * @return a value depending on what was read
+         */
+        abstract int event(Integer value);
+    }
+
+    private static class SlotChain extends Chain {
+        // a store per listener, as every module has its own
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final FloodlightContextStore<Integer>[] stores =
+                new FloodlightContextStore[keys.length];
+        final FloodlightContext cntx = new FloodlightContext();
+
+        SlotChain(int nListeners) {
+            super(nListeners);
+            for (int i = 0; i < nListeners; i++)
+                stores[i] = new FloodlightContextStore<Integer>();
+        }
+
+        @Override
+        int event(Integer value) {
+            int h = 0;
+            for (int i = 0; i < keys.length; i++) {
+                for (int r = 1; r <= READS; r++) {
+                    Integer v = (i >= r) ?
+                            stores[i - r].get(cntx, keys[i - r]) : null;
+                    if (v != null)
+                        h += v;
+                }
+                stores[i].put(cntx, keys[i], value);
+            }
+            cntx.reset();
+            return h;
+        }
+    }
+
+    private static class MapChain extends Chain {
+        final ConcurrentHashMap<String, Object> storage =
+                new ConcurrentHashMap<String, Object>();
+
+        MapChain(int nListeners) {
+            super(nListeners);
+        }
+
+        @Override
+        int event(Integer value) {
+            int h = 0;
+            for (int i = 0; i < keys.length; i++) {
+                for (int r = 1; r <= READS; r++) {
+                    Integer v = (i >= r) ?
+                            (Integer) storage.get(keys[i - r]) : null;
+                    if (v != null)
+                        h += v;
+                }
+                storage.put(keys[i], value);
+            }
+            storage.clear();
+            return h;
+        }
+    }
+
+    private static long run(Chain chain, long millis) {
+        Integer value = Integer.valueOf(1);
+        long end = System.currentTimeMillis() + millis;
+        long n = 0;
+        int h = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 1024; i++)
+                h += chain.event(value);
+            n += 1024;
+        }
+        sink += h;
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+
+        System.out.println("context   listeners     events/s");
+        for (int nListeners : LISTENERS) {
+            Chain[] chains = { new SlotChain(nListeners),
+                               new MapChain(nListeners) };
+            for (Chain chain : chains) {
+                run(chain, millis / 2);
+                long events = run(chain, millis);
+                System.out.println(String.format("%-9s %9d %12d",
+                        (chain instanceof SlotChain) ? "slots" : "map",
+                        nListeners, events * 1000 / millis));
+            }
+        }
+    }
+}
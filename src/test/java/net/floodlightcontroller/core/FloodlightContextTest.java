@@ -0,0 +1,83 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FloodlightContextTest {
+    @Test
+    public void testStore() {
+        FloodlightContextStore<String> store =
+                new FloodlightContextStore<String>();
+        FloodlightContext cntx = new FloodlightContext();
+
+        assertNull(store.get(cntx, "test.a"));
+        store.put(cntx, "test.a", "a");
+        store.put(cntx, "test.b", "b");
+        // keys are compared by value, not identity
+        assertEquals("a", store.get(cntx, new String("test.a")));
+        assertEquals("b", store.get(cntx, "test.b"));
+        assertEquals(FloodlightContext.getSlot("test.a"),
+                     FloodlightContext.getSlot(new String("test.a")));
+
+        store.remove(cntx, "test.a");
+        assertNull(store.get(cntx, "test.a"));
+        Map<String, Object> storage = cntx.getStorage();
+        assertEquals(1, storage.size());
+        assertEquals("b", storage.get("test.b"));
+
+        cntx.reset();
+        assertNull(store.get(cntx, "test.b"));
+        assertTrue(cntx.getStorage().isEmpty());
+    }
+
+    @Test
+    public void testManySlots() {
+        FloodlightContextStore<Integer> store =
+                new FloodlightContextStore<Integer>();
+        FloodlightContext cntx = new FloodlightContext();
+
+        // more slots than the context starts with, set and removed
+        // repeatedly so the used slots are compacted
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.put(cntx, "test.many." + i, i);
+                if (i % 2 == 0)
+                    store.remove(cntx, "test.many." + i);
+            }
+            for (int i = 0; i < 100; i++) {
+                Integer value = store.get(cntx, "test.many." + i);
+                if (i % 2 == 0)
+                    assertNull(value);
+                else
+                    assertEquals(Integer.valueOf(i), value);
+            }
+            assertEquals(50, cntx.getStorage().size());
+        }
+
+        cntx.reset();
+        for (int i = 0; i < 100; i++)
+            assertNull(store.get(cntx, "test.many." + i));
+        assertTrue(cntx.getStorage().isEmpty());
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.floodlightcontroller.core.internal.OFSwitchImpl;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.IAnswer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.channel.Channel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFVendor;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.factory.BasicFactory;
+
+public class OFWriteQueueTest {
+    private Capture<Object> writes;
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    private OFSwitchImpl sw;
+    private OFWriteQueue queue;
+
+    @Before
+    public void setUp() {
+        writes = new Capture<Object>(CaptureType.ALL);
+        Channel channel = createMock(Channel.class);
+        expect(channel.write(capture(writes))).andReturn(null).anyTimes();
+        expect(channel.isWritable()).andAnswer(new IAnswer<Boolean>() {
+            @Override
+            public Boolean answer() {
+                return writable.get();
+            }
+        }).anyTimes();
+        replay(channel);
+        sw = new OFSwitchImpl();
+        sw.setChannel(channel);
+        sw.setConnected(true);
+        queue = new OFWriteQueue(sw);
+        OFWriteQueue.trackWrites();
+    }
+
+    @After
+    public void tearDown() {
+        OFWriteQueue.flushAll();
+        OFWriteQueue.setPolicy(OFWriteQueue.DEFAULT_MAX_MESSAGES,
+                               OFWriteQueue.DEFAULT_MAX_BYTES,
+                               OFWriteQueue.DEFAULT_DEADLINE_US);
+        OFWriteQueue.setBufferFactory(null);
+    }
+
+    private OFFlowMod flowMod(int xid) {
+        OFFlowMod fm = new OFFlowMod();
+        fm.setMatch(new OFMatch());
+        fm.setXid(xid);
+        return fm;
+    }
+
+    /**
+     * @return the xids of the messages of a write
+     */
+    private int[] written(int write) throws Exception {
+        List<OFMessage> msgs = BasicFactory.getInstance()
+                .parseMessage((ChannelBuffer) writes.getValues().get(write));
+        int[] xids = new int[msgs.size()];
+        for (int i = 0; i < xids.length; i++)
+            xids[i] = msgs.get(i).getXid();
+        return xids;
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        // a long deadline, so only the other rules write
+        OFWriteQueue.setPolicy(3, 1 << 20, 1000000);
+
+        // not held back when the queue was idle
+        queue.write(flowMod(1));
+        assertEquals(1, writes.getValues().size());
+
+        // written when the batch is full
+        queue.write(flowMod(2));
+        queue.write(flowMod(3));
+        assertEquals(1, writes.getValues().size());
+        queue.write(flowMod(4));
+        assertEquals(2, writes.getValues().size());
+        assertEquals("[2, 3, 4]", Arrays.toString(written(1)));
+
+        // other messages are written with the ones queued before them
+        queue.write(flowMod(5));
+        OFBarrierRequest barrier = new OFBarrierRequest();
+        barrier.setXid(6);
+        queue.write(barrier);
+        assertEquals("[5, 6]", Arrays.toString(written(2)));
+
+        // and by the thread that wrote them when it flushes
+        queue.write(flowMod(7));
+        assertEquals(3, writes.getValues().size());
+        OFWriteQueue.flushAll();
+        assertEquals("[7]", Arrays.toString(written(3)));
+
+        assertEquals(4L, queue.getStats().get("batches"));
+        assertEquals(7L, queue.getStats().get("messages"));
+        assertEquals(3, queue.getStats().get("max-batch"));
+        assertEquals(1L, queue.getStats().get("flush-size"));
+        assertEquals(1L, queue.getStats().get("flush-explicit"));
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        OFWriteQueue.setPolicy(100, 3 * OFFlowMod.MINIMUM_LENGTH, 1000000);
+        queue.write(flowMod(1));
+        queue.write(flowMod(2));
+        queue.write(flowMod(3));
+        assertEquals(1, writes.getValues().size());
+        queue.write(flowMod(4));
+        assertEquals("[2, 3, 4]", Arrays.toString(written(1)));
+        assertEquals(1L, queue.getStats().get("flush-bytes"));
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        OFWriteQueue.setPolicy(100, 1 << 20, 1000);
+        queue.write(flowMod(1));
+        queue.write(flowMod(2));
+        assertEquals(1, writes.getValues().size());
+
+        // written by the flusher without anybody flushing
+        long end = System.currentTimeMillis() + 5000;
+        while (writes.getValues().size() < 2 &&
+               System.currentTimeMillis() < end)
+            Thread.sleep(1);
+        assertEquals("[2]", Arrays.toString(written(1)));
+        assertEquals(1L, queue.getStats().get("flush-deadline"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> lane(String name) {
+        return (Map<String, Object>) queue.getStats().get(name);
+    }
+
+    @Test
+    public void testLanes() throws Exception {
+        OFWriteQueue.setPolicy(100, 1 << 20, 1000000);
+        queue.write(flowMod(1));
+        writable.set(false);
+
+        // interactive messages are held back while the channel is full,
+        // control messages are not
+        queue.write(flowMod(2));
+        OFBarrierRequest barrier = new OFBarrierRequest();
+        barrier.setXid(3);
+        queue.write(barrier);
+        OFEchoRequest echo = new OFEchoRequest();
+        echo.setXid(4);
+        queue.write(echo);
+        List<OFMessage> bulk = new ArrayList<OFMessage>();
+        bulk.add(flowMod(5));
+        bulk.add(flowMod(6));
+        queue.writeBulk(bulk);
+        assertEquals(2, writes.getValues().size());
+        assertEquals("[4]", Arrays.toString(written(1)));
+        assertEquals(2L, lane("interactive").get("held"));
+        assertEquals(2L, lane("bulk").get("held"));
+
+        // and written once it drained, interactive ones first
+        writable.set(true);
+        queue.flush();
+        assertEquals(4, writes.getValues().size());
+        assertEquals("[2, 3]", Arrays.toString(written(2)));
+        assertEquals("[5, 6]", Arrays.toString(written(3)));
+        assertEquals(1L, lane("control").get("written"));
+        assertEquals(3L, lane("interactive").get("written"));
+        assertEquals(2L, lane("bulk").get("written"));
+        assertEquals(0, lane("bulk").get("held-bytes"));
+    }
+
+    @Test
+    public void testInteractiveDrops() throws Exception {
+        writable.set(false);
+        OFWriteQueue.setPolicy(1, 1 << 20, 1000000);
+        int n = OFWriteQueue.INTERACTIVE_LIMIT / OFFlowMod.MINIMUM_LENGTH;
+        for (int i = 0; i < n + 10; i++)
+            queue.write(flowMod(i));
+        assertEquals(0, writes.getValues().size());
+        assertEquals((long) n, lane("interactive").get("held"));
+        assertEquals(10L, lane("interactive").get("drops"));
+    }
+
+    @Test
+    public void testControlMessagesNotDropped() throws Exception {
+        writable.set(false);
+        OFWriteQueue.setPolicy(1, 1 << 20, 1000000);
+        int n = OFWriteQueue.INTERACTIVE_LIMIT / OFFlowMod.MINIMUM_LENGTH;
+        for (int i = 0; i < n + 10; i++)
+            queue.write(flowMod(i));
+        // a packet-out filling the lane up to the limit
+        byte[] data = new byte[OFWriteQueue.INTERACTIVE_LIMIT -
+                               n * OFFlowMod.MINIMUM_LENGTH -
+                               OFPacketOut.MINIMUM_LENGTH];
+        OFPacketOut po = new OFPacketOut();
+        po.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        po.setActions(new ArrayList<OFAction>());
+        po.setActionsLength((short) 0);
+        po.setPacketData(data);
+        po.setLength((short) (OFPacketOut.MINIMUM_LENGTH + data.length));
+        po.setXid(n + 9);
+        queue.write(po);
+
+        // a role request and a barrier beyond the limit are held anyway
+        OFVendor role = new OFVendor();
+        role.setXid(n + 10);
+        queue.write(role);
+        OFBarrierRequest barrier = new OFBarrierRequest();
+        barrier.setXid(n + 11);
+        queue.write(barrier);
+        assertEquals(10L, lane("interactive").get("drops"));
+        assertEquals((long) n + 3, lane("interactive").get("held"));
+
+        writable.set(true);
+        queue.flush();
+        List<Integer> xids = new ArrayList<Integer>();
+        for (int i = 0; i < writes.getValues().size(); i++) {
+            for (int xid : written(i))
+                xids.add(xid);
+        }
+        assertEquals(n + 3, xids.size());
+        assertEquals(Integer.valueOf(n + 9), xids.get(n));
+        assertEquals(Integer.valueOf(n + 10), xids.get(n + 1));
+        assertEquals(Integer.valueOf(n + 11), xids.get(n + 2));
+    }
+
+    @Test
+    public void testBufferFactory() throws Exception {
+        OFWriteQueue.setPolicy(100, 1 << 20, 1000000);
+        queue.write(flowMod(1));
+        assertFalse(((ChannelBuffer) writes.getValues().get(0)).isDirect());
+
+        // written and held batches come from the factory, sized exactly
+        OFWriteQueue.setBufferFactory(DirectChannelBufferFactory.getInstance());
+        queue.write(flowMod(2));
+        queue.write(flowMod(3));
+        queue.flush();
+        writable.set(false);
+        queue.write(flowMod(4));
+        queue.flush();
+        writable.set(true);
+        queue.flush();
+        assertEquals(3, writes.getValues().size());
+        for (int i = 1; i < 3; i++) {
+            ChannelBuffer buf = (ChannelBuffer) writes.getValues().get(i);
+            assertTrue(buf.isDirect());
+            assertEquals(buf.capacity(), buf.readableBytes());
+        }
+        assertEquals("[2, 3]", Arrays.toString(written(1)));
+        assertEquals("[4]", Arrays.toString(written(2)));
+    }
+
+    @Test
+    public void testBulkBackpressure() throws Exception {
+        writable.set(false);
+        List<OFMessage> bulk = new ArrayList<OFMessage>();
+        int n = OFWriteQueue.BULK_HIGH_WATERMARK / OFFlowMod.MINIMUM_LENGTH + 1;
+        for (int i = 0; i < n; i++)
+            bulk.add(flowMod(i));
+
+        // full at the high water mark; producers wait until it drained
+        assertTrue(queue.awaitCapacity(0));
+        queue.writeBulk(bulk);
+        assertFalse(queue.awaitCapacity(10));
+        Thread drainer = new Thread() {
+            @Override
+            public void run() {
+                writable.set(true);
+                queue.flush();
+            }
+        };
+        drainer.start();
+        assertTrue(queue.awaitCapacity(5000));
+        drainer.join();
+        assertEquals((long) n, lane("bulk").get("written"));
+
+        // a disconnected switch drops what is held and wakes producers up
+        writable.set(false);
+        queue.writeBulk(bulk);
+        assertFalse(queue.awaitCapacity(0));
+        sw.setConnected(false);
+        queue.flush();
+        assertTrue(queue.awaitCapacity(0));
+        assertEquals(0, lane("bulk").get("held-bytes"));
+    }
+
+    @Test
+    public void testHeldPacketOutOfReleasedFrame() throws Exception {
+        byte[] data = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        OFPacketIn in = new OFPacketIn();
+        in.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        in.setInPort((short) 1);
+        in.setReason(OFPacketIn.OFPacketInReason.NO_MATCH);
+        in.setPacketData(data);
+        ChannelBuffer frame = ChannelBuffers.dynamicBuffer();
+        in.writeTo(frame);
+        OFPacketIn pi = new OFPacketIn();
+        pi.readFromSlice(frame);
+
+        OFPacketOut po = new OFPacketOut();
+        po.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+        po.setInPort((short) 1);
+        po.setActions(new ArrayList<OFAction>());
+        po.setActionsLength((short) 0);
+        po.setPacketDataFrom(pi);
+        po.setLength((short) (OFPacketOut.MINIMUM_LENGTH + data.length));
+
+        // held back, then the frame is released and reused
+        writable.set(false);
+        queue.write(po);
+        pi.release();
+        frame.setZero(0, frame.capacity());
+        assertEquals(0, writes.getValues().size());
+
+        writable.set(true);
+        queue.flush();
+        assertEquals(1, writes.getValues().size());
+        List<OFMessage> msgs = BasicFactory.getInstance()
+                .parseMessage((ChannelBuffer) writes.getValues().get(0));
+        assertArrayEquals(data, ((OFPacketOut) msgs.get(0)).getPacketData());
+    }
+}
@@ -70,6 +70,7 @@ import net.floodlightcontroller.storage.memory.MemoryStorageSource;
 import net.floodlightcontroller.test.FloodlightTestCase;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 
+import org.easymock.IMocksControl;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -199,6 +200,7 @@ public class ControllerTest extends FloodlightTestCase {
     @After
     public void tearDown() {
         tp.getScheduledExecutor().shutdownNow();
+        controller.shutdown();
         // Make sure thare are not left over updates in the queue
         assertTrue("Updates left in controller update queue",
                    controller.isUpdateQueueEmptyForTesting());
@@ -1066,7 +1068,9 @@ public class ControllerTest extends FloodlightTestCase {
         IOFSwitchListener listener = createMock(IOFSwitchListener.class);
         controller.addOFSwitchListener(listener);
 
-        replay(sw, listener); // nothing recorded
+        // only the DPID is read, to lock the switch
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        replay(sw, listener);
         controller.switchActivated(sw);
         verify(sw);
         verify(listener);
@@ -1223,6 +1227,117 @@ public class ControllerTest extends FloodlightTestCase {
     }
 
 
+    /**
+     * Switch updates queued together are delivered in one batch: every
+     * listener gets all of them, in order, before the next listener.
+     */
+    @Test
+    public void testSwitchUpdateBatch() throws Exception {
+        IMocksControl ctrl = createStrictControl();
+        IOFSwitchListener listener1 = ctrl.createMock(IOFSwitchListener.class);
+        IOFSwitchListener listener2 = ctrl.createMock(IOFSwitchListener.class);
+        controller.addOFSwitchListener(listener1);
+        controller.addOFSwitchListener(listener2);
+        controller.setAlwaysClearFlowsOnSwActivate(false);
+
+        IOFSwitch sw1 = createMock(IOFSwitch.class);
+        setupSwitchForAddSwitch(sw1, 1L, null, null);
+        sw1.clearAllFlowMods();
+        expectLastCall().anyTimes();
+        IOFSwitch sw2 = createMock(IOFSwitch.class);
+        setupSwitchForAddSwitch(sw2, 2L, null, null);
+        sw2.clearAllFlowMods();
+        expectLastCall().anyTimes();
+        replay(sw1, sw2);
+
+        for (IOFSwitchListener listener: new IOFSwitchListener[] { listener1,
+                                                                   listener2 }) {
+            listener.switchAdded(1L);
+            listener.switchActivated(1L);
+            listener.switchAdded(2L);
+            listener.switchActivated(2L);
+        }
+        ctrl.replay();
+        controller.switchActivated(sw1);
+        controller.switchActivated(sw2);
+        controller.processUpdateQueueForTesting();
+        ctrl.verify();
+    }
+
+    /**
+     * A listener failing on an update of a batch still gets the other
+     * updates, and the other listeners all of them
+     */
+    @Test
+    public void testSwitchUpdateBatchListenerException() throws Exception {
+        IMocksControl ctrl = createStrictControl();
+        IOFSwitchListener listener1 = ctrl.createMock(IOFSwitchListener.class);
+        IOFSwitchListener listener2 = ctrl.createMock(IOFSwitchListener.class);
+        controller.addOFSwitchListener(listener1);
+        controller.addOFSwitchListener(listener2);
+        controller.setAlwaysClearFlowsOnSwActivate(false);
+
+        IOFSwitch sw1 = createMock(IOFSwitch.class);
+        setupSwitchForAddSwitch(sw1, 1L, null, null);
+        sw1.clearAllFlowMods();
+        expectLastCall().anyTimes();
+        IOFSwitch sw2 = createMock(IOFSwitch.class);
+        setupSwitchForAddSwitch(sw2, 2L, null, null);
+        sw2.clearAllFlowMods();
+        expectLastCall().anyTimes();
+        replay(sw1, sw2);
+
+        listener1.switchAdded(1L);
+        expectLastCall().andThrow(new RuntimeException("listener failure"));
+        listener1.switchActivated(1L);
+        listener1.switchAdded(2L);
+        listener1.switchActivated(2L);
+        listener2.switchAdded(1L);
+        listener2.switchActivated(1L);
+        listener2.switchAdded(2L);
+        listener2.switchActivated(2L);
+        ctrl.replay();
+        controller.switchActivated(sw1);
+        controller.switchActivated(sw2);
+        controller.processUpdateQueueForTesting();
+        ctrl.verify();
+    }
+
+    /**
+     * Switches activated concurrently all end up active and in the store
+     */
+    @Test
+    public void testConcurrentSwitchActivation() throws Exception {
+        final int nSwitches = 64;
+        final IOFSwitch[] switches = new IOFSwitch[nSwitches];
+        for (int i = 0; i < nSwitches; i++) {
+            switches[i] = createNiceMock(IOFSwitch.class);
+            setupSwitchForAddSwitch(switches[i], i + 1, null, null);
+            replay(switches[i]);
+        }
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < nSwitches; i += 4)
+                        controller.switchActivated(switches[i]);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread: threads)
+            thread.join();
+
+        assertEquals(nSwitches, controller.getAllSwitchDpids().size());
+        for (int i = 0; i < nSwitches; i++) {
+            assertEquals(switches[i], controller.getSwitch(i + 1));
+            assertNotNull(storeClient.getValue((long) (i + 1)));
+        }
+        controller.processUpdateQueueForTesting();
+    }
+
     /**
      * add switch to store then remove it again while slave.
      * should get notification and switch should be added and then removed
@@ -328,9 +328,11 @@ public class OFChannelHandlerTest {
 
         handler.channelConnected(ctx, channelStateEvent);
 
+        // the features request is pipelined with the HELLO
         List<OFMessage> msgs = getMessagesFromCapture();
-        assertEquals(1, msgs.size());
+        assertEquals(2, msgs.size());
         assertEquals(OFType.HELLO, msgs.get(0).getType());
+        assertEquals(OFType.FEATURES_REQUEST, msgs.get(1).getType());
         assertEquals(OFChannelHandler.ChannelState.WAIT_HELLO,
                      handler.getStateForTesting());
         verifyUniqueXids(msgs);
@@ -344,18 +346,12 @@ public class OFChannelHandlerTest {
     public void moveToWaitFeaturesReply() throws Exception {
         moveToWaitHello();
         resetChannel();
-        channel.write(capture(writeCapture));
-        expectLastCall().andReturn(null).atLeastOnce();
         replay(channel);
 
+        // nothing to send, the features request went with the HELLO
         OFMessage hello = BasicFactory.getInstance().getMessage(OFType.HELLO);
         sendMessageToHandlerWithControllerReset(Collections.singletonList(hello));
 
-        List<OFMessage> msgs = getMessagesFromCapture();
-        assertEquals(1, msgs.size());
-        assertEquals(OFType.FEATURES_REQUEST, msgs.get(0).getType());
-        verifyUniqueXids(msgs);
-
         assertEquals(OFChannelHandler.ChannelState.WAIT_FEATURES_REPLY,
                      handler.getStateForTesting());
     }
@@ -375,13 +371,20 @@ public class OFChannelHandlerTest {
 
         sendMessageToHandlerWithControllerReset(Collections.<OFMessage>singletonList(featuresReply));
 
+        // the description request is pipelined with the config requests
         List<OFMessage> msgs = getMessagesFromCapture();
-        assertEquals(3, msgs.size());
+        assertEquals(4, msgs.size());
         assertEquals(OFType.SET_CONFIG, msgs.get(0).getType());
         OFSetConfig sc = (OFSetConfig)msgs.get(0);
         assertEquals((short)0xffff, sc.getMissSendLength());
         assertEquals(OFType.BARRIER_REQUEST, msgs.get(1).getType());
         assertEquals(OFType.GET_CONFIG_REQUEST, msgs.get(2).getType());
+        assertEquals(OFType.STATS_REQUEST, msgs.get(3).getType());
+        OFStatisticsRequest sr = (OFStatisticsRequest)msgs.get(3);
+        assertEquals(OFStatisticsType.DESC, sr.getStatisticType());
+        // no idea why an  OFStatisticsRequest even /has/ a getStatistics()
+        // methods. It really shouldn't
+        assertNull(sr.getStatistics());
         verifyUniqueXids(msgs);
         assertEquals(OFChannelHandler.ChannelState.WAIT_CONFIG_REPLY,
                      handler.getStateForTesting());
@@ -395,25 +398,15 @@ public class OFChannelHandlerTest {
     public void moveToWaitDescriptionStatReply() throws Exception {
         moveToWaitConfigReply();
         resetChannel();
-        channel.write(capture(writeCapture));
-        expectLastCall().andReturn(null).atLeastOnce();
         replay(channel);
 
         OFGetConfigReply cr = (OFGetConfigReply)BasicFactory.getInstance()
                 .getMessage(OFType.GET_CONFIG_REPLY);
         cr.setMissSendLength((short)0xffff);
 
+        // nothing to send, the description request went already
         sendMessageToHandlerWithControllerReset(Collections.<OFMessage>singletonList(cr));
 
-        List<OFMessage> msgs = getMessagesFromCapture();
-        assertEquals(1, msgs.size());
-        assertEquals(OFType.STATS_REQUEST, msgs.get(0).getType());
-        OFStatisticsRequest sr = (OFStatisticsRequest)msgs.get(0);
-        assertEquals(OFStatisticsType.DESC, sr.getStatisticType());
-        // no idea why an  OFStatisticsRequest even /has/ a getStatistics()
-        // methods. It really shouldn't
-        assertNull(sr.getStatistics());
-        verifyUniqueXids(msgs);
         assertEquals(OFChannelHandler.ChannelState.WAIT_DESCRIPTION_STAT_REPLY,
                      handler.getStateForTesting());
     }
@@ -708,6 +701,111 @@ public class OFChannelHandlerTest {
         //-------------------------------------------------
     }
 
+    /** Without pipelining the features request waits for the HELLO */
+    @Test
+    public void testSequentialHandshake() throws Exception {
+        handler.setPipelinedHandshake(false);
+        resetChannel();
+        channel.write(capture(writeCapture));
+        expectLastCall().andReturn(null).atLeastOnce();
+        replay(channel);
+        replay(messageEvent);
+
+        handler.channelConnected(ctx, channelStateEvent);
+        List<OFMessage> msgs = getMessagesFromCapture();
+        assertEquals(1, msgs.size());
+        assertEquals(OFType.HELLO, msgs.get(0).getType());
+
+        OFMessage hello = BasicFactory.getInstance().getMessage(OFType.HELLO);
+        sendMessageToHandlerWithControllerReset(Collections.singletonList(hello));
+        msgs = getMessagesFromCapture();
+        assertEquals(1, msgs.size());
+        assertEquals(OFType.FEATURES_REQUEST, msgs.get(0).getType());
+        assertEquals(OFChannelHandler.ChannelState.WAIT_FEATURES_REPLY,
+                     handler.getStateForTesting());
+    }
+
+    /**
+     * A description reply that overtook the config reply is kept until
+     * the config reply came
+     */
+    @Test
+    public void testDescriptionReplyBeforeConfigReply() throws Exception {
+        MockStorageSourceConfig cfg = new MockStorageSourceConfig();
+        cfg.dpid = HexString.toHexString(featuresReply.getDatapathId());
+        cfg.isPresent = false;
+        moveToWaitConfigReply();
+        resetChannel();
+        replay(channel);
+
+        OFStatisticsReply sr = createDescriptionStatsReply();
+        OFDescriptionStatistics desc =
+                (OFDescriptionStatistics) sr.getFirstStatistics();
+        sendMessageToHandlerWithControllerReset(
+                Collections.<OFMessage>singletonList(sr));
+        assertEquals(OFChannelHandler.ChannelState.WAIT_CONFIG_REPLY,
+                     handler.getStateForTesting());
+
+        OFGetConfigReply cr = (OFGetConfigReply)BasicFactory.getInstance()
+                .getMessage(OFType.GET_CONFIG_REPLY);
+        cr.setMissSendLength((short)0xffff);
+        setupMessageEvent(Collections.<OFMessage>singletonList(cr));
+        setupMockStorageSource(cfg);
+
+        setupSwitchForInstantiationWithReset(cfg.dpid);
+        sw.startDriverHandshake();
+        expectLastCall().once();
+        sw.isDriverHandshakeComplete();
+        expectLastCall().andReturn(true).once();
+        replay(sw);
+
+        verify(controller);
+        reset(controller);
+        expect(controller.getDebugCounter()).andReturn(debugCounterService)
+                .once();
+        controller.flushAll();
+        expectLastCall().once();
+        expect(controller.getThreadPoolService())
+                .andReturn(threadPool).once();
+        expect(controller.getOFSwitchInstance(eq(desc)))
+                .andReturn(sw).once();
+        expect(controller.getCoreFlowPriority())
+                .andReturn(CORE_PRIORITY).once();
+        expect(controller.getAccessFlowPriority())
+                .andReturn(ACCESS_PRIORITY).once();
+        controller.addSwitchChannelAndSendInitialRole(handler);
+        expectLastCall().once();
+        expect(controller.getStorageSourceService())
+                .andReturn(storageSource).atLeastOnce();
+        replay(controller);
+
+        handler.messageReceived(ctx, messageEvent);
+
+        assertEquals(OFChannelHandler.ChannelState.WAIT_INITIAL_ROLE,
+                     handler.getStateForTesting());
+        verifyStorageSource();
+    }
+
+    /**
+     * Only a description reply is kept while waiting for the config
+     * reply, other stats replies are illegal as without pipelining
+     */
+    @Test
+    public void testOtherStatsReplyBeforeConfigReply() throws Exception {
+        moveToWaitConfigReply();
+        resetChannel();
+        replay(channel);
+
+        OFStatisticsReply sr = (OFStatisticsReply)BasicFactory.getInstance()
+                .getMessage(OFType.STATS_REPLY);
+        sr.setStatisticType(OFStatisticsType.PORT);
+        sendMessageToHandlerWithControllerReset(
+                Collections.<OFMessage>singletonList(sr));
+        verifyExceptionCaptured(SwitchStateException.class);
+        assertEquals(OFChannelHandler.ChannelState.WAIT_CONFIG_REPLY,
+                     handler.getStateForTesting());
+    }
+
     @Test
     /** Test WaitDescriptionReplyState. No config for switch in storage */
     public void testWaitDescriptionReplyState1() throws Exception {
@@ -0,0 +1,357 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.counter.CounterStore;
+import net.floodlightcontroller.counter.ICounterStoreService;
+import net.floodlightcontroller.debugcounter.DebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugevent.DebugEvent;
+import net.floodlightcontroller.debugevent.IDebugEventService;
+import net.floodlightcontroller.perfmon.IPktInProcessingTimeService;
+import net.floodlightcontroller.perfmon.PktInProcessingTime;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.storage.IStorageSourceService;
+import net.floodlightcontroller.storage.memory.MemoryStorageSource;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.threadpool.ThreadPool;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.openflow.protocol.OFError;
+import org.openflow.protocol.OFError.OFBadRequestCode;
+import org.openflow.protocol.OFError.OFErrorType;
+import org.openflow.protocol.OFFeaturesReply;
+import org.openflow.protocol.OFGetConfigReply;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.statistics.OFDescriptionStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.test.MockSyncService;
+
+/**
+ * Benchmark of the time from N switches connecting to a controller that
+ * just started until all of them are active. Every switch is simulated
+ * by a channel that answers the handshake requests after a round trip
+ * time, and refuses role requests so the switches become master right
+ * away. Like Netty, every channel is served by one of a few I/O threads.
+ * The handshake is run sequentially and pipelined for comparison. Not a
+ * unit test; run it with the test classpath:
+ * <pre>
+ * java -cp ... net.floodlightcontroller.core.internal.OnboardingBenchmark [rttMs] [threads]
+ * </pre>
+ * where rttMs is the round trip time to the switches (default 2) and
+ * threads the number of I/O threads (default 4).
+ */
+public class OnboardingBenchmark {
+    private static final int[] SWITCHES = { 100, 1000 };
+
+    private static final BasicFactory factory = BasicFactory.getInstance();
+
+    private final Controller controller;
+    private final ScheduledExecutorService[] ioThreads;
+    private final long rttMs;
+    private long nextDpid = 1;
+
+    OnboardingBenchmark(long rttMs, int threads) throws Exception {
+        this.rttMs = rttMs;
+        this.controller = createController();
+        ioThreads = new ScheduledExecutorService[threads];
+        for (int i = 0; i < threads; i++)
+            ioThreads[i] = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    private static Controller createController() throws Exception {
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        FloodlightProvider cm = new FloodlightProvider();
+        fmc.addConfigParam(cm, "role", Role.MASTER.toString());
+        Controller controller = (Controller) cm.getServiceImpls()
+                .get(IFloodlightProviderService.class);
+        fmc.addService(IFloodlightProviderService.class, controller);
+
+        MemoryStorageSource memstorage = new MemoryStorageSource();
+        fmc.addService(IStorageSourceService.class, memstorage);
+        RestApiServer restApi = new RestApiServer();
+        fmc.addService(IRestApiService.class, restApi);
+        CounterStore cs = new CounterStore();
+        fmc.addService(ICounterStoreService.class, cs);
+        PktInProcessingTime ppt = new PktInProcessingTime();
+        fmc.addService(IPktInProcessingTimeService.class, ppt);
+        DebugCounter debugCounterService = new DebugCounter();
+        fmc.addService(IDebugCounterService.class, debugCounterService);
+        DebugEvent debugEventService = new DebugEvent();
+        fmc.addService(IDebugEventService.class, debugEventService);
+        ThreadPool tp = new ThreadPool();
+        fmc.addService(IThreadPoolService.class, tp);
+        MockSyncService syncService = new MockSyncService();
+        fmc.addService(ISyncService.class, syncService);
+
+        ppt.init(fmc);
+        restApi.init(fmc);
+        memstorage.init(fmc);
+        tp.init(fmc);
+        debugCounterService.init(fmc);
+        debugEventService.init(fmc);
+        syncService.init(fmc);
+        cm.init(fmc);
+
+        ppt.startUp(fmc);
+        memstorage.startUp(fmc);
+        tp.startUp(fmc);
+        debugCounterService.startUp(fmc);
+        debugEventService.startUp(fmc);
+        syncService.startUp(fmc);
+        cm.startUp(fmc);
+        return controller;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(),
+                                          new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class)
+            return Boolean.TRUE;
+        if (type == int.class)
+            return 0;
+        if (type == long.class)
+            return 0L;
+        return null;
+    }
+
+    /**
+     * A switch at the other end of a channel
+     */
+    private class SimulatedSwitch implements InvocationHandler {
+        final long dpid;
+        final ScheduledExecutorService ioThread;
+        final OFChannelHandler handler;
+        final Channel channel;
+        final ChannelHandlerContext ctx;
+
+        SimulatedSwitch(long dpid, ScheduledExecutorService ioThread,
+                        boolean pipelined) {
+            this.dpid = dpid;
+            this.ioThread = ioThread;
+            this.handler = new OFChannelHandler(controller);
+            handler.setPipelinedHandshake(pipelined);
+            this.channel = proxy(Channel.class, this);
+            this.ctx = proxy(ChannelHandlerContext.class,
+                             new InvocationHandler() {
+                @Override
+                public Object invoke(Object p, Method m, Object[] args) {
+                    if (m.getName().equals("getChannel"))
+                        return channel;
+                    return defaultValue(m.getReturnType());
+                }
+            });
+        }
+
+        void connect() {
+            ioThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.channelConnected(ctx, proxy(
+                                ChannelStateEvent.class, SimulatedSwitch.this));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+
+        // Channel and ChannelStateEvent
+        @Override
+        public Object invoke(Object p, Method m, Object[] args)
+                throws Exception {
+            String name = m.getName();
+            if (name.equals("getChannel"))
+                return channel;
+            if (name.equals("write")) {
+                written(args[0]);
+                return null;
+            }
+            if (name.equals("getRemoteAddress"))
+                return new InetSocketAddress("127.0.0.1", (int) dpid);
+            if (name.equals("hashCode"))
+                return System.identityHashCode(p);
+            if (name.equals("equals"))
+                return p == args[0];
+            if (name.equals("toString"))
+                return "simulated switch " + dpid;
+            return defaultValue(m.getReturnType());
+        }
+
+        @SuppressWarnings("unchecked")
+        private void written(Object out) throws Exception {
+            List<OFMessage> msgs = (out instanceof ChannelBuffer) ?
+                    factory.parseMessage((ChannelBuffer) out) :
+                    (List<OFMessage>) out;
+            final List<OFMessage> replies = new ArrayList<OFMessage>();
+            for (OFMessage m : msgs) {
+                OFMessage reply = reply(m);
+                if (reply != null) {
+                    reply.setXid(m.getXid());
+                    replies.add(reply);
+                }
+            }
+            if (replies.isEmpty())
+                return;
+            ioThread.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    MessageEvent e = proxy(MessageEvent.class,
+                                           new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object p, Method m,
+                                             Object[] args) {
+                            if (m.getName().equals("getMessage"))
+                                return replies;
+                            if (m.getName().equals("getChannel"))
+                                return channel;
+                            return defaultValue(m.getReturnType());
+                        }
+                    });
+                    try {
+                        handler.messageReceived(ctx, e);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            }, rttMs, TimeUnit.MILLISECONDS);
+        }
+
+        private OFMessage reply(OFMessage m) {
+            switch (m.getType()) {
+                case HELLO:
+                    return factory.getMessage(OFType.HELLO);
+                case FEATURES_REQUEST:
+                    OFFeaturesReply fr = (OFFeaturesReply)
+                            factory.getMessage(OFType.FEATURES_REPLY);
+                    fr.setDatapathId(dpid);
+                    fr.setPorts(Collections.<OFPhysicalPort>emptyList());
+                    return fr;
+                case GET_CONFIG_REQUEST:
+                    OFGetConfigReply cr = (OFGetConfigReply)
+                            factory.getMessage(OFType.GET_CONFIG_REPLY);
+                    cr.setMissSendLength((short) 0xffff);
+                    return cr;
+                case STATS_REQUEST:
+                    OFStatisticsReply sr = (OFStatisticsReply)
+                            factory.getMessage(OFType.STATS_REPLY);
+                    sr.setStatisticType(OFStatisticsType.DESC);
+                    OFDescriptionStatistics desc =
+                            new OFDescriptionStatistics();
+                    desc.setDatapathDescription("");
+                    desc.setHardwareDescription("");
+                    desc.setManufacturerDescription("");
+                    desc.setSerialNumber("");
+                    desc.setSoftwareDescription("");
+                    sr.setStatistics(Collections.singletonList(desc));
+                    return sr;
+                case VENDOR:
+                    // the role request
+                    OFError error = (OFError) factory.getMessage(OFType.ERROR);
+                    error.setErrorType(OFErrorType.OFPET_BAD_REQUEST);
+                    error.setErrorCode(OFBadRequestCode.OFPBRC_BAD_VENDOR);
+                    return error;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * @return the time until all the switches were active in milliseconds
+     */
+    long run(int nSwitches, boolean pipelined) throws Exception {
+        List<SimulatedSwitch> switches = new ArrayList<SimulatedSwitch>();
+        for (int i = 0; i < nSwitches; i++)
+            switches.add(new SimulatedSwitch(nextDpid++,
+                    ioThreads[i % ioThreads.length], pipelined));
+
+        long start = System.nanoTime();
+        for (SimulatedSwitch sw : switches)
+            sw.connect();
+        int active = 0;
+        while (active < nSwitches) {
+            Thread.sleep(1);
+            active = 0;
+            for (SimulatedSwitch sw : switches) {
+                if (sw.handler.isHandshakeComplete())
+                    active++;
+            }
+            if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(60))
+                throw new IllegalStateException("Only " + active + " of " +
+                        nSwitches + " switches active after 60s");
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    void shutdown() {
+        for (ScheduledExecutorService e : ioThreads)
+            e.shutdownNow();
+    }
+
+    public static void main(String[] args) throws Exception {
+        long rttMs = (args.length > 0) ? Long.parseLong(args[0]) : 2;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        OnboardingBenchmark benchmark =
+                new OnboardingBenchmark(rttMs, threads);
+
+        // warm up
+        benchmark.run(SWITCHES[0], false);
+        benchmark.run(SWITCHES[0], true);
+
+        System.out.println("handshake   switches   all active (ms)");
+        for (int nSwitches : SWITCHES) {
+            for (boolean pipelined : new boolean[] { false, true }) {
+                long ms = benchmark.run(nSwitches, pipelined);
+                System.out.println(String.format("%-10s %9d %17d",
+                        pipelined ? "pipelined" : "sequential",
+                        nSwitches, ms));
+            }
+        }
+        benchmark.shutdown();
+        System.exit(0);
+    }
+}
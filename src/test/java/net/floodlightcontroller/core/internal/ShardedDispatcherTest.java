@@ -0,0 +1,189 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.internal;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.junit.Test;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+
+public class ShardedDispatcherTest {
+
+    /**
+     * Records the messages dispatched, by switch
+     */
+    protected static class RecordingController extends Controller {
+        final Map<Long, List<Integer>> received =
+                new HashMap<Long, List<Integer>>();
+        int count;
+
+        @Override
+        protected synchronized void handleMessage(IOFSwitch sw, OFMessage m,
+                                                  FloodlightContext bc) {
+            List<Integer> xids = received.get(sw.getId());
+            if (xids == null) {
+                xids = new ArrayList<Integer>();
+                received.put(sw.getId(), xids);
+            }
+            xids.add(m.getXid());
+            count++;
+            notifyAll();
+        }
+
+        @Override
+        void flushAll() {
+        }
+
+        synchronized void await(int n) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (count < n && System.currentTimeMillis() < end)
+                wait(100);
+        }
+    }
+
+    private IOFSwitch createSwitch(long dpid) {
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(dpid).anyTimes();
+        expect(sw.getStringId()).andReturn(Long.toString(dpid)).anyTimes();
+        replay(sw);
+        return sw;
+    }
+
+    private OFPacketIn createPacketIn(int xid, String dst, short etherType) {
+        Ethernet eth = new Ethernet()
+            .setDestinationMACAddress(dst)
+            .setSourceMACAddress("00:00:00:00:00:01")
+            .setEtherType(etherType);
+        OFPacketIn pi = new OFPacketIn();
+        pi.setPacketData(eth.serialize());
+        pi.setXid(xid);
+        return pi;
+    }
+
+    @Test
+    public void testPerSwitchOrdering() throws Exception {
+        RecordingController controller = new RecordingController();
+        ShardedDispatcher dispatcher = new ShardedDispatcher(controller, 2, 1000);
+        IOFSwitch sw1 = createSwitch(1L);
+        IOFSwitch sw2 = createSwitch(2L);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(dispatcher.dispatch(sw1, null, createPacketIn(i,
+                    "00:00:00:00:00:02", Ethernet.TYPE_IPv4)));
+            OFFlowRemoved fr = new OFFlowRemoved();
+            fr.setXid(i);
+            assertTrue(dispatcher.dispatch(sw2, null, fr));
+        }
+        int depth = 0;
+        for (int i = 0; i < dispatcher.getShardCount(); i++)
+            depth += dispatcher.getQueueDepth(i);
+        assertEquals(200, depth);
+
+        dispatcher.start();
+        controller.await(200);
+        dispatcher.shutdown();
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++)
+            expected.add(i);
+        assertEquals(expected, controller.received.get(1L));
+        assertEquals(expected, controller.received.get(2L));
+    }
+
+    @Test
+    public void testShedding() throws Exception {
+        RecordingController controller = new RecordingController();
+        ShardedDispatcher dispatcher = new ShardedDispatcher(controller, 1, 64);
+        IOFSwitch sw = createSwitch(1L);
+
+        // fill half the shard; discovery packets are shed from there on
+        int xid = 0;
+        for (int i = 0; i < 32; i++) {
+            assertTrue(dispatcher.dispatch(sw, null, createPacketIn(xid++,
+                    "00:00:00:00:00:02", Ethernet.TYPE_IPv4)));
+        }
+        assertFalse(dispatcher.dispatch(sw, null, createPacketIn(xid++,
+                "01:80:c2:00:00:0e", Ethernet.TYPE_LLDP)));
+        assertTrue(dispatcher.dispatch(sw, null, createPacketIn(xid++,
+                "ff:ff:ff:ff:ff:ff", Ethernet.TYPE_ARP)));
+
+        // then broadcasts at three quarters
+        for (int i = 0; i < 15; i++) {
+            assertTrue(dispatcher.dispatch(sw, null, createPacketIn(xid++,
+                    "00:00:00:00:00:02", Ethernet.TYPE_IPv4)));
+        }
+        assertFalse(dispatcher.dispatch(sw, null, createPacketIn(xid++,
+                "ff:ff:ff:ff:ff:ff", Ethernet.TYPE_ARP)));
+
+        // then all packet-ins when full, but never other messages
+        for (int i = 0; i < 16; i++) {
+            assertTrue(dispatcher.dispatch(sw, null, createPacketIn(xid++,
+                    "00:00:00:00:00:02", Ethernet.TYPE_IPv4)));
+        }
+        assertFalse(dispatcher.dispatch(sw, null, createPacketIn(xid++,
+                "00:00:00:00:00:02", Ethernet.TYPE_IPv4)));
+        assertTrue(dispatcher.dispatch(sw, null, new OFFlowRemoved()));
+        assertEquals(65, dispatcher.getQueueDepth(0));
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> shard = (Map<String, Object>)
+                dispatcher.getInfo("dispatch").get("shard-0");
+        assertEquals(1L, shard.get("shed-discovery"));
+        assertEquals(1L, shard.get("shed-broadcast"));
+        assertEquals(1L, shard.get("shed-unicast"));
+        assertEquals(0, controller.count);
+    }
+
+    @Test
+    public void testRemoveSwitch() throws Exception {
+        RecordingController controller = new RecordingController();
+        ShardedDispatcher dispatcher = new ShardedDispatcher(controller, 1, 64);
+        IOFSwitch sw1 = createSwitch(1L);
+        IOFSwitch sw2 = createSwitch(2L);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(dispatcher.dispatch(sw1, null, createPacketIn(i,
+                    "00:00:00:00:00:02", Ethernet.TYPE_IPv4)));
+        }
+        OFFlowRemoved fr = new OFFlowRemoved();
+        fr.setXid(10);
+        assertTrue(dispatcher.dispatch(sw2, null, fr));
+
+        // the messages of the disconnected switch are dropped
+        dispatcher.removeSwitch(sw1);
+        assertEquals(1, dispatcher.getQueueDepth(0));
+        dispatcher.start();
+        controller.await(1);
+        dispatcher.shutdown();
+        assertEquals(1, controller.count);
+        assertFalse(controller.received.containsKey(1L));
+    }
+}
@@ -184,8 +184,8 @@ public class PortDownReconciliationTest extends FloodlightTestCase {
         // Captures to hold resulting flowmod delete messages
         wc1 = new Capture<List<OFMessage>>(CaptureType.ALL);
         bc1 = new Capture<FloodlightContext>(CaptureType.ALL);
-        // Capture the parameters passed when sw1.write is invoked
-        sw1.write(capture(wc1), capture(bc1));
+        // Capture the parameters passed when sw1.writeBulk is invoked
+        sw1.writeBulk(capture(wc1), capture(bc1));
         expectLastCall().once();
         replay(sw1);
 
@@ -196,8 +196,8 @@ public class PortDownReconciliationTest extends FloodlightTestCase {
         expect(sw2.queryStatistics(req)).andReturn(results).once();
         wc2 = new Capture<List<OFMessage>>(CaptureType.ALL);
         bc2 = new Capture<FloodlightContext>(CaptureType.ALL);
-        // Capture the parameters passwed when sw1.write is invoked
-        sw2.write(capture(wc2), capture(bc2));
+        // Capture the parameters passwed when sw1.writeBulk is invoked
+        sw2.writeBulk(capture(wc2), capture(bc2));
         expectLastCall().anyTimes();
         replay(sw2);
 
@@ -208,8 +208,8 @@ public class PortDownReconciliationTest extends FloodlightTestCase {
         expect(sw3.queryStatistics(req)).andReturn(results).once();
         wc3 = new Capture<List<OFMessage>>(CaptureType.ALL);
         bc3 = new Capture<FloodlightContext>(CaptureType.ALL);
-        // Capture the parameters passwed when sw1.write is invoked
-        sw3.write(capture(wc3), capture(bc3));
+        // Capture the parameters passwed when sw1.writeBulk is invoked
+        sw3.writeBulk(capture(wc3), capture(bc3));
         expectLastCall().anyTimes();
         replay(sw3);
 
@@ -220,8 +220,8 @@ public class PortDownReconciliationTest extends FloodlightTestCase {
         expect(sw4.queryStatistics(req)).andReturn(results).once();
         wc4 = new Capture<List<OFMessage>>(CaptureType.ALL);
         bc4 = new Capture<FloodlightContext>(CaptureType.ALL);
-        // Capture the parameters passed when sw1.write is invoked
-        sw4.write(capture(wc4), capture(bc4));
+        // Capture the parameters passed when sw1.writeBulk is invoked
+        sw4.writeBulk(capture(wc4), capture(bc4));
         expectLastCall().anyTimes();
         replay(sw4);
 
@@ -0,0 +1,123 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Throughput benchmark of {@link LBPool#pickMember} for every lbMethod,
+ * pool size and number of picking threads. Not a unit test; run it with
+ * the test classpath:
+ * <pre>
+ * java -cp ... net.floodlightcontroller.loadbalancer.LBPoolBenchmark [millis]
+ * </pre>
+ * where millis is the measured time per case (default 1000). Each case is
+ * warmed up for half that time first. The pools are shared by the cases
+ * of all methods, so the member metrics keep growing across them.
+ */
+public class LBPoolBenchmark {
+    private static final String[] METHODS = { "RANDOM", "ROUND_ROBIN",
+        "LEAST_CONNECTION", "LEAST_RESPONSE_TIME", "CPU_USAGE",
+        "INTEGRATION", "WINTEGRATION", "WLC" };
+    private static final int[] POOL_SIZES = { 8, 64, 1024 };
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+
+    // keeps the picks observable so they are not optimized away
+    private static volatile int sink;
+    private static volatile boolean running;
+
+    private static LBPool createPool(int size) {
+        LBPool pool = new LBPool();
+        Map<String, LBMember> allMembers = new HashMap<String, LBMember>();
+        for (int i = 0; i < size; i++) {
+            LBMember member = new LBMember();
+            member.id = String.valueOf(i);
+            member.address = i + 1;
+            member.weight = 1 + (i % 4);
+            allMembers.put(member.id, member);
+            pool.members.add(member.id);
+        }
+        pool.rebuildMemberView(allMembers);
+        return pool;
+    }
+
+    private static long run(final LBPool pool, int nThreads, long millis)
+            throws InterruptedException {
+        final long[] picks = new long[nThreads];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            final int slot = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long n = 0;
+                    int h = 0;
+                    while (true) {
+                        for (int i = 0; i < 1024; i++) {
+                            LBMember m = pool.pickMember(null);
+                            if (m != null)
+                                h += m.address;
+                        }
+                        n += 1024;
+                        if (!running)
+                            break;
+                    }
+                    picks[slot] = n;
+                    sink += h;
+                }
+            };
+            threads[t].start();
+        }
+        running = true;
+        start.countDown();
+        Thread.sleep(millis);
+        running = false;
+        long total = 0;
+        for (int t = 0; t < nThreads; t++) {
+            threads[t].join();
+            total += picks[t];
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+
+        System.out.println("method               members threads   picks/s");
+        for (int size : POOL_SIZES) {
+            LBPool pool = createPool(size);
+            for (int method = 0; method < METHODS.length; method++) {
+                pool.lbMethod = (short) method;
+                for (int nThreads : THREADS) {
+                    run(pool, nThreads, millis / 2);
+                    long picks = run(pool, nThreads, millis);
+                    System.out.println(String.format("%-20s %8d %7d %12d",
+                            METHODS[method], size, nThreads,
+                            picks * 1000 / millis));
+                }
+            }
+        }
+    }
+}
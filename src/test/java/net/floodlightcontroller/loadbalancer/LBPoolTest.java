@@ -0,0 +1,478 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+public class LBPoolTest {
+
+    private LBPool createPool(int lbMethod, LBMember[] members) {
+        LBPool pool = new LBPool();
+        pool.lbMethod = (short) lbMethod;
+        Map<String, LBMember> allMembers = new HashMap<String, LBMember>();
+        for (int i = 0; i < members.length; i++) {
+            members[i].id = String.valueOf(i);
+            members[i].address = i + 1;
+            allMembers.put(members[i].id, members[i]);
+            pool.members.add(members[i].id);
+        }
+        pool.rebuildMemberView(allMembers);
+        return pool;
+    }
+
+    private IPClient createClient(LoadBalancer lb, int i) {
+        IPClient client = lb.new IPClient();
+        client.ipAddress = 0x0a000000 + i;
+        client.nw_proto = 6;
+        client.srcPort = (short) (1024 + i % 5000);
+        client.targetPort = 80;
+        return client;
+    }
+
+    private LBMember[] createMembers(int n) {
+        LBMember[] members = new LBMember[n];
+        for (int i = 0; i < n; i++)
+            members[i] = new LBMember();
+        return members;
+    }
+
+    @Test
+    public void testConcurrentRoundRobin() throws Exception {
+        final LBMember[] members = createMembers(4);
+        final LBPool pool = createPool(LBPool.ROUND_ROBIN, members);
+        final int picksPerThread = 10000;
+        final AtomicIntegerArray picks = new AtomicIntegerArray(members.length);
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < picksPerThread; i++)
+                        picks.incrementAndGet(
+                                Integer.parseInt(pool.pickMember(null).id));
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        // every pick takes its own counter value, so the spread is exact
+        int expected = threads.length * picksPerThread / members.length;
+        for (int i = 0; i < members.length; i++)
+            assertEquals(expected, picks.get(i));
+    }
+
+    @Test
+    public void testRoundRobinWraps() {
+        LBMember[] members = createMembers(3);
+        LBPool pool = createPool(LBPool.ROUND_ROBIN, members);
+        pool.roundRobinIndex.set(Integer.MAX_VALUE - 1);
+        for (int i = 0; i < 6; i++)
+            assertNotNull(pool.pickMember(null));
+        assertTrue(pool.roundRobinIndex.get() < 0);
+    }
+
+    @Test
+    public void testRandomStaysInPool() {
+        LBMember[] members = createMembers(5);
+        LBPool pool = createPool(LBPool.RANDOM, members);
+        for (int i = 0; i < 100; i++)
+            assertTrue(pool.getMemberView().get(pool.pickMember(null).id)
+                       != null);
+    }
+
+    @Test
+    public void testResponseTimeBreaksTiesOnCpuUsage() {
+        LBMember[] members = createMembers(3);
+        LBPool pool = createPool(LBPool.LEAST_RESPONSE_TIME, members);
+        members[0].responseTime = 10;
+        members[0].cpuUsage = 10;
+        members[1].responseTime = 5;
+        members[1].cpuUsage = 50;
+        members[2].responseTime = 5;
+        members[2].cpuUsage = 20;
+
+        assertSame(members[2], pool.pickMember(null));
+        assertEquals(5 + members[2].new_request_rt_impact,
+                     members[2].responseTime, 0.0);
+        assertEquals(20 + members[2].new_request_cpu_impact,
+                     members[2].cpuUsage, 0.0);
+        // no tie any more, so the other member is picked on RT alone
+        assertSame(members[1], pool.pickMember(null));
+        assertEquals(50, members[1].cpuUsage, 0.0);
+    }
+
+    @Test
+    public void testLeastConnections() {
+        LBMember[] members = createMembers(3);
+        LBPool pool = createPool(LBPool.LEAST_CONNECTION, members);
+        members[0].nConnections = 3;
+        members[1].nConnections = 1;
+        members[2].nConnections = 2;
+        members[1].isOutOfService = true;
+
+        assertSame(members[2], pool.pickMember(null));
+        assertEquals(3, members[2].nConnections);
+        members[0].isOverloaded = true;
+        members[2].isOverloaded = true;
+        assertEquals(null, pool.pickMember(null));
+    }
+
+    @Test
+    public void testLeastLocalConnections() {
+        LBMember[] members = createMembers(2);
+        LBPool pool = createPool(LBPool.LEAST_CONNECTION, members);
+        for (LBMember member : members)
+            member.localConnections = true;
+        // reported counts are ignored in favor of the flows seen
+        members[0].nConnections = 0;
+        members[1].nConnections = 5;
+        members[0].stats.connectionOpened();
+
+        assertSame(members[1], pool.pickMember(null));
+        assertEquals(5, members[1].nConnections);
+        members[1].stats.connectionOpened();
+        members[1].stats.connectionOpened();
+        assertSame(members[0], pool.pickMember(null));
+    }
+
+    @Test
+    public void testWeightedLeastConnections() {
+        LBMember[] members = createMembers(3);
+        LBPool pool = createPool(LBPool.WLC, members);
+        members[0].nConnections = 4;
+        members[0].weight = 1;
+        members[1].nConnections = 4;
+        members[1].weight = 4;
+        members[2].nConnections = 3;
+        members[2].weight = 2;
+
+        assertSame(members[1], pool.pickMember(null));
+    }
+
+    @Test
+    public void testMaglevIsConsistent() {
+        LoadBalancer lb = new LoadBalancer();
+        LBMember[] members = createMembers(10);
+        LBPool pool = createPool(LBPool.MAGLEV, members);
+
+        // a pool with the same members in another order, as another
+        // controller would have it, picks alike
+        LBMember[] reversed = new LBMember[members.length];
+        for (int i = 0; i < members.length; i++)
+            reversed[i] = members[members.length - 1 - i];
+        LBPool other = new LBPool();
+        other.lbMethod = (short) LBPool.MAGLEV;
+        Map<String, LBMember> allMembers = new HashMap<String, LBMember>();
+        for (LBMember member : reversed) {
+            allMembers.put(member.id, member);
+            other.members.add(member.id);
+        }
+        other.rebuildMemberView(allMembers);
+
+        for (int i = 0; i < 1000; i++) {
+            IPClient client = createClient(lb, i);
+            LBMember member = pool.pickMember(client);
+            assertSame(member, pool.pickMember(client));
+            assertSame(member, other.pickMember(client));
+        }
+    }
+
+    @Test
+    public void testMaglevMinimalDisruption() {
+        LoadBalancer lb = new LoadBalancer();
+        LBMember[] members = createMembers(10);
+        LBPool pool = createPool(LBPool.MAGLEV, members);
+        int clients = 10000;
+        LBMember[] before = new LBMember[clients];
+        for (int i = 0; i < clients; i++)
+            before[i] = pool.pickMember(createClient(lb, i));
+
+        Map<String, LBMember> allMembers = new HashMap<String, LBMember>();
+        for (LBMember member : members)
+            allMembers.put(member.id, member);
+        pool.removeMember(members[3].id, allMembers);
+
+        int moved = 0;
+        for (int i = 0; i < clients; i++) {
+            LBMember member = pool.pickMember(createClient(lb, i));
+            assertTrue(member != members[3]);
+            if (before[i] != members[3] && member != before[i])
+                moved++;
+        }
+        // clients of the remaining members barely move
+        assertTrue("moved " + moved, moved < clients / 50);
+    }
+
+    @Test
+    public void testMaglevWeightsAndHealth() {
+        LoadBalancer lb = new LoadBalancer();
+        LBMember[] members = createMembers(2);
+        members[0].weight = 3;
+        members[1].weight = 1;
+        LBPool pool = createPool(LBPool.MAGLEV, members);
+
+        int clients = 20000;
+        int heavy = 0;
+        for (int i = 0; i < clients; i++) {
+            if (pool.pickMember(createClient(lb, i)) == members[0])
+                heavy++;
+        }
+        assertEquals(0.75, (double) heavy / clients, 0.03);
+
+        // an unchanged pool keeps its table
+        LBMaglevTable table = pool.getMemberView().maglev;
+        Map<String, LBMember> allMembers = new HashMap<String, LBMember>();
+        for (LBMember member : members)
+            allMembers.put(member.id, member);
+        pool.rebuildMemberView(allMembers);
+        assertSame(table, pool.getMemberView().maglev);
+
+        // clients of a member out of service go to the others, with the
+        // same table
+        members[0].isOutOfService = true;
+        pool.rebuildMemberView(allMembers);
+        assertSame(table, pool.getMemberView().maglev);
+        for (int i = 0; i < 100; i++)
+            assertSame(members[1], pool.pickMember(createClient(lb, i)));
+        members[1].isOverloaded = true;
+        assertEquals(null, pool.pickMember(createClient(lb, 0)));
+    }
+
+    @Test
+    public void testMaglevAfterMethodChange() {
+        LoadBalancer lb = new LoadBalancer();
+        LBMember[] members = createMembers(4);
+        LBPool pool = createPool(LBPool.ROUND_ROBIN, members);
+        assertEquals(null, pool.getMemberView().maglev);
+
+        pool.setlbMethod((short) LBPool.MAGLEV);
+        IPClient client = createClient(lb, 7);
+        LBMember member = pool.pickMember(client);
+        assertNotNull(pool.getMemberView().maglev);
+        assertSame(member, pool.pickMember(client));
+    }
+
+    @Test
+    public void testBucketRebalance() {
+        LBMember[] members = createMembers(3);
+        LBPool pool = createPool(LBPool.ROUND_ROBIN, members);
+        pool.bucketBits = 3;
+        assertEquals(8, pool.rebalanceBuckets().size());
+        int[] counts = bucketCounts(pool, members);
+        assertTrue(counts[0] >= 2 && counts[1] >= 2 && counts[2] >= 2);
+
+        // weights shift only the buckets needed
+        String[] before = pool.bucketMembers.clone();
+        members[0].weight = 6;
+        int moved = pool.rebalanceBuckets().size();
+        counts = bucketCounts(pool, members);
+        assertEquals(6, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(1, counts[2]);
+        int changed = 0;
+        for (int b = 0; b < 8; b++) {
+            if (!before[b].equals(pool.bucketMembers[b]))
+                changed++;
+        }
+        assertEquals(changed, moved);
+        assertTrue(moved <= 4);
+
+        // nothing changes without a reason
+        assertTrue(pool.rebalanceBuckets().isEmpty());
+
+        // out of service members lose their buckets
+        members[0].isOutOfService = true;
+        pool.rebalanceBuckets();
+        counts = bucketCounts(pool, members);
+        assertEquals(0, counts[0]);
+        assertEquals(4, counts[1]);
+        assertEquals(4, counts[2]);
+
+        // with nobody in service the buckets stay where they are
+        members[1].isOverloaded = true;
+        members[2].isOverloaded = true;
+        assertTrue(pool.rebalanceBuckets().isEmpty());
+    }
+
+    @Test
+    public void testMemberChangesWhileRebuilding() throws Exception {
+        final LBMember[] members = createMembers(20);
+        final LBPool pool = createPool(LBPool.ROUND_ROBIN, members);
+        final Map<String, LBMember> allMembers =
+                new ConcurrentHashMap<String, LBMember>();
+        for (LBMember member : members)
+            allMembers.put(member.id, member);
+
+        // the health check and report threads rebuild the view while the
+        // REST API adds and removes members
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        Thread rebuilder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20000; i++)
+                        pool.rebuildMemberView(allMembers);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        rebuilder.start();
+        for (int i = 0; i < 20000; i++) {
+            String id = members[i % members.length].id;
+            pool.removeMember(id, allMembers);
+            pool.addMember(id, allMembers);
+        }
+        rebuilder.join();
+        assertNull(failure.get());
+        assertEquals(members.length, pool.getMemberIds().size());
+        assertEquals(members.length, pool.getMemberView().members.length);
+    }
+
+    @Test
+    public void testBucketRebalanceOverloaded() {
+        LBMember[] members = createMembers(3);
+        LBPool pool = createPool(LBPool.ROUND_ROBIN, members);
+        pool.bucketBits = 3;
+        pool.rebalanceBuckets();
+        int[] counts = bucketCounts(pool, members);
+
+        // an overloaded member keeps the buckets it serves
+        members[0].isOverloaded = true;
+        assertTrue(pool.rebalanceBuckets().isEmpty());
+
+        // but gets none of those of a member going out of service
+        members[1].isOutOfService = true;
+        assertEquals(counts[1], pool.rebalanceBuckets().size());
+        int[] after = bucketCounts(pool, members);
+        assertEquals(counts[0], after[0]);
+        assertEquals(0, after[1]);
+        assertEquals(counts[1] + counts[2], after[2]);
+    }
+
+    private LBVip createVip(int lbMethod, LBPool[] vipPools,
+                            Map<String, LBPool> allPools) {
+        LBVip vip = new LBVip();
+        vip.lbMethod = (short) lbMethod;
+        for (int i = 0; i < vipPools.length; i++) {
+            vipPools[i].id = "pool" + i;
+            allPools.put(vipPools[i].id, vipPools[i]);
+            vip.pools.add(vipPools[i].id);
+        }
+        return vip;
+    }
+
+    @Test
+    public void testPickPoolSpillsOver() {
+        Map<String, LBPool> allPools = new HashMap<String, LBPool>();
+        LBMember[] first = createMembers(2);
+        LBMember[] second = createMembers(1);
+        LBVip vip = createVip(LBVip.FIRST_POOL, new LBPool[] {
+                createPool(LBPool.ROUND_ROBIN, first),
+                createPool(LBPool.ROUND_ROBIN, second) }, allPools);
+
+        assertEquals("pool0", vip.pickPool(null, allPools));
+        // the first pool only spills over once all its members are busy
+        first[0].isOverloaded = true;
+        allPools.get("pool0").load = null;
+        assertEquals("pool0", vip.pickPool(null, allPools));
+        first[1].isOverloaded = true;
+        allPools.get("pool0").load = null;
+        assertEquals("pool1", vip.pickPool(null, allPools));
+        assertEquals(2, allPools.get("pool0").picks.get());
+        assertEquals(1, allPools.get("pool1").picks.get());
+
+        // with nowhere to go, the first pool keeps the clients
+        second[0].isOverloaded = true;
+        allPools.get("pool1").load = null;
+        assertEquals("pool0", vip.pickPool(null, allPools));
+    }
+
+    @Test
+    public void testPickPoolWeighted() {
+        Map<String, LBPool> allPools = new HashMap<String, LBPool>();
+        LBPool[] vipPools = new LBPool[] {
+                createPool(LBPool.ROUND_ROBIN, createMembers(1)),
+                createPool(LBPool.ROUND_ROBIN, createMembers(1)),
+                createPool(LBPool.ROUND_ROBIN, createMembers(1)) };
+        vipPools[0].weight = 3;
+        vipPools[1].weight = 1;
+        vipPools[2].weight = 0;
+        LBVip vip = createVip(LBVip.WEIGHTED_POOL, vipPools, allPools);
+
+        int picks = 20000;
+        for (int i = 0; i < picks; i++)
+            vip.pickPool(null, allPools);
+        assertEquals(0.75, (double) vipPools[0].picks.get() / picks, 0.03);
+        assertEquals(0, vipPools[2].picks.get());
+    }
+
+    @Test
+    public void testPickPoolLeastLoaded() {
+        Map<String, LBPool> allPools = new HashMap<String, LBPool>();
+        LBMember[] busy = createMembers(2);
+        LBMember[] slow = createMembers(2);
+        LBVip vip = createVip(LBVip.LEAST_LOADED_POOL, new LBPool[] {
+                createPool(LBPool.ROUND_ROBIN, busy),
+                createPool(LBPool.ROUND_ROBIN, slow) }, allPools);
+        busy[0].nConnections = 10;
+        busy[1].nConnections = 10;
+        slow[0].nConnections = 2;
+        slow[1].nConnections = 2;
+        assertEquals("pool1", vip.pickPool(null, allPools));
+
+        // latency counts as much as connections
+        slow[0].responseTime = 50;
+        slow[1].responseTime = 50;
+        busy[0].responseTime = 5;
+        busy[1].responseTime = 5;
+        allPools.get("pool0").load = null;
+        allPools.get("pool1").load = null;
+        assertEquals("pool0", vip.pickPool(null, allPools));
+
+        // and a pool without capacity is left out
+        busy[0].isOverloaded = true;
+        busy[1].isOverloaded = true;
+        allPools.get("pool0").load = null;
+        assertEquals("pool1", vip.pickPool(null, allPools));
+    }
+
+    private int[] bucketCounts(LBPool pool, LBMember[] members) {
+        int[] counts = new int[members.length];
+        for (int b = 0; b < pool.bucketMembers.length; b++)
+            counts[Integer.parseInt(pool.getBucketMember(b))]++;
+        return counts;
+    }
+}
@@ -28,8 +28,11 @@ import static org.easymock.EasyMock.verify;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.easymock.Capture;
 import org.easymock.CaptureType;
@@ -37,6 +40,8 @@ import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFFlowRemoved.OFFlowRemovedReason;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
@@ -53,17 +58,22 @@ import org.sdnplatform.sync.test.MockSyncService;
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IListener.Command;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.core.util.AppCookie;
 import net.floodlightcontroller.counter.CounterStore;
 import net.floodlightcontroller.counter.ICounterStoreService;
+import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.IEntityClassifierService;
 import net.floodlightcontroller.devicemanager.internal.DefaultEntityClassifier;
+import net.floodlightcontroller.devicemanager.internal.Device;
 import net.floodlightcontroller.devicemanager.test.MockDeviceManager;
 import net.floodlightcontroller.flowcache.FlowReconcileManager;
 import net.floodlightcontroller.flowcache.IFlowReconcileService;
 import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.ICMP;
 import net.floodlightcontroller.packet.IPacket;
@@ -240,8 +250,8 @@ public class LoadBalancerTest extends FloodlightTestCase {
 
         testCreateVip();
 
-        postData1 = "{\"id\":\"1\",\"name\":\"pool1\",\"protocol\":\"icmp\",\"vip_id\":\"1\"}";
-        postData2 = "{\"id\":\"2\",\"name\":\"pool2\",\"protocol\":\"tcp\",\"vip_id\":\"2\"}";
+        postData1 = "{\"id\":\"1\",\"name\":\"pool1\",\"protocol\":\"icmp\",\"lb_method\":\"1\",\"vip_id\":\"1\"}";
+        postData2 = "{\"id\":\"2\",\"name\":\"pool2\",\"protocol\":\"tcp\",\"lb_method\":\"1\",\"vip_id\":\"2\"}";
         postData3 = "{\"id\":\"3\",\"name\":\"pool3\",\"protocol\":\"udp\",\"vip_id\":\"3\"}";
 
         try {
@@ -276,7 +286,7 @@ public class LoadBalancerTest extends FloodlightTestCase {
         assertTrue(lb.pools.containsKey(pool2.id));
         assertTrue(lb.vips.get(pool2.vipId).pools.contains(pool2.id));
         assertTrue(lb.pools.containsKey(pool3.id));
-        assertFalse(lb.vips.containsKey(pool3.vipId));
+        assertNull(pool3.vipId);
 
     }
 
@@ -404,6 +414,294 @@ public class LoadBalancerTest extends FloodlightTestCase {
 
     }
 
+    @Test
+    public void testPoolMemberView() {
+        testCreateVip();
+        testCreatePool();
+        testCreateMember();
+
+        // re-adding member1 must not duplicate it in the view
+        LBPool.MemberView view = lb.pools.get(pool1.id).getMemberView();
+        assertEquals(2, view.size());
+        assertSame(member1, view.get(member1.id));
+        assertSame(member2, view.get(member2.id));
+        assertNull(view.get(member3.id));
+
+        lb.removeMember(member1.id);
+
+        // the old view is immutable, the pool gets a new one
+        assertEquals(2, view.size());
+        view = lb.pools.get(pool1.id).getMemberView();
+        assertEquals(1, view.size());
+        assertNull(view.get(member1.id));
+        assertSame(member2, lb.pools.get(pool1.id).pickMember(null));
+    }
+
+    @Test
+    public void testHealthCheck() {
+        // check on our own clock rather than on the scheduled one
+        LBHealthChecker checker = new LBHealthChecker(lb);
+        lb.healthChecker = checker;
+
+        testCreateMember();
+        LBMonitor monitor = new LBMonitor();
+        monitor.poolId = pool1.id;
+        monitor.delay = 2;
+        monitor.timeout = 3;
+        monitor.attemptsBeforeDeactivation = 2;
+        lb.createMonitor(monitor);
+        assertTrue(lb.pools.get(pool1.id).monitors.contains(monitor.id));
+        // updates reschedule the checks with the pool's monitor
+        lb.updateMember(member1);
+        lb.updateMember(member2);
+
+        long now = System.currentTimeMillis();
+        member1.lastReport = now - 10000;
+        member2.lastReport = now + 10000;
+        LBPool pool = lb.pools.get(pool1.id);
+
+        // one failed check is tolerated
+        checker.tick(now);
+        checker.tick(now);
+        assertEquals(1, member1.unreportedCount);
+        assertEquals(0, member2.unreportedCount);
+        assertEquals(2, pool.getMemberView().size());
+
+        // the second one takes member1 out of the pool's view
+        checker.tick(now);
+        checker.tick(now);
+        assertTrue(member1.isOutOfService);
+        assertEquals(1, pool.getMemberView().size());
+        for (int i = 0; i < 4; i++)
+            assertSame(member2, pool.pickMember(null));
+
+        // until it reports again
+        lb.memberReported(member1);
+        assertFalse(member1.isOutOfService);
+        assertEquals(0, member1.unreportedCount);
+        assertSame(member1, pool.getMemberView().get(member1.id));
+
+        lb.removeMember(member1.id);
+        assertFalse(checker.checks.containsKey(member1.id));
+        assertEquals(0, lb.removeMonitor(monitor.id));
+        assertFalse(lb.pools.get(pool1.id).monitors.contains(monitor.id));
+    }
+
+    @Test
+    public void testServerReports() {
+        testCreateMember();
+
+        // binary reports, the latest one of a member wins
+        LBServerReport report =
+                new LBServerReport(member1.address, 20, 9, 80, 80);
+        lb.handleServerInfo(new Data(report.toBytes()), member1.address);
+        report = new LBServerReport(member1.address, 12.5, 7, 40, 20);
+        lb.handleServerInfo(new Data(report.toBytes()), member1.address);
+        // the legacy text format is still understood
+        lb.handleServerInfo(new Data("3.0 2 95 95".getBytes()),
+                            member2.address);
+        lb.applyServerReports();
+
+        assertEquals(12.5, member1.responseTime, 0.0);
+        assertEquals(7, member1.nConnections);
+        assertEquals(40, member1.cpuUsage, 0.0);
+        assertEquals(20, member1.memUsage, 0.0);
+        assertFalse(member1.isOverloaded);
+        assertEquals(2, member2.nConnections);
+        assertTrue(member2.isOverloaded);
+        assertTrue(lb.pendingReports.isEmpty());
+
+        // unknown versions and truncated reports are dropped
+        byte[] data = report.toBytes();
+        data[2] = 2;
+        lb.handleServerInfo(new Data(data), member1.address);
+        data = Arrays.copyOf(report.toBytes(), LBServerReport.HEADER_LENGTH + 8);
+        lb.handleServerInfo(new Data(data), member1.address);
+        assertTrue(lb.pendingReports.isEmpty());
+    }
+
+    @Test
+    public void testMemberDeviceLookup() {
+        testCreateVip();
+        testCreatePool();
+        testCreateMember();
+
+        reset(topology);
+        expect(topology.getL2DomainId(1L)).andReturn(1L).anyTimes();
+        expect(topology.isAttachmentPointPort(anyLong(), anyShort())).andReturn(true).anyTimes();
+        expect(topology.isConsistent(anyLong(), anyShort(), anyLong(), anyShort())).andReturn(false).anyTimes();
+        expect(topology.isInSameBroadcastDomain(anyLong(), anyShort(), anyLong(), anyShort())).andReturn(false).anyTimes();
+        expect(topology.isBroadcastDomainPort(anyLong(), anyShort())).andReturn(false).anyTimes();
+        replay(topology);
+
+        long mac = Ethernet.toLong(HexString.fromHexString("00:00:00:00:00:03"));
+        assertNull(lb.findMemberDevice(member1));
+
+        deviceManager.learnEntity(mac, null, member1.address, 1L, 3);
+        IDevice device = lb.findMemberDevice(member1);
+        assertNotNull(device);
+        assertEquals(3, device.getAttachmentPoints()[0].getPort());
+        assertSame(device, lb.memberIpToDevice.get(member1.address));
+
+        // the member goes away; the cached binding must be dropped
+        deviceManager.deleteDevice((Device) device);
+        lb.new DeviceListenerImpl().deviceRemoved(device);
+        assertFalse(lb.memberIpToDevice.containsKey(member1.address));
+        assertNull(lb.findMemberDevice(member1));
+
+        deviceManager.learnEntity(mac, null, member1.address, 1L, 5);
+        device = lb.findMemberDevice(member1);
+        assertEquals(5, device.getAttachmentPoints()[0].getPort());
+
+        lb.removeMember(member1.id);
+        assertFalse(lb.memberIpToDevice.containsKey(member1.address));
+    }
+
+    @Test
+    public void testProactiveBuckets() throws Exception {
+        testCreateVip();
+        testCreatePool();
+        testCreateMember();
+
+        // split the clients of pool1 into two buckets
+        LBPool pool = poolsResource.jsonToPool("{\"id\":\"1\",\"name\":\"pool1\"," +
+                "\"protocol\":\"icmp\",\"lb_method\":\"1\",\"vip_id\":\"1\"," +
+                "\"bucket_bits\":\"1\",\"bucket_prefix\":\"10.0.0.0/24\"}");
+        lb.updatePool(pool);
+        assertTrue(pool.isProactive());
+        assertEquals(25, pool.getBucketLength());
+        int bucket1 = pool.getBucket(IPv4.toIPv4Address("10.0.0.129"));
+        assertEquals(1, bucket1);
+        assertEquals(IPv4.toIPv4Address("10.0.0.128"), pool.getBucketAddress(bucket1));
+        assertEquals(-1, pool.getBucket(IPv4.toIPv4Address("10.0.1.1")));
+
+        reset(topology);
+        expect(topology.getL2DomainId(1L)).andReturn(1L).anyTimes();
+        expect(topology.isAttachmentPointPort(anyLong(), anyShort())).andReturn(true).anyTimes();
+        expect(topology.isConsistent(anyLong(), anyShort(), anyLong(), anyShort())).andReturn(false).anyTimes();
+        expect(topology.isInSameBroadcastDomain(anyLong(), anyShort(), anyLong(), anyShort())).andReturn(false).anyTimes();
+        expect(topology.isBroadcastDomainPort(anyLong(), anyShort())).andReturn(false).anyTimes();
+        replay(topology);
+
+        deviceManager.learnEntity(Ethernet.toLong(HexString.fromHexString("00:00:00:00:00:03")),
+                                  null, member1.address, 1L, 3);
+        deviceManager.learnEntity(Ethernet.toLong(HexString.fromHexString("00:00:00:00:00:04")),
+                                  null, member2.address, 1L, 4);
+
+        // clients enter on port 1, members sit on ports 3 and 4
+        reset(routingEngine);
+        for (short port = 3; port <= 4; port++) {
+            Route in = new Route(1L, 1L);
+            List<NodePortTuple> inPath = new ArrayList<NodePortTuple>();
+            inPath.add(new NodePortTuple(1L, (short)1));
+            inPath.add(new NodePortTuple(1L, port));
+            in.setPath(inPath);
+            expect(routingEngine.getRoute(1L, (short)1, 1L, port, 0)).andReturn(in).anyTimes();
+            Route out = new Route(1L, 1L);
+            List<NodePortTuple> outPath = new ArrayList<NodePortTuple>();
+            outPath.add(new NodePortTuple(1L, port));
+            outPath.add(new NodePortTuple(1L, (short)1));
+            out.setPath(outPath);
+            expect(routingEngine.getRoute(1L, port, 1L, (short)1, 0)).andReturn(out).anyTimes();
+        }
+        replay(routingEngine);
+
+        Capture<OFMessage> wc1 = new Capture<OFMessage>(CaptureType.ALL);
+        IOFSwitch sw1 = EasyMock.createNiceMock(IOFSwitch.class);
+        expect(sw1.getId()).andReturn(1L).anyTimes();
+        sw1.writeThrottled(capture(wc1), EasyMock.<FloodlightContext>anyObject());
+        expectLastCall().anyTimes();
+        sw1.write(capture(wc1), EasyMock.<FloodlightContext>anyObject());
+        expectLastCall().anyTimes();
+        replay(sw1);
+        Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+        switches.put(1L, sw1);
+        getMockFloodlightProvider().setSwitches(switches);
+
+        // the first client installs both buckets, in and out
+        assertSame(member2, lb.pushProactiveBuckets(1L, (short)1, pool, bucket1));
+        List<OFMessage> msgs = wc1.getValues();
+        assertEquals(4, msgs.size());
+        for (OFMessage m : msgs) {
+            OFFlowMod fm = (OFFlowMod) m;
+            assertEquals(OFFlowMod.OFPFC_ADD, fm.getCommand());
+            assertEquals(LoadBalancer.LB_BUCKET_PRIORITY, fm.getPriority() & 0xffff);
+            OFMatch match = fm.getMatch();
+            if (match.getInputPort() == 1) {
+                assertEquals(25, match.getNetworkSourceMaskLen());
+                assertEquals(vip1.address, match.getNetworkDestination());
+            } else {
+                assertEquals(25, match.getNetworkDestinationMaskLen());
+            }
+        }
+
+        // further clients of the same port need nothing new
+        wc1.reset();
+        assertSame(member1, lb.pushProactiveBuckets(1L, (short)1, pool, 0));
+        assertFalse(wc1.hasCaptured());
+
+        // member1 fails; its bucket moves to member2
+        member1.isOutOfService = true;
+        lb.rebalanceBuckets();
+        assertEquals(member2.id, pool.getBucketMember(0));
+        int deletes = 0, adds = 0;
+        for (OFMessage m : wc1.getValues()) {
+            if (((OFFlowMod) m).getCommand() == OFFlowMod.OFPFC_DELETE_STRICT)
+                deletes++;
+            else
+                adds++;
+        }
+        assertEquals(2, deletes);
+        assertEquals(2, adds);
+        assertTrue(lb.memberFlows.get(member1.id).isEmpty());
+        assertEquals(4, lb.memberFlows.get(member2.id).size());
+
+        // removing the pool removes the bucket flows
+        wc1.reset();
+        lb.removePool(pool.id);
+        assertEquals(4, wc1.getValues().size());
+        assertTrue(lb.poolBuckets.isEmpty());
+    }
+
+    @Test
+    public void testBucketPrefixMatch() {
+        int client = IPv4.toIPv4Address("10.0.0.128");
+        int server = IPv4.toIPv4Address("10.0.0.3");
+        // member to client flows match the service port of the vip
+        OFMatch match = LBFlowBuilder.prefixMatch((short)1, server, 32,
+                client, 25, IPv4.PROTOCOL_TCP, (short)80, (short)0);
+        assertEquals(IPv4.PROTOCOL_TCP, match.getNetworkProtocol());
+        assertEquals(80, match.getTransportSource());
+        assertEquals(0, match.getWildcards() & OFMatch.OFPFW_NW_PROTO);
+        assertEquals(0, match.getWildcards() & OFMatch.OFPFW_TP_SRC);
+        assertEquals(OFMatch.OFPFW_TP_DST,
+                     match.getWildcards() & OFMatch.OFPFW_TP_DST);
+        assertEquals(25, match.getNetworkDestinationMaskLen());
+
+        // no ports without TCP or UDP
+        match = LBFlowBuilder.prefixMatch((short)1, server, 32,
+                client, 25, IPv4.PROTOCOL_ICMP, (short)80, (short)0);
+        assertEquals(0, match.getTransportSource());
+        assertEquals(OFMatch.OFPFW_TP_SRC,
+                     match.getWildcards() & OFMatch.OFPFW_TP_SRC);
+    }
+
+    @Test
+    public void testInvalidBucketPrefix() {
+        String[] prefixes = { "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/x",
+                              "10.0.0/8", "10.0.0.0/8/8" };
+        for (String prefix : prefixes) {
+            try {
+                poolsResource.jsonToPool("{\"id\":\"1\"," +
+                        "\"bucket_bits\":\"1\",\"bucket_prefix\":\"" +
+                        prefix + "\"}");
+                fail("Expected IOException for " + prefix);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
     @Test
     public void testTwoSubsequentIcmpRequests() throws Exception {
      testCreateVip();
@@ -443,6 +741,8 @@ public class LoadBalancerTest extends FloodlightTestCase {
      expect(sw1.hasAttribute(IOFSwitch.PROP_SUPPORTS_OFPP_TABLE)).andReturn(true).anyTimes();
      sw1.writeThrottled(capture(wc1), capture(bc1));
      expectLastCall().anyTimes();
+     sw1.write(capture(wc1), capture(bc1));
+     expectLastCall().anyTimes();
      sw1.flush();
      expectLastCall().anyTimes();
 
@@ -450,6 +750,10 @@ public class LoadBalancerTest extends FloodlightTestCase {
      sfp.switchAdded(1L);
      verify(sw1);
 
+     Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+     switches.put(1L, sw1);
+     getMockFloodlightProvider().setSwitches(switches);
+
      /* Test plan:
       * - two clients and two servers on sw1 port 1, 2, 3, 4
       * - mock arp request received towards vip1 from (1L, 1)
@@ -687,13 +991,105 @@ public class LoadBalancerTest extends FloodlightTestCase {
 
      List<OFMessage> msglist2 = wc1.getValues();
 
-     assertTrue(msglist2.size()==2); // has inbound and outbound packetouts
-                                     // TODO: not seeing flowmods yet ...
+     int packetOuts = 0;
+     int flowMods = 0;
+     for (OFMessage m: msglist2) {
+         if (m.getType() == OFType.PACKET_OUT)
+             packetOuts++;
+         else if (m.getType() == OFType.FLOW_MOD)
+             flowMods++;
+     }
+     assertEquals(2, packetOuts); // has inbound and outbound packetouts
+     assertEquals(4, flowMods);   // flows are written to sw1 directly
 
+     // flows are not kept in storage but tracked per member
      Map<String, OFFlowMod> map = sfp.getFlows("00:00:00:00:00:00:00:01");
-
-     assertTrue(map.size()==4);
+     assertTrue(map == null || map.isEmpty());
+     int trackedFlows = 0;
+     for (Set<LoadBalancer.InstalledFlow> flows : lb.memberFlows.values())
+         trackedFlows += flows.size();
+     assertEquals(4, trackedFlows);
+
+     // the flows expire and report their removal
+     List<OFFlowMod> connectionFlows = new ArrayList<OFFlowMod>();
+     for (OFMessage m: msglist2) {
+         if (m.getType() != OFType.FLOW_MOD)
+             continue;
+         OFFlowMod fm = (OFFlowMod) m;
+         assertEquals(LoadBalancer.FLOW_IDLE_TIMEOUT, fm.getIdleTimeout());
+         assertEquals(0, fm.getHardTimeout());
+         assertEquals(OFFlowMod.OFPFF_SEND_FLOW_REM, fm.getFlags());
+         assertEquals(LoadBalancer.LB_APP_ID,
+                      AppCookie.extractApp(fm.getCookie()));
+         if (fm.getMatch().getNetworkSource() == networkSource1 ||
+             fm.getMatch().getNetworkDestination() == networkSource1)
+             connectionFlows.add(fm);
+     }
+     assertEquals(2, connectionFlows.size());
+     assertEquals(2, lb.connections.size());
+     assertEquals(2, lb.vips.get(vip1.id).stats.getActiveConnections());
+     LBMember member1 = lb.members.get(lb.connections.get(
+             AppCookie.extractUser(connectionFlows.get(0).getCookie()) >>> 1).
+             member.id);
+     assertEquals(1, member1.getConnections());
+
+     for (OFFlowMod fm : connectionFlows) {
+         OFFlowRemoved fr = (OFFlowRemoved) getMockFloodlightProvider().
+                 getOFMessageFactory().getMessage(OFType.FLOW_REMOVED);
+         fr.setMatch(fm.getMatch());
+         fr.setCookie(fm.getCookie());
+         fr.setPriority(fm.getPriority());
+         fr.setReason(OFFlowRemovedReason.OFPRR_IDLE_TIMEOUT);
+         fr.setIdleTimeout(fm.getIdleTimeout());
+         fr.setByteCount(1000);
+         fr.setPacketCount(10);
+         assertEquals(Command.STOP, lb.receive(sw1, fr, cntx));
+     }
+     assertEquals(0, member1.getConnections());
+     assertEquals(1, member1.stats.getTotalConnections());
+     assertEquals(1000, member1.stats.getBytesIn());
+     assertEquals(1000, member1.stats.getBytesOut());
+     assertEquals(10, member1.stats.getPacketsIn());
+     assertEquals(1, lb.vips.get(vip1.id).stats.getActiveConnections());
+     assertEquals(2, lb.vips.get(vip1.id).stats.getTotalConnections());
+     assertEquals(1, lb.connections.size());
+     assertEquals(2, lb.connectionFlows.size());
+     trackedFlows = 0;
+     for (Set<LoadBalancer.InstalledFlow> flows : lb.memberFlows.values())
+         trackedFlows += flows.size();
+     assertEquals(2, trackedFlows);
+
+     // removing the members deletes their remaining flows from sw1
+     wc1.reset();
+     for (String memberId : new ArrayList<String>(lb.memberFlows.keySet()))
+         lb.removeMember(memberId);
+     assertTrue(lb.memberFlows.isEmpty());
+     int flowDeletes = 0;
+     for (OFMessage m: wc1.getValues()) {
+         if (m.getType() == OFType.FLOW_MOD &&
+             ((OFFlowMod) m).getCommand() == OFFlowMod.OFPFC_DELETE_STRICT)
+             flowDeletes++;
+     }
+     assertEquals(2, flowDeletes);
+
+     // the counters of a VIP live on through its updates
+     LBVip updated = new LBVip();
+     updated.id = vip1.id;
+     updated.address = vip1.address;
+     lb.updateVip(updated);
+     assertEquals(2, lb.vips.get(vip1.id).stats.getTotalConnections());
+     assertEquals(1000, lb.vips.get(vip1.id).stats.getBytesIn());
     }
 
-
+    @Test
+    public void testConnectionIdWrap() {
+        LBVip vip = lb.createVip(new LBVip());
+        LBMember member = new LBMember();
+        member.vipId = vip.id;
+        // the ids skip 0 when they wrap
+        lb.connectionIds.set(Integer.MAX_VALUE);
+        LoadBalancer.Connection conn = lb.newConnection(member);
+        assertEquals(1, conn.id);
+        assertFalse(LoadBalancer.LB_COOKIE == conn.cookie(true));
+    }
 }
@@ -0,0 +1,112 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PacketViewTest {
+    @Test
+    public void testUdp() {
+        Ethernet eth = (Ethernet) new Ethernet()
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setVlanID((short) 42)
+            .setPriorityCode((byte) 3)
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(
+                new IPv4()
+                .setTtl((byte) 128)
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.2")
+                .setPayload(new UDP()
+                            .setSourcePort((short) 5000)
+                            .setDestinationPort((short) 5001)
+                            .setPayload(new Data(new byte[] {0x01}))));
+        PacketView view = new PacketView(eth.serialize());
+
+        assertEquals(0x001122334455L, view.getDestinationMAC());
+        assertEquals(0x004433221100L, view.getSourceMAC());
+        assertFalse(view.isBroadcast());
+        assertFalse(view.isMulticast());
+        assertEquals(42, view.getVlanID());
+        assertEquals(3, view.getPriorityCode());
+        assertEquals(Ethernet.TYPE_IPv4, view.getEtherType());
+        assertTrue(view.isIPv4());
+        assertFalse(view.isARP());
+        assertEquals(IPv4.toIPv4Address("192.168.1.1"), view.getNetworkSource());
+        assertEquals(IPv4.toIPv4Address("192.168.1.2"),
+                     view.getNetworkDestination());
+        assertEquals(IPv4.PROTOCOL_UDP, view.getNetworkProtocol());
+        assertEquals(5000, view.getTransportSource());
+        assertEquals(5001, view.getTransportDestination());
+        assertFalse(view.isDecoded());
+
+        Ethernet decoded = view.getEthernet();
+        assertTrue(view.isDecoded());
+        assertEquals(eth, decoded);
+        assertTrue(decoded == view.getEthernet());
+    }
+
+    @Test
+    public void testArp() {
+        Ethernet eth = (Ethernet) new Ethernet()
+            .setDestinationMACAddress("ff:ff:ff:ff:ff:ff")
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(
+                new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REQUEST)
+                .setSenderHardwareAddress(Ethernet.toMACAddress("00:44:33:22:11:00"))
+                .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("10.0.0.1"))
+                .setTargetHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:00"))
+                .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("10.0.0.2")));
+        PacketView view = new PacketView(eth.serialize());
+
+        assertTrue(view.isBroadcast());
+        assertFalse(view.isMulticast());
+        assertEquals(Ethernet.VLAN_UNTAGGED, view.getVlanID());
+        assertTrue(view.isARP());
+        assertFalse(view.isIPv4());
+        assertEquals(0, view.getNetworkDestination());
+        assertEquals(ARP.OP_REQUEST, view.getArpOpCode());
+        assertEquals(0x004433221100L, view.getArpSenderHardwareAddress());
+        assertEquals(IPv4.toIPv4Address("10.0.0.1"),
+                     view.getArpSenderProtocolAddress());
+        assertEquals(0L, view.getArpTargetHardwareAddress());
+        assertEquals(IPv4.toIPv4Address("10.0.0.2"),
+                     view.getArpTargetProtocolAddress());
+    }
+
+    @Test
+    public void testTruncated() {
+        PacketView view = new PacketView(new byte[] {0x01, 0x02, 0x03});
+        assertEquals(0, view.getDestinationMAC());
+        assertEquals(0, view.getEtherType());
+        assertFalse(view.isIPv4());
+        assertFalse(view.isARP());
+        assertEquals(0, view.getTransportSource());
+        assertEquals(-1, view.getL4Offset());
+    }
+}
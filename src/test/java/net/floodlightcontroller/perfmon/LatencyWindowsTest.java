@@ -0,0 +1,120 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.perfmon;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import net.floodlightcontroller.core.IOFMessageListener;
+
+import org.junit.Test;
+
+public class LatencyWindowsTest {
+    @Test
+    public void testHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(0.5));
+        for (long ns = 1; ns <= 1000000; ns++)
+            h.record(ns);
+        assertEquals(1000000, h.getCount());
+        assertEquals(1000000, h.getMax());
+        // within an eighth of the exact percentile
+        long[] expected = { 500000, 990000, 999000 };
+        long[] actual = { h.getPercentile(0.5), h.getPercentile(0.99),
+                          h.getPercentile(0.999) };
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(actual[i] >= expected[i]);
+            assertTrue(actual[i] <= expected[i] + expected[i] / 8);
+        }
+
+        // exact below the first power of two split, and huge values fit
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(3);
+        small.record(Long.MAX_VALUE);
+        assertEquals(3, small.getPercentile(0.5));
+        assertEquals(Long.MAX_VALUE, small.getPercentile(1.0));
+
+        h.add(small);
+        assertEquals(1000002, h.getCount());
+        assertEquals(Long.MAX_VALUE, h.getMax());
+        h.clear();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(0.99));
+    }
+
+    @Test
+    public void testWindows() throws Exception {
+        IOFMessageListener listener = createMock(IOFMessageListener.class);
+        expect(listener.getName()).andReturn("forwarding").anyTimes();
+        replay(listener);
+
+        LatencyWindows windows = new LatencyWindows();
+        final LatencyWindows.Recorder r1 = windows.newRecorder();
+        LatencyWindows.Recorder r2 = windows.newRecorder();
+        long start = System.nanoTime();
+        long interval = LatencyWindows.INTERVAL_NS;
+
+        // two threads record in the first interval, one in the third
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (int i = 0; i < 100; i++)
+                    r1.record(null, 1000, now);
+            }
+        };
+        t.start();
+        t.join();
+        for (int i = 0; i < 100; i++) {
+            r2.record(listener, 500, start);
+            r2.record(null, 3000, start);
+        }
+        r2.record(null, 7000, start + 2 * interval);
+
+        // the current interval is not in the windows yet
+        Map<String, Map<String, Map<String, Long>>> summary =
+                windows.getSummary(start);
+        assertTrue(summary.get("10s").isEmpty());
+
+        // a minute later the first interval is in the 1m and 5m windows
+        // only, the third one in all of them
+        summary = windows.getSummary(start + 6 * interval);
+        Map<String, Long> total = summary.get("1m").get(LatencyWindows.TOTAL);
+        assertEquals(Long.valueOf(201), total.get("count"));
+        assertEquals(Long.valueOf(7000), total.get("max"));
+        assertEquals(Long.valueOf(100),
+                     summary.get("1m").get("forwarding").get("count"));
+        assertTrue(summary.get("10s").isEmpty());
+        assertEquals(Long.valueOf(201),
+                     summary.get("5m").get(LatencyWindows.TOTAL).get("count"));
+
+        summary = windows.getSummary(start + 7 * interval);
+        assertNull(summary.get("1m").get("forwarding"));
+        assertEquals(Long.valueOf(1),
+                     summary.get("1m").get(LatencyWindows.TOTAL).get("count"));
+
+        windows.reset();
+        summary = windows.getSummary(start + 7 * interval);
+        assertTrue(summary.get("5m").isEmpty());
+    }
+}
@@ -17,6 +17,7 @@
 package net.floodlightcontroller.staticflowentry;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -119,6 +120,7 @@ public class StaticFlowTests extends FloodlightTestCase {
     private Capture<OFMessage> writeCapture;
     private Capture<FloodlightContext> contextCapture;
     private Capture<List<OFMessage>> writeCaptureList;
+    private Capture<List<OFMessage>> writeCaptureBulk;
     private long dpid;
     private IStorageSourceService storage;
     static {
@@ -186,12 +188,15 @@ public class StaticFlowTests extends FloodlightTestCase {
         writeCapture = new Capture<OFMessage>(CaptureType.ALL);
         contextCapture = new Capture<FloodlightContext>(CaptureType.ALL);
         writeCaptureList = new Capture<List<OFMessage>>(CaptureType.ALL);
+        writeCaptureBulk = new Capture<List<OFMessage>>(CaptureType.ALL);
 
         //OFMessageSafeOutStream mockOutStream = createNiceMock(OFMessageSafeOutStream.class);
         mockSwitch.write(capture(writeCapture), capture(contextCapture));
         expectLastCall().anyTimes();
         mockSwitch.write(capture(writeCaptureList), capture(contextCapture));
         expectLastCall().anyTimes();
+        mockSwitch.writeBulk(capture(writeCaptureBulk), capture(contextCapture));
+        expectLastCall().anyTimes();
         mockSwitch.flush();
         expectLastCall().anyTimes();
 
@@ -231,19 +236,23 @@ public class StaticFlowTests extends FloodlightTestCase {
 
         verify(mockSwitch);
 
-        // Verify that the switch has gotten some flow_mods
-        assertEquals(true, writeCapture.hasCaptured());
-        assertEquals(TotalTestRules, writeCapture.getValues().size());
+        // Verify that the switch has gotten some flow_mods, in its bulk lane
+        assertEquals(true, writeCaptureBulk.hasCaptured());
+        List<OFMessage> pushed = new ArrayList<OFMessage>();
+        for (List<OFMessage> msglist : writeCaptureBulk.getValues())
+            pushed.addAll(msglist);
+        assertEquals(TotalTestRules, pushed.size());
 
         // Order assumes how things are stored in hash bucket;
         // should be fixed because OFMessage.hashCode() is deterministic
-        OFFlowMod firstFlowMod = (OFFlowMod) writeCapture.getValues().get(2);
+        OFFlowMod firstFlowMod = (OFFlowMod) pushed.get(2);
         verifyFlowMod(firstFlowMod, FlowMod1);
-        OFFlowMod secondFlowMod = (OFFlowMod) writeCapture.getValues().get(1);
+        OFFlowMod secondFlowMod = (OFFlowMod) pushed.get(1);
         verifyFlowMod(secondFlowMod, FlowMod2);
-        OFFlowMod thirdFlowMod = (OFFlowMod) writeCapture.getValues().get(0);
+        OFFlowMod thirdFlowMod = (OFFlowMod) pushed.get(0);
         verifyFlowMod(thirdFlowMod, FlowMod3);
 
+        writeCaptureBulk.reset();
         writeCapture.reset();
         contextCapture.reset();
 
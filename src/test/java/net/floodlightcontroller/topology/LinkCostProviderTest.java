@@ -0,0 +1,166 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.test.MockFloodlightProvider;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.linkdiscovery.LinkInfo;
+import net.floodlightcontroller.routing.Link;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFPhysicalPort.OFPortFeatures;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+public class LinkCostProviderTest {
+    // 1 Gbps
+    private static final long BYTES_PER_PERCENT = 1000L * 1000 * 1000 / 8 / 100;
+
+    private MockFloodlightProvider floodlightProvider;
+    private ILinkDiscoveryService linkDiscovery;
+    private LinkCostProvider provider;
+    private IOFSwitch sw1;
+    private IOFSwitch sw2;
+    private Link link;
+
+    private IOFSwitch createSwitch(long dpid, OFPortFeatures speed) {
+        IOFSwitch sw = createMock(IOFSwitch.class);
+        ImmutablePort port = new ImmutablePort.Builder()
+                .setPortNumber((short) 1)
+                .addCurrentFeature(speed)
+                .build();
+        expect(sw.getId()).andReturn(dpid).anyTimes();
+        expect(sw.getPort((short) 1)).andReturn(port).anyTimes();
+        expect(sw.isConnected()).andReturn(true).anyTimes();
+        return sw;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        floodlightProvider = new MockFloodlightProvider();
+        linkDiscovery = createMock(ILinkDiscoveryService.class);
+        provider = new LinkCostProvider(floodlightProvider, linkDiscovery,
+                new int[] { 50, 75, 90 }, 10, 0.5);
+        sw1 = createSwitch(1L, OFPortFeatures.OFPPF_1GB_FD);
+        sw2 = createSwitch(2L, OFPortFeatures.OFPPF_10GB_FD);
+        Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+        switches.put(1L, sw1);
+        switches.put(2L, sw2);
+        floodlightProvider.setSwitches(switches);
+        link = new Link(1L, (short) 1, 2L, (short) 1);
+    }
+
+    private List<OFStatistics> portStats(long txBytes) {
+        OFPortStatisticsReply reply = new OFPortStatisticsReply();
+        reply.setPortNumber((short) 1);
+        reply.setTransmitBytes(txBytes);
+        List<OFStatistics> stats = new ArrayList<OFStatistics>();
+        stats.add(reply);
+        return stats;
+    }
+
+    @Test
+    public void testLevels() {
+        assertEquals(0, provider.level(0, 49));
+        assertEquals(1, provider.level(0, 50));
+        assertEquals(3, provider.level(0, 95));
+        // falls back only below the threshold by the hysteresis
+        assertEquals(3, provider.level(3, 81));
+        assertEquals(2, provider.level(3, 79));
+        assertEquals(1, provider.level(3, 45));
+        assertEquals(0, provider.level(3, 10));
+    }
+
+    @Test
+    public void testCosts() {
+        replay(sw1, sw2);
+        List<Link> links = Collections.singletonList(link);
+
+        // the slower end counts: 1 Gbps
+        assertTrue(provider.updateCosts(links));
+        assertEquals(10, (int) provider.getCosts().get(link));
+        assertFalse(provider.updateCosts(links));
+        assertTrue(provider.getUtilization().isEmpty());
+
+        long tx = 0;
+        provider.update(sw1, portStats(tx), 0);
+        tx += 60 * BYTES_PER_PERCENT;
+        provider.update(sw1, portStats(tx), 1000);
+        assertTrue(provider.updateCosts(links));
+        assertEquals(20, (int) provider.getCosts().get(link));
+        assertEquals(60, (int) provider.getUtilization().get(link));
+
+        // 50% on average: within the hysteresis, no change
+        tx += 40 * BYTES_PER_PERCENT;
+        provider.update(sw1, portStats(tx), 2000);
+        assertFalse(provider.updateCosts(links));
+        assertEquals(50, (int) provider.getUtilization().get(link));
+
+        // 25% on average
+        provider.update(sw1, portStats(tx), 3000);
+        assertTrue(provider.updateCosts(links));
+        assertEquals(10, (int) provider.getCosts().get(link));
+        verify(sw1, sw2);
+    }
+
+    @Test
+    public void testPoll() throws Exception {
+        Map<Link, LinkInfo> links = new HashMap<Link, LinkInfo>();
+        links.put(link, null);
+        expect(linkDiscovery.getLinks()).andReturn(links).anyTimes();
+        SettableFuture<List<OFStatistics>> first = SettableFuture.create();
+        first.set(portStats(0));
+        SettableFuture<List<OFStatistics>> second = SettableFuture.create();
+        second.set(portStats(100 * BYTES_PER_PERCENT));
+        // a switch that does not reply
+        SettableFuture<List<OFStatistics>> none = SettableFuture.create();
+        expect(sw1.queryStatistics(anyObject(OFStatisticsRequest.class)))
+                .andReturn(first).andReturn(second).andReturn(none)
+                .andReturn(SettableFuture.<List<OFStatistics>>create());
+        replay(sw1, sw2, linkDiscovery);
+
+        // the replies are read at the next poll
+        assertTrue(provider.poll());
+        assertEquals(10, (int) provider.getCosts().get(link));
+        Thread.sleep(10);
+        assertFalse(provider.poll());
+        assertTrue(provider.getUtilization().isEmpty());
+        Thread.sleep(10);
+        assertTrue(provider.poll());
+        // the utilization is at most 100%
+        assertEquals(40, (int) provider.getCosts().get(link));
+        assertEquals(100, (int) provider.getUtilization().get(link));
+        assertFalse(provider.poll());
+        assertTrue(none.isCancelled());
+        verify(sw1, sw2, linkDiscovery);
+    }
+}
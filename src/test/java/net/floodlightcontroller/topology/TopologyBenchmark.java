@@ -0,0 +1,298 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.topology;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Benchmark of the destination rooted tree computation on synthetic
+ * fat-tree and random topologies: the map based Dijkstra TopologyInstance
+ * used before, the compiled ClusterGraph, and the ClusterGraph with the
+ * trees computed in parallel. Each is timed on a sample of the roots and
+ * reported per tree and extrapolated to all trees. Not a unit test; run
+ * it with the test classpath:
+ * <pre>
+ * java -cp ... net.floodlightcontroller.topology.TopologyBenchmark
+ * </pre>
+ */
+public class TopologyBenchmark {
+    private static final int[] FAT_TREE_K = { 8, 16, 24, 40, 64 };
+    private static final int[] RANDOM_SWITCHES = { 100, 500, 1000, 2000, 5000 };
+    // links per switch of the random topologies, besides the ring
+    private static final int RANDOM_DEGREE = 2;
+    private static final int LEGACY_ROOTS = 10;
+    private static final int ROOTS = 256;
+
+    private static volatile int sink;
+
+    private static class Topology {
+        final String name;
+        final Map<Long, Set<Short>> switchPorts =
+                new HashMap<Long, Set<Short>>();
+        final Map<NodePortTuple, Set<Link>> switchPortLinks =
+                new HashMap<NodePortTuple, Set<Link>>();
+        final Map<Long, Short> nextPort = new HashMap<Long, Short>();
+        int nLinks;
+
+        Topology(String name) {
+            this.name = name;
+        }
+
+        private short port(long sw) {
+            Short p = nextPort.get(sw);
+            p = (short) ((p == null) ? 1 : p + 1);
+            nextPort.put(sw, p);
+            Set<Short> ports = switchPorts.get(sw);
+            if (ports == null) {
+                ports = new HashSet<Short>();
+                switchPorts.put(sw, ports);
+            }
+            ports.add(p);
+            return p;
+        }
+
+        private void add(Link l) {
+            for (NodePortTuple npt:
+                    new NodePortTuple[] {
+                        new NodePortTuple(l.getSrc(), l.getSrcPort()),
+                        new NodePortTuple(l.getDst(), l.getDstPort()) }) {
+                Set<Link> links = switchPortLinks.get(npt);
+                if (links == null) {
+                    links = new HashSet<Link>();
+                    switchPortLinks.put(npt, links);
+                }
+                links.add(l);
+            }
+        }
+
+        /**
+         * Adds links in both directions between the two switches
+         */
+        void connect(long a, long b) {
+            short pa = port(a);
+            short pb = port(b);
+            add(new Link(a, pa, b, pb));
+            add(new Link(b, pb, a, pa));
+            nLinks += 2;
+        }
+
+        TopologyInstance instance() {
+            TopologyInstance ti = new TopologyInstance(switchPorts,
+                    new HashSet<NodePortTuple>(), switchPortLinks,
+                    new HashSet<NodePortTuple>(),
+                    new HashSet<NodePortTuple>());
+            ti.identifyOpenflowDomains();
+            ti.addLinksToOpenflowDomains();
+            return ti;
+        }
+    }
+
+    /**
+     * @return a k-ary fat tree: (k/2)^2 core switches and k pods of k/2
+     * aggregation and k/2 edge switches
+     */
+    private static Topology fatTree(int k) {
+        Topology t = new Topology("fat-tree");
+        int half = k / 2;
+        long core = 1;
+        long pods = core + half * half;
+        for (int pod = 0; pod < k; pod++) {
+            long agg = pods + pod * k;
+            long edge = agg + half;
+            for (int a = 0; a < half; a++) {
+                for (int c = 0; c < half; c++)
+                    t.connect(agg + a, core + a * half + c);
+                for (int e = 0; e < half; e++)
+                    t.connect(agg + a, edge + e);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @return a ring of n switches with random chords
+     */
+    private static Topology random(int n) {
+        Topology t = new Topology("random");
+        Random random = new Random(n);
+        for (int i = 1; i <= n; i++)
+            t.connect(i, i % n + 1);
+        for (int i = 1; i <= n; i++) {
+            for (int d = 0; d < RANDOM_DEGREE; d++) {
+                long j = random.nextInt(n) + 1;
+                if (j != i)
+                    t.connect(i, j);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * The Dijkstra of TopologyInstance before the cluster graphs
+     */
+    private static BroadcastTree legacyDijkstra(Cluster c, Long root) {
+        HashMap<Long, Link> nexthoplinks = new HashMap<Long, Link>();
+        HashMap<Long, Integer> cost = new HashMap<Long, Integer>();
+        for (Long node: c.links.keySet()) {
+            nexthoplinks.put(node, null);
+            cost.put(node, TopologyInstance.MAX_PATH_WEIGHT);
+        }
+
+        HashMap<Long, Boolean> seen = new HashMap<Long, Boolean>();
+        PriorityQueue<NodeDist> nodeq = new PriorityQueue<NodeDist>();
+        nodeq.add(new NodeDist(root, 0));
+        cost.put(root, 0);
+        while (nodeq.peek() != null) {
+            NodeDist n = nodeq.poll();
+            Long cnode = n.node;
+            int cdist = n.dist;
+            if (cdist >= TopologyInstance.MAX_PATH_WEIGHT) break;
+            if (seen.containsKey(cnode)) continue;
+            seen.put(cnode, true);
+
+            for (Link link: c.links.get(cnode)) {
+                Long neighbor = link.getSrc();
+                if (neighbor.equals(cnode)) continue;
+                if (seen.containsKey(neighbor)) continue;
+                int ndist = cdist + 1;
+                if (ndist < cost.get(neighbor)) {
+                    cost.put(neighbor, ndist);
+                    nexthoplinks.put(neighbor, link);
+                    NodeDist ndTemp = new NodeDist(neighbor, ndist);
+                    nodeq.remove(ndTemp);
+                    nodeq.add(ndTemp);
+                }
+            }
+        }
+        return new BroadcastTree(nexthoplinks, cost);
+    }
+
+    private static class NodeDist implements Comparable<NodeDist> {
+        final Long node;
+        final int dist;
+
+        NodeDist(Long node, int dist) {
+            this.node = node;
+            this.dist = dist;
+        }
+
+        @Override
+        public int compareTo(NodeDist o) {
+            if (o.dist == this.dist)
+                return (int)(this.node - o.node);
+            return this.dist - o.dist;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof NodeDist) &&
+                    node.equals(((NodeDist) obj).node);
+        }
+
+        @Override
+        public int hashCode() {
+            return node.hashCode();
+        }
+    }
+
+    private static List<Long> roots(Cluster c, int n) {
+        List<Long> roots = new ArrayList<Long>(c.getNodes());
+        return roots.subList(0, Math.min(n, roots.size()));
+    }
+
+    /**
+     * @return milliseconds per tree
+     */
+    private static double legacy(Cluster c) {
+        List<Long> roots = roots(c, LEGACY_ROOTS);
+        long start = System.nanoTime();
+        for (Long root: roots)
+            sink += legacyDijkstra(c, root).getLinks().size();
+        return (System.nanoTime() - start) / 1e6 / roots.size();
+    }
+
+    private static double sequential(Cluster c) {
+        List<Long> roots = roots(c, ROOTS);
+        long start = System.nanoTime();
+        ClusterGraph graph = new ClusterGraph(c, null, true);
+        for (Long root: roots)
+            sink += graph.dijkstra(root).getLinks().size();
+        return (System.nanoTime() - start) / 1e6 / roots.size();
+    }
+
+    private static double parallel(TopologyInstance ti, Cluster c) {
+        List<Long> roots = roots(c, 4 * ROOTS);
+        long start = System.nanoTime();
+        sink += ti.calculateTrees(c, roots).length;
+        return (System.nanoTime() - start) / 1e6 / roots.size();
+    }
+
+    private static void run(Topology t, boolean print) {
+        TopologyInstance ti = t.instance();
+        Cluster c = ti.getClusters().iterator().next();
+        int n = c.getNodes().size();
+        double legacy = legacy(c);
+        double sequential = sequential(c);
+        double parallel = parallel(ti, c);
+        if (print) {
+            System.out.println(String.format(
+                    "%-9s %8d %7d %11.3f %11.3f %11.3f %11.0f %11.0f",
+                    t.name, n, t.nLinks, legacy, sequential, parallel,
+                    legacy * n, parallel * n));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // the clustering recurses as deep as the topology is large
+        Thread t = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                runAll();
+            }
+        }, "benchmark", 1L << 30);
+        t.start();
+        t.join();
+    }
+
+    private static void runAll() {
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            run(fatTree(8), false);
+            run(random(500), false);
+        }
+        System.out.println(String.format("%-9s %8s %7s %11s %11s %11s %11s %11s",
+                "topology", "switches", "links", "legacy", "csr", "parallel",
+                "legacy", "parallel"));
+        System.out.println(String.format("%-9s %8s %7s %11s %11s %11s %11s %11s",
+                "", "", "", "ms/tree", "ms/tree", "ms/tree",
+                "ms/all", "ms/all"));
+        for (int k: FAT_TREE_K)
+            run(fatTree(k), true);
+        for (int n: RANDOM_SWITCHES)
+            run(random(n), true);
+    }
+}
@@ -18,8 +18,11 @@ package net.floodlightcontroller.topology;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import static org.junit.Assert.*;
 
@@ -29,6 +32,10 @@ import net.floodlightcontroller.core.test.MockFloodlightProvider;
 import net.floodlightcontroller.core.test.MockThreadPoolService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.topology.TopologyInstance;
@@ -312,6 +319,298 @@ public class TopologyInstanceTest {
         verifyExpectedBroadcastPortsInClusters(expectedBroadcastPorts);
     }
 
+    /**
+     * Verify the trees of an incrementally computed instance against a
+     * full computation of the same topology
+     */
+    protected void verifyTreesAgainstFullCompute(TopologyInstance ti) {
+        TopologyInstance full = new TopologyInstance(ti.switchPorts,
+                                                     ti.blockedPorts,
+                                                     ti.switchPortLinks,
+                                                     ti.broadcastDomainPorts,
+                                                     ti.tunnelPorts);
+        full.compute();
+        assertEquals(full.destinationRootedTrees.keySet(),
+                     ti.destinationRootedTrees.keySet());
+        for (long dst: full.destinationRootedTrees.keySet()) {
+            assertEquals(full.destinationRootedTrees.get(dst).getCosts(),
+                         ti.destinationRootedTrees.get(dst).getCosts());
+        }
+    }
+
+    @Test
+    public void testIncrementalCompute() throws Exception {
+        int [][] linkArray = {
+                              {1, 1, 2, 1, DIRECT_LINK},
+                              {2, 1, 1, 1, DIRECT_LINK},
+                              {1, 2, 3, 1, DIRECT_LINK},
+                              {3, 1, 1, 2, DIRECT_LINK},
+                              {2, 2, 3, 2, DIRECT_LINK},
+                              {3, 2, 2, 2, DIRECT_LINK},
+                              {3, 3, 4, 1, DIRECT_LINK},
+                              {4, 1, 3, 3, DIRECT_LINK},
+                              {4, 2, 6, 2, DIRECT_LINK},
+                              {6, 2, 4, 2, DIRECT_LINK},
+                              {4, 3, 5, 1, DIRECT_LINK},
+                              {5, 1, 4, 3, DIRECT_LINK},
+                              {5, 2, 6, 1, DIRECT_LINK},
+                              {6, 1, 5, 2, DIRECT_LINK},
+        };
+        createTopologyFromLinks(linkArray);
+        TopologyInstance ti1 = topologyManager.getCurrentInstance();
+        assertNotNull(ti1.getRoute(2L, 1L, 0));
+
+        // the link between 5 and 6 is only used by the trees rooted at 5
+        // and 6
+        topologyManager.removeLink(5L, (short) 2, 6L, (short) 1);
+        topologyManager.removeLink(6L, (short) 1, 5L, (short) 2);
+        topologyManager.createNewInstance();
+        TopologyInstance ti2 = topologyManager.getCurrentInstance();
+        verifyClusters(new int[][] { {1, 2, 3, 4, 5, 6} });
+        verifyTreesAgainstFullCompute(ti2);
+        for (long dst = 1; dst <= 4; dst++) {
+            assertSame(ti1.destinationRootedTrees.get(dst),
+                       ti2.destinationRootedTrees.get(dst));
+        }
+        assertNotSame(ti1.destinationRootedTrees.get(5L),
+                      ti2.destinationRootedTrees.get(5L));
+        assertNotSame(ti1.destinationRootedTrees.get(6L),
+                      ti2.destinationRootedTrees.get(6L));
+        // and cached routes along the kept trees are kept too
+        assertNotNull(ti2.routeCache.peek(new RouteId(2L, 1L)));
+
+        // adding it back shortens the paths to 5 and 6 only
+        topologyManager.addOrUpdateLink(5L, (short) 2, 6L, (short) 1,
+                                        ILinkDiscovery.LinkType.DIRECT_LINK);
+        topologyManager.addOrUpdateLink(6L, (short) 1, 5L, (short) 2,
+                                        ILinkDiscovery.LinkType.DIRECT_LINK);
+        topologyManager.createNewInstance();
+        TopologyInstance ti3 = topologyManager.getCurrentInstance();
+        verifyTreesAgainstFullCompute(ti3);
+        assertSame(ti1.destinationRootedTrees.get(1L),
+                   ti3.destinationRootedTrees.get(1L));
+        assertNotSame(ti2.destinationRootedTrees.get(5L),
+                      ti3.destinationRootedTrees.get(5L));
+
+        // a new switch changes the cluster, so all its trees are computed
+        topologyManager.addOrUpdateLink(6L, (short) 3, 7L, (short) 1,
+                                        ILinkDiscovery.LinkType.DIRECT_LINK);
+        topologyManager.addOrUpdateLink(7L, (short) 1, 6L, (short) 3,
+                                        ILinkDiscovery.LinkType.DIRECT_LINK);
+        topologyManager.createNewInstance();
+        TopologyInstance ti4 = topologyManager.getCurrentInstance();
+        verifyClusters(new int[][] { {1, 2, 3, 4, 5, 6, 7} });
+        verifyTreesAgainstFullCompute(ti4);
+        assertNotSame(ti3.destinationRootedTrees.get(1L),
+                      ti4.destinationRootedTrees.get(1L));
+    }
+
+    @Test
+    public void testCalculateTrees() throws Exception {
+        // a ring with chords, large enough for the trees to be computed
+        // in parallel
+        int n = 2 * TopologyInstance.PARALLEL_TREES;
+        List<int[]> links = new ArrayList<int[]>();
+        for (int i = 1; i <= n; i++) {
+            int next = i % n + 1;
+            links.add(new int[] {i, 1, next, 2, DIRECT_LINK});
+            links.add(new int[] {next, 2, i, 1, DIRECT_LINK});
+            if (i % 8 == 0) {
+                int across = (i + n / 2 - 1) % n + 1;
+                links.add(new int[] {i, 3, across, 4, DIRECT_LINK});
+                links.add(new int[] {across, 4, i, 3, DIRECT_LINK});
+            }
+        }
+        createTopologyFromLinks(links.toArray(new int[0][]));
+        TopologyInstance ti = topologyManager.getCurrentInstance();
+        assertEquals(1, ti.getClusters().size());
+        Cluster c = ti.getClusters().iterator().next();
+        assertEquals(n, c.getNodes().size());
+
+        // every tree has the same links and costs as a breadth first
+        // search would find
+        for (long dst = 1; dst <= n; dst++) {
+            BroadcastTree tree = ti.destinationRootedTrees.get(dst);
+            Map<Long, Integer> hops = new HashMap<Long, Integer>();
+            LinkedList<Long> queue = new LinkedList<Long>();
+            hops.put(dst, 0);
+            queue.add(dst);
+            while (!queue.isEmpty()) {
+                long node = queue.removeFirst();
+                for (Link l: c.getLinks().get(node)) {
+                    if (l.getDst() == node && !hops.containsKey(l.getSrc())) {
+                        hops.put(l.getSrc(), hops.get(node) + 1);
+                        queue.add(l.getSrc());
+                    }
+                }
+            }
+            assertEquals(hops, tree.getCosts());
+            for (long sw = 1; sw <= n; sw++) {
+                Link l = tree.getTreeLink(sw);
+                if (sw == dst) {
+                    assertNull(l);
+                } else {
+                    assertEquals(sw, l.getSrc());
+                    assertEquals(hops.get(sw) - 1,
+                                 (int) hops.get(l.getDst()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMultipathRoutes() throws Exception {
+        // two pods of two switches under two spines: four equal cost
+        // paths between the pods
+        int [][] linkArray = {
+                              {1, 1, 3, 1, DIRECT_LINK},
+                              {3, 1, 1, 1, DIRECT_LINK},
+                              {1, 2, 4, 1, DIRECT_LINK},
+                              {4, 1, 1, 2, DIRECT_LINK},
+                              {2, 1, 3, 2, DIRECT_LINK},
+                              {3, 2, 2, 1, DIRECT_LINK},
+                              {2, 2, 4, 2, DIRECT_LINK},
+                              {4, 2, 2, 2, DIRECT_LINK},
+                              {3, 3, 5, 1, DIRECT_LINK},
+                              {5, 1, 3, 3, DIRECT_LINK},
+                              {4, 3, 5, 2, DIRECT_LINK},
+                              {5, 2, 4, 3, DIRECT_LINK},
+                              {3, 4, 6, 1, DIRECT_LINK},
+                              {6, 1, 3, 4, DIRECT_LINK},
+                              {4, 4, 6, 2, DIRECT_LINK},
+                              {6, 2, 4, 4, DIRECT_LINK},
+        };
+        createTopologyFromLinks(linkArray);
+        TopologyManager tm = getTopologyManager();
+
+        List<Route> routes = tm.getRoutes(5L, 1L, true);
+        assertEquals(2, routes.size());
+        assertEquals(tm.getRoute(5L, 1L, 0), routes.get(0));
+        assertFalse(routes.get(0).equals(routes.get(1)));
+        for (Route r: routes)
+            assertEquals(4, r.getPath().size());
+        assertEquals(1, tm.getRoutes(5L, 1L, true, 1).size());
+        assertEquals(0, tm.getRoutes(5L, 5L, true).size());
+
+        // flows spread over both spines, and a flow keeps its route
+        Map<Long, Integer> spines = new HashMap<Long, Integer>();
+        for (long hash = 1; hash <= 1000; hash++) {
+            Route r = tm.getRoute(5L, 1L, hash);
+            assertTrue(routes.contains(r));
+            assertEquals(r, tm.getRoute(5L, 1L, hash));
+            long spine = r.getPath().get(1).getNodeId();
+            Integer n = spines.get(spine);
+            spines.put(spine, (n == null) ? 1 : n + 1);
+        }
+        assertEquals(2, spines.size());
+        assertTrue(spines.get(3L) > 400 && spines.get(4L) > 400);
+
+        // a busy link takes fewer flows
+        Map<Link, Integer> utilization = new HashMap<Link, Integer>();
+        utilization.put(new Link(5L, (short) 1, 3L, (short) 3), 90);
+        tm.setLinkUtilization(utilization);
+        int busy = 0;
+        for (long hash = 1; hash <= 1000; hash++) {
+            if (tm.getRoute(5L, 1L, hash).getPath().get(1).getNodeId() == 3L)
+                busy++;
+        }
+        assertTrue(busy > 30 && busy < 200);
+    }
+
+    @Test
+    public void testLinkCosts() throws Exception {
+        int [][] linkArray = {
+                              {1, 1, 2, 1, DIRECT_LINK},
+                              {2, 1, 1, 1, DIRECT_LINK},
+                              {1, 2, 3, 1, DIRECT_LINK},
+                              {3, 1, 1, 2, DIRECT_LINK},
+                              {2, 2, 4, 1, DIRECT_LINK},
+                              {4, 1, 2, 2, DIRECT_LINK},
+                              {3, 2, 4, 2, DIRECT_LINK},
+                              {4, 2, 3, 2, DIRECT_LINK},
+        };
+        TopologyManager tm = getTopologyManager();
+        tm.linkCostProvider = new LinkCostProvider(mockFloodlightProvider,
+                linkDiscovery, LinkCostProvider.DEFAULT_THRESHOLDS,
+                LinkCostProvider.DEFAULT_HYSTERESIS,
+                LinkCostProvider.DEFAULT_ALPHA);
+        Map<Link, Integer> costs = new HashMap<Link, Integer>();
+        costs.put(new Link(2L, (short) 2, 4L, (short) 1), 5);
+        tm.linkCostProvider.costs = costs;
+        createTopologyFromLinks(linkArray);
+
+        // the costly link is avoided, and the cost is the sum of the links
+        Route r = tm.getRoute(1L, 4L, 0);
+        assertEquals(3L, r.getPath().get(1).getNodeId());
+        assertEquals(2, tm.getCurrentInstance().getCost(1L, 4L));
+        assertEquals(1, tm.getRoutes(1L, 4L, true).size());
+        // even when it is the direct one
+        r = tm.getRoute(2L, 4L, 0);
+        assertEquals(6, r.getPath().size());
+        assertEquals(3, tm.getCurrentInstance().getCost(2L, 4L));
+    }
+
+    @Test
+    public void testRouteCache() throws Exception {
+        int [][] linkArray = {
+                              {1, 1, 2, 1, DIRECT_LINK},
+                              {2, 1, 1, 1, DIRECT_LINK},
+                              {1, 2, 3, 1, DIRECT_LINK},
+                              {3, 1, 1, 2, DIRECT_LINK},
+                              {2, 2, 3, 2, DIRECT_LINK},
+                              {3, 2, 2, 2, DIRECT_LINK},
+                              {3, 3, 4, 1, DIRECT_LINK},
+                              {4, 1, 3, 3, DIRECT_LINK},
+                              {4, 2, 6, 2, DIRECT_LINK},
+                              {6, 2, 4, 2, DIRECT_LINK},
+                              {4, 3, 5, 1, DIRECT_LINK},
+                              {5, 1, 4, 3, DIRECT_LINK},
+                              {5, 2, 6, 1, DIRECT_LINK},
+                              {6, 1, 5, 2, DIRECT_LINK},
+        };
+        createTopologyFromLinks(linkArray);
+        TopologyManager tm = getTopologyManager();
+        TopologyInstance ti1 = tm.getCurrentInstance();
+
+        // the routes from the switches on the way share their paths
+        Route r15 = ti1.getRoute(1L, 5L, 0);
+        assertEquals(6, r15.getPath().size());
+        Route r35 = ti1.routeCache.peek(new RouteId(3L, 5L));
+        assertNotNull(r35);
+        assertSame(r35.getPath(), ((SuffixPath) r15.getPath()).getNext());
+        assertSame(r35, ti1.getRoute(3L, 5L, 0));
+        assertEquals(2, ti1.getRoute(6L, 5L, 0).getPath().size());
+
+        // only the routes over the removed link are invalidated, even
+        // though the tree rooted at 5 is computed again
+        tm.removeLink(5L, (short) 2, 6L, (short) 1);
+        tm.removeLink(6L, (short) 1, 5L, (short) 2);
+        tm.createNewInstance();
+        TopologyInstance ti2 = tm.getCurrentInstance();
+        assertSame(ti1.routeCache, ti2.routeCache);
+        assertNotSame(ti1.destinationRootedTrees.get(5L),
+                      ti2.destinationRootedTrees.get(5L));
+        assertSame(r35, ti2.routeCache.peek(new RouteId(3L, 5L)));
+        assertSame(r15, ti2.routeCache.peek(new RouteId(1L, 5L)));
+        assertNull(ti2.routeCache.peek(new RouteId(6L, 5L)));
+        assertEquals(4, ti2.getRoute(6L, 5L, 0).getPath().size());
+
+        // the replaced instance still routes on its own topology, and
+        // does not cache its routes
+        assertEquals(2, ti1.getRoute(6L, 5L, 0).getPath().size());
+        assertEquals(4, ti2.getRoute(6L, 5L, 0).getPath().size());
+        ti1.getRoute(6L, 1L, 0);
+        assertNull(ti2.routeCache.peek(new RouteId(6L, 1L)));
+
+        // the cache keeps to its budget
+        RouteCache small = new RouteCache(4 * RouteCache.ROUTE_BYTES);
+        for (long src = 1; src <= 4; src++)
+            small.put(ti2.getRoute(src, 6L, 0), small.getGeneration());
+        for (long src = 1; src <= 4; src++)
+            small.put(ti2.getRoute(src, 5L, 0), small.getGeneration());
+        assertTrue(small.size() <= 4);
+    }
+
     @Test
     public void testLoopDetectionWithIslands() throws Exception {
 
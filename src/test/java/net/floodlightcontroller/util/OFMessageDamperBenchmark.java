@@ -0,0 +1,196 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+/**
+ * Benchmark of the damper's dampening decision for flow-mods like the ones
+ * Forwarding writes: the fingerprint cache against a TimedCache of the
+ * messages and switches, as the damper used before. Each case writes
+ * flow-mods drawn at random from twice as many flows as the capacity, and
+ * the heap retained by a full cache is estimated too. Not a unit test;
+ * run it with the test classpath:
+ * <pre>
+ * java -cp ... net.floodlightcontroller.util.OFMessageDamperBenchmark [millis]
+ * </pre>
+ * where millis is the measured time per case (default 2000). Each case is
+ * warmed up for half that time first.
+ */
+public class OFMessageDamperBenchmark {
+    private static final int CAPACITY = 10000;
+    private static final int TIMEOUT = 250;
+    private static final int SWITCHES = 16;
+
+    private static volatile int sink;
+
+    /**
+     * The cache entry of the TimedCache based damper
+     */
+    private static class DamperEntry {
+        final OFMessage msg;
+        final IOFSwitch sw;
+
+        DamperEntry(OFMessage msg, IOFSwitch sw) {
+            this.msg = msg;
+            this.sw = sw;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * msg.hashCode() + sw.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DamperEntry))
+                return false;
+            DamperEntry other = (DamperEntry) obj;
+            return msg.equals(other.msg) && sw.equals(other.sw);
+        }
+    }
+
+    private interface Damper {
+        /**
+         * @return true if the message is dampened
+         */
+        boolean dampen(IOFSwitch sw, OFMessage msg);
+    }
+
+    private static class FingerprintDamper implements Damper {
+        final TimedFingerprintCache cache =
+                new TimedFingerprintCache(CAPACITY, TIMEOUT);
+
+        @Override
+        public boolean dampen(IOFSwitch sw, OFMessage msg) {
+            return cache.update(OFMessageDamper.fingerprint(sw, msg));
+        }
+    }
+
+    private static class TimedCacheDamper implements Damper {
+        final TimedCache<DamperEntry> cache =
+                new TimedCache<DamperEntry>(CAPACITY, TIMEOUT);
+
+        @Override
+        public boolean dampen(IOFSwitch sw, OFMessage msg) {
+            return cache.update(new DamperEntry(msg, sw));
+        }
+    }
+
+    /**
+     * @return a new flow-mod for a flow, as Forwarding builds them
+     */
+    private static OFFlowMod flowMod(int flow) {
+        OFMatch match = new OFMatch();
+        match.setWildcards(OFMatch.OFPFW_ALL & ~(OFMatch.OFPFW_IN_PORT |
+                OFMatch.OFPFW_DL_SRC | OFMatch.OFPFW_DL_DST |
+                OFMatch.OFPFW_NW_SRC_MASK | OFMatch.OFPFW_NW_DST_MASK));
+        match.setInputPort((short) (flow % 48 + 1));
+        match.setDataLayerSource(new byte[] { 0, 0, 0, 0,
+                (byte) (flow >> 8), (byte) flow });
+        match.setDataLayerDestination(new byte[] { 0, 0, 0, 1,
+                (byte) (flow >> 16), (byte) (flow >> 24) });
+        match.setNetworkSource(0x0a000000 | flow);
+        match.setNetworkDestination(0x0a800000 | (flow * 7));
+        OFActionOutput action = new OFActionOutput();
+        action.setPort((short) (flow % 47 + 2));
+        action.setMaxLength((short) 0xffff);
+        List<OFAction> actions = new ArrayList<OFAction>();
+        actions.add(action);
+        OFFlowMod fm = new OFFlowMod();
+        fm.setIdleTimeout((short) 5)
+          .setBufferId(OFPacketOut.BUFFER_ID_NONE)
+          .setCookie(0x20000000000000L)
+          .setCommand(OFFlowMod.OFPFC_ADD)
+          .setMatch(match)
+          .setActions(actions)
+          .setLengthU(OFFlowMod.MINIMUM_LENGTH +
+                      OFActionOutput.MINIMUM_LENGTH);
+        return fm;
+    }
+
+    private static long run(Damper damper, IOFSwitch[] switches,
+                            long millis) {
+        Random random = new Random(1);
+        long end = System.currentTimeMillis() + millis;
+        long n = 0;
+        int dampened = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 1024; i++) {
+                // a new message object every time, as the writers do
+                int flow = random.nextInt(2 * CAPACITY);
+                if (damper.dampen(switches[flow % SWITCHES], flowMod(flow)))
+                    dampened++;
+            }
+            n += 1024;
+        }
+        sink += dampened;
+        return n;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return the heap retained by a damper full of CAPACITY flows
+     */
+    private static long retainedHeap(boolean fingerprints,
+                                     IOFSwitch[] switches) {
+        long before = usedHeap();
+        Damper damper = fingerprints ? new FingerprintDamper() :
+                                       new TimedCacheDamper();
+        for (int flow = 0; flow < CAPACITY; flow++)
+            damper.dampen(switches[flow % SWITCHES], flowMod(flow));
+        long used = usedHeap() - before;
+        sink += damper.hashCode();
+        return used;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) : 2000;
+        IOFSwitch[] switches = new IOFSwitch[SWITCHES];
+        for (int i = 0; i < SWITCHES; i++)
+            switches[i] = new OFMessageDamperMockSwitch();
+
+        System.out.println("damper          writes/s    retained bytes");
+        for (boolean fingerprints : new boolean[] { true, false }) {
+            Damper damper = fingerprints ? new FingerprintDamper() :
+                                           new TimedCacheDamper();
+            run(damper, switches, millis / 2);
+            long writes = run(damper, switches, millis);
+            System.out.println(String.format("%-12s %11d %17d",
+                    fingerprints ? "fingerprint" : "timedcache",
+                    writes * 1000 / millis,
+                    retainedHeap(fingerprints, switches)));
+        }
+    }
+}
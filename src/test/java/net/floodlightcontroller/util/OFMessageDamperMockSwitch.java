@@ -125,6 +125,18 @@ public class OFMessageDamperMockSwitch implements IOFSwitch {
         assertTrue("Unexpected method call", false);
     }
 
+    @Override
+    public void writeBulk(List<OFMessage> msglist, FloodlightContext bc)
+            throws IOException {
+        assertTrue("Unexpected method call", false);
+    }
+
+    @Override
+    public boolean awaitWriteCapacity(long timeoutMs) {
+        assertTrue("Unexpected method call", false);
+        return false;
+    }
+
     @Override
     public void disconnectOutputStream() {
         assertTrue("Unexpected method call", false);
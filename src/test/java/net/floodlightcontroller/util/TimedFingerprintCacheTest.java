@@ -0,0 +1,63 @@
+/**
+ *    Copyright 2013, Big Switch Networks, Inc.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TimedFingerprintCacheTest {
+    protected TimedFingerprintCache cache;
+
+    @Test
+    public void testCaching() throws InterruptedException {
+        int timeout = 50;
+        int timeToSleep = 60;
+        cache = new TimedFingerprintCache(100, timeout);
+
+        assertEquals(false, cache.update(1L));
+        assertEquals(true, cache.update(1L));
+        assertEquals(true, cache.update(1L));
+        assertEquals(false, cache.update(2L));
+        assertEquals(true, cache.update(2L));
+
+        Thread.sleep(timeToSleep);
+        assertEquals(false, cache.update(1L));
+        assertEquals(false, cache.update(2L));
+        assertEquals(true, cache.update(1L));
+    }
+
+    @Test
+    public void testCapacity() throws InterruptedException {
+        int timeout = 5000;
+        cache = new TimedFingerprintCache(2, timeout);
+
+        // the oldest fingerprint in a full window is replaced, so a flood
+        // of fingerprints replaces the first one
+        assertEquals(false, cache.update(1L));
+        for (long i = 2; i < 100000; i++)
+            cache.update(i * 0x9e3779b97f4a7c15L);
+        assertEquals(false, cache.update(1L));
+
+        // while a cache large enough keeps all of them
+        cache = new TimedFingerprintCache(1000, timeout);
+        for (long i = 1; i <= 1000; i++)
+            assertEquals(false, cache.update(i * 0x9e3779b97f4a7c15L));
+        for (long i = 1; i <= 1000; i++)
+            assertEquals(true, cache.update(i * 0x9e3779b97f4a7c15L));
+    }
+}
@@ -85,6 +85,79 @@ public class BasicFactoryTest extends TestCase {
         }
     }
 
+    public void testZeroCopyPacketInParse() throws MessageParseException {
+        BasicFactory factory = BasicFactory.getInstance();
+        byte[] packetData = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        OFPacketIn pi = (OFPacketIn) factory.getMessage(OFType.PACKET_IN);
+        pi.setBufferId(OFPacketOut.BUFFER_ID_NONE)
+          .setInPort((short) 1)
+          .setReason(OFPacketIn.OFPacketInReason.NO_MATCH)
+          .setPacketData(packetData);
+        ChannelBuffer bb = ChannelBuffers.dynamicBuffer();
+        pi.writeTo(bb);
+
+        List<OFMessage> message = factory.parseMessage(bb, true);
+        TestCase.assertEquals(1, message.size());
+        OFPacketIn parsed = (OFPacketIn) message.get(0);
+        TestCase.assertTrue(parsed.isSliced());
+        TestCase.assertEquals(1, parsed.getInPort());
+        ChannelBuffer data = parsed.getPacketDataBuffer();
+        TestCase.assertEquals(ChannelBuffers.wrappedBuffer(packetData), data);
+
+        // the data follows the frame until released
+        bb.setByte(OFPacketIn.MINIMUM_LENGTH, 42);
+        TestCase.assertEquals(42, data.getByte(data.readerIndex()));
+        parsed.retain();
+        parsed.release();
+        TestCase.assertFalse(parsed.isSliced());
+        bb.setByte(OFPacketIn.MINIMUM_LENGTH, 1);
+        TestCase.assertEquals(42, parsed.getPacketData()[0]);
+
+        // unless asked for, packet-ins are copied
+        bb = ChannelBuffers.dynamicBuffer();
+        pi.writeTo(bb);
+        parsed = (OFPacketIn) factory.parseMessage(bb).get(0);
+        TestCase.assertFalse(parsed.isSliced());
+        assertArrayEquals(packetData, parsed.getPacketData());
+    }
+
+    public void testZeroCopyPacketInAccessAfterRelease()
+            throws MessageParseException {
+        BasicFactory factory = BasicFactory.getInstance();
+        byte[] packetData = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        OFPacketIn pi = (OFPacketIn) factory.getMessage(OFType.PACKET_IN);
+        pi.setBufferId(OFPacketOut.BUFFER_ID_NONE)
+          .setInPort((short) 1)
+          .setReason(OFPacketIn.OFPacketInReason.NO_MATCH)
+          .setPacketData(packetData);
+        ChannelBuffer bb = ChannelBuffers.dynamicBuffer();
+        pi.writeTo(bb);
+
+        // released without being retained, the data is gone for good
+        OFPacketIn parsed = (OFPacketIn) factory.parseMessage(bb, true).get(0);
+        parsed.release();
+        try {
+            parsed.getPacketData();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            parsed.getPacketDataBuffer();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // unless it was read before
+        bb = ChannelBuffers.dynamicBuffer();
+        pi.writeTo(bb);
+        parsed = (OFPacketIn) factory.parseMessage(bb, true).get(0);
+        parsed.getPacketData();
+        parsed.release();
+        assertArrayEquals(packetData, parsed.getPacketData());
+    }
+
     public void testCustomVendorAction() throws MessageParseException {
         BasicFactory factory = BasicFactory.getInstance();
         OFVendorActionRegistry.getInstance().register(
@@ -1,6 +1,14 @@
 package org.openflow.protocol;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Test;
+import org.openflow.protocol.action.OFAction;
 
 public class OFPacketOutTest {
 
@@ -42,4 +50,33 @@ public class OFPacketOutTest {
         packetOut.validate();
     }
 
+    @Test
+    public void testPacketDataFromPacketIn() {
+        byte[] packetData = new byte[] { 1, 2, 3, 4 };
+        OFPacketIn pi = new OFPacketIn();
+        pi.setBufferId(OFPacketOut.BUFFER_ID_NONE)
+          .setReason(OFPacketIn.OFPacketInReason.NO_MATCH)
+          .setPacketData(packetData);
+        ChannelBuffer bb = ChannelBuffers.dynamicBuffer();
+        pi.writeTo(bb);
+        OFPacketIn sliced = new OFPacketIn();
+        sliced.readFromSlice(bb);
+
+        OFPacketOut packetOut = new OFPacketOut();
+        packetOut.setPacketDataFrom(sliced);
+        packetOut.setActions(new ArrayList<OFAction>());
+        packetOut.setLength((short) (OFPacketOut.MINIMUM_LENGTH +
+                                     packetOut.getPacketDataLength()));
+        assertEquals(packetData.length, packetOut.getPacketDataLength());
+
+        ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+        packetOut.writeTo(out);
+        assertEquals(OFPacketOut.MINIMUM_LENGTH + packetData.length,
+                     out.readableBytes());
+        byte[] written = new byte[packetData.length];
+        out.getBytes(OFPacketOut.MINIMUM_LENGTH, written);
+        assertArrayEquals(packetData, written);
+        assertArrayEquals(packetData, packetOut.getPacketData());
+    }
+
 }